@@ -0,0 +1,29 @@
+package java.lang.ref;
+
+/** There is no way to observe garbage collection here, so registered actions only run if they are cleaned explicitly */
+public final class Cleaner {
+
+    private Cleaner() {}
+
+    public static Cleaner create() {
+        return new Cleaner();
+    }
+
+    public Cleanable register(Object obj, Runnable action) {
+        return new Cleanable() {
+            private boolean cleaned = false;
+
+            @Override
+            public void clean() {
+                if (cleaned)
+                    return;
+                cleaned = true;
+                action.run();
+            }
+        };
+    }
+
+    public interface Cleanable {
+        void clean();
+    }
+}
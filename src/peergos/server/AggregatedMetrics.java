@@ -1,12 +1,15 @@
 package peergos.server;
 
 import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
 import io.prometheus.client.Histogram;
 import io.prometheus.client.exporter.HTTPServer;
 import peergos.server.util.*;
+import peergos.shared.user.fs.ReadAhead;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.function.*;
 
 /**
  * A wrapper around the prometheus metrics and HTTP exporter.
@@ -50,6 +53,13 @@ public class AggregatedMetrics {
             .exponentialBuckets(0.01, 2, 16)
             .register();
 
+    public static final Histogram STORAGE_BLOCK_PUT_PHASE_DURATION = Histogram.build()
+            .labelNames("phase")
+            .name("block_put_phase_duration")
+            .help("Time spent in each phase of a block put: parse, verify (beyond what overlapped parsing) and store")
+            .exponentialBuckets(0.001, 2, 16)
+            .register();
+
     public static final Counter MUTABLE_POINTERS_SET  = build("mutable_pointers_set", "Total mutable-pointers set calls.");
     public static final Counter MUTABLE_POINTERS_GET  = build("mutable_pointers_get", "Total mutable-pointers get calls.");
 
@@ -88,6 +98,37 @@ public class AggregatedMetrics {
     public static final Counter PAID_MIRROR_SUCCESS  = build("core_node_mirror_paid_success", "Total successful paid mirror calls.");
     public static final Counter MIGRATE_USER  = build("core_node_migrate_user", "Total migrate-user calls.");
 
+    public static final Gauge USAGE_UPDATE_WRITERS = Gauge.build()
+            .name("usage_update_writers").help("Writers to check in the startup usage update.").register();
+    public static final Gauge USAGE_UPDATE_WRITERS_DONE = Gauge.build()
+            .name("usage_update_writers_done").help("Writers checked so far in the startup usage update.").register();
+
+    public static final Gauge MIRROR_USER_QUEUE = Gauge.build()
+            .name("mirror_user_queue").help("Users waiting for their data to be mirrored.").register();
+    public static final Gauge MIRROR_USER_LAG = Gauge.build()
+            .labelNames("username")
+            .name("mirror_user_lag_seconds").help("Time since each mirrored user's data was last mirrored.").register();
+
+    /** A gauge whose value is read when metrics are scraped */
+    private static Gauge gauge(String name, String help, DoubleSupplier value) {
+        Gauge gauge = Gauge.build()
+                .name(name).help(help).register();
+        gauge.setChild(new Gauge.Child() {
+            @Override
+            public double get() {
+                return value.getAsDouble();
+            }
+        });
+        return gauge;
+    }
+
+    private static final Gauge READ_AHEAD_HITS = gauge("read_ahead_hits",
+            "Sequential chunk reads which had already been prefetched.", ReadAhead::hits);
+    private static final Gauge READ_AHEAD_MISSES = gauge("read_ahead_misses",
+            "Sequential chunk reads which had not been prefetched.", ReadAhead::misses);
+    private static final Gauge READ_AHEAD_HIT_RATE = gauge("read_ahead_hit_rate",
+            "Fraction of sequential chunk reads which had already been prefetched.", ReadAhead::hitRate);
+
     private static Set<String> runningExporters = new HashSet<>();
 
     public static synchronized void startExporter(String address, int port) throws IOException {
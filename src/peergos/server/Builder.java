@@ -8,6 +8,7 @@ import peergos.server.crypto.asymmetric.curve25519.*;
 import peergos.server.crypto.asymmetric.mlkem.JavaMlkem;
 import peergos.server.crypto.hash.*;
 import peergos.server.crypto.random.*;
+import peergos.server.crypto.symmetric.*;
 import peergos.server.login.*;
 import peergos.server.space.*;
 import peergos.server.sql.*;
@@ -69,7 +70,8 @@ public class Builder {
     public static Crypto initCrypto(Hasher h, Optional<Path> libPath) {
         try {
             JniTweetNacl nativeNacl = JniTweetNacl.build(libPath);
-            Salsa20Poly1305 symmetricProvider = new JniTweetNacl.Symmetric(nativeNacl);
+            // the pure java secretbox is much faster than tweetnacl's, even natively
+            Salsa20Poly1305 symmetricProvider = new FastSalsa20Poly1305();
             Ed25519 signer = new JniTweetNacl.Signer(nativeNacl);
             Curve25519 boxer = new Curve25519Java();
             JavaMlkem mlkem = new JavaMlkem();
@@ -122,6 +124,8 @@ public class Builder {
             if (":memory:".equals(sqlFilePath))
                 return buildEphemeralSqlite();
             try {
+                if (a.getBoolean("sqlite-pool", false))
+                    return new SqlitePool(sqlFilePath, a.getInt("sqlite-readers", 4));
                 Connection memory = Sqlite.build(sqlFilePath);
                 // We need a connection that ignores close
                 Connection instance = new Sqlite.UncloseableConnection(memory);
@@ -145,7 +149,7 @@ public class Builder {
 
     public static JavaPoster buildIpfsApi(Args a) {
         URL ipfsApiAddress = AddressUtil.getAddress(new MultiAddress(a.getArg("ipfs-api-address", "/ip4/127.0.0.1/tcp/5001")));
-        return new JavaPoster(ipfsApiAddress, false);
+        return new JavaPoster(ipfsApiAddress, false, a.getInt("max-requests-per-host", JavaPoster.DEFAULT_MAX_REQUESTS_PER_HOST));
     }
 
     /**
@@ -155,7 +159,7 @@ public class Builder {
      */
     public static JavaPoster buildP2pHttpProxy(Args a) {
         URL ipfsGatewayAddress = AddressUtil.getAddress(new MultiAddress(a.getArg("ipfs-gateway-address")));
-        return new JavaPoster(ipfsGatewayAddress, false);
+        return new JavaPoster(ipfsGatewayAddress, false, a.getInt("max-requests-per-host", JavaPoster.DEFAULT_MAX_REQUESTS_PER_HOST));
     }
 
     /** A number representing the size in bytes of the blockstore's bloom filter. A value of zero represents the feature is disabled.
@@ -186,6 +190,20 @@ public class Builder {
         return args.fromPeergosDir("blockstore_dir", ".ipfs/blocks");
     }
 
+    /**
+     * Build the local blockstore, either a file per block or pack files, according to the blockstore-type arg.
+     */
+    public static DeletableContentAddressedStorage buildLocalBlockstore(Args a,
+                                                                        Cid ourId,
+                                                                        TransactionStore transactions,
+                                                                        BlockRequestAuthoriser authoriser,
+                                                                        PartitionStatus partitionStatus,
+                                                                        Hasher hasher) {
+        if (a.getArg("blockstore-type", "files").equals("packs"))
+            return new PackContentAddressedStorage(blockstorePath(a), ourId, transactions, authoriser, partitionStatus, hasher);
+        return new FileContentAddressedStorage(blockstorePath(a), ourId, transactions, authoriser, partitionStatus, hasher);
+    }
+
     private static BlockStoreProperties buildS3Properties(Args a) {
         S3Config config = S3Config.build(a, Optional.empty());
         Optional<String> publicReadUrl = S3Config.getPublicReadUrl(a);
@@ -211,6 +229,14 @@ public class Builder {
         }
     }
 
+    public static BlockCache buildBlockCache(Args a, long defaultMaxSize) {
+        Path dir = a.fromPeergosDir("block-cache-dir", "block-cache");
+        boolean useSegments = a.getArg("block-cache-type", "files").equals("segments");
+        if (useSegments)
+            return new SegmentBlockCache(dir, defaultMaxSize);
+        return new FileBlockCache(dir, defaultMaxSize);
+    }
+
     public static ContentAddressedStorageProxy buildP2PBlockRetrieverForS3(Args a,
                                                                            UsageStore usage,
                                                                            Hasher hasher,
@@ -256,7 +282,7 @@ public class Builder {
                 BlockStoreProperties props = buildS3Properties(a);
                 TransactionalIpfs p2pBlockRetriever = new TransactionalIpfs(ipfs, transactions, authoriser, ipfs.id().join(), linkHost, hasher);
 
-                FileBlockCache cborCache = new FileBlockCache(a.fromPeergosDir("block-cache-dir", "block-cache"), 1024 * 1024 * 1024L);
+                BlockCache cborCache = buildBlockCache(a, 1024 * 1024 * 1024L);
                 FileBlockBuffer blockBuffer = new FileBlockBuffer(a.fromPeergosDir("s3-block-buffer-dir", "block-buffer"), usage);
 
                 p2pGets = buildP2PBlockRetrieverForS3(a, usage, hasher, p2pGets);
@@ -274,7 +300,7 @@ public class Builder {
             }
             Multihash peerId = Multihash.decode(ourIds.get(ourIds.size() - 1).getBytes());
             Cid ourId = new Cid(1, Cid.Codec.LibP2pKey, peerId.type, peerId.getHash());
-            FileContentAddressedStorage files = new FileContentAddressedStorage(blockstorePath(a), ourId,
+            DeletableContentAddressedStorage files = buildLocalBlockstore(a, ourId,
                     transactions, authoriser, partitionStatus, hasher);
             MultiIdStorage blocks = new MultiIdStorage(new LocalFirstStorage(files, http, p2pGets, ourIds, hasher), ourIds);
             if (enableGC) {
@@ -295,7 +321,7 @@ public class Builder {
                 S3Config config = S3Config.build(a, Optional.empty());
                 BlockStoreProperties props = buildS3Properties(a);
 
-                FileBlockCache cborCache = new FileBlockCache(a.fromPeergosDir("block-cache-dir", "block-cache"), 10 * 1024 * 1024 * 1024L);
+                BlockCache cborCache = buildBlockCache(a, 10 * 1024 * 1024 * 1024L);
                 FileBlockBuffer blockBuffer = new FileBlockBuffer(a.fromPeergosDir("s3-block-buffer-dir", "block-buffer"), usage);
                 S3BlockStorage s3 = new S3BlockStorage(config, ipfs.ids().join(), props, linkHost, transactions, authoriser,
                         bats, meta, usage, cborCache, blockBuffer,
@@ -312,7 +338,7 @@ public class Builder {
             } else {
                 // only used for testing
                 Cid ourId = new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes()));
-                FileContentAddressedStorage fileBacked = new FileContentAddressedStorage(blockstorePath(a), ourId,
+                DeletableContentAddressedStorage fileBacked = buildLocalBlockstore(a, ourId,
                         transactions, authoriser, partitionStatus, hasher);
                 MetadataCachingStorage metabs = new MetadataCachingStorage(fileBacked, meta, usage, hasher);
                 return new LocalIpnsStorage(metabs, ids);
@@ -445,11 +471,18 @@ public class Builder {
                         a.fromPeergosDir("pki-mirror-state-path","pki-state.cbor"), instanceBat,
                 a.getOptionalArg("unlisted-usernames")
                         .map(arg -> Arrays.asList(arg.split(",")))
-                        .orElse(Collections.emptyList()), crypto);
+                        .orElse(Collections.emptyList()), a.getInt("mirror-user-parallelism", 4), crypto);
     }
 
     public static JdbcIpnsAndSocial buildRawPointers(Args a, Supplier<Connection> dbConnectionPool) {
-        return new JdbcIpnsAndSocial(dbConnectionPool, getSqlCommands(a));
+        return buildRawPointers(a, dbConnectionPool, false);
+    }
+
+    /**
+     * @param cachePointers Only for the server which owns the pointer database, see JdbcIpnsAndSocial
+     */
+    public static JdbcIpnsAndSocial buildRawPointers(Args a, Supplier<Connection> dbConnectionPool, boolean cachePointers) {
+        return new JdbcIpnsAndSocial(dbConnectionPool, getSqlCommands(a), cachePointers);
     }
 
 
@@ -12,7 +12,7 @@ public class JavaCrypto {
 
     public static Crypto init() {
         SafeRandomJava random = new SafeRandomJava();
-        Salsa20Poly1305Java symmetricProvider = new Salsa20Poly1305Java();
+        FastSalsa20Poly1305 symmetricProvider = new FastSalsa20Poly1305();
         Ed25519Java signer = new Ed25519Java();
         Curve25519 boxer = new Curve25519Java();
         JavaMlkem javaMlkem = new JavaMlkem();
@@ -111,6 +111,9 @@ public class Main extends Builder {
     public static final Command.Arg GLOBAL_S3_READ_REQUESTS_LIMIT = new Command.Arg("global-s3-read-requests-limit", "The maximum number of S3 read requests allowed from this server per second.", false, "100000");
     public static final Command.Arg USER_S3_READ_REQUESTS_LIMIT = new Command.Arg("user-s3-read-requests-limit", "The maximum number of S3 read requests allowed from this server per user per second.", false, "1000");
     public static final Command.Arg VERSIONED_S3 = new Command.Arg("s3.versioned-bucket", "If the S3 bucket is versioned", false, "false");
+    public static final Command.Arg READ_AHEAD_THREADS = new Command.Arg("read-ahead.threads", "The number of threads prefetching file chunks ahead of sequential reads", false, "4");
+    public static final Command.Arg READ_AHEAD_BUDGET_MIB = new Command.Arg("read-ahead.budget-mib", "The maximum total size of prefetched file chunks across all open files, in MiB", false, Long.toString(ReadAhead.DEFAULT_BUDGET / 1024 / 1024));
+    public static final Command.Arg READ_AHEAD_MAX_CHUNKS = new Command.Arg("read-ahead.max-chunks", "The most chunks a file reader will prefetch ahead of its position", false, Integer.toString(ReadAhead.DEFAULT_MAX_WINDOW));
 
     public static Command<IpfsWrapper> IPFS = new Command<>("ipfs",
             "Configure and start IPFS daemon",
@@ -177,15 +180,30 @@ public class Main extends Builder {
                     USER_DOWNLOAD_BANDWIDTH_LIMIT,
                     USER_S3_READ_REQUESTS_LIMIT,
                     VERSIONED_S3,
+                    READ_AHEAD_THREADS,
+                    READ_AHEAD_BUDGET_MIB,
+                    READ_AHEAD_MAX_CHUNKS,
                     ServerIdentity.ARG_SERVERIDS_SQL_FILE,
+                    new Command.Arg("cache-pointers", "Keep mutable pointers in memory, only safe if nothing else, including other servers and admin tools, writes to the same pointer database while it runs", false, "false"),
+                    new Command.Arg("max-requests-per-host", "The most concurrent HTTP requests to the local ipfs api and p2p proxy", false, "50"),
+                    new Command.Arg("sqlite-pool", "Open file backed sqlite databases in WAL mode, with one writer and a pool of readers", false, "false"),
+                    new Command.Arg("sqlite-readers", "Number of read only connections to each sqlite database, if sqlite-pool is set", false, "4"),
+                    new Command.Arg("blockstore-type", "How the local blockstore stores blocks: files (one per block) or packs", false, "files"),
+                    new Command.Arg("block-cache-type", "How the local cache of S3 blocks stores them: files (one per block) or segments (appended to large segment files)", false, "files"),
                     new Command.Arg("enable-gc", "Enable the blockstore garbage collector", false, "true"),
                     new Command.Arg("gc.period.millis", "Garbage collect frequency in millis (default 12h)", false, "43200000"),
+                    new Command.Arg("gc.engine", "How the garbage collector marks reachable blocks: sqlite or bloom", false, "sqlite"),
+                    new Command.Arg("gc.incremental.full-every", "Only walk changed trees in GC, doing a full mark every N runs (0 disables, not supported with versioned S3)", false, "0"),
+                    new Command.Arg("update-usage", "Update space usage from any changed mutable pointers on startup", false, "true"),
+                    new Command.Arg("update-usage-parallelism", "Number of users whose space usage is updated concurrently on startup", false, "8"),
+                    new Command.Arg("update-usage-checkpoint", "The file recording which users' space usage has been updated, so an interrupted update resumes where it stopped", false, "usage-update.checkpoint"),
                     new Command.Arg("webroot", "the path to the directory to serve as the web root", false),
                     new Command.Arg("default-quota", "default maximum storage per user", false, Long.toString(1024L * 1024 * 1024)),
                     new Command.Arg("admin-usernames", "A comma separated list of usernames who can approve local space requests", false),
                     new Command.Arg("mirror.node.id", "Mirror a server's data locally", false),
                     new Command.Arg("mirror.username", "Mirror a user's data locally", false),
                     new Command.Arg("mirror.bat", "BatWithId to enable mirroring a user's private data", false),
+                    new Command.Arg("mirror-user-parallelism", "Number of users whose data is mirrored concurrently, when mirroring the pki", false, "4"),
                     new Command.Arg("login-keypair", "The keypair used to mirror the login data for a user (use with 'mirror.username' arg)", false),
                     new Command.Arg("public-server", "Are we a public server? (allow http GETs to API)", false, "false"),
                     new Command.Arg("run-gateway", "Run a local Peergos gateway", false),
@@ -213,7 +231,7 @@ public class Main extends Builder {
             boolean useIPFS = args.getBoolean("useIPFS");
             ContentAddressedStorage dht = useIPFS ?
                     new ContentAddressedStorage.HTTP(Builder.buildIpfsApi(args), false, crypto.hasher) :
-                    new FileContentAddressedStorage(blockstorePath(args), new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes())),
+                    Builder.buildLocalBlockstore(args, new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes())),
                             JdbcTransactionStore.build(getDBConnector(args, "transactions-sql-file"), new SqliteCommands()),
                             (a, b, c, d) -> Futures.of(true), PartitionStatus.DONE, crypto.hasher);
 
@@ -423,7 +441,7 @@ public class Main extends Builder {
                         throw new IllegalStateException("S3 not supported for PKI!");
                     ContentAddressedStorage storage = useIPFS ?
                             new ContentAddressedStorage.HTTP(Builder.buildIpfsApi(args), false, crypto.hasher) :
-                            new FileContentAddressedStorage(blockstorePath(args), new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes())),
+                            Builder.buildLocalBlockstore(args, new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes())),
                                     transactions, authoriser, partitionStatus, crypto.hasher);
                     Multihash pkiIpfsNodeId = storage.id().get();
 
@@ -468,7 +486,10 @@ public class Main extends Builder {
                     new Command.Arg("username", "Peergos username", true),
                     new Command.Arg("PEERGOS_PASSWORD", "Peergos password", true),
                     new Command.Arg("peergos-url", "Peergos service address", false, "https://peergos.net"),
-                    new Command.Arg("mountPoint", "The directory to mount the Peergos filesystem in", true, "peergos")
+                    new Command.Arg("mountPoint", "The directory to mount the Peergos filesystem in", true, "peergos"),
+                    READ_AHEAD_THREADS,
+                    READ_AHEAD_BUDGET_MIB,
+                    READ_AHEAD_MAX_CHUNKS
             ).collect(Collectors.toList())
     );
 
@@ -483,7 +504,10 @@ public class Main extends Builder {
                     new Command.Arg("PEERGOS_WEBDAV_PASSWORD", "Webdav password", true),
                     new Command.Arg("webdav.authorization.scheme", "The auth scheme used in the HTTP Authorization request header. Options are: basic or digest", false, "digest"),
                     new Command.Arg("webdav.port", "The listen port for the webdav endpoint", false, "8090"),
-                    new Command.Arg("peergos-url", "Peergos service address", false, "https://peergos.net")
+                    new Command.Arg("peergos-url", "Peergos service address", false, "https://peergos.net"),
+                    READ_AHEAD_THREADS,
+                    READ_AHEAD_BUDGET_MIB,
+                    READ_AHEAD_MAX_CHUNKS
             ).collect(Collectors.toList())
     );
 
@@ -880,7 +904,7 @@ public class Main extends Builder {
             Supplier<Connection> statusDb = Main.getDBConnector(a, "partition-status-file");
             PartitionStatus partitionStatus = new JdbcPartitionStatus(statusDb, sqlCommands);
             JdbcIpnsAndSocial rawPointers = buildRawPointers(a,
-                    getDBConnector(a, "mutable-pointers-file", dbConnectionPool));
+                    getDBConnector(a, "mutable-pointers-file", dbConnectionPool), a.getBoolean("cache-pointers", false));
             DeletableContentAddressedStorage localStorageForLinks = buildLocalStorage(a, meta, batStore, transactions, blockAuth,
                     ids, usageStore, rawPointers, partitionStatus, crypto.hasher);
 
@@ -922,7 +946,9 @@ public class Main extends Builder {
             if (enableGC) {
                 boolean useS3 = S3Config.useS3(a);
                 boolean listRawBlocks = useS3 && a.getBoolean(VERSIONED_S3.name);
-                gc = new GarbageCollector(localStorageForLinks, rawPointers, usageStore, core, a.fromPeergosDir("", ""), (cd, rd, c) -> Futures.of(true), username -> Futures.of(true), listRawBlocks);
+                gc = new GarbageCollector(localStorageForLinks, rawPointers, usageStore, core, a.fromPeergosDir("", ""), (cd, rd, c) -> Futures.of(true), username -> Futures.of(true), listRawBlocks,
+                        GarbageCollector.Engine.parse(a.getArg("gc.engine", "sqlite")),
+                        listRawBlocks ? 0 : a.getInt("gc.incremental.full-every", 0));
                 Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver = s -> Futures.of(true);
                 int gcInterval = 12 * 60 * 60 * 1000;
                 gc.start(a.getInt("gc.period.millis", gcInterval), snapshotSaver);
@@ -953,7 +979,8 @@ public class Main extends Builder {
                     a.getInt("max-daily-paid-signups", isPaidInstance(a) ? 10 : 0), isPki);
 
             if (a.getBoolean("update-usage", true))
-                new Thread(() -> SpaceCheckingKeyFilter.update(usageStore, userQuotas, core, localPointers, localStorage, hasher)).start();
+                new Thread(() -> SpaceCheckingKeyFilter.update(usageStore, userQuotas, core, localPointers, localStorage, hasher,
+                        a.getInt("update-usage-parallelism", 8), a.fromPeergosDir("update-usage-checkpoint", "usage-update.checkpoint"))).start();
             SpaceCheckingKeyFilter spaceChecker = new SpaceCheckingKeyFilter(core, localPointers, localStorage,
                     hasher, userQuotas, usageStore, a.getLong(QUOTA_UPLOAD_LIMIT_SECONDS.name, 3600));
             CorenodeEventPropagator corePropagator = new CorenodeEventPropagator(signupFilter);
@@ -1360,7 +1387,10 @@ public class Main extends Builder {
             Arrays.asList(
                     ARG_SERVER_URL,
                     new Command.Arg("port", "Localhost server port for app/proxy mode", false, "7777"),
-                    new Command.Arg("minimised", "Start in the tray with no window (used by the login item)", false, "false")
+                    new Command.Arg("minimised", "Start in the tray with no window (used by the login item)", false, "false"),
+                    READ_AHEAD_THREADS,
+                    READ_AHEAD_BUDGET_MIB,
+                    READ_AHEAD_MAX_CHUNKS
             ),
             Arrays.asList(
                     PEERGOS,
@@ -1399,7 +1429,11 @@ public class Main extends Builder {
         // Netty uses thread count twice the number of CPUs, this undoes that
         System.getProperties().setProperty("io.netty.eventLoopThreads", "2");
         try {
-            MAIN.main(Args.parse(args));
+            Args a = Args.parse(args);
+            ReadAhead.configure(Threads.newFJPool(a.getInt(READ_AHEAD_THREADS.name, 4), "Read-ahead-"),
+                    a.getLong(READ_AHEAD_BUDGET_MIB.name, ReadAhead.DEFAULT_BUDGET / 1024 / 1024) * 1024 * 1024,
+                    a.getInt(READ_AHEAD_MAX_CHUNKS.name, ReadAhead.DEFAULT_MAX_WINDOW));
+            MAIN.main(a);
         } catch (Throwable e) {
             e.printStackTrace();
             Logging.LOG().log(Level.SEVERE, e, () -> e.getMessage());
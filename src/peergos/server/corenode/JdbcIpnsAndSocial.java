@@ -17,6 +17,7 @@ import peergos.shared.util.*;
 import java.sql.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 import java.util.stream.*;
 
 public class JdbcIpnsAndSocial {
@@ -29,11 +30,23 @@ public class JdbcIpnsAndSocial {
     private static final String SELECT_FOLLOW_REQUESTS = "SELECT name, followrequest FROM followrequests WHERE name = ?;";
     private static final String DELETE_FOLLOW_REQUEST = "DELETE FROM followrequests WHERE name = ? AND followrequest = ?;";
 
-    private static final String IPNS_TARGET_NAME = "hash";
-    private static final String IPNS_CREATE = "INSERT INTO metadatablobs (writingkey, hash) VALUES(?, ?)";
-    private static final String IPNS_UPDATE = "UPDATE metadatablobs SET hash=? WHERE writingkey = ? AND hash = ?";
-    private static final String IPNS_DELETE = "DELETE FROM metadatablobs WHERE writingkey = ?;";
-    private static final String IPNS_GET = "SELECT * FROM metadatablobs WHERE writingKey = ? LIMIT 1;";
+    // Pointers used to be stored base64 encoded in metadatablobs, these rows are moved to mutablepointers on startup.
+    // Older versions only know metadatablobs, so they can't share a database with this one, or be rolled back to.
+    private static final String LEGACY_GET_ALL = "SELECT writingkey, hash FROM metadatablobs;";
+    private static final String LEGACY_DELETE = "DELETE FROM metadatablobs WHERE writingkey = ?;";
+    // an existing binary row is newer than any legacy row for the same writer
+    private static final String POINTER_MIGRATE = "INSERT INTO mutablepointers (writer, target) VALUES(?, ?) " +
+            "ON CONFLICT(writer) DO NOTHING;";
+
+    private static final String POINTER_GET = "SELECT target FROM mutablepointers WHERE writer = ?;";
+    private static final String POINTER_GET_ALL = "SELECT writer, target FROM mutablepointers;";
+    private static final String POINTER_DELETE = "DELETE FROM mutablepointers WHERE writer = ?;";
+
+    /** The most pointer updates committed in a single statement */
+    private static final int MAX_COMMIT_ROWS = 100;
+    /** The most pointers held in memory, beyond this an arbitrary tenth of them are dropped */
+    private static final int MAX_CACHED_POINTERS = 100_000;
+    private static final int LOCK_STRIPES = 256;
 
     private class FollowRequestData {
         public final String name;
@@ -104,14 +117,47 @@ public class JdbcIpnsAndSocial {
         }
     }
 
+    /** A compare and swap of one or more pointers, which must succeed or fail together */
+    private static final class PendingUpdate {
+        public final List<PublicKeyHash> writers;
+        public final List<Optional<byte[]>> existing;
+        public final List<byte[]> updated;
+        public final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        PendingUpdate(List<PublicKeyHash> writers, List<Optional<byte[]>> existing, List<byte[]> updated) {
+            this.writers = writers;
+            this.existing = existing;
+            this.updated = updated;
+        }
+    }
+
     private volatile boolean isClosed;
     private Supplier<Connection> conn;
-
-    public JdbcIpnsAndSocial(Supplier<Connection> conn, SqlSupplier commands) {
+    private final boolean cachePointers;
+    private final Map<PublicKeyHash, byte[]> pointers = new ConcurrentHashMap<>();
+    private final ReentrantLock[] writerLocks = new ReentrantLock[LOCK_STRIPES];
+    private final BlockingDeque<PendingUpdate> toCommit = new LinkedBlockingDeque<>();
+    private Thread committer;
+
+    /**
+     * @param cachePointers Whether to keep pointers in memory and check compare and swaps there. Only safe if this is
+     *                      the only process writing pointers to the database. A pointer written or removed out of
+     *                      band, by another server or by an admin tool such as ServerAdmin delete-user, leaves a stale
+     *                      entry which is served to reads until a compare and swap against it fails in the database,
+     *                      so the server must be restarted after any such write.
+     */
+    public JdbcIpnsAndSocial(Supplier<Connection> conn, SqlSupplier commands, boolean cachePointers) {
         this.conn = conn;
+        this.cachePointers = cachePointers;
+        for (int i=0; i < writerLocks.length; i++)
+            writerLocks[i] = new ReentrantLock();
         init(commands);
     }
 
+    public JdbcIpnsAndSocial(Supplier<Connection> conn, SqlSupplier commands) {
+        this(conn, commands, false);
+    }
+
     private Connection getConnection() {
         return getConnection(true);
     }
@@ -134,9 +180,41 @@ public class JdbcIpnsAndSocial {
         try (Connection conn = getConnection()) {
             commands.createTable(commands.createFollowRequestsTableCommand(), conn);
             commands.createTable(commands.createMutablePointersTableCommand(), conn);
+            commands.createTable(commands.createBinaryMutablePointersTableCommand(), conn);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
+        migrateLegacyPointers();
+    }
+
+    /** Move any base64 encoded pointers into the binary table, in a single transaction
+     */
+    private void migrateLegacyPointers() {
+        try (Connection conn = getConnection(false);
+             PreparedStatement select = conn.prepareStatement(LEGACY_GET_ALL);
+             PreparedStatement insert = conn.prepareStatement(POINTER_MIGRATE);
+             PreparedStatement delete = conn.prepareStatement(LEGACY_DELETE)) {
+            ResultSet rs = select.executeQuery();
+            int count = 0;
+            while (rs.next()) {
+                String writer = rs.getString("writingkey");
+                insert.setBytes(1, Base64.getDecoder().decode(writer));
+                insert.setBytes(2, Base64.getDecoder().decode(rs.getString("hash")));
+                insert.addBatch();
+                delete.setString(1, writer);
+                delete.addBatch();
+                count++;
+            }
+            if (count > 0) {
+                insert.executeBatch();
+                delete.executeBatch();
+                LOG.info("Migrated " + count + " mutable pointers to binary storage");
+            }
+            conn.commit();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
     }
 
     public CompletableFuture<Boolean> addFollowRequest(PublicKeyHash owner, byte[] encryptedPermission) {
@@ -191,45 +269,45 @@ public class JdbcIpnsAndSocial {
                 .collect(Collectors.toList());
     }
 
+    private ReentrantLock lockFor(PublicKeyHash writer) {
+        return writerLocks[(writer.hashCode() & 0x7fffffff) % writerLocks.length];
+    }
+
+    /** Lock the stripes for all the writers, in a fixed order to avoid deadlocks
+     */
+    private List<ReentrantLock> lockAll(List<PublicKeyHash> writers) {
+        List<ReentrantLock> locks = writers.stream()
+                .map(w -> (w.hashCode() & 0x7fffffff) % writerLocks.length)
+                .distinct()
+                .sorted()
+                .map(i -> writerLocks[i])
+                .collect(Collectors.toList());
+        locks.forEach(ReentrantLock::lock);
+        return locks;
+    }
+
     public void removePointer(PublicKeyHash writingKey) {
+        ReentrantLock lock = lockFor(writingKey);
+        lock.lock();
         try (Connection conn = getConnection();
-                 PreparedStatement stmt = conn.prepareStatement(IPNS_DELETE)) {
-                stmt.setString(1, new String(Base64.getEncoder().encode(writingKey.serialize())));
-                stmt.executeUpdate();
-            } catch (SQLException sqe) {
-                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                throw new RuntimeException(sqe);
-            }
+             PreparedStatement stmt = conn.prepareStatement(POINTER_DELETE)) {
+            stmt.setBytes(1, writingKey.serialize());
+            stmt.executeUpdate();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        } finally {
+            pointers.remove(writingKey);
+            lock.unlock();
+        }
     }
 
     public CompletableFuture<Boolean> setPointer(PublicKeyHash writingKey, Optional<byte[]> existingCas, byte[] newCas) {
-        if (existingCas.isPresent()) {
-            try (Connection conn = getConnection();
-                 PreparedStatement insert = conn.prepareStatement(IPNS_UPDATE)) {
-                conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
-                String key = new String(Base64.getEncoder().encode(writingKey.serialize()));
-
-                insert.setString(1, new String(Base64.getEncoder().encode(newCas)));
-                insert.setString(2, key);
-                insert.setString(3, new String(Base64.getEncoder().encode(existingCas.get())));
-                int changed = insert.executeUpdate();
-                return CompletableFuture.completedFuture(changed > 0);
-            } catch (SQLException sqe) {
-                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                return CompletableFuture.completedFuture(false);
-            }
-        } else {
-            try (Connection conn = getConnection();
-                 PreparedStatement stmt = conn.prepareStatement(IPNS_CREATE)) {
-                stmt.setString(1, new String(Base64.getEncoder().encode(writingKey.serialize())));
-                stmt.setString(2, new String(Base64.getEncoder().encode(newCas)));
-                stmt.executeUpdate();
-                return CompletableFuture.completedFuture(true);
-            } catch (SQLException sqe) {
-                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                return CompletableFuture.completedFuture(false);
-            }
-        }
+        return casPointers(List.of(writingKey), List.of(existingCas), List.of(newCas))
+                .exceptionally(t -> {
+                    LOG.log(Level.WARNING, t.getMessage(), t);
+                    return false;
+                });
     }
 
     public CompletableFuture<Boolean> setPointers(List<Optional<byte[]>> existing, List<SignedPointerUpdate> updates) {
@@ -237,60 +315,243 @@ public class JdbcIpnsAndSocial {
             throw new IllegalStateException("Argument mismatch!");
         if (updates.isEmpty())
             return CompletableFuture.completedFuture(true);
-        String valuesClause = IntStream.range(0, updates.size()).mapToObj(i -> "(?, ?, ?)").collect(Collectors.joining(", "));
-        String sql = "WITH vals(writingkey, new_hash, expected_hash) AS (VALUES " + valuesClause + "), " +
+        return casPointers(updates.stream().map(u -> u.writer).collect(Collectors.toList()),
+                existing,
+                updates.stream().map(u -> u.signed).collect(Collectors.toList()));
+    }
+
+    /** Atomically update all the pointers if they all have their expected current values. The returned future
+     *  completes after the update has been committed to the database.
+     */
+    private CompletableFuture<Boolean> casPointers(List<PublicKeyHash> writers, List<Optional<byte[]>> existing, List<byte[]> updated) {
+        if (new HashSet<>(writers).size() != writers.size())
+            return Futures.errored(new IllegalStateException("Duplicate writer in pointer update!"));
+        if (! cachePointers)
+            return commit(new PendingUpdate(writers, existing, updated));
+
+        // hold the writers' locks until the update is durable, so the next update to them checks against it
+        List<ReentrantLock> locks = lockAll(writers);
+        try {
+            for (int i=0; i < writers.size(); i++) {
+                Optional<byte[]> current;
+                try {
+                    current = getCachedPointer(writers.get(i));
+                } catch (RuntimeException e) {
+                    return Futures.errored(e);
+                }
+                Optional<byte[]> expected = existing.get(i);
+                boolean matches = expected.isEmpty() ?
+                        current.isEmpty() :
+                        current.isPresent() && Arrays.equals(current.get(), expected.get());
+                if (! matches)
+                    return CompletableFuture.completedFuture(false);
+            }
+            boolean success;
+            try {
+                success = commit(new PendingUpdate(writers, existing, updated)).join();
+            } catch (CompletionException e) {
+                writers.forEach(pointers::remove);
+                return Futures.errored(e.getCause());
+            }
+            if (success) {
+                for (int i=0; i < writers.size(); i++)
+                    cache(writers.get(i), updated.get(i));
+            } else // the database was modified by someone else
+                writers.forEach(pointers::remove);
+            return CompletableFuture.completedFuture(success);
+        } finally {
+            locks.forEach(ReentrantLock::unlock);
+        }
+    }
+
+    private CompletableFuture<Boolean> commit(PendingUpdate update) {
+        if (isClosed)
+            return Futures.errored(new IllegalStateException("Pointer store is closed!"));
+        synchronized (this) {
+            if (committer == null) {
+                committer = new Thread(this::commitUpdates, "pointer-commit");
+                committer.setDaemon(true);
+                committer.start();
+            }
+        }
+        toCommit.add(update);
+        return update.result;
+    }
+
+    /** Commit the queued pointer updates, everything which has arrived since the previous commit goes in a single
+     *  statement, so concurrent updates share one sync to disk.
+     */
+    private void commitUpdates() {
+        while (! isClosed) {
+            List<PendingUpdate> batch = new ArrayList<>();
+            try {
+                batch.add(toCommit.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            Set<PublicKeyHash> writers = new HashSet<>(batch.get(0).writers);
+            List<PendingUpdate> deferred = new ArrayList<>();
+            int rows = batch.get(0).writers.size();
+            PendingUpdate next;
+            while ((next = toCommit.poll()) != null) {
+                if (rows + next.writers.size() > MAX_COMMIT_ROWS) {
+                    toCommit.addFirst(next);
+                    break;
+                }
+                // a writer can only be updated once per statement
+                if (next.writers.stream().anyMatch(writers::contains)) {
+                    deferred.add(next);
+                    continue;
+                }
+                writers.addAll(next.writers);
+                rows += next.writers.size();
+                batch.add(next);
+            }
+            for (int i = deferred.size() - 1; i >= 0; i--)
+                toCommit.addFirst(deferred.get(i));
+
+            try {
+                commitBatch(batch);
+            } catch (Throwable t) {
+                // never let the committer die, or every later update would wait forever
+                LOG.log(Level.WARNING, t.getMessage(), t);
+                batch.forEach(u -> u.result.completeExceptionally(t));
+            }
+        }
+        PendingUpdate remaining;
+        while ((remaining = toCommit.poll()) != null)
+            remaining.result.completeExceptionally(new IllegalStateException("Pointer store is closed!"));
+    }
+
+    private void commitBatch(List<PendingUpdate> batch) {
+        if (batch.size() > 1) {
+            try {
+                if (casInDb(batch)) {
+                    batch.forEach(u -> u.result.complete(true));
+                    return;
+                }
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, t.getMessage(), t);
+            }
+        }
+        // nothing in a failed batch was applied, so find out which updates fail on their own
+        for (PendingUpdate update : batch) {
+            try {
+                update.result.complete(casInDb(List.of(update)));
+            } catch (SQLException sqe) {
+                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+                update.result.completeExceptionally(new RuntimeException(sqe));
+            } catch (Throwable t) {
+                // e.g. failing to get a connection
+                LOG.log(Level.WARNING, t.getMessage(), t);
+                update.result.completeExceptionally(t);
+            }
+        }
+    }
+
+    /** Apply all the updates in a single statement, if all their expected values match. The check is only made once,
+     *  in the select feeding the insert. Sqlite would re-evaluate it for each conflicting row, seeing rows already
+     *  written by this statement, and so could apply only some of the updates.
+     *
+     * @return whether the updates were applied
+     */
+    private boolean casInDb(List<PendingUpdate> updates) throws SQLException {
+        int rows = updates.stream().mapToInt(u -> u.writers.size()).sum();
+        String sql = "WITH vals(writer, new_target, expected_target) AS (VALUES " + SqlSupplier.valuePlaceholders(3, rows) + "), " +
                 "cas_ok AS (SELECT COUNT(*) = (SELECT COUNT(*) FROM vals) AS all_ok " +
-                "FROM vals v LEFT JOIN metadatablobs m ON m.writingkey = v.writingkey " +
-                "WHERE (v.expected_hash IS NULL AND m.writingkey IS NULL) " +
-                "OR (v.expected_hash IS NOT NULL AND m.hash = v.expected_hash)) " +
-                "INSERT INTO metadatablobs (writingkey, hash) " +
-                "SELECT v.writingkey, v.new_hash FROM vals v WHERE (SELECT all_ok FROM cas_ok) " +
-                "ON CONFLICT(writingkey) DO UPDATE SET hash = EXCLUDED.hash " +
-                "WHERE (SELECT all_ok FROM cas_ok) RETURNING writingkey";
+                "FROM vals v LEFT JOIN mutablepointers m ON m.writer = v.writer " +
+                "WHERE (v.expected_target IS NULL AND m.writer IS NULL) " +
+                "OR (v.expected_target IS NOT NULL AND m.target = v.expected_target)) " +
+                "INSERT INTO mutablepointers (writer, target) " +
+                "SELECT v.writer, v.new_target FROM vals v WHERE (SELECT all_ok FROM cas_ok) " +
+                "ON CONFLICT(writer) DO UPDATE SET target = EXCLUDED.target RETURNING writer";
         try (Connection conn = getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
-            for (int i = 0; i < updates.size(); i++) {
-                SignedPointerUpdate u = updates.get(i);
-                Optional<byte[]> existingCas = existing.get(i);
-                stmt.setString(3 * i + 1, new String(Base64.getEncoder().encode(u.writer.serialize())));
-                stmt.setString(3 * i + 2, new String(Base64.getEncoder().encode(u.signed)));
-                stmt.setString(3 * i + 3, existingCas.map(b -> new String(Base64.getEncoder().encode(b))).orElse(null));
+            int index = 1;
+            for (PendingUpdate u : updates) {
+                for (int i=0; i < u.writers.size(); i++) {
+                    stmt.setBytes(index++, u.writers.get(i).serialize());
+                    stmt.setBytes(index++, u.updated.get(i));
+                    stmt.setBytes(index++, u.existing.get(i).orElse(null));
+                }
             }
             ResultSet rs = stmt.executeQuery();
             int count = 0;
             while (rs.next()) count++;
-            return CompletableFuture.completedFuture(count == updates.size());
-        } catch (SQLException sqe) {
-            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-            return Futures.errored(new RuntimeException(sqe));
+            return count == rows;
         }
     }
 
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash writingKey) {
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(IPNS_GET)) {
-            stmt.setString(1, new String(Base64.getEncoder().encode(writingKey.serialize())));
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                return CompletableFuture.completedFuture(Optional.of(Base64.getDecoder().decode(rs.getString(IPNS_TARGET_NAME))));
+        if (cachePointers) {
+            byte[] cached = pointers.get(writingKey);
+            if (cached != null)
+                return CompletableFuture.completedFuture(Optional.of(cached));
+            ReentrantLock lock = lockFor(writingKey);
+            lock.lock();
+            try {
+                return CompletableFuture.completedFuture(getCachedPointer(writingKey));
+            } catch (RuntimeException e) {
+                return Futures.errored(e);
+            } finally {
+                lock.unlock();
             }
-
-            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        try {
+            return CompletableFuture.completedFuture(getPointerFromDb(writingKey));
         } catch (SQLException sqe) {
             LOG.log(Level.WARNING, sqe.getMessage(), sqe);
             return Futures.errored(sqe);
         }
     }
 
+    /** Must be called holding the writer's lock */
+    private Optional<byte[]> getCachedPointer(PublicKeyHash writingKey) {
+        byte[] cached = pointers.get(writingKey);
+        if (cached != null)
+            return Optional.of(cached);
+        try {
+            Optional<byte[]> fromDb = getPointerFromDb(writingKey);
+            fromDb.ifPresent(p -> cache(writingKey, p));
+            return fromDb;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    private void cache(PublicKeyHash writingKey, byte[] target) {
+        pointers.put(writingKey, target);
+        if (pointers.size() <= MAX_CACHED_POINTERS)
+            return;
+        // any entry can be dropped, it will be read from the database again when next needed
+        int toDrop = pointers.size() - MAX_CACHED_POINTERS * 9 / 10;
+        Iterator<PublicKeyHash> it = pointers.keySet().iterator();
+        while (toDrop-- > 0 && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private Optional<byte[]> getPointerFromDb(PublicKeyHash writingKey) throws SQLException {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(POINTER_GET)) {
+            stmt.setBytes(1, writingKey.serialize());
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next())
+                return Optional.of(rs.getBytes("target"));
+            return Optional.empty();
+        }
+    }
+
     public Map<PublicKeyHash, byte[]> getAllEntries() {
         try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement("SELECT * FROM metadatablobs")) {
+             PreparedStatement stmt = conn.prepareStatement(POINTER_GET_ALL)) {
             ResultSet rs = stmt.executeQuery();
             Map<PublicKeyHash, byte[]> results = new HashMap<>();
             while (rs.next()) {
-                PublicKeyHash writerHash = PublicKeyHash.fromCbor(CborObject.fromByteArray(Base64.getDecoder().decode(rs.getString("writingKey"))));
-                byte[] signedRawCas = Base64.getDecoder().decode(rs.getString(IPNS_TARGET_NAME));
-                results.put(writerHash, signedRawCas);
+                PublicKeyHash writerHash = PublicKeyHash.fromCbor(CborObject.fromByteArray(rs.getBytes("writer")));
+                results.put(writerHash, rs.getBytes("target"));
             }
 
             return results;
@@ -305,5 +566,7 @@ public class JdbcIpnsAndSocial {
             return;
 
         isClosed = true;
+        if (committer != null)
+            committer.interrupt();
     }
 }
@@ -56,7 +56,13 @@ public class MirrorCoreNode implements CoreNode {
     private final Optional<BatWithId> instanceBat;
     private final Hasher hasher;
     private final Crypto crypto;
-    private final ExecutorService mirrorPool = Threads.newPool(1, "Mirror-");
+    private final int userMirrorParallelism;
+    // one thread for each user mirror loop, and one for polling external users
+    private final ExecutorService mirrorPool;
+    // each user is queued at most once, and isn't queued again until their mirror has finished
+    private final PriorityBlockingQueue<UserMirrorJob> userMirrorQueue = new PriorityBlockingQueue<>();
+    private final Set<String> queuedUserMirrors = ConcurrentHashMap.newKeySet();
+    private final Map<String, UserMirrorState> userMirrorStates = new ConcurrentHashMap<>();
     private final List<String> unlistedUsernames;
     // A MutablePointers that routes each read to the owner's home server (or locally), rather than
     // defaulting every read to the pki node like the raw p2pMutable proxy does.
@@ -85,6 +91,7 @@ public class MirrorCoreNode implements CoreNode {
                           Path statePath,
                           Optional<BatWithId> instanceBat,
                           List<String> unlistedUsernames,
+                          int userMirrorParallelism,
                           Crypto crypto) {
         this.writeTarget = writeTarget;
         this.rawAccount = rawAccount;
@@ -105,6 +112,8 @@ public class MirrorCoreNode implements CoreNode {
         this.ourNodeId = ipfs.id().join();
         this.instanceBat = instanceBat;
         this.unlistedUsernames = unlistedUsernames;
+        this.userMirrorParallelism = userMirrorParallelism;
+        this.mirrorPool = Threads.newPool(userMirrorParallelism + 1, "Mirror-");
         this.hasher = crypto.hasher;
         this.crypto = crypto;
         this.routingPointers = new ProxyingMutablePointers(List.of(ourNodeId), this, localPointers, p2pMutable);
@@ -144,22 +153,64 @@ public class MirrorCoreNode implements CoreNode {
             if (changed)
                 saveState();
             initialized = true;
-            if (mirrorUsers)
+            if (mirrorUsers) {
+                for (int i = 0; i < userMirrorParallelism; i++)
+                    mirrorPool.submit(() -> runUserMirrors());
                 mirrorPool.submit(() -> mirrorExternalUsers());
+            }
         } catch (Throwable t) {
             Logging.LOG().log(Level.SEVERE, "Couldn't update mirror pki state: " + t.getMessage(), t);
         }
     }
 
+    private static final class UserMirrorState {
+        volatile long lastChange, lastMirrored;
+        volatile Map<PublicKeyHash, byte[]> pointers = Collections.emptyMap();
+        final long firstQueued;
+
+        UserMirrorState(long firstQueued) {
+            this.firstQueued = firstQueued;
+        }
+
+        long lagMillis(long now) {
+            return now - (lastMirrored > 0 ? lastMirrored : firstQueued);
+        }
+    }
+
+    /** Users whose pointers changed most recently go first, then whoever has waited longest since their last mirror.
+     */
+    private static final class UserMirrorJob implements Comparable<UserMirrorJob> {
+        final String username;
+        final long lastChange, lastMirrored;
+
+        UserMirrorJob(String username, long lastChange, long lastMirrored) {
+            this.username = username;
+            this.lastChange = lastChange;
+            this.lastMirrored = lastMirrored;
+        }
+
+        @Override
+        public int compareTo(UserMirrorJob other) {
+            int byChange = Long.compare(other.lastChange, lastChange);
+            if (byChange != 0)
+                return byChange;
+            int byWait = Long.compare(lastMirrored, other.lastMirrored);
+            if (byWait != 0)
+                return byWait;
+            return username.compareTo(other.username);
+        }
+    }
+
+    /** Queue a mirror of every external user with local quota who isn't already queued, or being mirrored. */
     private void mirrorExternalUsers() {
-        while (true) {
+        while (running) {
             try {
                 List<String> localQuotaUsernames = quotas.getLocalUsernames();
                 List<Multihash> ourPeerIds = ipfs.ids().join()
                         .stream()
                         .map(Cid::bareMultihash)
                         .toList();
-                List<String> externalUsersToMirror = localQuotaUsernames.stream()
+                Set<String> externalUsersToMirror = localQuotaUsernames.stream()
                         .filter(n -> {
                             if (! state.chains.containsKey(n))
                                 return false;
@@ -170,28 +221,21 @@ public class MirrorCoreNode implements CoreNode {
                             if (homes.isEmpty())
                                 return false;
                             return !ourPeerIds.contains(homes.get(0).bareMultihash());
-                        }).toList();
+                        }).collect(Collectors.toSet());
+                long now = System.currentTimeMillis();
                 for (String username : externalUsersToMirror) {
-                    long quota = quotas.getQuota(username);
-                    if (quota <= 1024*1024)
-                        continue;
-                    List<BatWithId> localMirrorBats = batCave.getUserBats(username, new byte[0]).join();
-                    if (localMirrorBats.isEmpty())
-                        continue;
-                    LOG.info("Mirroring " + username + " data locally..");
-                    try {
-                        long t0 = System.currentTimeMillis();
-                        PublicKeyHash owner = getPublicKeyHash(username).join().get();
-                        Map<PublicKeyHash, byte[]> pointers = Mirror.mirrorUser(username, Optional.empty(),
-                                Optional.of(localMirrorBats.get(localMirrorBats.size() - 1)), this, routingPointers,
-                                null, ipfs, rawPointers, rawAccount, transactions, linkCounts, usageStore, hasher);
-                        SpaceCheckingKeyFilter.processCorenodeEvent(username, owner, pointers.keySet(), usageStore, quotas, ipfs, routingPointers, hasher);
-                        long t1 = System.currentTimeMillis();
-                        LOG.info("Finished mirroring " + username + " data in " + (t1 - t0) / 1_000 + "s");
-                    } catch (Exception e) {
-                        LOG.log(Level.WARNING, "Error mirroring user " + username, e);
+                    UserMirrorState userState = userMirrorStates.computeIfAbsent(username, u -> new UserMirrorState(now));
+                    AggregatedMetrics.MIRROR_USER_LAG.labels(username).set(userState.lagMillis(now) / 1_000.0);
+                    if (queuedUserMirrors.add(username))
+                        userMirrorQueue.add(new UserMirrorJob(username, userState.lastChange, userState.lastMirrored));
+                }
+                for (String username : new ArrayList<>(userMirrorStates.keySet())) {
+                    if (! externalUsersToMirror.contains(username)) {
+                        userMirrorStates.remove(username);
+                        AggregatedMetrics.MIRROR_USER_LAG.remove(username);
                     }
                 }
+                AggregatedMetrics.MIRROR_USER_QUEUE.set(userMirrorQueue.size());
             } catch (Exception e) {
                 LOG.log(Level.WARNING, "Error mirroring users", e);
             } finally {
@@ -200,6 +244,59 @@ public class MirrorCoreNode implements CoreNode {
         }
     }
 
+    private void runUserMirrors() {
+        while (running) {
+            UserMirrorJob job;
+            try {
+                job = userMirrorQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            AggregatedMetrics.MIRROR_USER_QUEUE.set(userMirrorQueue.size());
+            try {
+                mirrorUser(job.username);
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, "Error mirroring user " + job.username, t);
+            } finally {
+                queuedUserMirrors.remove(job.username);
+            }
+        }
+    }
+
+    private void mirrorUser(String username) {
+        long quota = quotas.getQuota(username);
+        if (quota <= 1024*1024)
+            return;
+        List<BatWithId> localMirrorBats = batCave.getUserBats(username, new byte[0]).join();
+        if (localMirrorBats.isEmpty())
+            return;
+        LOG.info("Mirroring " + username + " data locally..");
+        long t0 = System.currentTimeMillis();
+        PublicKeyHash owner = getPublicKeyHash(username).join().get();
+        Map<PublicKeyHash, byte[]> pointers = Mirror.mirrorUser(username, Optional.empty(),
+                Optional.of(localMirrorBats.get(localMirrorBats.size() - 1)), this, routingPointers,
+                null, ipfs, rawPointers, rawAccount, transactions, linkCounts, usageStore, hasher);
+        SpaceCheckingKeyFilter.processCorenodeEvent(username, owner, pointers.keySet(), usageStore, quotas, ipfs, routingPointers, hasher);
+        long t1 = System.currentTimeMillis();
+        LOG.info("Finished mirroring " + username + " data in " + (t1 - t0) / 1_000 + "s");
+
+        UserMirrorState userState = userMirrorStates.get(username);
+        if (userState == null)
+            return;
+        if (! samePointers(userState.pointers, pointers))
+            userState.lastChange = t1;
+        userState.pointers = pointers;
+        userState.lastMirrored = t1;
+        AggregatedMetrics.MIRROR_USER_LAG.labels(username).set(0);
+    }
+
+    private static boolean samePointers(Map<PublicKeyHash, byte[]> a, Map<PublicKeyHash, byte[]> b) {
+        if (a.size() != b.size())
+            return false;
+        return a.entrySet().stream()
+                .allMatch(e -> b.containsKey(e.getKey()) && Arrays.equals(e.getValue(), b.get(e.getKey())));
+    }
+
     private static class CorenodeRoots {
         final PublicKeyHash pkiOwnerIdentity, pkiKey;
         final MaybeMultihash pkiOwnerTarget, pkiKeyTarget;
@@ -858,5 +955,7 @@ public class MirrorCoreNode implements CoreNode {
     @Override
     public void close() {
         running = false;
+        // wake the user mirror workers blocked waiting for a job
+        mirrorPool.shutdownNow();
     }
 }
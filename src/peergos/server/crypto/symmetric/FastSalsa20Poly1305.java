@@ -0,0 +1,263 @@
+package peergos.server.crypto.symmetric;
+
+import peergos.server.crypto.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.symmetric.*;
+
+import java.lang.invoke.*;
+import java.nio.*;
+
+/** An XSalsa20Poly1305 secretbox, compatible with TweetNaCl, optimised for large messages.
+ *
+ *  TweetNaCl copies every message into a padded buffer, encrypts into a second one and copies the result out. This
+ *  implementation works on offsets into caller supplied buffers instead, processes the stream cipher a word at a time,
+ *  and uses 26 bit limbs for poly1305 (as in poly1305-donna). The byte[] methods make a single allocation, the result.
+ */
+public class FastSalsa20Poly1305 implements Salsa20Poly1305 {
+    private static final VarHandle LE_INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    public static final int KEY_BYTES = TweetNaCl.SECRETBOX_KEY_BYTES;
+    public static final int NONCE_BYTES = TweetNaCl.SECRETBOX_NONCE_BYTES;
+    public static final int TAG_BYTES = TweetNaCl.SECRETBOX_OVERHEAD_BYTES;
+
+    // "expand 32-byte k"
+    private static final int SIGMA0 = 0x61707865, SIGMA1 = 0x3320646e, SIGMA2 = 0x79622d32, SIGMA3 = 0x6b206574;
+    private static final long MASK26 = 0x3ffffff;
+
+    @Override
+    public byte[] secretbox(byte[] data, byte[] nonce, byte[] key) {
+        byte[] res = new byte[data.length + TAG_BYTES];
+        secretbox(data, 0, data.length, nonce, key, res, 0);
+        return res;
+    }
+
+    @Override
+    public byte[] secretbox_open(byte[] cipher, byte[] nonce, byte[] key) {
+        if (cipher.length < TAG_BYTES)
+            throw new InvalidCipherTextException();
+        byte[] res = new byte[cipher.length - TAG_BYTES];
+        if (! secretbox_open(cipher, 0, cipher.length, nonce, key, res, 0))
+            throw new InvalidCipherTextException();
+        return res;
+    }
+
+    /** Encrypt len bytes of data from dataOffset, writing the 16 byte tag followed by the cipher text to out at outOffset.
+     *  The input and output regions may be the same array, provided the output starts 16 bytes before the input.
+     *
+     * @return the number of bytes written, len + 16
+     */
+    public static int secretbox(byte[] data, int dataOffset, int len,
+                                byte[] nonce, byte[] key,
+                                byte[] out, int outOffset) {
+        int[] polyKey = new int[8];
+        xsalsa20Xor(key, nonce, data, dataOffset, out, outOffset + TAG_BYTES, len, polyKey);
+        poly1305(polyKey, out, outOffset + TAG_BYTES, len, out, outOffset);
+        return len + TAG_BYTES;
+    }
+
+    /** Authenticate and decrypt a 16 byte tag followed by len - 16 bytes of cipher text, from cipherOffset, writing the
+     *  plain text to out at outOffset. Nothing is written if authentication fails.
+     *
+     * @return whether the cipher text was authentic
+     */
+    public static boolean secretbox_open(byte[] cipher, int cipherOffset, int len,
+                                         byte[] nonce, byte[] key,
+                                         byte[] out, int outOffset) {
+        if (len < TAG_BYTES)
+            return false;
+        int[] subKey = hsalsa20(key, nonce);
+        int[] state = initialState(subKey, nonce);
+        int[] block = new int[16];
+        salsa20Block(state, block);
+        byte[] tag = new byte[TAG_BYTES];
+        poly1305(block, cipher, cipherOffset + TAG_BYTES, len - TAG_BYTES, tag, 0);
+        int diff = 0;
+        for (int i=0; i < TAG_BYTES; i++)
+            diff |= tag[i] ^ cipher[cipherOffset + i];
+        if (diff != 0)
+            return false;
+        xsalsa20Xor(key, nonce, cipher, cipherOffset + TAG_BYTES, out, outOffset, len - TAG_BYTES, new int[8]);
+        return true;
+    }
+
+    private static int rotl(int x, int n) {
+        return (x << n) | (x >>> (32 - n));
+    }
+
+    private static int[] hsalsa20(byte[] key, byte[] nonce) {
+        int x0 = SIGMA0, x5 = SIGMA1, x10 = SIGMA2, x15 = SIGMA3;
+        int x1 = (int) LE_INT.get(key, 0), x2 = (int) LE_INT.get(key, 4), x3 = (int) LE_INT.get(key, 8), x4 = (int) LE_INT.get(key, 12);
+        int x11 = (int) LE_INT.get(key, 16), x12 = (int) LE_INT.get(key, 20), x13 = (int) LE_INT.get(key, 24), x14 = (int) LE_INT.get(key, 28);
+        int x6 = (int) LE_INT.get(nonce, 0), x7 = (int) LE_INT.get(nonce, 4), x8 = (int) LE_INT.get(nonce, 8), x9 = (int) LE_INT.get(nonce, 12);
+        for (int i=0; i < 10; i++) {
+            x4 ^= rotl(x0 + x12, 7);   x8 ^= rotl(x4 + x0, 9);    x12 ^= rotl(x8 + x4, 13);  x0 ^= rotl(x12 + x8, 18);
+            x9 ^= rotl(x5 + x1, 7);    x13 ^= rotl(x9 + x5, 9);   x1 ^= rotl(x13 + x9, 13);  x5 ^= rotl(x1 + x13, 18);
+            x14 ^= rotl(x10 + x6, 7);  x2 ^= rotl(x14 + x10, 9);  x6 ^= rotl(x2 + x14, 13);  x10 ^= rotl(x6 + x2, 18);
+            x3 ^= rotl(x15 + x11, 7);  x7 ^= rotl(x3 + x15, 9);   x11 ^= rotl(x7 + x3, 13);  x15 ^= rotl(x11 + x7, 18);
+
+            x1 ^= rotl(x0 + x3, 7);    x2 ^= rotl(x1 + x0, 9);    x3 ^= rotl(x2 + x1, 13);   x0 ^= rotl(x3 + x2, 18);
+            x6 ^= rotl(x5 + x4, 7);    x7 ^= rotl(x6 + x5, 9);    x4 ^= rotl(x7 + x6, 13);   x5 ^= rotl(x4 + x7, 18);
+            x11 ^= rotl(x10 + x9, 7);  x8 ^= rotl(x11 + x10, 9);  x9 ^= rotl(x8 + x11, 13);  x10 ^= rotl(x9 + x8, 18);
+            x12 ^= rotl(x15 + x14, 7); x13 ^= rotl(x12 + x15, 9); x14 ^= rotl(x13 + x12, 13); x15 ^= rotl(x14 + x13, 18);
+        }
+        return new int[] {x0, x5, x10, x15, x6, x7, x8, x9};
+    }
+
+    private static int[] initialState(int[] subKey, byte[] nonce) {
+        return new int[] {
+                SIGMA0, subKey[0], subKey[1], subKey[2],
+                subKey[3], SIGMA1, (int) LE_INT.get(nonce, 16), (int) LE_INT.get(nonce, 20),
+                0, 0, SIGMA2, subKey[4],
+                subKey[5], subKey[6], subKey[7], SIGMA3
+        };
+    }
+
+    /** Write the key stream block for the current state to out and increment the block counter */
+    private static void salsa20Block(int[] j, int[] out) {
+        int x0 = j[0], x1 = j[1], x2 = j[2], x3 = j[3], x4 = j[4], x5 = j[5], x6 = j[6], x7 = j[7];
+        int x8 = j[8], x9 = j[9], x10 = j[10], x11 = j[11], x12 = j[12], x13 = j[13], x14 = j[14], x15 = j[15];
+        for (int i=0; i < 10; i++) {
+            x4 ^= rotl(x0 + x12, 7);   x8 ^= rotl(x4 + x0, 9);    x12 ^= rotl(x8 + x4, 13);  x0 ^= rotl(x12 + x8, 18);
+            x9 ^= rotl(x5 + x1, 7);    x13 ^= rotl(x9 + x5, 9);   x1 ^= rotl(x13 + x9, 13);  x5 ^= rotl(x1 + x13, 18);
+            x14 ^= rotl(x10 + x6, 7);  x2 ^= rotl(x14 + x10, 9);  x6 ^= rotl(x2 + x14, 13);  x10 ^= rotl(x6 + x2, 18);
+            x3 ^= rotl(x15 + x11, 7);  x7 ^= rotl(x3 + x15, 9);   x11 ^= rotl(x7 + x3, 13);  x15 ^= rotl(x11 + x7, 18);
+
+            x1 ^= rotl(x0 + x3, 7);    x2 ^= rotl(x1 + x0, 9);    x3 ^= rotl(x2 + x1, 13);   x0 ^= rotl(x3 + x2, 18);
+            x6 ^= rotl(x5 + x4, 7);    x7 ^= rotl(x6 + x5, 9);    x4 ^= rotl(x7 + x6, 13);   x5 ^= rotl(x4 + x7, 18);
+            x11 ^= rotl(x10 + x9, 7);  x8 ^= rotl(x11 + x10, 9);  x9 ^= rotl(x8 + x11, 13);  x10 ^= rotl(x9 + x8, 18);
+            x12 ^= rotl(x15 + x14, 7); x13 ^= rotl(x12 + x15, 9); x14 ^= rotl(x13 + x12, 13); x15 ^= rotl(x14 + x13, 18);
+        }
+        out[0] = x0 + j[0];   out[1] = x1 + j[1];   out[2] = x2 + j[2];   out[3] = x3 + j[3];
+        out[4] = x4 + j[4];   out[5] = x5 + j[5];   out[6] = x6 + j[6];   out[7] = x7 + j[7];
+        out[8] = x8 + j[8];   out[9] = x9 + j[9];   out[10] = x10 + j[10]; out[11] = x11 + j[11];
+        out[12] = x12 + j[12]; out[13] = x13 + j[13]; out[14] = x14 + j[14]; out[15] = x15 + j[15];
+        if (++j[8] == 0)
+            j[9]++;
+    }
+
+    private static byte keyStreamByte(int[] block, int index) {
+        return (byte) (block[index >> 2] >>> ((index & 3) << 3));
+    }
+
+    /** XOR len bytes of input with the XSalsa20 key stream, starting 32 bytes in. The first 32 bytes of key stream
+     *  (the poly1305 key) are written to polyKey.
+     */
+    private static void xsalsa20Xor(byte[] key, byte[] nonce,
+                                    byte[] in, int inOffset,
+                                    byte[] out, int outOffset,
+                                    int len,
+                                    int[] polyKey) {
+        int[] state = initialState(hsalsa20(key, nonce), nonce);
+        int[] block = new int[16];
+        salsa20Block(state, block);
+        System.arraycopy(block, 0, polyKey, 0, 8);
+
+        // the remaining 32 bytes of the first block. Each byte or word is read before it is written, so this can be in place
+        int first = Math.min(32, len);
+        for (int i=0; i < first; i++)
+            out[outOffset + i] = (byte) (in[inOffset + i] ^ keyStreamByte(block, 32 + i));
+        int done = first;
+        while (len - done >= 64) {
+            salsa20Block(state, block);
+            int inPos = inOffset + done, outPos = outOffset + done;
+            for (int w=0; w < 16; w++)
+                LE_INT.set(out, outPos + 4*w, (int) LE_INT.get(in, inPos + 4*w) ^ block[w]);
+            done += 64;
+        }
+        if (done < len) {
+            salsa20Block(state, block);
+            for (int i=0; done + i < len; i++)
+                out[outOffset + done + i] = (byte) (in[inOffset + done + i] ^ keyStreamByte(block, i));
+        }
+    }
+
+    /** Compute the poly1305 tag of len bytes of m from mOffset, using the first 8 words of key, writing it to out */
+    private static void poly1305(int[] key, byte[] m, int mOffset, int len, byte[] out, int outOffset) {
+        int t0 = key[0], t1 = key[1], t2 = key[2], t3 = key[3];
+        long r0 = t0 & 0x3ffffff;
+        long r1 = ((t0 >>> 26) | (t1 << 6)) & 0x3ffff03;
+        long r2 = ((t1 >>> 20) | (t2 << 12)) & 0x3ffc0ff;
+        long r3 = ((t2 >>> 14) | (t3 << 18)) & 0x3f03fff;
+        long r4 = (t3 >>> 8) & 0x00fffff;
+        long s1 = r1 * 5, s2 = r2 * 5, s3 = r3 * 5, s4 = r4 * 5;
+        long h0 = 0, h1 = 0, h2 = 0, h3 = 0, h4 = 0;
+
+        byte[] last = null;
+        int pos = mOffset, end = mOffset + len;
+        while (pos < end) {
+            byte[] src = m;
+            int srcPos = pos;
+            long hibit = 1 << 24;
+            if (end - pos < 16) {
+                // final partial block, padded with a single 1 byte
+                last = new byte[16];
+                System.arraycopy(m, pos, last, 0, end - pos);
+                last[end - pos] = 1;
+                src = last;
+                srcPos = 0;
+                hibit = 0;
+            }
+            int m0 = (int) LE_INT.get(src, srcPos), m1 = (int) LE_INT.get(src, srcPos + 4);
+            int m2 = (int) LE_INT.get(src, srcPos + 8), m3 = (int) LE_INT.get(src, srcPos + 12);
+            h0 += m0 & 0x3ffffff;
+            h1 += ((m0 >>> 26) | (m1 << 6)) & 0x3ffffff;
+            h2 += ((m1 >>> 20) | (m2 << 12)) & 0x3ffffff;
+            h3 += ((m2 >>> 14) | (m3 << 18)) & 0x3ffffff;
+            h4 += (m3 >>> 8) | hibit;
+
+            long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+            long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+            long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+            long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+            long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+            long c = d0 >>> 26; h0 = d0 & MASK26;
+            d1 += c; c = d1 >>> 26; h1 = d1 & MASK26;
+            d2 += c; c = d2 >>> 26; h2 = d2 & MASK26;
+            d3 += c; c = d3 >>> 26; h3 = d3 & MASK26;
+            d4 += c; c = d4 >>> 26; h4 = d4 & MASK26;
+            h0 += c * 5; c = h0 >>> 26; h0 &= MASK26;
+            h1 += c;
+            pos += 16;
+        }
+
+        // fully carry h
+        long c = h1 >>> 26; h1 &= MASK26;
+        h2 += c; c = h2 >>> 26; h2 &= MASK26;
+        h3 += c; c = h3 >>> 26; h3 &= MASK26;
+        h4 += c; c = h4 >>> 26; h4 &= MASK26;
+        h0 += c * 5; c = h0 >>> 26; h0 &= MASK26;
+        h1 += c;
+
+        // compute h - p
+        long g0 = h0 + 5; c = g0 >>> 26; g0 &= MASK26;
+        long g1 = h1 + c; c = g1 >>> 26; g1 &= MASK26;
+        long g2 = h2 + c; c = g2 >>> 26; g2 &= MASK26;
+        long g3 = h3 + c; c = g3 >>> 26; g3 &= MASK26;
+        long g4 = h4 + c - (1L << 26);
+
+        // select h if h < p, or h - p if h >= p, in constant time
+        long select = (g4 >>> 63) - 1;
+        h0 = (h0 & ~select) | (g0 & select);
+        h1 = (h1 & ~select) | (g1 & select);
+        h2 = (h2 & ~select) | (g2 & select);
+        h3 = (h3 & ~select) | (g3 & select);
+        h4 = (h4 & ~select) | (g4 & select);
+
+        // h % 2^128
+        h0 = (h0 | (h1 << 26)) & 0xffffffffL;
+        h1 = ((h1 >>> 6) | (h2 << 20)) & 0xffffffffL;
+        h2 = ((h2 >>> 12) | (h3 << 14)) & 0xffffffffL;
+        h3 = ((h3 >>> 18) | (h4 << 8)) & 0xffffffffL;
+
+        // tag = (h + s) % 2^128
+        long f = h0 + (key[4] & 0xffffffffL);
+        LE_INT.set(out, outOffset, (int) f);
+        f = h1 + (key[5] & 0xffffffffL) + (f >>> 32);
+        LE_INT.set(out, outOffset + 4, (int) f);
+        f = h2 + (key[6] & 0xffffffffL) + (f >>> 32);
+        LE_INT.set(out, outOffset + 8, (int) f);
+        f = h3 + (key[7] & 0xffffffffL) + (f >>> 32);
+        LE_INT.set(out, outOffset + 12, (int) f);
+    }
+}
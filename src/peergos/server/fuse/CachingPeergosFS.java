@@ -2,8 +2,10 @@ package peergos.server.fuse;
 import java.util.logging.*;
 
 import peergos.server.util.Logging;
+import peergos.server.util.Threads;
 
 import jnr.ffi.Pointer;
+import jnr.ffi.types.mode_t;
 import jnr.ffi.types.off_t;
 import jnr.ffi.types.size_t;
 import peergos.shared.user.UserContext;
@@ -14,109 +16,123 @@ import ru.serce.jnrfuse.ErrorCodes;
 import ru.serce.jnrfuse.struct.*;
 
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 import java.util.function.*;
-
+import java.util.stream.*;
+
+/** Keeps decrypted chunks of open files in memory.
+ *
+ *  Chunks from all files share one LRU with a budget in bytes. Reads that continue where the last read of a file
+ *  ended fetch the following chunk in the background. Writes only modify the cached chunk; dirty chunks are
+ *  written back on flush, fsync, release, lock, eviction and every syncSleep millis, with runs of adjacent dirty
+ *  chunks written in a single upload. Write backs of a file are serialized by a write-back lock, which is held from
+ *  taking its dirty chunks until their upload completes, so a flush or fsync only returns once earlier changes are
+ *  stored. A chunk being written back can't be evicted, so reads during the upload still see it, and a failed upload
+ *  marks the cached chunk dirty again.
+ */
 public class CachingPeergosFS extends PeergosFS {
 	private static final Logger LOG = Logging.LOG();
 
     private static final int DEFAULT_SYNC_SLEEP = 1000*30;
-    private static final int DEFAULT_CACHE_SIZE = 1;
-    private static final boolean DEBUG = true;
-
-    private final ConcurrentMap<String, CacheEntryHolder> entryMap;
-    private final int chunkCacheSize, syncSleep;
-//    private final Thread syncRunner;
+    private static final long DEFAULT_CACHE_BYTES = 64 * 1024 * 1024;
+    private static final int MAX_CHUNKS_PER_WRITE = 8;
+    private static final int WRITE_BACK_LOCKS = 64;
+
+    private final long cacheBytes;
+    private final int syncSleep;
+    private final LinkedHashMap<ChunkKey, CachedChunk> chunks = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong cachedBytes = new AtomicLong(0);
+    private final ConcurrentMap<ChunkKey, CompletableFuture<CachedChunk>> loading = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> lastReadEnd = new ConcurrentHashMap<>();
+    private final ExecutorService readAhead = Threads.newPool(4, "fuse-read-ahead-");
+    private final List<ReentrantLock> writeBackLocks = IntStream.range(0, WRITE_BACK_LOCKS)
+            .mapToObj(i -> new ReentrantLock())
+            .collect(Collectors.toList());
+    private final ScheduledExecutorService syncRunner;
 
     public CachingPeergosFS(UserContext userContext) {
-        this(userContext, DEFAULT_CACHE_SIZE, DEFAULT_SYNC_SLEEP);
+        this(userContext, DEFAULT_CACHE_BYTES, DEFAULT_SYNC_SLEEP);
     }
 
-    public CachingPeergosFS(UserContext userContext, int chunkCacheSize, int syncSleep) {
+    public CachingPeergosFS(UserContext userContext, long cacheBytes, int syncSleep) {
         super(userContext);
 
-        this.chunkCacheSize = chunkCacheSize;
+        this.cacheBytes = Math.max(cacheBytes, Chunk.MAX_SIZE);
         this.syncSleep = syncSleep;
-        this.entryMap = new ConcurrentHashMap<>();
+        this.syncRunner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "fuse-write-back");
+            t.setDaemon(true);
+            return t;
+        });
+        syncRunner.scheduleWithFixedDelay(this::syncAll, syncSleep, syncSleep, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public int read(String s, Pointer pointer, @size_t long size, @off_t long offset, FuseFileInfo fuseFileInfo) {
         try {
-            return read(s, pointer, 0, size, offset, fuseFileInfo);
+            LOG.fine("read(" + s + ", offset=" + offset + ", size=" + size + ")");
+            Long previousEnd = lastReadEnd.put(s, offset + size);
+            int total = 0;
+            while (total < size) {
+                long pos = offset + total;
+                long startPos = alignToChunkSize(pos);
+                int chunkOffset = intraChunkOffset(pos);
+                int toRead = (int) Math.min(size - total, Chunk.MAX_SIZE - chunkOffset);
+                CachedChunk chunk = getChunk(s, startPos);
+                int read = chunk.read(pointer, total, chunkOffset, toRead);
+                total += read;
+                if (read < toRead)
+                    return total; // end of file
+            }
+            if (previousEnd != null && previousEnd == offset)
+                readAhead(s, offset + size);
+            return total;
         } catch (Throwable t) {
             LOG.log(Level.WARNING, t.getMessage(), t);
-            throw t;
+            return -ErrorCodes.EIO();
         }
     }
 
-    public int read(String s, Pointer pointer, int pointerOffset, @size_t long size, @off_t long offset, FuseFileInfo fuseFileInfo) {
-        if (DEBUG)
-            System.out.printf("read(%s, offset=%d, size=%d)\n", s, offset, size);
-        if (!containedInOneChunk(offset, offset + size)) {
-            long boundary = alignToChunkSize(offset + Chunk.MAX_SIZE);
-            int r1 = read(s, pointer, 0, boundary - offset, offset, fuseFileInfo);
-            if (r1 <= 0)
-                return r1;
-            int r2 = read(s, pointer, (int)(boundary - offset), size + offset - boundary, boundary, fuseFileInfo);
-            if (r2 <= 0)
-                return r2;
-            return r1 + r2;
-        }
-
-        long startPos = alignToChunkSize(offset);
-        int chunkOffset  = intraChunkOffset(offset);
-        int iSize = (int) size;
-
-        CacheEntryHolder cacheEntryHolder = entryMap.computeIfAbsent(s, path -> new CacheEntryHolder(new CacheEntry(path, startPos)));
-        return cacheEntryHolder.apply(c -> c != null && c.offset == startPos, () -> new CacheEntry(s, startPos),
-                ce -> ce.read(pointer, pointerOffset, chunkOffset, iSize));
-    }
-
     @Override
     public int write(String s, Pointer pointer, @size_t long size, @off_t long offset, FuseFileInfo fuseFileInfo) {
         try {
-            return write(s, pointer, 0, size, offset, fuseFileInfo);
+            LOG.fine("write(" + s + ", offset=" + offset + ", size=" + size + ")");
+            int total = 0;
+            while (total < size) {
+                long pos = offset + total;
+                long startPos = alignToChunkSize(pos);
+                int chunkOffset = intraChunkOffset(pos);
+                int toWrite = (int) Math.min(size - total, Chunk.MAX_SIZE - chunkOffset);
+                int pointerOffset = total;
+                cachedBytes.addAndGet(updateChunk(s, startPos, chunk -> chunk.write(pointer, pointerOffset, chunkOffset, toWrite)));
+                total += toWrite;
+            }
+            ensureWithinBudget();
+            return total;
         } catch (Throwable t) {
             LOG.log(Level.WARNING, t.getMessage(), t);
-            throw t;
+            return -ErrorCodes.EIO();
         }
     }
 
-    public int write(String s, Pointer pointer, int pointerOffset, @size_t long size, @off_t long offset, FuseFileInfo fuseFileInfo) {
-        if (DEBUG)
-            System.out.printf("write(%s, offset=%d, size=%d)\n", s, offset, size);
-        if  (! containedInOneChunk(offset, offset+size)) {
-            long boundary = alignToChunkSize(offset + Chunk.MAX_SIZE);
-            int w1 = write(s, pointer, 0, boundary - offset, offset, fuseFileInfo);
-            if (w1 <= 0)
-                return w1;
-            int w2 = write(s, pointer, (int)(boundary - offset), size + offset - boundary, boundary, fuseFileInfo);
-            if (w2 <= 0)
-                return w2;
-            return w1 + w2;
-        }
-
-        long startPos  = alignToChunkSize(offset);
-        int  chunkOffset  = intraChunkOffset(offset);
-        int iSize = (int) size;
-
-        CacheEntryHolder cacheEntry = entryMap.computeIfAbsent(s, path -> new CacheEntryHolder(new CacheEntry(path, startPos)));
-        return cacheEntry.apply(c -> c != null && c.offset == startPos, () -> new CacheEntry(s, startPos),
-                ce -> ce.write(pointer, pointerOffset, chunkOffset, iSize));
+    @Override
+    public int create(String s, @mode_t long l, FuseFileInfo fuseFileInfo) {
+        discard(s);
+        return super.create(s, l, fuseFileInfo);
     }
 
     @Override
     public int lock(String s, FuseFileInfo fuseFileInfo, int i, Flock flock) {
         try {
-            if (DEBUG)
-                System.out.printf("lock(%s)\n", s);
-            CacheEntryHolder cacheEntryHolder = entryMap.get(s);
-            if (cacheEntryHolder != null)
-                cacheEntryHolder.syncAndClear();
-            return 0;
+            LOG.fine("lock(" + s + ")");
+            return withWriteBackLock(s, () -> {
+                int res = sync(s);
+                discard(s);
+                return res;
+            });
         } catch (Throwable t) {
             LOG.log(Level.WARNING, t.getMessage(), t);
             throw t;
@@ -126,12 +142,10 @@ public class CachingPeergosFS extends PeergosFS {
     @Override
     public int flush(String s, FuseFileInfo fuseFileInfo) {
         try {
-            if (DEBUG)
-                System.out.printf("flush(%s)\n", s);
-            CacheEntryHolder cacheEntry = entryMap.get(s);
-            if (cacheEntry != null) {
-                cacheEntry.sync();
-            }
+            LOG.fine("flush(" + s + ")");
+            int res = sync(s);
+            if (res != 0)
+                return res;
             return super.flush(s, fuseFileInfo);
         } catch (Throwable t) {
             LOG.log(Level.WARNING, t.getMessage(), t);
@@ -140,152 +154,440 @@ public class CachingPeergosFS extends PeergosFS {
     }
 
     @Override
-    protected int annotateAttributes(String fullPath, PeergosStat peergosStat, FileStat fileStat) {
-        if (DEBUG)
-            System.out.printf("annotate(%s)\n", fullPath);
-        CacheEntryHolder cacheEntry = entryMap.get(fullPath);
-        Optional<PeergosStat> updatedStat = Optional.empty();
-        if (cacheEntry != null) {
-            updatedStat = cacheEntry.applyIfPresent(ce -> {
-                if (ce == null)
-                    return peergosStat;
-                long maxSize = ce.offset + ce.maxDirtyPos;
-                if (peergosStat.properties.size < maxSize) {
-                    FileProperties updated = peergosStat.properties.withSize(maxSize);
-                    return new PeergosStat(peergosStat.treeNode, updated);
-                }
-                return peergosStat;
-            });
+    public int fsync(String s, int isdatasync, FuseFileInfo fuseFileInfo) {
+        LOG.fine("fsync(" + s + ")");
+        return sync(s);
+    }
+
+    @Override
+    public int release(String s, FuseFileInfo fuseFileInfo) {
+        LOG.fine("release(" + s + ")");
+        lastReadEnd.remove(s);
+        return sync(s);
+    }
+
+    @Override
+    public int unlink(String s) {
+        discard(s);
+        return super.unlink(s);
+    }
+
+    @Override
+    public int rename(String s, String s1) {
+        // no write back of a moved file can be in progress, or a failed one would mark an orphaned chunk dirty
+        boolean isDirectory = getByPath(s).map(stat -> stat.properties.isDirectory).orElse(false);
+        List<ReentrantLock> locks = isDirectory ?
+                writeBackLocks :
+                Stream.of(s, s1)
+                        .map(this::writeBackLock)
+                        .distinct()
+                        .sorted(Comparator.comparingInt(writeBackLocks::indexOf))
+                        .collect(Collectors.toList());
+        locks.forEach(ReentrantLock::lock);
+        try {
+            int res = super.rename(s, s1);
+            if (res != 0)
+                return res;
+            // the cached chunks of the file, or of every file under a directory, still hold any unwritten changes
+            move(s, s1);
+            return 0;
+        } finally {
+            locks.forEach(ReentrantLock::unlock);
         }
-        return super.annotateAttributes(fullPath, updatedStat.orElse(peergosStat), fileStat);
     }
 
-    private boolean containedInOneChunk(long start, long end) {
-        return alignToChunkSize(start) == alignToChunkSize(end-1);
+    @Override
+    public int truncate(String s, @off_t long l) {
+        return withWriteBackLock(s, () -> {
+            int res = sync(s);
+            if (res != 0)
+                return res;
+            discard(s);
+            return super.ftruncate(s, l, null);
+        });
     }
 
-    private long alignToChunkSize(long pos) {
-        return Math.max(0, pos / Chunk.MAX_SIZE) * Chunk.MAX_SIZE;
+    @Override
+    public int ftruncate(String s, @off_t long l, FuseFileInfo fuseFileInfo) {
+        return withWriteBackLock(s, () -> {
+            int res = sync(s);
+            if (res != 0)
+                return res;
+            discard(s);
+            return super.ftruncate(s, l, fuseFileInfo);
+        });
     }
-    private int intraChunkOffset(long  pos) {
-        return (int) pos % Chunk.MAX_SIZE;
+
+    @Override
+    protected int annotateAttributes(String fullPath, PeergosStat peergosStat, FileStat fileStat) {
+        LOG.fine("annotate(" + fullPath + ")");
+        long maxSize = 0;
+        synchronized (chunks) {
+            for (CachedChunk chunk : chunks.values())
+                if (chunk.path.equals(fullPath) && chunk.isDirty())
+                    maxSize = Math.max(maxSize, chunk.offset + chunk.size());
+        }
+        if (peergosStat.properties.size < maxSize) {
+            FileProperties updated = peergosStat.properties.withSize(maxSize);
+            peergosStat = new PeergosStat(peergosStat.treeNode, updated);
+        }
+        return super.annotateAttributes(fullPath, peergosStat, fileStat);
     }
 
-    private class CacheEntryHolder {
-        private CacheEntry entry;
+    private CachedChunk getChunk(String path, long offset) {
+        ChunkKey key = new ChunkKey(path, offset);
+        synchronized (chunks) {
+            CachedChunk cached = chunks.get(key);
+            if (cached != null)
+                return cached;
+        }
+        CompletableFuture<CachedChunk> loaded = new CompletableFuture<>();
+        CompletableFuture<CachedChunk> inProgress = loading.putIfAbsent(key, loaded);
+        if (inProgress != null)
+            return inProgress.join();
+        CachedChunk result;
+        try {
+            CachedChunk chunk = load(path, offset);
+            synchronized (chunks) {
+                // someone else may have loaded it, and written to it, since we last looked
+                result = chunks.putIfAbsent(key, chunk);
+                if (result == null) {
+                    result = chunk;
+                    cachedBytes.addAndGet(chunk.capacity());
+                }
+            }
+            loaded.complete(result);
+        } catch (Throwable t) {
+            loaded.completeExceptionally(t);
+            throw t;
+        } finally {
+            loading.remove(key);
+        }
+        ensureWithinBudget();
+        return result;
+    }
 
-        public CacheEntryHolder(CacheEntry entry) {
-            this.entry = entry;
+    /** Apply an update to a chunk, loading it first if necessary. The update is made while holding the cache lock, so
+     *  the chunk can't be evicted between being looked up and being modified, which would lose the change.
+     */
+    private <T> T updateChunk(String path, long offset, Function<CachedChunk, T> update) {
+        ChunkKey key = new ChunkKey(path, offset);
+        while (true) {
+            synchronized (chunks) {
+                CachedChunk cached = chunks.get(key);
+                if (cached != null)
+                    return update.apply(cached);
+            }
+            // it may have been evicted again before we retake the lock, in which case we load it again
+            getChunk(path, offset);
         }
+    }
 
-        public synchronized <A> A apply(Predicate<CacheEntry> correctChunk, Supplier<CacheEntry> supplier, Function<CacheEntry, A> func) {
-            if (!correctChunk.test(entry)) {
-                long oldOffset = entry != null ? entry.offset : -1;
-                syncAndClear();
-                setEntry(supplier.get());
-                LOG.info("Ejecting chunk from " + entry.path + " " + oldOffset + " -> "+ entry.offset);
+    private CachedChunk load(String path, long offset) {
+        PeergosStat stat = getByPath(path).orElseThrow(() -> new IllegalStateException("missing: " + path));
+        long fileSize = stat.properties.size;
+        if (offset >= fileSize)
+            return new CachedChunk(path, offset, new byte[0]);
+        byte[] data = read(stat, Math.min(Chunk.MAX_SIZE, fileSize - offset), offset)
+                .orElseThrow(() -> new IllegalStateException("missing: " + path));
+        return new CachedChunk(path, offset, data);
+    }
+
+    private void readAhead(String path, long end) {
+        long next = alignToChunkSize(end - 1) + Chunk.MAX_SIZE;
+        ChunkKey current = new ChunkKey(path, alignToChunkSize(end - 1));
+        ChunkKey key = new ChunkKey(path, next);
+        synchronized (chunks) {
+            CachedChunk last = chunks.get(current);
+            // a partial chunk is the end of the file
+            if (last == null || last.size() < Chunk.MAX_SIZE || chunks.containsKey(key))
+                return;
+        }
+        if (loading.containsKey(key))
+            return;
+        readAhead.submit(() -> {
+            try {
+                getChunk(path, next);
+            } catch (Throwable t) {
+                LOG.log(Level.FINE, "Read ahead failed for " + path, t);
+            }
+        });
+    }
 
+    /** Evict least recently used chunks until we are within budget, writing back dirty ones first. */
+    private void ensureWithinBudget() {
+        while (cachedBytes.get() > cacheBytes) {
+            CachedChunk dirtyVictim = null;
+            synchronized (chunks) {
+                Iterator<CachedChunk> lru = chunks.values().iterator();
+                while (lru.hasNext() && cachedBytes.get() > cacheBytes) {
+                    CachedChunk chunk = lru.next();
+                    if (chunk.isDirty()) {
+                        dirtyVictim = chunk;
+                        break;
+                    }
+                    if (chunk.isWritingBack())
+                        continue;
+                    lru.remove();
+                    cachedBytes.addAndGet(-chunk.capacity());
+                }
             }
-            return func.apply(entry);
+            if (dirtyVictim == null)
+                return;
+            if (sync(dirtyVictim.path) != 0)
+                return;
         }
+    }
 
-        public synchronized <A> Optional<A> applyIfPresent(Function<CacheEntry, A> func) {
-            if (entry != null) {
-                return Optional.of(func.apply(entry));
+    private void syncAll() {
+        Set<String> dirtyPaths;
+        synchronized (chunks) {
+            dirtyPaths = chunks.values().stream()
+                    .filter(CachedChunk::isDirty)
+                    .map(c -> c.path)
+                    .collect(Collectors.toSet());
+        }
+        for (String path : dirtyPaths) {
+            try {
+                sync(path);
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, "Couldn't write back " + path, t);
             }
-            return Optional.empty();
         }
+    }
+
+    private ReentrantLock writeBackLock(String path) {
+        return writeBackLocks.get(Math.floorMod(path.hashCode(), WRITE_BACK_LOCKS));
+    }
 
-        public synchronized void setEntry(CacheEntry entry) {
-            this.entry = entry;
+    private int withWriteBackLock(String path, Supplier<Integer> task) {
+        ReentrantLock lock = writeBackLock(path);
+        lock.lock();
+        try {
+            return task.get();
+        } finally {
+            lock.unlock();
         }
+    }
 
-        public synchronized void sync() {
-            if (entry == null)
-                return;
-            if (DEBUG)
-                System.out.printf("sync(%s)\n", entry.path);
-            entry.sync();
+    /** Write back the dirty chunks of a file, merging runs of adjacent chunks into one upload. This waits for any write
+     *  back of the file that is already in progress, so chunks are stored in the order they were changed.
+     */
+    private int sync(String path) {
+        return withWriteBackLock(path, () -> syncLocked(path));
+    }
+
+    private int syncLocked(String path) {
+        List<CachedChunk> dirty;
+        synchronized (chunks) {
+            dirty = chunks.values().stream()
+                    .filter(c -> c.path.equals(path) && c.isDirty())
+                    .sorted(Comparator.comparingLong(c -> c.offset))
+                    .collect(Collectors.toList());
         }
+        if (dirty.isEmpty())
+            return 0;
+        Path p = PathUtil.get(path);
+        String parentPath = p.getParent().toString();
+        String name = p.getFileName().toString();
+
+        int i = 0;
+        while (i < dirty.size()) {
+            List<CachedChunk> run = new ArrayList<>();
+            List<byte[]> contents = new ArrayList<>();
+            long end = -1;
+            while (i < dirty.size() && run.size() < MAX_CHUNKS_PER_WRITE) {
+                CachedChunk chunk = dirty.get(i);
+                // only a full chunk can be followed by another in the same write
+                if (end != -1 && (chunk.offset != end || contents.get(contents.size() - 1).length != Chunk.MAX_SIZE))
+                    break;
+                byte[] data = chunk.takeDirty();
+                i++;
+                if (data == null)
+                    continue;
+                run.add(chunk);
+                contents.add(data);
+                end = chunk.offset + Chunk.MAX_SIZE;
+            }
+            if (run.isEmpty())
+                continue;
+            int length = contents.stream().mapToInt(b -> b.length).sum();
+            byte[] toWrite = new byte[length];
+            int pos = 0;
+            for (byte[] data : contents) {
+                System.arraycopy(data, 0, toWrite, pos, data.length);
+                pos += data.length;
+            }
+            long offset = run.get(0).offset;
+            int res = -ErrorCodes.EIO();
+            try {
+                res = applyIfPresent(parentPath, parent -> write(parent, name, toWrite, length, offset), -ErrorCodes.ENOENT());
+            } finally {
+                boolean stored = res >= 0;
+                run.forEach(c -> c.writeBackDone(stored));
+            }
+            if (res < 0)
+                return res;
+        }
+        return 0;
+    }
 
-        public synchronized void syncAndClear() {
-            if (entry == null)
-                return;
-            if (DEBUG)
-                System.out.printf("fsync(%s)\n", entry.path);
-            entry.sync();
-            entry = null;
+    /** Drop all cached chunks of a file, without writing anything back. */
+    private void discard(String path) {
+        lastReadEnd.remove(path);
+        synchronized (chunks) {
+            Iterator<CachedChunk> it = chunks.values().iterator();
+            while (it.hasNext()) {
+                CachedChunk chunk = it.next();
+                if (chunk.path.equals(path)) {
+                    it.remove();
+                    cachedBytes.addAndGet(-chunk.capacity());
+                }
+            }
+        }
+    }
+
+    /** Re-key the cached chunks of a renamed file, or of all the files under a renamed directory. */
+    private void move(String from, String to) {
+        String fromDir = from + "/";
+        discard(to);
+        synchronized (chunks) {
+            List<CachedChunk> moved = new ArrayList<>();
+            Iterator<CachedChunk> it = chunks.values().iterator();
+            while (it.hasNext()) {
+                CachedChunk chunk = it.next();
+                if (chunk.path.equals(from) || chunk.path.startsWith(fromDir)) {
+                    it.remove();
+                    moved.add(chunk.movedTo(to + chunk.path.substring(from.length())));
+                }
+            }
+            for (CachedChunk chunk : moved)
+                chunks.put(new ChunkKey(chunk.path, chunk.offset), chunk);
         }
+        lastReadEnd.keySet().removeIf(p -> p.equals(from) || p.startsWith(fromDir));
     }
 
-    private class CacheEntry {
+    private long alignToChunkSize(long pos) {
+        return Math.max(0, pos / Chunk.MAX_SIZE) * Chunk.MAX_SIZE;
+    }
+    private int intraChunkOffset(long  pos) {
+        return (int) (pos % Chunk.MAX_SIZE);
+    }
+
+    private static final class ChunkKey {
         private final String path;
-        private final byte[] data;
         private final long offset;
-        private int maxDirtyPos;
 
-        public CacheEntry(String path, long offset) {
+        public ChunkKey(String path, long offset) {
             this.path = path;
             this.offset = offset;
-            this.data = new byte[Chunk.MAX_SIZE];
-            //read current data into data view
-            PeergosStat stat = getByPath(path).orElseThrow(() -> new IllegalStateException("missing" + path));
-            byte[] readData = CachingPeergosFS.this.read(stat, data.length, offset)
-                    .orElseThrow(() -> new IllegalStateException("missing: " + path));
-            this.maxDirtyPos = 0;
-            System.arraycopy(readData, 0, data, 0, readData.length);
+        }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ChunkKey that = (ChunkKey) o;
+            return offset == that.offset && path.equals(that.path);
         }
 
-        private void ensureInBounds(int offset, int length) {
-            if (offset + length > data.length)
-                throw new  IllegalStateException("cannot op with offset "+ offset +" and length "+ length +" with length "+ data.length);
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, offset);
         }
+    }
 
-        public int read(Pointer pointer, int pointerOffset, int chunkOffset, int length) {
-            ensureInBounds(chunkOffset, length);
-            pointer.put(pointerOffset, data, chunkOffset, length);
-            return length;
+    private static class CachedChunk {
+        private final String path;
+        private final long offset;
+        private byte[] data;
+        private int size;
+        private boolean dirty;
+        private boolean writingBack;
+
+        public CachedChunk(String path, long offset, byte[] data) {
+            this.path = path;
+            this.offset = offset;
+            this.data = data;
+            this.size = data.length;
         }
 
-        public int write(Pointer pointer, int pointerOffset, int chunkOffset, int length) {
-            ensureInBounds(chunkOffset, length);
-            pointer.get(pointerOffset, data, chunkOffset, length);
-            maxDirtyPos = Math.max(maxDirtyPos, chunkOffset+length);
-            return length;
+        /**
+         * @return this chunk, including any unwritten changes, under a new path
+         */
+        public synchronized CachedChunk movedTo(String newPath) {
+            CachedChunk moved = new CachedChunk(newPath, offset, data);
+            moved.size = size;
+            moved.dirty = dirty;
+            return moved;
         }
 
-        public void sync() {
-            Path p = PathUtil.get(path);
+        public synchronized int capacity() {
+            return data.length;
+        }
 
-            String parentPath = p.getParent().toString();
-            String name = p.getFileName().toString();
+        public synchronized int size() {
+            return size;
+        }
 
-            if (maxDirtyPos ==0)
-                return;
-            applyIfPresent(parentPath, (parent) -> CachingPeergosFS.this.write(parent, name, data, maxDirtyPos, offset), -ErrorCodes.ENOENT());
+        public synchronized boolean isDirty() {
+            return dirty;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
+        public synchronized boolean isWritingBack() {
+            return writingBack;
+        }
 
-            CacheEntry that = (CacheEntry) o;
+        /** Unpin the chunk after a write back, which leaves it dirty if the contents weren't stored */
+        public synchronized void writeBackDone(boolean stored) {
+            writingBack = false;
+            if (! stored)
+                dirty = true;
+        }
 
-            return Objects.equals(path, that.path);
+        public synchronized int read(Pointer pointer, int pointerOffset, int chunkOffset, int length) {
+            int available = Math.max(0, Math.min(length, size - chunkOffset));
+            if (available > 0)
+                pointer.put(pointerOffset, data, chunkOffset, available);
+            return available;
+        }
 
+        /**
+         * @return the number of bytes the chunk grew by
+         */
+        public synchronized int write(Pointer pointer, int pointerOffset, int chunkOffset, int length) {
+            int end = chunkOffset + length;
+            if (end > Chunk.MAX_SIZE)
+                throw new IllegalStateException("cannot write with offset "+ chunkOffset +" and length "+ length);
+            int grownBy = 0;
+            if (end > data.length) {
+                int newCapacity = Math.min(Chunk.MAX_SIZE, Math.max(end, data.length * 2));
+                grownBy = newCapacity - data.length;
+                data = Arrays.copyOf(data, newCapacity);
+            }
+            pointer.get(pointerOffset, data, chunkOffset, length);
+            size = Math.max(size, end);
+            dirty = true;
+            return grownBy;
         }
 
-        @Override
-        public int hashCode() {
-            return path != null ? path.hashCode() : 0;
+        /**
+         * @return the chunk contents, and mark it clean and being written back, or null if it wasn't dirty
+         */
+        public synchronized byte[] takeDirty() {
+            if (! dirty)
+                return null;
+            dirty = false;
+            writingBack = true;
+            return Arrays.copyOf(data, size);
         }
     }
 
     @Override
     public void close() throws Exception {
-
+        syncRunner.shutdown();
+        syncAll();
+        readAhead.shutdown();
         super.close();
     }
-}
\ No newline at end of file
+}
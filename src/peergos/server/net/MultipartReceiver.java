@@ -2,11 +2,21 @@ package peergos.server.net;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.*;
 
 public class MultipartReceiver {
     private static final byte[] DOUBLE_NEW_LINE = "\r\n\r\n".getBytes();
 
     public static List<byte[]> extractFiles(InputStream rawIn, String boundary) {
+        List<byte[]> files = new ArrayList<>();
+        extractFiles(rawIn, boundary, files::add);
+        return files;
+    }
+
+    /** Pass each file to the consumer, in order, as soon as it has been read, so callers can process earlier files
+     *  whilst later ones are still arriving.
+     */
+    public static void extractFiles(InputStream rawIn, String boundary, Consumer<byte[]> onFile) {
         try {
             int maxLineSize = 1024;
             InputStream in = new BufferedInputStream(rawIn);
@@ -16,14 +26,13 @@ public class MultipartReceiver {
             byte[] firstHeaders = readUntil(DOUBLE_NEW_LINE, in);
 
             byte[] boundaryBytes = ("\r\n--" + boundary).getBytes();
-            List<byte[]> files = new ArrayList<>();
 
             while (true) {
                 byte[] file = readUntil(boundaryBytes, in);
-                files.add(file);
+                onFile.accept(file);
                 byte[] headers = readUntil(DOUBLE_NEW_LINE, in);
                 if (headers.length == 0 || Arrays.equals(headers, "--".getBytes()))
-                    return files;
+                    return;
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -1,10 +1,10 @@
 package peergos.server.net;
 import java.time.*;
-import java.util.function.Supplier;
 import java.util.logging.*;
 
 import io.prometheus.client.*;
 import peergos.server.AggregatedMetrics;
+import peergos.server.storage.*;
 import peergos.server.util.*;
 
 import peergos.shared.cbor.*;
@@ -24,6 +24,8 @@ import static peergos.shared.storage.ContentAddressedStorage.HTTP.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.stream.*;
 
@@ -31,7 +33,11 @@ public class StorageHandler implements HttpHandler {
 	private static final Logger LOG = Logging.LOG();
 
     private static final boolean LOGGING = true;
+    // Block hashing and signature checks are pure CPU work, so bound them by the number of cores
+    private static final ForkJoinPool verifyPool = Threads.newFJPool(Runtime.getRuntime().availableProcessors(), "Block-verify-");
+    private static final long DEFAULT_CHAMP_CACHE_BYTES = 64 * 1024 * 1024;
     private final ContentAddressedStorage dht;
+    private final ChampNodeCache champCache;
     private final Hasher hasher;
     private final BiFunction<PublicKeyHash, Integer, Boolean> keyFilter;
     private final String apiPrefix;
@@ -41,8 +47,10 @@ public class StorageHandler implements HttpHandler {
                           Hasher hasher,
                           BiFunction<PublicKeyHash, Integer, Boolean> keyFilter,
                           String apiPrefix,
-                          boolean isPublicServer) {
+                          boolean isPublicServer,
+                          ChampNodeCache champCache) {
         this.dht = dht;
+        this.champCache = champCache;
         this.hasher = hasher;
         this.keyFilter = keyFilter;
         this.apiPrefix = apiPrefix;
@@ -53,7 +61,7 @@ public class StorageHandler implements HttpHandler {
                           Hasher hasher,
                           BiFunction<PublicKeyHash, Integer, Boolean> keyFilter,
                           boolean isPublicServer) {
-        this(dht, hasher, keyFilter, "/api/v0/", isPublicServer);
+        this(dht, hasher, keyFilter, "/api/v0/", isPublicServer, new ChampNodeCache(DEFAULT_CHAMP_CACHE_BYTES));
     }
 
     @Override
@@ -136,40 +144,24 @@ public class StorageHandler implements HttpHandler {
                 }
                 case CHAMP_GET: {
                     AggregatedMetrics.STORAGE_CHAMP_GET.inc();
-                    Histogram.Timer timer = AggregatedMetrics.STORAGE_CHAMP_GET_DURATION.labels("duration").startTimer();
                     Cid root = Cid.decode(args.get(0));
                     byte[] champKey = ArrayOps.hexToBytes(args.get(1));
                     Optional<BatWithId> bat = params.containsKey("bat") ?
                             Optional.of(BatWithId.decode(last.apply("bat"))) :
                             Optional.empty();
-                    try {
-                        dht.getChampLookup(ownerHash.get(), root, Arrays.asList(new ChunkMirrorCap(champKey, bat)), Optional.empty()).thenAccept(blocks -> {
-                            replyBytes(httpExchange, new CborObject.CborList(blocks.stream()
-                                    .map(CborObject.CborByteArray::new).collect(Collectors.toList())).serialize(), Optional.of(root));
-                        }).exceptionally(Futures::logAndThrow).get();
-                    } finally {
-                        timer.observeDuration();
-                    }
+                    replyChampLookup(httpExchange, ownerHash.get(), root, Arrays.asList(new ChunkMirrorCap(champKey, bat)));
                     break;
                 }
                 case CHAMP_GET_BULK: {
                     AggregatedMetrics.STORAGE_CHAMP_GET.inc();
-                    Histogram.Timer timer = AggregatedMetrics.STORAGE_CHAMP_GET_DURATION.labels("duration").startTimer();
                     Cid root = Cid.decode(args.get(0));
 
                     if (params.containsKey("caps")) {
-                        try {
-                            byte[] capsRaw = Multibase.decode(last.apply("caps"));
-                            List<ChunkMirrorCap> caps = ((CborObject.CborList) CborObject.fromByteArray(capsRaw)).map(ChunkMirrorCap::fromCbor);
-                            if (caps.size() > MAX_CHAMP_GETS)
-                                throw new IllegalStateException("Too many caps in bulk champ get call! " + caps.size());
-                            dht.getChampLookup(ownerHash.get(), root, caps, Optional.empty()).thenAccept(blocks -> {
-                                replyBytes(httpExchange, new CborObject.CborList(blocks.stream()
-                                        .map(CborObject.CborByteArray::new).collect(Collectors.toList())).serialize(), Optional.of(root));
-                            }).exceptionally(Futures::logAndThrow).get();
-                        } finally {
-                            timer.observeDuration();
-                        }
+                        byte[] capsRaw = Multibase.decode(last.apply("caps"));
+                        List<ChunkMirrorCap> caps = ((CborObject.CborList) CborObject.fromByteArray(capsRaw)).map(ChunkMirrorCap::fromCbor);
+                        if (caps.size() > MAX_CHAMP_GETS)
+                            throw new IllegalStateException("Too many caps in bulk champ get call! " + caps.size());
+                        replyChampLookup(httpExchange, ownerHash.get(), root, caps);
                         break;
                     }
 
@@ -177,14 +169,7 @@ public class StorageHandler implements HttpHandler {
                     Optional<BatWithId> bat = params.containsKey("bat") ?
                             Optional.of(BatWithId.decode(last.apply("bat"))) :
                             Optional.empty();
-                    try {
-                        dht.getChampLookup(ownerHash.get(), root, List.of(new ChunkMirrorCap(champKey, bat)), Optional.empty()).thenAccept(blocks -> {
-                            replyBytes(httpExchange, new CborObject.CborList(blocks.stream()
-                                    .map(CborObject.CborByteArray::new).collect(Collectors.toList())).serialize(), Optional.of(root));
-                        }).exceptionally(Futures::logAndThrow).get();
-                    } finally {
-                        timer.observeDuration();
-                    }
+                    replyChampLookup(httpExchange, ownerHash.get(), root, List.of(new ChunkMirrorCap(champKey, bat)));
                     break;
                 }
                 case LINK_GET: {
@@ -225,118 +210,95 @@ public class StorageHandler implements HttpHandler {
                             .map(s -> s.substring(s.indexOf("=") + 1))
                             .findAny()
                             .get();
-                    List<byte[]> data = MultipartReceiver.extractFiles(httpExchange.getRequestBody(), boundary);
                     boolean isRaw = last.apply("format").equals("raw");
 
+                    Histogram.Timer parseTimer = AggregatedMetrics.STORAGE_BLOCK_PUT_PHASE_DURATION.labels("parse").startTimer();
+                    // A multi block write can't include the signing key, so look it up whilst the body is arriving,
+                    // and verify each block as soon as it has been received. Only do this work for a writer which is
+                    // allowed to write here, the size is checked against their quota once the blocks have arrived.
+                    boolean verifyEarly = signatures.size() > 1;
+                    if (verifyEarly && ! keyFilter.apply(writerHash, 0))
+                        throw new IllegalStateException("Key not allowed to write to this server: " + writerHash);
+                    CompletableFuture<PublicSigningKey> earlyWriter = verifyEarly ?
+                            getSigningKey(writerHash) :
+                            null;
+                    List<byte[]> data = new ArrayList<>();
+                    List<CompletableFuture<Boolean>> verified = new ArrayList<>();
+                    MultipartReceiver.extractFiles(httpExchange.getRequestBody(), boundary, block -> {
+                        int index = data.size();
+                        data.add(block);
+                        if (earlyWriter != null && index < signatures.size())
+                            verified.add(verify(earlyWriter, block, signatures.get(index)));
+                    });
+                    parseTimer.observeDuration();
+                    if (data.size() != signatures.size())
+                        throw new IllegalStateException("Incorrect number of signatures for blocks!");
+
                     // check writer is allowed to write to this server, and check their free space
                     if (! keyFilter.apply(writerHash, data.stream().mapToInt(x -> x.length).sum()))
                         throw new IllegalStateException("Key not allowed to write to this server: " + writerHash);
 
-                    // Get the actual key, unless this is the initial write of the signing key during sign up
-                    // In the initial put of a signing key during sign up the key signs itself (we still check the hash
-                    // against the core node)
-                    Supplier<PublicSigningKey> fromDht = () -> {
-                        try {
-                            return dht.getSigningKey(writerHash, writerHash).get().get();
-                        } catch (Exception e) {
-                            throw new RuntimeException(e);
-                        }
-                    };
-                    Supplier<PublicSigningKey> inBandOrDht = () -> {
-                        try {
-                            PublicSigningKey candidateKey = PublicSigningKey.fromByteArray(data.get(0));
-                            PublicKeyHash calculatedHash = ContentAddressedStorage.hashKey(candidateKey);
-                            if (calculatedHash.equals(writerHash)) {
-                                candidateKey.unsignMessage(signatures.get(0));
-                                return candidateKey;
-                            }
-                        } catch (Throwable e) {
-                            // If signature is not valid then the signing key has already been written, retrieve it
-                            // This happens for the boxing key during sign up for example
-                        }
-                        return fromDht.get();
-                    };
-                    PublicSigningKey writer = data.size() > 1 ? fromDht.get() : inBandOrDht.get();
-
-                    // verify signatures
-                    for (int i = 0; i < data.size(); i++) {
-                        byte[] signature = signatures.get(i);
-                        byte[] hash = hasher.sha256(data.get(i)).join();
-                        byte[] unsigned = writer.unsignMessage(signature).join();
-                        if (! Arrays.equals(unsigned, hash))
-                            throw new IllegalStateException("Invalid signature for block!");
-                    }
+                    Histogram.Timer verifyTimer = AggregatedMetrics.STORAGE_BLOCK_PUT_PHASE_DURATION.labels("verify").startTimer();
+                    if (earlyWriter == null)
+                        verified = verifyAll(getWriter(writerHash, data, signatures), data, signatures);
+                    checkSignatures(verified);
+                    verifyTimer.observeDuration();
 
+                    Histogram.Timer storeTimer = AggregatedMetrics.STORAGE_BLOCK_PUT_PHASE_DURATION.labels("store").startTimer();
                     List<Cid> hashes = (isRaw ?
                             dht.putRaw(ownerHash.get(), writerHash, signatures, data, tid, x -> {}) :
                             dht.put(ownerHash.get(), writerHash, signatures, data, tid)).get();
-                    List<Object> json = hashes.stream()
-                            .map(h -> wrapHash(h))
-                            .collect(Collectors.toList());
-                    // make stream of JSON objects
-                    String jsonStream = json.stream()
-                            .map(m -> JSONParser.toString(m))
-                            .reduce("", (a, b) -> a + b);
-                    replyJson(httpExchange, jsonStream, Optional.empty());
+                    storeTimer.observeDuration();
+                    replyHashes(httpExchange, hashes);
                     break;
                 }
                 case BLOCK_PUT_BULK: {
                     AggregatedMetrics.STORAGE_BLOCK_PUT_BULK.inc();
                     TransactionId tid = new TransactionId(last.apply("transaction"));
                     PublicKeyHash writerHash = PublicKeyHash.fromString(last.apply("writer"));
-                    BlockWriteGroup writes = BlockWriteGroup.fromCbor(CborObject.read(httpExchange.getRequestBody(), 2 * ContentAddressedStorage.MAX_BLOCK_SIZE));
+                    Histogram.Timer parseTimer = AggregatedMetrics.STORAGE_BLOCK_PUT_PHASE_DURATION.labels("parse").startTimer();
+                    // As for a multipart put, once there is more than one block look up the signing key whilst the
+                    // body is arriving, hash each block as soon as it has been decoded, and verify each signature as
+                    // soon as it has been decoded, which is after all the blocks.
+                    List<CompletableFuture<byte[]>> blockHashes = new ArrayList<>();
+                    List<CompletableFuture<Boolean>> earlyVerified = new ArrayList<>();
+                    AtomicReference<CompletableFuture<PublicSigningKey>> earlyWriter = new AtomicReference<>();
+                    BlockWriteGroup writes = BlockWriteGroup.read(httpExchange.getRequestBody(), 2 * ContentAddressedStorage.MAX_BLOCK_SIZE,
+                            (index, block) -> {
+                                if (index == 1) {
+                                    if (! keyFilter.apply(writerHash, 0))
+                                        throw new IllegalStateException("Key not allowed to write to this server: " + writerHash);
+                                    earlyWriter.set(getSigningKey(writerHash));
+                                }
+                                blockHashes.add(hash(block));
+                            },
+                            (index, signature) -> {
+                                if (earlyWriter.get() != null && index < blockHashes.size())
+                                    earlyVerified.add(verify(earlyWriter.get(), blockHashes.get(index), signature));
+                            });
+                    parseTimer.observeDuration();
                     boolean isRaw = last.apply("format").equals("raw");
+                    if (writes.blocks.size() != writes.signatures.size())
+                        throw new IllegalStateException("Incorrect number of signatures for blocks!");
 
                     // check writer is allowed to write to this server, and check their free space
                     if (! keyFilter.apply(writerHash, writes.blocks.stream().mapToInt(x -> x.length).sum()))
                         throw new IllegalStateException("Key not allowed to write to this server: " + writerHash);
 
-                    // Get the actual key, unless this is the initial write of the signing key during sign up
-                    // In the initial put of a signing key during sign up the key signs itself (we still check the hash
-                    // against the core node)
-                    Supplier<PublicSigningKey> fromDht = () -> {
-                        try {
-                            return dht.getSigningKey(writerHash, writerHash).get().get();
-                        } catch (Exception e) {
-                            throw new RuntimeException(e);
-                        }
-                    };
-                    Supplier<PublicSigningKey> inBandOrDht = () -> {
-                        try {
-                            PublicSigningKey candidateKey = PublicSigningKey.fromByteArray(writes.blocks.get(0));
-                            PublicKeyHash calculatedHash = ContentAddressedStorage.hashKey(candidateKey);
-                            if (calculatedHash.equals(writerHash)) {
-                                candidateKey.unsignMessage(writes.signatures.get(0));
-                                return candidateKey;
-                            }
-                        } catch (Throwable e) {
-                            // If signature is not valid then the signing key has already been written, retrieve it
-                            // This happens for the boxing key during sign up for example
-                        }
-                        return fromDht.get();
-                    };
-                    PublicSigningKey writer = writes.blocks.size() > 1 ? fromDht.get() : inBandOrDht.get();
-
-                    // verify signatures
-                    for (int i = 0; i < writes.blocks.size(); i++) {
-                        byte[] signature = writes.signatures.get(i);
-                        byte[] hash = hasher.sha256(writes.blocks.get(i)).join();
-                        byte[] unsigned = writer.unsignMessage(signature).join();
-                        if (! Arrays.equals(unsigned, hash))
-                            throw new IllegalStateException("Invalid signature for block!");
-                    }
+                    Histogram.Timer verifyTimer = AggregatedMetrics.STORAGE_BLOCK_PUT_PHASE_DURATION.labels("verify").startTimer();
+                    // every signature must have been checked, whatever order the group was encoded in
+                    boolean allVerifiedEarly = earlyWriter.get() != null && earlyVerified.size() == writes.signatures.size();
+                    checkSignatures(allVerifiedEarly ?
+                            earlyVerified :
+                            verifyAll(getWriter(writerHash, writes.blocks, writes.signatures), writes.blocks, writes.signatures));
+                    verifyTimer.observeDuration();
 
+                    Histogram.Timer storeTimer = AggregatedMetrics.STORAGE_BLOCK_PUT_PHASE_DURATION.labels("store").startTimer();
                     List<Cid> hashes = (isRaw ?
                             dht.putRaw(ownerHash.get(), writerHash, writes.signatures, writes.blocks, tid, x -> {}) :
                             dht.put(ownerHash.get(), writerHash, writes.signatures, writes.blocks, tid)).get();
-                    List<Object> json = hashes.stream()
-                            .map(h -> wrapHash(h))
-                            .collect(Collectors.toList());
-                    // make stream of JSON objects
-                    String jsonStream = json.stream()
-                            .map(m -> JSONParser.toString(m))
-                            .reduce("", (a, b) -> a + b);
-                    replyJson(httpExchange, jsonStream, Optional.empty());
+                    storeTimer.observeDuration();
+                    replyHashes(httpExchange, hashes);
                     break;
                 }
                 case BLOCK_GET:{
@@ -345,9 +307,9 @@ public class StorageHandler implements HttpHandler {
                     Optional<BatWithId> bat = params.containsKey("bat") ?
                             Optional.of(BatWithId.decode(last.apply("bat"))) :
                             Optional.empty();
-                    Optional<byte[]> block = hash.codec == Cid.Codec.Raw ?
-                            dht.getRaw(ownerHash.get(), hash, bat).join() :
-                            dht.get(ownerHash.get(), hash, bat).thenApply(opt -> opt.map(CborObject::toByteArray)).join();
+                    // cbor blocks are returned exactly as stored, the client parses them, so there's no need to parse and
+                    // re-serialize here. Read authorisation is still enforced on the stored bytes by getRaw.
+                    Optional<byte[]> block = dht.getRaw(ownerHash.get(), hash, bat).join();
                     replyBytes(httpExchange,
                             block.orElse(new byte[0]), block.map(x -> hash));
                     break;
@@ -411,6 +373,79 @@ public class StorageHandler implements HttpHandler {
         }
     }
 
+    private CompletableFuture<PublicSigningKey> getSigningKey(PublicKeyHash writerHash) {
+        return dht.getSigningKey(writerHash, writerHash).thenApply(Optional::get);
+    }
+
+    /** Get the actual key, unless this is the initial write of the signing key during sign up.
+     *  In the initial put of a signing key during sign up the key signs itself (we still check the hash
+     *  against the core node)
+     */
+    private CompletableFuture<PublicSigningKey> getWriter(PublicKeyHash writerHash,
+                                                          List<byte[]> blocks,
+                                                          List<byte[]> signatures) {
+        if (blocks.size() == 1) {
+            try {
+                PublicSigningKey candidateKey = PublicSigningKey.fromByteArray(blocks.get(0));
+                PublicKeyHash calculatedHash = ContentAddressedStorage.hashKey(candidateKey);
+                if (calculatedHash.equals(writerHash)) {
+                    candidateKey.unsignMessage(signatures.get(0));
+                    return Futures.of(candidateKey);
+                }
+            } catch (Throwable e) {
+                // If signature is not valid then the signing key has already been written, retrieve it
+                // This happens for the boxing key during sign up for example
+            }
+        }
+        return getSigningKey(writerHash);
+    }
+
+    /** Hash the block and check the signature on the verification pool. Hashing doesn't need the writer key so it
+     *  can start before the key has been retrieved.
+     */
+    private CompletableFuture<byte[]> hash(byte[] block) {
+        return CompletableFuture.supplyAsync(() -> hasher.sha256(block).join(), verifyPool);
+    }
+
+    private CompletableFuture<Boolean> verify(CompletableFuture<PublicSigningKey> writer, byte[] block, byte[] signature) {
+        return verify(writer, hash(block), signature);
+    }
+
+    private CompletableFuture<Boolean> verify(CompletableFuture<PublicSigningKey> writer, CompletableFuture<byte[]> hash, byte[] signature) {
+        return writer.thenCombineAsync(hash, (key, h) -> Arrays.equals(key.unsignMessage(signature).join(), h), verifyPool);
+    }
+
+    private List<CompletableFuture<Boolean>> verifyAll(CompletableFuture<PublicSigningKey> writer,
+                                                       List<byte[]> blocks,
+                                                       List<byte[]> signatures) {
+        return IntStream.range(0, blocks.size())
+                .mapToObj(i -> verify(writer, blocks.get(i), signatures.get(i)))
+                .collect(Collectors.toList());
+    }
+
+    private static void checkSignatures(List<CompletableFuture<Boolean>> verified) {
+        for (CompletableFuture<Boolean> valid : verified) {
+            if (! valid.join())
+                throw new IllegalStateException("Invalid signature for block!");
+        }
+    }
+
+    /** Reply with the champ nodes along the path to each cap, and the values */
+    private void replyChampLookup(HttpExchange exchange,
+                                  PublicKeyHash owner,
+                                  Cid root,
+                                  List<ChunkMirrorCap> caps) throws Exception {
+        Histogram.Timer timer = AggregatedMetrics.STORAGE_CHAMP_GET_DURATION.labels("duration").startTimer();
+        try {
+            champCache.getChampLookup(dht, owner, root, caps, hasher).thenAccept(blocks -> {
+                replyBytes(exchange, new CborObject.CborList(blocks.stream()
+                        .map(CborObject.CborByteArray::new).collect(Collectors.toList())).serialize(), Optional.of(root));
+            }).exceptionally(Futures::logAndThrow).get();
+        } finally {
+            timer.observeDuration();
+        }
+    }
+
     private static Map<String, Object> wrapHash(Multihash h) {
         return wrapHash("Hash", h);
     }
@@ -421,6 +456,14 @@ public class StorageHandler implements HttpHandler {
         return json;
     }
 
+    /** Reply with a stream of JSON objects, one per hash */
+    private static void replyHashes(HttpExchange exchange, List<Cid> hashes) {
+        List<Object> json = hashes.stream()
+                .map(h -> wrapHash(h))
+                .collect(Collectors.toList());
+        replyJson(exchange, JSONParser.toStream(json), Optional.empty());
+    }
+
     private static void replyJson(HttpExchange exchange, String json, Optional<Multihash> key) {
         try {
             if (key.isPresent()) {
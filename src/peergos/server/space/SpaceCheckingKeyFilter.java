@@ -3,6 +3,7 @@ package peergos.server.space;
 import java.util.concurrent.atomic.*;
 import java.util.logging.*;
 
+import peergos.server.AggregatedMetrics;
 import peergos.server.storage.*;
 import peergos.server.storage.admin.*;
 import peergos.server.util.*;
@@ -19,6 +20,7 @@ import peergos.shared.storage.*;
 import peergos.shared.user.*;
 import peergos.shared.util.*;
 
+import java.nio.file.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
@@ -124,7 +126,9 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
                               CoreNode core,
                               MutablePointers mutable,
                               DeletableContentAddressedStorage dht,
-                              Hasher hasher) {
+                              Hasher hasher,
+                              int parallelism,
+                              Path checkpointFile) {
         Logging.LOG().info("Checking for updated usage for users...");
         Cid ourId = dht.id().join();
         List<String> localUsernames = quotas.getLocalUsernames();
@@ -137,48 +141,114 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
 
         Logging.LOG().info("Checking for updated mutable pointers...");
         long t1 = System.currentTimeMillis();
-        Set<PublicKeyHash> writers = store.getAllWriters();
+        UsageUpdateCheckpoint checkpoint = UsageUpdateCheckpoint.load(checkpointFile);
+        runningUpdate = checkpoint;
+        // each user's writers are checked in turn, and different users concurrently
+        Map<String, List<PublicKeyHash>> writersByOwner = getWritersByOwner(store);
+        int totalWriters = writersByOwner.values().stream().mapToInt(List::size).sum();
+        AggregatedMetrics.USAGE_UPDATE_WRITERS.set(totalWriters);
+        AggregatedMetrics.USAGE_UPDATE_WRITERS_DONE.set(0);
         List<Multihash> us = List.of(ourId.bareMultihash());
-        for (PublicKeyHash writerKey : writers) {
-            WriterUsage tmpUsage = null;
-            try {
-                tmpUsage = store.getUsage(writerKey);
-                WriterUsage writerUsage = tmpUsage;
-                Logging.LOG().info("Checking for updates from user: " + writerUsage.owner + ", writer key: " + writerKey);
-
-                PublicKeyHash owner = writerKey; //NB: owner is a dummy value
-                MaybeMultihash rootHash = mutable.getPointerTarget(owner, writerKey, dht).join().updated;
-                boolean isChanged = ! writerUsage.target().equals(rootHash);
-                if (isChanged) {
-                    Logging.LOG().info("Root hash changed from " + writerUsage.target() + " to " + rootHash);
-                    long updatedSize = dht.getRecursiveBlockSize(owner, (Cid)rootHash.get(), us).get();
-                    long deltaUsage = updatedSize - writerUsage.directRetainedStorage();
-                    Set<PublicKeyHash> directOwnedKeys = DeletableContentAddressedStorage.getDirectOwnedKeys(owner, writerKey, mutable,
-                            (h, s) -> DeletableContentAddressedStorage.getWriterData(us, owner, h, s, false, ourId, hasher, dht), dht, hasher).join();
-                    List<PublicKeyHash> newOwnedKeys = directOwnedKeys.stream()
-                            .filter(key -> !writerUsage.ownedKeys().contains(key))
-                            .collect(Collectors.toList());
-                    for (PublicKeyHash newOwnedKey : newOwnedKeys) {
-                        store.addWriter(writerUsage.owner, newOwnedKey);
-                        processMutablePointerEvent(store, owner, newOwnedKey, MaybeMultihash.empty(),
-                                mutable.getPointerTarget(owner, newOwnedKey, dht).get().updated, mutable, quotas, dht, hasher);
+        ForkJoinPool pool = Threads.newFJPool(parallelism, "Usage-update-");
+        List<ForkJoinTask<Boolean>> owners = writersByOwner.entrySet().stream()
+                .map(e -> pool.submit(() -> {
+                    String username = e.getKey();
+                    if (checkpoint.isDone(username)) {
+                        AggregatedMetrics.USAGE_UPDATE_WRITERS_DONE.inc(e.getValue().size());
+                        return true;
                     }
-                    HashSet<PublicKeyHash> removedOwnedKeys = new HashSet<>(writerUsage.ownedKeys());
-                    removedOwnedKeys.removeAll(directOwnedKeys);
-                    boolean updated = store.updateWriterUsageAtomically(writerKey, writerUsage.target(), rootHash,
-                            removedOwnedKeys, new HashSet<>(newOwnedKeys), updatedSize, deltaUsage,
-                            store.getUsage(writerUsage.owner).isErrored());
-                    if (updated)
-                        Logging.LOG().info("Updated space used by " + writerKey + " to " + updatedSize);
-                }
-            } catch (Throwable t) {
-                Logging.LOG().log(Level.WARNING, "Failed calculating usage for " + (tmpUsage == null ? writerKey : tmpUsage.owner), t);
-            }
-        }
+                    boolean success = true;
+                    for (PublicKeyHash writerKey : e.getValue()) {
+                        success &= updateWriter(store, writerKey, us, ourId, quotas, mutable, dht, hasher);
+                        AggregatedMetrics.USAGE_UPDATE_WRITERS_DONE.inc();
+                    }
+                    if (success)
+                        checkpoint.markDone(username);
+                    return success;
+                }))
+                .collect(Collectors.toList());
+        owners.forEach(ForkJoinTask::join);
+        pool.shutdown();
+        runningUpdate = null;
+        checkpoint.complete();
         long t2 = System.currentTimeMillis();
         Logging.LOG().info(LocalDateTime.now() + " Finished updating space usage for all usernames in " + (t2 - t1)/1000 + " s");
     }
 
+    private static Map<String, List<PublicKeyHash>> getWritersByOwner(UsageStore store) {
+        Map<String, List<PublicKeyHash>> byOwner = new HashMap<>();
+        Set<PublicKeyHash> remaining = new HashSet<>(store.getAllWriters());
+        for (Pair<String, PublicKeyHash> owner : store.getAllOwners()) {
+            List<PublicKeyHash> writers = store.getAllWriters(owner.left).stream()
+                    .filter(remaining::remove)
+                    .collect(Collectors.toList());
+            if (! writers.isEmpty())
+                byOwner.put(owner.left, writers);
+        }
+        for (PublicKeyHash writer : remaining) {
+            WriterUsage usage = store.getUsage(writer);
+            String owner = usage == null ? writer.toString() : usage.owner;
+            byOwner.computeIfAbsent(owner, k -> new ArrayList<>()).add(writer);
+        }
+        return byOwner;
+    }
+
+    private static boolean updateWriter(UsageStore store,
+                                        PublicKeyHash writerKey,
+                                        List<Multihash> us,
+                                        Cid ourId,
+                                        QuotaAdmin quotas,
+                                        MutablePointers mutable,
+                                        DeletableContentAddressedStorage dht,
+                                        Hasher hasher) {
+        WriterUsage tmpUsage = null;
+        try {
+            tmpUsage = store.getUsage(writerKey);
+            WriterUsage writerUsage = tmpUsage;
+            Logging.LOG().info("Checking for updates from user: " + writerUsage.owner + ", writer key: " + writerKey);
+
+            PublicKeyHash owner = writerKey; //NB: owner is a dummy value
+            MaybeMultihash rootHash = mutable.getPointerTarget(owner, writerKey, dht).join().updated;
+            boolean isChanged = ! writerUsage.target().equals(rootHash);
+            if (! isChanged)
+                return true;
+            Logging.LOG().info("Root hash changed from " + writerUsage.target() + " to " + rootHash);
+            // walk the tree without holding the writer lock, so pointer events for this writer aren't blocked behind it
+            long updatedSize = dht.getRecursiveBlockSize(owner, (Cid)rootHash.get(), us).get();
+            long deltaUsage = updatedSize - writerUsage.directRetainedStorage();
+            Set<PublicKeyHash> directOwnedKeys = DeletableContentAddressedStorage.getDirectOwnedKeys(owner, writerKey, mutable,
+                    (h, s) -> DeletableContentAddressedStorage.getWriterData(us, owner, h, s, false, ourId, hasher, dht), dht, hasher).join();
+            List<PublicKeyHash> newOwnedKeys = directOwnedKeys.stream()
+                    .filter(key -> !writerUsage.ownedKeys().contains(key))
+                    .collect(Collectors.toList());
+            HashSet<PublicKeyHash> removedOwnedKeys = new HashSet<>(writerUsage.ownedKeys());
+            removedOwnedKeys.removeAll(directOwnedKeys);
+
+            synchronized (getWriterLock(writerKey)) {
+                // a pointer event may have been processed while we were walking, in which case it has already
+                // accounted for the change
+                WriterUsage current = store.getUsage(writerKey);
+                if (! current.target().equals(writerUsage.target()))
+                    return true;
+                for (PublicKeyHash newOwnedKey : newOwnedKeys)
+                    store.addWriter(writerUsage.owner, newOwnedKey);
+                boolean updated = store.updateWriterUsageAtomically(writerKey, writerUsage.target(), rootHash,
+                        removedOwnedKeys, new HashSet<>(newOwnedKeys), updatedSize, deltaUsage,
+                        store.getUsage(writerUsage.owner).isErrored());
+                if (! updated)
+                    return true;
+                Logging.LOG().info("Updated space used by " + writerKey + " to " + updatedSize);
+            }
+            for (PublicKeyHash newOwnedKey : newOwnedKeys)
+                processMutablePointerEvent(store, owner, newOwnedKey, MaybeMultihash.empty(),
+                        mutable.getPointerTarget(owner, newOwnedKey, dht).get().updated, mutable, quotas, dht, hasher);
+            return true;
+        } catch (Throwable t) {
+            Logging.LOG().log(Level.WARNING, "Failed calculating usage for " + (tmpUsage == null ? writerKey : tmpUsage.owner), t);
+            return false;
+        }
+    }
+
     public CompletableFuture<Boolean> accept(CorenodeEvent event) {
         usageStore.addUserIfAbsent(event.username);
         usageStore.addWriter(event.username, event.keyHash);
@@ -204,6 +274,9 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
     public void accept(MutableEvent event) {
         mutableQueue.add(event);
         try {
+            UsageUpdateCheckpoint update = runningUpdate;
+            if (update != null) // a restart before this event is processed must check this user again
+                update.markChanged(usageStore.getOwner(event.writer));
             prepareMutablePointerChange(event, dht, usageStore, hasher);
         } catch (Exception e) {
             LOG.log(Level.WARNING, "Error registering owned keys for writer " + event.writer + ": " + e.getMessage(), e);
@@ -401,6 +474,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
     private static final LRUCache<Long, Map<String, Long>> quotas = new LRUCache<>(2);
     private static final LRUCache<Long, Map<String, UserUsage>> usageCache = new LRUCache<>(2);
     private static final ConcurrentHashMap<PublicKeyHash, Object> writerLocks = new ConcurrentHashMap<>();
+    private static volatile UsageUpdateCheckpoint runningUpdate = null;
 
     private static Object getWriterLock(PublicKeyHash writer) {
         return writerLocks.computeIfAbsent(writer, k -> new Object());
@@ -0,0 +1,87 @@
+package peergos.server.space;
+
+import peergos.server.util.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.*;
+
+/** Records which users the startup usage update has finished, so a restart part way through can skip them.
+ *
+ *  The file is a log of lines "+username" when a user is done and "-username" when a pointer of theirs changed after
+ *  that, which the next pass needs to check again. It is deleted once a pass completes.
+ */
+public class UsageUpdateCheckpoint {
+    private static final Logger LOG = Logging.LOG();
+
+    private final Path file;
+    private final Set<String> done;
+    private Writer out;
+
+    private UsageUpdateCheckpoint(Path file, Set<String> done) {
+        this.file = file;
+        this.done = done;
+    }
+
+    public static UsageUpdateCheckpoint load(Path file) {
+        Set<String> done = new HashSet<>();
+        if (Files.exists(file)) {
+            try {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    if (line.startsWith("+"))
+                        done.add(line.substring(1));
+                    else if (line.startsWith("-"))
+                        done.remove(line.substring(1));
+                }
+                LOG.info("Resuming usage update with " + done.size() + " users already done");
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Ignoring unreadable usage update checkpoint " + file, e);
+                done.clear();
+            }
+        }
+        return new UsageUpdateCheckpoint(file, done);
+    }
+
+    public synchronized boolean isDone(String username) {
+        return done.contains(username);
+    }
+
+    public synchronized int doneCount() {
+        return done.size();
+    }
+
+    public void markDone(String username) {
+        append("+", username);
+    }
+
+    public void markChanged(String username) {
+        append("-", username);
+    }
+
+    private synchronized void append(String prefix, String username) {
+        if (prefix.equals("+") ? ! done.add(username) : ! done.remove(username))
+            return;
+        try {
+            if (out == null)
+                out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            out.write(prefix + username + "\n");
+            out.flush();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Couldn't write usage update checkpoint " + file, e);
+        }
+    }
+
+    /** The pass has finished, so the next one must check everyone. */
+    public synchronized void complete() {
+        try {
+            if (out != null)
+                out.close();
+            out = null;
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Couldn't remove usage update checkpoint " + file, e);
+        }
+    }
+}
@@ -41,6 +41,11 @@ public interface SqlSupplier {
                 "CREATE UNIQUE INDEX IF NOT EXISTS index_name ON metadatablobs (writingkey);";
     }
 
+    default String createBinaryMutablePointersTableCommand() {
+        return "CREATE TABLE IF NOT EXISTS mutablepointers (writer " + getByteArrayType() + " primary key not null, " +
+                "target " + getByteArrayType() + " not null);";
+    }
+
     default String createAccountTableCommand() {
         return "CREATE TABLE IF NOT EXISTS login (username text primary key not null, entry text not null, reader text not null); " +
                 "CREATE UNIQUE INDEX IF NOT EXISTS login_index ON login (username);";
@@ -114,6 +119,11 @@ public interface SqlSupplier {
                 "batids " + getByteArrayType() + " not null);";
     }
 
+    default String createSubtreeSizesTableCommand() {
+        return "CREATE TABLE IF NOT EXISTS subtreesizes (cid " + getByteArrayType() + " primary key not null, " +
+                "size " + sqlInteger() + " not null);";
+    }
+
     default String createPartitionStatusTableCommand() {
         return "CREATE TABLE IF NOT EXISTS partitioned (done boolean);";
     }
@@ -32,6 +32,18 @@ public interface BlockMetadataStore {
 
     void remove(Cid block);
 
+    /**
+     *
+     * @param roots
+     * @return The recorded total size of all the blocks reachable from each root, including itself, for those that have one
+     */
+    default Map<Cid, Long> getSubtreeSizes(List<Cid> roots) {
+        return Collections.emptyMap();
+    }
+
+    /** Record the total size of all the blocks reachable from a root. Blocks are immutable so this never changes. */
+    default void setSubtreeSize(Cid root, long size) {}
+
     long size(PublicKeyHash owner);
 
     boolean isEmpty();
@@ -51,6 +51,16 @@ public class CachingBlockMetadataStore implements BlockMetadataStore {
         return result;
     }
 
+    @Override
+    public Map<Cid, Long> getSubtreeSizes(List<Cid> roots) {
+        return target.getSubtreeSizes(roots);
+    }
+
+    @Override
+    public void setSubtreeSize(Cid root, long size) {
+        target.setSubtreeSize(root, size);
+    }
+
     @Override
     public List<Cid> hasBlocks(List<Cid> blocks) {
         return target.hasBlocks(blocks);
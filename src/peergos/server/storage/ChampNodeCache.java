@@ -0,0 +1,210 @@
+package peergos.server.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.Cid;
+import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** A cache of parsed champ nodes, keyed by cid, for answering champ lookups.
+ *
+ *  Blocks are immutable, so entries never need invalidating, and they are evicted in LRU order once the total size
+ *  exceeds the limit. Only the interior nodes walked during a lookup are cached, never the values at the end of it.
+ *  Lookups from a root that isn't cached for that owner go to the underlying storage unchanged, so it can check the
+ *  root is local, and the nodes it returns are then cached. A lookup from a cached root still asks the storage to
+ *  check the root is local for the owner, so a root that has since been garbage collected is not served. Interior
+ *  nodes are shared between owners as they are only ever reached from a root that has passed that check.
+ */
+public class ChampNodeCache {
+    // approximate size of an entry beyond its serialized bytes, including the parsed form
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private final long maxBytes;
+    private final LinkedHashMap<Cid, Node> nodes = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalBytes = 0;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    private static class Node {
+        public final byte[] raw;
+        public final CborObject cbor;
+        // owners for which this node has been looked up as a root
+        public final Set<PublicKeyHash> rootOf = new HashSet<>();
+
+        public Node(byte[] raw, CborObject cbor) {
+            this.raw = raw;
+            this.cbor = cbor;
+        }
+
+        public long size() {
+            return 2L * raw.length + ENTRY_OVERHEAD;
+        }
+    }
+
+    public ChampNodeCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized boolean contains(PublicKeyHash owner, Cid root) {
+        Node node = nodes.get(root);
+        return node != null && node.rootOf.contains(owner);
+    }
+
+    private synchronized void setRoot(PublicKeyHash owner, Cid root, boolean isRoot) {
+        Node node = nodes.get(root);
+        if (node == null)
+            return;
+        if (isRoot)
+            node.rootOf.add(owner);
+        else
+            node.rootOf.remove(owner);
+    }
+
+    private synchronized Node cached(Cid block) {
+        return nodes.get(block);
+    }
+
+    private synchronized void cache(Cid block, Node node) {
+        if (node.size() > maxBytes)
+            return;
+        Node existing = nodes.put(block, node);
+        if (existing != null)
+            totalBytes -= existing.size();
+        totalBytes += node.size();
+        Iterator<Node> eldest = nodes.values().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            totalBytes -= eldest.next().size();
+            eldest.remove();
+        }
+    }
+
+    public synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the champ nodes along the path to each cap, and the values, in the same form as
+     *         ContentAddressedStorage.getChampLookup
+     */
+    public CompletableFuture<List<byte[]>> getChampLookup(ContentAddressedStorage storage,
+                                                          PublicKeyHash owner,
+                                                          Cid root,
+                                                          List<ChunkMirrorCap> caps,
+                                                          Hasher hasher) {
+        if (contains(owner, root))
+            // a lookup with no caps only runs the storage's check that the root is present locally
+            return storage.getChampLookup(owner, root, Collections.emptyList(), Optional.empty())
+                    .whenComplete((r, t) -> {
+                        if (t != null)
+                            setRoot(owner, root, false);
+                    })
+                    .thenCompose(x -> lookup(storage, owner, root, caps, hasher, (cid, bat) -> storage.get(owner, cid, bat)
+                            .thenApply(opt -> opt.map(CborObject::toByteArray))));
+
+        return storage.getChampLookup(owner, root, caps, Optional.empty())
+                .thenCompose(blocks -> Futures.combineAllInOrder(blocks.stream()
+                                .map(b -> hasher.hash(b, false).thenApply(cid -> new Pair<>(cid, b)))
+                                .collect(Collectors.toList()))
+                        .thenCompose(hashed -> {
+                            // walk the returned blocks to cache the interior nodes
+                            Map<Cid, byte[]> returned = hashed.stream()
+                                    .collect(Collectors.toMap(p -> p.left, p -> p.right, (a, b) -> a));
+                            return lookup(storage, owner, root, caps, hasher, (cid, bat) -> Futures.of(Optional.ofNullable(returned.get(cid))));
+                        })
+                        .thenApply(x -> {
+                            setRoot(owner, root, true);
+                            return x;
+                        })
+                        .thenApply(x -> blocks)
+                        .exceptionally(t -> blocks));
+    }
+
+    private CompletableFuture<List<byte[]>> lookup(ContentAddressedStorage storage,
+                                                   PublicKeyHash owner,
+                                                   Cid root,
+                                                   List<ChunkMirrorCap> caps,
+                                                   Hasher hasher,
+                                                   BiFunction<Cid, Optional<BatWithId>, CompletableFuture<Optional<byte[]>>> source) {
+        PathStorage path = new PathStorage(storage, source);
+        return Futures.combineAll(caps.stream()
+                        .map(cap -> ChampWrapper.create(owner, root, Optional.empty(), x -> Futures.of(x.data), path, hasher, c -> (CborObject.CborMerkleLink) c)
+                                .thenCompose(tree -> tree.get(cap.mapKey))
+                                .thenCompose(value -> value.isPresent() ?
+                                        path.getValue((Cid) value.get().target, cap.bat) :
+                                        Futures.of(Optional.<byte[]>empty())))
+                        .collect(Collectors.toList()))
+                .thenApply(x -> path.blocks());
+    }
+
+    /** Records every block returned during a lookup, serving champ nodes from the cache where possible. Champ
+     *  traversal only calls get, which is served from the source rather than the target.
+     */
+    private class PathStorage extends DelegatingStorage {
+        private final BiFunction<Cid, Optional<BatWithId>, CompletableFuture<Optional<byte[]>>> source;
+        private final Map<Cid, byte[]> blocks = new LinkedHashMap<>();
+
+        public PathStorage(ContentAddressedStorage target,
+                           BiFunction<Cid, Optional<BatWithId>, CompletableFuture<Optional<byte[]>>> source) {
+            super(target);
+            this.source = source;
+        }
+
+        @Override
+        public ContentAddressedStorage directToOrigin() {
+            return this;
+        }
+
+        private synchronized void record(Cid block, byte[] raw) {
+            blocks.put(block, raw);
+        }
+
+        public synchronized List<byte[]> blocks() {
+            return new ArrayList<>(blocks.values());
+        }
+
+        @Override
+        public CompletableFuture<Optional<CborObject>> get(PublicKeyHash owner, Cid hash, Optional<BatWithId> bat) {
+            // champ nodes are always retrieved without a bat
+            Node cached = cached(hash);
+            if (cached != null) {
+                hits.incrementAndGet();
+                record(hash, cached.raw);
+                return Futures.of(Optional.of(cached.cbor));
+            }
+            misses.incrementAndGet();
+            return source.apply(hash, bat).thenApply(rawOpt -> rawOpt.map(raw -> {
+                CborObject cbor = CborObject.fromByteArray(raw);
+                record(hash, raw);
+                if (bat.isEmpty() && ! hash.isRaw())
+                    cache(hash, new Node(raw, cbor));
+                return cbor;
+            }));
+        }
+
+        public CompletableFuture<Optional<byte[]>> getValue(Cid hash, Optional<BatWithId> bat) {
+            return source.apply(hash, bat).thenApply(rawOpt -> {
+                rawOpt.ifPresent(raw -> record(hash, raw));
+                return rawOpt;
+            });
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package peergos.server.storage;
+
+import org.peergos.blockstore.filters.ChainedInfiniFilter;
+import org.peergos.util.Logging;
+import peergos.shared.io.ipfs.Cid;
+
+import java.util.logging.Logger;
+
+/** A probabilistic set of cids, ignoring versions. False positives are possible, false negatives are not.
+ *  Access is synchronized so it can be filled from a parallel mark phase.
+ */
+public class CidInfiniFilter {
+
+    private static final Logger LOG = Logging.LOG();
+
+    private final ChainedInfiniFilter filter;
+
+    private CidInfiniFilter(ChainedInfiniFilter filter) {
+        this.filter = filter;
+    }
+
+    public synchronized boolean has(Cid c) {
+        return filter.search(c.toBytes());
+    }
+
+    public synchronized Cid add(Cid c) {
+        filter.insert(c.toBytes(), true);
+        return c;
+    }
+
+    public static CidInfiniFilter build(long nBlocks, double falsePositiveRate) {
+        int nextPowerOfTwo = Math.max(17, (int) (1 + Math.log(Math.max(1, nBlocks)) / Math.log(2)));
+        double expansionAlpha = 0.8;
+        int bitsPerEntry = (int)(4 - Math.log(falsePositiveRate / expansionAlpha) / Math.log(2) + 1);
+        LOG.fine("Using infini filter of initial size " + ((double)(bitsPerEntry * (1 << nextPowerOfTwo) / 8) / 1024 / 1024) + " MiB");
+        ChainedInfiniFilter infini = new ChainedInfiniFilter(nextPowerOfTwo, bitsPerEntry);
+        infini.set_expand_autonomously(true);
+        return new CidInfiniFilter(infini);
+    }
+}
@@ -243,6 +243,11 @@ public class DelegatingDeletableStorage implements DeletableContentAddressedStor
         return target.getBlockMetadata(owner, block);
     }
 
+    @Override
+    public long getRecursiveBlockSizeSync(PublicKeyHash owner, Cid root, List<Multihash> peerids) {
+        return target.getRecursiveBlockSizeSync(owner, root, peerids);
+    }
+
     @Override
     public Optional<BlockCache> getBlockCache() {
         return target.getBlockCache();
@@ -282,6 +282,12 @@ public interface DeletableContentAddressedStorage extends ContentAddressedStorag
     CompletableFuture<List<Cid>> getLinks(PublicKeyHash owner, Cid root, List<Multihash> peerids);
 
     default long getRecursiveBlockSizeSync(PublicKeyHash owner, Cid root, List<Multihash> peerids) {
+        return RecursiveSizeWalker.getRecursiveBlockSize(this, owner, root, peerids);
+    }
+
+    /** Looks up one block at a time, kept for comparison with getRecursiveBlockSizeSync.
+     */
+    default long getRecursiveBlockSizeDepthFirst(PublicKeyHash owner, Cid root, List<Multihash> peerids) {
         long total = 0;
         Deque<Cid> queue = new ArrayDeque<>();
         queue.push(root);
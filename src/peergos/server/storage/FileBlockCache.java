@@ -33,7 +33,7 @@ public class FileBlockCache implements BlockCache {
 
     public FileBlockCache(Path root, long maxSizeBytes) {
         this.root = root;
-        this.maxSizeBytes = getOrSetMaxSize(maxSizeBytes);
+        this.maxSizeBytes = getOrSetMaxSize(root, maxSizeBytes);
         File rootDir = root.toFile();
         if (!rootDir.exists()) {
             final boolean mkdirs = root.toFile().mkdirs();
@@ -77,7 +77,8 @@ public class FileBlockCache implements BlockCache {
         sizeCommitter.start();
     }
 
-    private long getOrSetMaxSize(long maxSizeBytes) {
+    /** The max size stored in the cache directory, which takes precedence over the one requested. */
+    static long getOrSetMaxSize(Path root, long maxSizeBytes) {
         Path json = root.resolve("config.json");
         try {
             if (json.toFile().exists()) {
@@ -104,6 +105,10 @@ public class FileBlockCache implements BlockCache {
     @Override
     public void setMaxSize(long maxSizeBytes) {
         this.maxSizeBytes = maxSizeBytes;
+        writeMaxSize(root, maxSizeBytes);
+    }
+
+    static void writeMaxSize(Path root, long maxSizeBytes) {
         Path json = root.resolve("config.json");
         try {
             Files.write(json, ("{\"maxsize\":" + maxSizeBytes + "}").getBytes("UTF-8"));
@@ -309,8 +309,8 @@ public class FileContentAddressedStorage implements DeletableContentAddressedSto
             if (! file.exists())
                 return CompletableFuture.completedFuture(Optional.empty());
         }
-        try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
-            byte[] block = Serialize.readFully(din);
+        try {
+            byte[] block = Files.readAllBytes(file.toPath());
 
             String auth = bat.isEmpty() ? "" :
                     bat.get().bat.generateAuth(hash, ourId, 300, S3Request.currentDatetime(), bat.get().id, h)
@@ -338,16 +338,14 @@ public class FileContentAddressedStorage implements DeletableContentAddressedSto
                 if (! file.exists())
                     return CompletableFuture.completedFuture(Optional.empty());
             }
-            try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
-                byte[] block = Serialize.readFully(din);
-
-                String auth = bat.isEmpty() ? "" :
-                        bat.get().bat.generateAuth(hash, ourId, 300, S3Request.currentDatetime(), bat.get().id, hasher)
-                                .thenApply(BlockAuth::encode).join();
-                if (! authoriser.allowRead(hash, block, id().join(), auth).join())
-                    return Futures.errored(new IllegalStateException("Unauthorised!"));
-                return CompletableFuture.completedFuture(Optional.of(block));
-            }
+            byte[] block = Files.readAllBytes(file.toPath());
+
+            String auth = bat.isEmpty() ? "" :
+                    bat.get().bat.generateAuth(hash, ourId, 300, S3Request.currentDatetime(), bat.get().id, hasher)
+                            .thenApply(BlockAuth::encode).join();
+            if (! authoriser.allowRead(hash, block, id().join(), auth).join())
+                return Futures.errored(new IllegalStateException("Unauthorised!"));
+            return CompletableFuture.completedFuture(Optional.of(block));
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
         }
@@ -373,12 +371,10 @@ public class FileContentAddressedStorage implements DeletableContentAddressedSto
                 if (! file.exists())
                     return CompletableFuture.completedFuture(Optional.empty());
             }
-            try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
-                byte[] block = Serialize.readFully(din);
-                if (doAuth && ! authoriser.allowRead(hash, block, id().join(), auth).join())
-                    return Futures.errored(new IllegalStateException("Unauthorised!"));
-                return CompletableFuture.completedFuture(Optional.of(block));
-            }
+            byte[] block = Files.readAllBytes(file.toPath());
+            if (doAuth && ! authoriser.allowRead(hash, block, id().join(), auth).join())
+                return Futures.errored(new IllegalStateException("Unauthorised!"));
+            return CompletableFuture.completedFuture(Optional.of(block));
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
         }
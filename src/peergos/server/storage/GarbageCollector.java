@@ -26,6 +26,18 @@ import java.util.stream.*;
 public class GarbageCollector {
     private static final Logger LOG = Logger.getGlobal();
 
+    /** How reachable blocks are marked. SQLITE keeps a reachability db per user, including a cache of block links,
+     *  BLOOM marks into an in memory filter and streams the block listing against it, using no disk.
+     */
+    public enum Engine {
+        SQLITE,
+        BLOOM;
+
+        public static Engine parse(String name) {
+            return Engine.valueOf(name.toUpperCase());
+        }
+    }
+
     private final DeletableContentAddressedStorage storage;
     private final JdbcIpnsAndSocial pointers;
     private final UsageStore usage;
@@ -36,6 +48,8 @@ public class GarbageCollector {
     private final Path reachabilityDbDir;
     private final TriFunction<Long, Long, Long, CompletableFuture<Boolean>> deleteConfirm;
     private final Function<String, CompletableFuture<Boolean>> deleteUserConfirm;
+    private final Engine engine;
+    private final int fullGcEvery;
 
     public GarbageCollector(DeletableContentAddressedStorage storage,
                             JdbcIpnsAndSocial pointers,
@@ -45,6 +59,19 @@ public class GarbageCollector {
                             TriFunction<Long, Long, Long, CompletableFuture<Boolean>> deleteConfirm,
                             Function<String, CompletableFuture<Boolean>> deleteUserConfirm,
                             boolean listRawFromBlockstore) {
+        this(storage, pointers, usage, core, reachabilityDbDir, deleteConfirm, deleteUserConfirm, listRawFromBlockstore, Engine.SQLITE, 0);
+    }
+
+    public GarbageCollector(DeletableContentAddressedStorage storage,
+                            JdbcIpnsAndSocial pointers,
+                            UsageStore usage,
+                            CoreNode core,
+                            Path reachabilityDbDir,
+                            TriFunction<Long, Long, Long, CompletableFuture<Boolean>> deleteConfirm,
+                            Function<String, CompletableFuture<Boolean>> deleteUserConfirm,
+                            boolean listRawFromBlockstore,
+                            Engine engine,
+                            int fullGcEvery) {
         this.storage = storage;
         this.pointers = pointers;
         this.usage = usage;
@@ -53,11 +80,18 @@ public class GarbageCollector {
         this.deleteConfirm = deleteConfirm;
         this.deleteUserConfirm = deleteUserConfirm;
         this.listRawFromBlockstore = listRawFromBlockstore;
+        this.engine = engine;
+        this.fullGcEvery = fullGcEvery;
         this.metadata = storage.getBlockMetadataStore().orElseGet(RamBlockMetadataStore::new);
     }
 
-    public synchronized void collect(Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver) {
-        collect(storage, pointers, usage, core, reachabilityDbDir, snapshotSaver, metadata, deleteConfirm, deleteUserConfirm, listRawFromBlockstore);
+    public void collect(Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver) {
+        collect(snapshotSaver, engine);
+    }
+
+    public synchronized void collect(Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver,
+                                     Engine engine) {
+        collect(storage, pointers, usage, core, reachabilityDbDir, snapshotSaver, metadata, deleteConfirm, deleteUserConfirm, listRawFromBlockstore, engine, fullGcEvery);
     }
 
     public void stop() {
@@ -94,17 +128,21 @@ public class GarbageCollector {
                                    DeletableContentAddressedStorage storage,
                                    BlockMetadataStore metadata) {
         // the reachability store dedupes on cid + version to guarantee no duplicates which would result in data loss
+        listBlocks(owner, listFromBlockstore, storage, metadata, versions -> reachability.addBlocks(versions.stream()
+                .filter(v ->  !inRdb.has(v))
+                .toList()));
+    }
+
+    private static void listBlocks(PublicKeyHash owner,
+                                   boolean listFromBlockstore,
+                                   DeletableContentAddressedStorage storage,
+                                   BlockMetadataStore metadata,
+                                   Consumer<List<BlockVersion>> res) {
         if (listFromBlockstore)
-            storage.getAllBlockHashVersions(owner, versions -> reachability.addBlocks(versions.stream()
-                    .filter(v ->  !inRdb.has(v))
-                    .toList()));
+            storage.getAllBlockHashVersions(owner, res);
         else {
-            storage.getAllRawBlockVersions(owner, versions -> reachability.addBlocks(versions.stream()
-                    .filter(v ->  !inRdb.has(v))
-                    .toList()));
-            metadata.listCbor(owner, versions -> reachability.addBlocks(versions.stream()
-                    .filter(v ->  !inRdb.has(v))
-                    .toList()));
+            storage.getAllRawBlockVersions(owner, res);
+            metadata.listCbor(owner, res);
         }
     }
 
@@ -380,6 +418,28 @@ public class GarbageCollector {
                                TriFunction<Long, Long, Long, CompletableFuture<Boolean>> deleteConfirm,
                                Function<String, CompletableFuture<Boolean>> deleteUserConfirm,
                                boolean listFromBlockstore) {
+        collect(storage, pointers, usage, core, reachabilityDbDir, snapshotSaver, metadata, deleteConfirm,
+                deleteUserConfirm, listFromBlockstore, Engine.SQLITE, 0);
+    }
+
+    /**
+     * @param fullGcEvery If positive, a user's GC will only walk the parts of their trees which changed since the
+     *                    last GC, doing a full mark every fullGcEvery runs. This only applies to the sqlite engine,
+     *                    and requires an unversioned blockstore, as blocks written after a listing are recorded with
+     *                    a null version.
+     */
+    public static void collect(DeletableContentAddressedStorage storage,
+                               JdbcIpnsAndSocial pointers,
+                               UsageStore usage,
+                               CoreNode core,
+                               Path reachabilityDbDir,
+                               Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver,
+                               BlockMetadataStore metadata,
+                               TriFunction<Long, Long, Long, CompletableFuture<Boolean>> deleteConfirm,
+                               Function<String, CompletableFuture<Boolean>> deleteUserConfirm,
+                               boolean listFromBlockstore,
+                               Engine engine,
+                               int fullGcEvery) {
         long ts0 = System.currentTimeMillis();
         LOG.info("Starting blockstore garbage collection on node " + storage.id().join() + "...");
         List<Pair<String, PublicKeyHash>> allUsers = usage.getAllOwners()
@@ -395,7 +455,6 @@ public class GarbageCollector {
             PublicKeyHash owner = p.right;
             String username = p.left;
 
-            // TODO: do GC in O(1) RAM with a bloom filter?: mark into bloom. Then list and check bloom to delete.
             storage.clearOldTransactions(owner, System.currentTimeMillis() - 24*3600*1000L);
             long t0 = System.nanoTime();
             Path reachabilityDbFile = reachabilityDbDir.resolve("reachability")
@@ -404,6 +463,8 @@ public class GarbageCollector {
             Path snapshotFile = reachabilityDbDir.resolve("pointer-snapshots")
                     .resolve(username + ".cbor");
             snapshotFile.getParent().toFile().mkdirs();
+            Path incrementalRunsFile = snapshotFile.resolveSibling(username + ".incremental");
+            boolean incremental = engine == Engine.SQLITE && fullGcEvery > 0;
             // load snapshot
             if (snapshotFile.toFile().exists()) {
                 try {
@@ -418,11 +479,20 @@ public class GarbageCollector {
                     if (loaded.equals(initialUsageRoots)) {
                         continue;
                     }
+                    if (incremental && collectIncrementally(owner, username, loaded, storage, pointers, usage,
+                            reachabilityDbFile, snapshotFile, incrementalRunsFile, fullGcEvery, snapshotSaver, metadata, deleteConfirm))
+                        continue;
                 } catch (IOException e) {
                     LOG.log(Level.WARNING, e, e::getMessage);
                 }
             }
             LOG.info("Starting GC for " + username);
+            // a full GC invalidates any incremental state until it completes
+            incrementalRunsFile.toFile().delete();
+            if (engine == Engine.BLOOM) {
+                collectWithBloom(owner, username, storage, pointers, usage, snapshotFile, snapshotSaver, metadata, deleteConfirm, listFromBlockstore);
+                continue;
+            }
             SqliteBlockReachability reachability = SqliteBlockReachability.createReachabilityDb(reachabilityDbFile);
             // First build a bloom (infini) filter of the block versions in RDB
             // then use this to efficiently filter the blockstore listing
@@ -458,7 +528,7 @@ public class GarbageCollector {
             ForkJoinPool markPool = Threads.newFJPool(markParallelism, "GC-mark-");
             AtomicLong totalReachable = new AtomicLong(0);
             List<ForkJoinTask<Boolean>> usageMarked = usageRoots.stream()
-                    .map(r -> markPool.submit(() -> markReachable(owner, storage, (Cid) r.left, r.middle, reachability, metadata, totalReachable)))
+                    .map(r -> markPool.submit(() -> markReachable(owner, storage, (Cid) r.left, r.middle, reachability, metadata, totalReachable, incremental)))
                     .collect(Collectors.toList());
             usageMarked.forEach(f -> f.join());
             long t4 = System.nanoTime();
@@ -468,7 +538,7 @@ public class GarbageCollector {
             Set<Multihash> fromUsage = new HashSet<>(usageRoots.size());
             fromUsage.addAll(usageRoots.stream().map(r -> r.left).collect(Collectors.toSet()));
             List<ForkJoinTask<Boolean>> marked = allPointers.entrySet().stream()
-                    .map(e -> markPool.submit(() -> markReachable(owner, e.getKey(), e.getValue(), reachability, storage, usage, fromUsage, metadata, totalReachable)))
+                    .map(e -> markPool.submit(() -> markReachable(owner, e.getKey(), e.getValue(), reachability, storage, usage, fromUsage, metadata, totalReachable, incremental)))
                     .collect(Collectors.toList());
             long rootsProcessed = marked.stream().filter(ForkJoinTask::join).count();
             markPool.shutdown();
@@ -501,7 +571,10 @@ public class GarbageCollector {
             AtomicLong progressCounter = new AtomicLong(0);
             List<ForkJoinTask<Pair<Long, Long>>> futures = new ArrayList<>();
             reachability.getUnreachable(toDel -> futures.add(pool.submit(() ->
-                    deleteUnreachableBlocks(owner, toDel, progressCounter, cborDelCount.get() + rawDelCount.get(), storage, metadata, reachability))));
+                    deleteUnreachableBlocks(owner, toDel, progressCounter, cborDelCount.get() + rawDelCount.get(), storage, v -> {
+                        metadata.remove(v.cid);
+                        reachability.removeBlock(v);
+                    }))));
             Pair<Long, Long> deleted = futures.stream()
                     .map(ForkJoinTask::join)
                     .reduce((a, b) -> new Pair<>(a.left + b.left, a.right + b.right))
@@ -516,17 +589,9 @@ public class GarbageCollector {
             if (cborDelCount.get() + rawDelCount.get() > 0) {
                 LOG.info("Deleting blocks took " + (t8 - t7) / 1_000_000_000 + "s");
             }
-            // save snapshot to file
-            Map<PublicKeyHash, Multihash> allPointerTargets = allPointers.entrySet()
-                    .stream()
-                    .flatMap(e -> parsePointerTarget(owner, e.getKey(), e.getValue(), storage).map(m -> Map.entry(e.getKey(), m)).stream())
-                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
-            PointerSnapshot gcedVersion = new PointerSnapshot(allPointerTargets);
-            try {
-                Files.write(snapshotFile, gcedVersion.serialize(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-            } catch (IOException e) {
-                LOG.log(Level.WARNING, e, e::getMessage);
-            }
+            savePointerSnapshot(owner, allPointers, snapshotFile, storage);
+            if (incremental)
+                saveIncrementalRuns(incrementalRunsFile, 0);
             LOG.info("GC complete. Freed " + deletedCborBlocks + " cbor blocks and " + deletedRawBlocks +
                     " raw blocks, total duration: " + (t8 - t7 + t6 - t0) / 1_000_000_000 + "s, metadata.compact took " + (t9 - t8) / 1_000_000_000 + "s");
         }
@@ -534,6 +599,474 @@ public class GarbageCollector {
         LOG.info("Finished complete GC in " + (ts1 - ts0)/1_000 + "s");
     }
 
+    private static void saveIncrementalRuns(Path file, int runs) {
+        try {
+            Files.write(file, Integer.toString(runs).getBytes(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, e, e::getMessage);
+        }
+    }
+
+    /** Collect the blocks which left a user's trees since the last GC, using the reachability db from that GC.
+     *
+     *  For each writer whose root changed we diff the old and new trees in lockstep, only descending into links
+     *  which differ, so the cost is proportional to the changed paths rather than the whole tree. Blocks which are
+     *  only under the old side are candidates for deletion, unless they are also under the new side, or have a
+     *  recorded parent that was reachable in the last GC and isn't itself a candidate (e.g. a block shared with an
+     *  unchanged tree), in which case they and their candidate descendants are kept.
+     *
+     * @return false if a full GC is needed instead
+     */
+    private static boolean collectIncrementally(PublicKeyHash owner,
+                                                String username,
+                                                PointerSnapshot previous,
+                                                DeletableContentAddressedStorage storage,
+                                                JdbcIpnsAndSocial pointers,
+                                                UsageStore usage,
+                                                Path reachabilityDbFile,
+                                                Path snapshotFile,
+                                                Path incrementalRunsFile,
+                                                int fullGcEvery,
+                                                Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver,
+                                                BlockMetadataStore metadata,
+                                                TriFunction<Long, Long, Long, CompletableFuture<Boolean>> deleteConfirm) throws IOException {
+        if (! reachabilityDbFile.toFile().exists() || ! incrementalRunsFile.toFile().exists())
+            return false;
+        int runs = Integer.parseInt(new String(Files.readAllBytes(incrementalRunsFile)).trim());
+        if (runs + 1 >= fullGcEvery)
+            return false;
+        long t0 = System.nanoTime();
+
+        // This pending call must happen BEFORE the pointers call for correctness
+        List<Cid> pending = storage.getOpenTransactionBlocks(owner);
+        Set<PublicKeyHash> writers = usage.getAllWriters(username);
+        Map<PublicKeyHash, byte[]> allPointers = writers.stream()
+                .flatMap(w -> pointers.getPointer(w).join()
+                        .map(d -> Map.entry(w, d)).stream())
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        Map<PublicKeyHash, Cid> targets = allPointers.entrySet().stream()
+                .flatMap(e -> parsePointerTarget(owner, e.getKey(), e.getValue(), storage).toOptional()
+                        .map(m -> Map.entry(e.getKey(), (Cid) m)).stream())
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        // A usage root that isn't a current pointer target must keep its whole tree, which needs a full mark
+        boolean usageUpToDate = usage.getAllTargets(username).stream()
+                .allMatch(r -> targets.containsValue((Cid) r.left));
+        if (! usageUpToDate) {
+            LOG.info("Usage roots are not up to date for " + username + ", doing a full GC");
+            return false;
+        }
+
+        LOG.info("Starting incremental GC for " + username);
+        SqliteBlockReachability reachability = SqliteBlockReachability.createReachabilityDb(reachabilityDbFile);
+        Function<Cid, List<Cid>> links = b -> getLinksRecording(owner, b, reachability, metadata, storage);
+        Set<Cid> removedNodes = new HashSet<>();
+        Set<Cid> added = new HashSet<>();
+        Set<Cid> candidates = new HashSet<>();
+        try {
+            Set<Cid> removedSubtrees = new HashSet<>();
+            Set<Cid> addedSubtrees = new HashSet<>();
+            Set<PublicKeyHash> allWriters = new HashSet<>(previous.roots.keySet());
+            allWriters.addAll(targets.keySet());
+            for (PublicKeyHash writer : allWriters) {
+                Optional<Cid> before = Optional.ofNullable((Cid) previous.roots.get(writer));
+                Optional<Cid> after = Optional.ofNullable(targets.get(writer));
+                if (before.equals(after))
+                    continue;
+                if (before.isPresent() && after.isPresent())
+                    diffTrees(before.get(), after.get(), links, removedNodes, removedSubtrees, added, addedSubtrees);
+                else if (before.isPresent())
+                    removedSubtrees.add(before.get());
+                else
+                    addedSubtrees.add(after.get());
+            }
+            for (Cid root : addedSubtrees)
+                markAdded(root, added, links, reachability);
+            added.addAll(targets.values());
+            added.addAll(pending);
+
+            removedNodes.stream()
+                    .filter(b -> ! added.contains(b))
+                    .forEach(candidates::add);
+            for (Cid root : removedSubtrees)
+                collectRemoved(root, added, candidates, links);
+
+            // Keep candidates which are still referenced from outside the changed parts, and everything below them
+            Deque<Cid> toKeep = candidates.stream()
+                    .filter(b -> reachability.hasReachableParent(b, candidates))
+                    .collect(Collectors.toCollection(ArrayDeque::new));
+            Set<Cid> kept = new HashSet<>();
+            while (! toKeep.isEmpty()) {
+                Cid next = toKeep.poll();
+                if (! kept.add(next))
+                    continue;
+                for (Cid link : links.apply(next))
+                    if (candidates.contains(link) && ! kept.contains(link))
+                        toKeep.add(link);
+            }
+            candidates.removeAll(kept);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Error diffing trees for " + username + ", doing a full GC", e);
+            return false;
+        }
+
+        reachability.addUnlisted(new ArrayList<>(added));
+        AtomicLong totalReachable = new AtomicLong(0);
+        reachability.setReachable(new ArrayList<>(added), totalReachable);
+        long t1 = System.nanoTime();
+        LOG.info("Diffing " + removedNodes.size() + " changed blocks and marking " + totalReachable.get() + " new blocks took " + (t1 - t0) / 1_000_000_000 + "s");
+
+        snapshotSaver.apply(allPointers.entrySet().stream()).join();
+
+        List<BlockVersion> garbage = candidates.stream()
+                .flatMap(b -> reachability.getVersions(b).stream())
+                .toList();
+        long cborDelCount = garbage.stream().filter(v -> ! v.cid.isRaw()).count();
+        long rawDelCount = garbage.size() - cborDelCount;
+        boolean delete = deleteConfirm.apply(cborDelCount, rawDelCount, reachability.size()).join();
+        if (! delete)
+            return true;
+
+        int deleteParallelism = 4;
+        ForkJoinPool pool = Threads.newFJPool(deleteParallelism, "GC-delete-");
+        AtomicLong progressCounter = new AtomicLong(0);
+        int batchSize = 1000;
+        List<ForkJoinTask<Pair<Long, Long>>> futures = new ArrayList<>();
+        for (int i = 0; i < garbage.size(); i += batchSize) {
+            List<BlockVersion> toDel = garbage.subList(i, Math.min(garbage.size(), i + batchSize));
+            futures.add(pool.submit(() -> deleteUnreachableBlocks(owner, toDel, progressCounter, garbage.size(), storage, v -> {
+                metadata.remove(v.cid);
+                reachability.removeBlock(v);
+            })));
+        }
+        Pair<Long, Long> deleted = futures.stream()
+                .map(ForkJoinTask::join)
+                .reduce((a, b) -> new Pair<>(a.left + b.left, a.right + b.right))
+                .orElse(new Pair<>(0L, 0L));
+        pool.shutdown();
+        long t2 = System.nanoTime();
+
+        savePointerSnapshot(owner, allPointers, snapshotFile, storage);
+        saveIncrementalRuns(incrementalRunsFile, runs + 1);
+        LOG.info("Incremental GC complete. Freed " + deleted.left + " cbor blocks and " + deleted.right +
+                " raw blocks, total duration: " + (t2 - t0) / 1_000_000_000 + "s");
+        return true;
+    }
+
+    private static List<Cid> getLinksRecording(PublicKeyHash owner,
+                                               Cid block,
+                                               SqliteBlockReachability reachability,
+                                               BlockMetadataStore metadata,
+                                               DeletableContentAddressedStorage storage) {
+        if (block.isRaw())
+            return Collections.emptyList();
+        Optional<List<Cid>> fromRdb = reachability.getLinks(block);
+        if (fromRdb.isPresent())
+            return fromRdb.get();
+        List<Cid> links = metadata.get(block).map(m -> m.links)
+                .orElseGet(() -> getWithBackoff(() -> storage.getLinks(owner, block, Arrays.asList(storage.id().join())).join()));
+        reachability.setLinksOfUnlisted(block, links);
+        return links;
+    }
+
+    /** Walk two versions of a tree in lockstep. Links common to both sides are identical subtrees and are skipped.
+     *  Where the differing links pair up one to one we recurse into each pair, otherwise the differing links are
+     *  whole removed or added subtrees.
+     */
+    private static void diffTrees(Cid before,
+                                  Cid after,
+                                  Function<Cid, List<Cid>> links,
+                                  Set<Cid> removedNodes,
+                                  Set<Cid> removedSubtrees,
+                                  Set<Cid> addedNodes,
+                                  Set<Cid> addedSubtrees) {
+        if (before.equals(after))
+            return;
+        removedNodes.add(before);
+        addedNodes.add(after);
+        List<Cid> beforeLinks = links.apply(before);
+        List<Cid> afterLinks = links.apply(after);
+        Set<Cid> beforeSet = new HashSet<>(beforeLinks);
+        Set<Cid> afterSet = new HashSet<>(afterLinks);
+        // the new node's unchanged links are referenced from a block that isn't recorded in the db yet
+        afterLinks.stream()
+                .filter(beforeSet::contains)
+                .forEach(addedNodes::add);
+        List<Cid> removed = beforeLinks.stream().filter(l -> ! afterSet.contains(l)).distinct().toList();
+        List<Cid> added = afterLinks.stream().filter(l -> ! beforeSet.contains(l)).distinct().toList();
+        if (removed.size() == added.size()) {
+            for (int i=0; i < removed.size(); i++)
+                diffTrees(removed.get(i), added.get(i), links, removedNodes, removedSubtrees, addedNodes, addedSubtrees);
+        } else {
+            removedSubtrees.addAll(removed);
+            addedSubtrees.addAll(added);
+        }
+    }
+
+    /** Add a new subtree, stopping at blocks that were reachable in the last GC and whose links are recorded, as
+     *  their descendants are protected by their recorded links.
+     */
+    private static void markAdded(Cid block,
+                                  Set<Cid> added,
+                                  Function<Cid, List<Cid>> links,
+                                  SqliteBlockReachability reachability) {
+        if (! added.add(block))
+            return;
+        if (reachability.isReachable(block) && (block.isRaw() || reachability.getLinks(block).isPresent()))
+            return;
+        for (Cid link : links.apply(block))
+            markAdded(link, added, links, reachability);
+    }
+
+    private static void collectRemoved(Cid block,
+                                       Set<Cid> added,
+                                       Set<Cid> candidates,
+                                       Function<Cid, List<Cid>> links) {
+        if (added.contains(block) || ! candidates.add(block))
+            return;
+        for (Cid link : links.apply(block))
+            collectRemoved(link, added, candidates, links);
+    }
+
+    private static void savePointerSnapshot(PublicKeyHash owner,
+                                            Map<PublicKeyHash, byte[]> allPointers,
+                                            Path snapshotFile,
+                                            DeletableContentAddressedStorage storage) {
+        Map<PublicKeyHash, Multihash> allPointerTargets = allPointers.entrySet()
+                .stream()
+                .flatMap(e -> parsePointerTarget(owner, e.getKey(), e.getValue(), storage).map(m -> Map.entry(e.getKey(), m)).stream())
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        PointerSnapshot gcedVersion = new PointerSnapshot(allPointerTargets);
+        try {
+            Files.write(snapshotFile, gcedVersion.serialize(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, e, e::getMessage);
+        }
+    }
+
+    /** Mark all blocks reachable from the user's current roots into a bloom (infini) filter, then stream the block
+     *  listing against it. RAM usage is a few bytes per reachable block and nothing is written to disk.
+     *
+     *  Unlike the reachability db we mark before listing, so a block written after marking could appear in the
+     *  listing without being marked. To stay safe every batch of deletions is re-checked against the current pending
+     *  transaction blocks and roots (in that order), marking from any new root first. A writer's new root is diffed
+     *  against the root last marked for it, like the incremental GC, so only the changed paths are walked again.
+     *  False positives in the filter only ever cause garbage to be retained until a later GC.
+     */
+    private static void collectWithBloom(PublicKeyHash owner,
+                                         String username,
+                                         DeletableContentAddressedStorage storage,
+                                         JdbcIpnsAndSocial pointers,
+                                         UsageStore usage,
+                                         Path snapshotFile,
+                                         Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver,
+                                         BlockMetadataStore metadata,
+                                         TriFunction<Long, Long, Long, CompletableFuture<Boolean>> deleteConfirm,
+                                         boolean listFromBlockstore) {
+        long t0 = System.nanoTime();
+        CidInfiniFilter reachable = CidInfiniFilter.build(metadata.size(owner), 0.0001);
+        Set<Multihash> markedRoots = ConcurrentHashMap.newKeySet();
+        Map<PublicKeyHash, Cid> markedTargets = new HashMap<>();
+        AtomicLong totalReachable = new AtomicLong(0);
+        Optional<Map<PublicKeyHash, byte[]>> marked = markCurrentRoots(owner, username, storage, pointers, usage,
+                metadata, reachable, markedRoots, markedTargets, totalReachable);
+        if (marked.isEmpty()) {
+            LOG.warning("Aborting GC for " + username + " due to errors marking reachable blocks");
+            return;
+        }
+        Map<PublicKeyHash, byte[]> allPointers = marked.get();
+        long t1 = System.nanoTime();
+        LOG.info("Marking " + totalReachable.get() + " reachable from " + markedRoots.size() + " roots took " + (t1 - t0) / 1_000_000_000 + "s");
+
+        snapshotSaver.apply(allPointers.entrySet().stream()).join();
+
+        AtomicLong nBlocks = new AtomicLong(0);
+        AtomicLong cborDelCount = new AtomicLong(0);
+        AtomicLong rawDelCount = new AtomicLong(0);
+        listBlocks(owner, listFromBlockstore, storage, metadata, versions -> {
+            nBlocks.addAndGet(versions.size());
+            for (BlockVersion v : versions) {
+                if (isGarbage(v, reachable)) {
+                    if (v.cid.isRaw())
+                        rawDelCount.incrementAndGet();
+                    else
+                        cborDelCount.incrementAndGet();
+                }
+            }
+        });
+        long t2 = System.nanoTime();
+        LOG.info("Listing " + nBlocks.get() + " blocks took " + (t2 - t1) / 1_000_000_000 + "s");
+        boolean delete = deleteConfirm.apply(cborDelCount.get(), rawDelCount.get(), nBlocks.get()).join();
+        if (! delete)
+            return;
+
+        int deleteParallelism = 4;
+        ForkJoinPool pool = Threads.newFJPool(deleteParallelism, "GC-delete-");
+        AtomicLong progressCounter = new AtomicLong(0);
+        AtomicBoolean markFailed = new AtomicBoolean(false);
+        // listings can call back from multiple threads
+        List<ForkJoinTask<Pair<Long, Long>>> futures = Collections.synchronizedList(new ArrayList<>());
+        Object recheckLock = new Object();
+        listBlocks(owner, listFromBlockstore, storage, metadata, versions -> {
+            List<BlockVersion> candidates = versions.stream()
+                    .filter(v -> isGarbage(v, reachable))
+                    .toList();
+            if (candidates.isEmpty())
+                return;
+            List<BlockVersion> toDel;
+            synchronized (recheckLock) {
+                if (markFailed.get())
+                    return;
+                if (markCurrentRoots(owner, username, storage, pointers, usage, metadata, reachable, markedRoots,
+                        markedTargets, totalReachable).isEmpty()) {
+                    markFailed.set(true);
+                    return;
+                }
+                toDel = candidates.stream()
+                        .filter(v -> isGarbage(v, reachable))
+                        .toList();
+            }
+            futures.add(pool.submit(() ->
+                    deleteUnreachableBlocks(owner, toDel, progressCounter, cborDelCount.get() + rawDelCount.get(), storage, v -> {
+                        // an old version of a reachable block shares its metadata with the latest version
+                        if (! reachable.has(v.cid))
+                            metadata.remove(v.cid);
+                    })));
+        });
+        Pair<Long, Long> deleted = futures.stream()
+                .map(ForkJoinTask::join)
+                .reduce((a, b) -> new Pair<>(a.left + b.left, a.right + b.right))
+                .orElse(new Pair<>(0L, 0L));
+        pool.shutdown();
+        long t3 = System.nanoTime();
+        if (markFailed.get()) {
+            LOG.warning("Stopped GC for " + username + " due to errors marking reachable blocks");
+            return;
+        }
+        metadata.compact();
+        savePointerSnapshot(owner, allPointers, snapshotFile, storage);
+        LOG.info("GC complete. Freed " + deleted.left + " cbor blocks and " + deleted.right +
+                " raw blocks, total duration: " + (t3 - t0) / 1_000_000_000 + "s");
+    }
+
+    /** Only the latest version of a reachable block is kept */
+    private static boolean isGarbage(BlockVersion v, CidInfiniFilter reachable) {
+        return ! v.isLatest || ! reachable.has(v.cid);
+    }
+
+    /** Mark everything reachable from pending transaction blocks, usage roots and pointer targets that haven't
+     *  already been marked in this GC run. A writer whose target changed since it was last marked only has the
+     *  difference between the two trees marked, as everything under the old target is already in the filter.
+     *
+     * @return the current pointers, or empty if any root couldn't be marked
+     */
+    private static Optional<Map<PublicKeyHash, byte[]>> markCurrentRoots(PublicKeyHash owner,
+                                                                         String username,
+                                                                         DeletableContentAddressedStorage storage,
+                                                                         JdbcIpnsAndSocial pointers,
+                                                                         UsageStore usage,
+                                                                         BlockMetadataStore metadata,
+                                                                         CidInfiniFilter reachable,
+                                                                         Set<Multihash> markedRoots,
+                                                                         Map<PublicKeyHash, Cid> markedTargets,
+                                                                         AtomicLong totalReachable) {
+        // The pending listing must happen BEFORE the pointers call for correctness
+        storage.getOpenTransactionBlocks(owner).forEach(reachable::add);
+
+        Set<PublicKeyHash> writers = usage.getAllWriters(username);
+        Map<PublicKeyHash, byte[]> allPointers = writers.stream()
+                .flatMap(w -> pointers.getPointer(w).join()
+                        .map(d -> Map.entry(w, d)).stream())
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        Map<PublicKeyHash, Cid> targets = allPointers.entrySet().stream()
+                .flatMap(e -> parsePointerTarget(owner, e.getKey(), e.getValue(), storage).toOptional()
+                        .map(m -> Map.entry(e.getKey(), (Cid) m)).stream())
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+
+        Set<Cid> addedNodes = new HashSet<>();
+        Set<Cid> addedSubtrees = new HashSet<>();
+        try {
+            Function<Cid, List<Cid>> links = b -> getLinks(owner, b, metadata, storage);
+            Set<Cid> removedNodes = new HashSet<>();
+            Set<Cid> removedSubtrees = new HashSet<>();
+            for (Map.Entry<PublicKeyHash, Cid> e : targets.entrySet()) {
+                Cid before = markedTargets.get(e.getKey());
+                if (before != null && ! markedRoots.contains(e.getValue()))
+                    diffTrees(before, e.getValue(), links, removedNodes, removedSubtrees, addedNodes, addedSubtrees);
+            }
+        } catch (Exception e) {
+            LOG.info("Error processing user " + username + " " + e.getMessage());
+            LOG.log(Level.SEVERE, e, e::getMessage);
+            return Optional.empty();
+        }
+        // the nodes on changed paths, whose unchanged links are already marked
+        for (Cid node : addedNodes) {
+            reachable.add(node);
+            totalReachable.incrementAndGet();
+        }
+
+        // Get the current roots from the usage store which shouldn't be GC'd until usage has been updated
+        List<Cid> roots = Stream.of(
+                        usage.getAllTargets(username).stream().map(r -> (Cid) r.left),
+                        targets.entrySet().stream()
+                                .filter(e -> ! markedTargets.containsKey(e.getKey()))
+                                .map(Map.Entry::getValue),
+                        addedSubtrees.stream())
+                .flatMap(x -> x)
+                .distinct()
+                .filter(r -> ! markedRoots.contains(r))
+                .toList();
+        if (! roots.isEmpty()) {
+            int markParallelism = 10;
+            ForkJoinPool markPool = Threads.newFJPool(markParallelism, "GC-mark-");
+            List<ForkJoinTask<Boolean>> marked = roots.stream()
+                    .map(r -> markPool.submit(() -> markReachable(owner, storage, r, username, reachable, metadata, totalReachable)))
+                    .toList();
+            boolean success = marked.stream().allMatch(ForkJoinTask::join);
+            markPool.shutdown();
+            if (! success)
+                return Optional.empty();
+            markedRoots.addAll(roots);
+        }
+        markedRoots.addAll(targets.values());
+        markedTargets.putAll(targets);
+        return Optional.of(allPointers);
+    }
+
+    private static List<Cid> getLinks(PublicKeyHash owner,
+                                      Cid block,
+                                      BlockMetadataStore metadata,
+                                      DeletableContentAddressedStorage storage) {
+        if (block.isRaw())
+            return Collections.emptyList();
+        return metadata.get(block).map(m -> m.links)
+                .orElseGet(() -> getWithBackoff(() -> storage.getLinks(owner, block, Arrays.asList(storage.id().join())).join()));
+    }
+
+    private static boolean markReachable(PublicKeyHash owner,
+                                         DeletableContentAddressedStorage storage,
+                                         Cid block,
+                                         String username,
+                                         CidInfiniFilter reachable,
+                                         BlockMetadataStore metadata,
+                                         AtomicLong totalReachable) {
+        // We can't prune at blocks already in the filter, because a false positive would leave its subtree unmarked
+        reachable.add(block);
+        totalReachable.incrementAndGet();
+        if (block.isRaw())
+            return true;
+        try {
+            for (Cid link : getLinks(owner, block, metadata, storage)) {
+                if (! markReachable(owner, storage, link, username, reachable, metadata, totalReachable))
+                    return false;
+            }
+            return true;
+        } catch (Exception e) {
+            LOG.info("Error processing user " + username + " " + e.getMessage());
+            LOG.log(Level.SEVERE, e, e::getMessage);
+            return false;
+        }
+    }
+
     private static MaybeMultihash parsePointerTarget(PublicKeyHash owner,
                                                      PublicKeyHash writerHash,
                                                      byte[] signedRawCas,
@@ -552,11 +1085,12 @@ public class GarbageCollector {
                                          UsageStore usage,
                                          Set<Multihash> done,
                                          BlockMetadataStore metadata,
-                                         AtomicLong totalReachable) {
+                                         AtomicLong totalReachable,
+                                         boolean recordUnlisted) {
         try {
             MaybeMultihash updated = parsePointerTarget(owner, writerHash, signedRawCas, storage);
             if (updated.isPresent() && !done.contains(updated.get())) {
-                markReachable(owner, storage, true, new ArrayList<>(1000), (Cid) updated.get(), reachability, metadata, () -> getUsername(writerHash, usage), totalReachable);
+                markReachable(owner, storage, true, new ArrayList<>(1000), (Cid) updated.get(), reachability, metadata, () -> getUsername(writerHash, usage), totalReachable, recordUnlisted);
                 return true;
             }
             return false;
@@ -580,15 +1114,13 @@ public class GarbageCollector {
                                                             AtomicLong progress,
                                                             long totalBlocksToDelete,
                                                             DeletableContentAddressedStorage storage,
-                                                            BlockMetadataStore metadata,
-                                                            SqliteBlockReachability reachability) {
+                                                            Consumer<BlockVersion> onDelete) {
         if (toDelete.isEmpty())
             return new Pair<>(0L, 0L);
         long deletedCborBlocks = toDelete.stream().filter(v -> ! v.cid.isRaw()).count();
         long deletedRawBlocks = toDelete.size() - deletedCborBlocks;
         for (BlockVersion block : toDelete) {
-            metadata.remove(block.cid);
-            reachability.removeBlock(block);
+            onDelete.accept(block);
         }
         getWithBackoff(() -> {storage.bulkDelete(owner, toDelete); return true;});
 
@@ -607,7 +1139,18 @@ public class GarbageCollector {
                                         SqliteBlockReachability reachability,
                                         BlockMetadataStore metadata,
                                         AtomicLong totalReachable) {
-        return markReachable(owner, storage, true, new ArrayList<>(1000), root, reachability, metadata, () -> username, totalReachable);
+        return markReachable(owner, storage, root, username, reachability, metadata, totalReachable, false);
+    }
+
+    public static boolean markReachable(PublicKeyHash owner,
+                                        DeletableContentAddressedStorage storage,
+                                        Cid root,
+                                        String username,
+                                        SqliteBlockReachability reachability,
+                                        BlockMetadataStore metadata,
+                                        AtomicLong totalReachable,
+                                        boolean recordUnlisted) {
+        return markReachable(owner, storage, true, new ArrayList<>(1000), root, reachability, metadata, () -> username, totalReachable, recordUnlisted);
     }
 
     private static boolean markReachable(PublicKeyHash owner,
@@ -618,7 +1161,8 @@ public class GarbageCollector {
                                          SqliteBlockReachability reachability,
                                          BlockMetadataStore metadata,
                                          Supplier<String> username,
-                                         AtomicLong totalReachable) {
+                                         AtomicLong totalReachable,
+                                         boolean recordUnlisted) {
         if (isRoot)
             queue.add(block);
 
@@ -632,7 +1176,10 @@ public class GarbageCollector {
 
             if (fromRdb.isEmpty() && ! block.isRaw()) {
                 try {
-                    reachability.setLinks(block, newLinks);
+                    if (recordUnlisted)
+                        reachability.setLinksOfUnlisted(block, newLinks);
+                    else
+                        reachability.setLinks(block, newLinks);
                 } catch (Exception e) {
                     // Can hit this for new blocks that are not in the block
                     // list in the db and thus don't have an index
@@ -644,7 +1191,7 @@ public class GarbageCollector {
                 queue.clear();
             }
             for (Cid link : newLinks) {
-                markReachable(owner, storage, false, queue, link, reachability, metadata, username, totalReachable);
+                markReachable(owner, storage, false, queue, link, reachability, metadata, username, totalReachable, recordUnlisted);
             }
         } catch (Exception e) {
             LOG.info("Error processing user " + username.get() + " " + e.getMessage());
@@ -19,6 +19,7 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
     private static final String GET_INFO = "SELECT * FROM blockmetadata WHERE cid = ?;";
     private static final String GET_OWNER = "SELECT owner FROM blockmetadata WHERE cid = ?;";
     private static final String REMOVE = "DELETE FROM blockmetadata where cid = ?;";
+    private static final String REMOVE_SUBTREE_SIZE = "DELETE FROM subtreesizes where cid = ?;";
     public static final int PAGE_LIMIT = 100_000;
     private static final int INSERT_COLUMNS = 6;
     // keep the bound parameter count per statement well below sqlite's limit of 32766
@@ -61,6 +62,7 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
     private synchronized void init(SqlSupplier commands) {
         try (Connection conn = getConnection()) {
             commands.createTable(commands.createBlockMetadataStoreTableCommand(), conn);
+            commands.createTable(commands.createSubtreeSizesTableCommand(), conn);
             try { // sqlite doesn't have an "if not exists" modifier on "add column"
                 commands.createTable(commands.ensureColumnExistsCommand("blockmetadata", "owner", commands.getByteArrayType() + " DEFAULT null"), conn);
             } catch (SQLException f) {
@@ -87,10 +89,15 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
 
     public void remove(Cid block) {
         try (Connection conn = getConnection();
-             PreparedStatement insert = conn.prepareStatement(REMOVE)) {
+             PreparedStatement insert = conn.prepareStatement(REMOVE);
+             PreparedStatement subtree = conn.prepareStatement(REMOVE_SUBTREE_SIZE)) {
 
             insert.setBytes(1, block.toBytes());
             insert.executeUpdate();
+            if (! block.isRaw()) {
+                subtree.setBytes(1, block.toBytes());
+                subtree.executeUpdate();
+            }
         } catch (SQLException sqe) {
             LOG.log(Level.WARNING, sqe.getMessage(), sqe);
             throw new RuntimeException(sqe);
@@ -183,6 +190,49 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
         }
     }
 
+    @Override
+    public Map<Cid, Long> getSubtreeSizes(List<Cid> roots) {
+        if (roots.isEmpty())
+            return Collections.emptyMap();
+
+        String placeholders = roots.stream()
+                .map(b -> "?")
+                .collect(Collectors.joining(","));
+
+        String sql = "SELECT cid, size FROM subtreesizes WHERE cid IN (" + placeholders + ");";
+
+        try (Connection conn = getConnection(false, false);
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            for (int i = 0; i < roots.size(); i++) {
+                stmt.setBytes(i + 1, roots.get(i).toBytes());
+            }
+
+            ResultSet rs = stmt.executeQuery();
+            Map<Cid, Long> present = new HashMap<>();
+            while (rs.next())
+                present.put(Cid.cast(rs.getBytes("cid")), rs.getLong("size"));
+            return present;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    @Override
+    public void setSubtreeSize(Cid root, long size) {
+        try (Connection conn = getConnection();
+             PreparedStatement insert = conn.prepareStatement(commands.insertOrIgnoreCommand("INSERT ", "INTO subtreesizes (cid, size) VALUES(?, ?)"))) {
+
+            insert.setBytes(1, root.toBytes());
+            insert.setLong(2, size);
+            insert.executeUpdate();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
     @Override
     public Optional<PublicKeyHash> getOwner(Cid block) {
         try (Connection conn = getConnection(false, false);
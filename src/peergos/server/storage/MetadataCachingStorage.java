@@ -93,6 +93,12 @@ public class MetadataCachingStorage extends DelegatingDeletableStorage {
         return getBlockMetadata(owner, block).thenApply(res -> res.links);
     }
 
+    @Override
+    public long getRecursiveBlockSizeSync(PublicKeyHash owner, Cid root, List<Multihash> peerids) {
+        // walk from here rather than the target so we can use the metadata store
+        return RecursiveSizeWalker.getRecursiveBlockSize(this, owner, root, peerids);
+    }
+
     @Override
     public CompletableFuture<BlockMetadata> getBlockMetadata(PublicKeyHash owner, Cid block) {
         if (block.isIdentity())
@@ -0,0 +1,390 @@
+package peergos.server.storage;
+
+import peergos.server.corenode.JdbcIpnsAndSocial;
+import peergos.server.space.UsageStore;
+import peergos.server.storage.auth.*;
+import peergos.server.util.Logging;
+import peergos.shared.cbor.*;
+import peergos.shared.corenode.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.Cid;
+import peergos.shared.io.ipfs.Multihash;
+import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A local directory implementation of ContentAddressedStorage which packs each owner's blocks into large append
+ *  only files, rather than a file per block. See {@link PackStore} for the format.
+ */
+public class PackContentAddressedStorage implements DeletableContentAddressedStorage {
+    private static final Logger LOG = Logging.LOG();
+    private static final int CID_V1 = 1;
+    public static final long DEFAULT_PACK_SIZE = 256 * 1024 * 1024;
+    private static final String LEGACY_DIR = "legacy";
+    private final Path root;
+    private final long packSize;
+    private final TransactionStore transactions;
+    private final BlockRequestAuthoriser authoriser;
+    private final PartitionStatus partitionStatus;
+    private final Hasher hasher;
+    private final Cid ourId;
+    private final Map<String, PackStore> stores = new ConcurrentHashMap<>();
+
+    public PackContentAddressedStorage(Path root,
+                                       Cid ourId,
+                                       TransactionStore transactions,
+                                       BlockRequestAuthoriser authoriser,
+                                       PartitionStatus partitioned,
+                                       Hasher hasher) {
+        this(root, DEFAULT_PACK_SIZE, ourId, transactions, authoriser, partitioned, hasher);
+    }
+
+    public PackContentAddressedStorage(Path root,
+                                       long packSize,
+                                       Cid ourId,
+                                       TransactionStore transactions,
+                                       BlockRequestAuthoriser authoriser,
+                                       PartitionStatus partitioned,
+                                       Hasher hasher) {
+        this.root = root;
+        this.packSize = packSize;
+        this.ourId = ourId;
+        this.transactions = transactions;
+        this.authoriser = authoriser;
+        this.partitionStatus = partitioned;
+        this.hasher = hasher;
+        File rootDir = root.toFile();
+        if (!rootDir.exists()) {
+            final boolean mkdirs = root.toFile().mkdirs();
+            if (!mkdirs)
+                throw new IllegalStateException("Unable to create directory " + root);
+        }
+        if (!rootDir.isDirectory())
+            throw new IllegalStateException("Pack store path must be a directory! " + root);
+        // packs are always partitioned by owner
+        partitionStatus.complete();
+    }
+
+    private static String dirName(PublicKeyHash owner) {
+        return owner == null ? LEGACY_DIR : owner.toString();
+    }
+
+    private PackStore store(PublicKeyHash owner) {
+        return store(dirName(owner));
+    }
+
+    /** Reads must not create a store, as that creates its directory and files, and holds them open, for any owner
+     *  that is asked about.
+     */
+    private Optional<PackStore> existingStore(PublicKeyHash owner) {
+        String dirName = dirName(owner);
+        PackStore store = stores.get(dirName);
+        if (store != null)
+            return Optional.of(store);
+        if (! Files.isDirectory(root.resolve(dirName)))
+            return Optional.empty();
+        return Optional.of(store(dirName));
+    }
+
+    private PackStore store(String dirName) {
+        return stores.computeIfAbsent(dirName, d -> {
+            try {
+                return new PackStore(root.resolve(d), packSize);
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        });
+    }
+
+    @Override
+    public void setPki(CoreNode pki) {
+        // packs are named by owner key, so we never need to look up usernames
+    }
+
+    @Override
+    public ContentAddressedStorage directToOrigin() {
+        return this;
+    }
+
+    @Override
+    public void partitionByUser(UsageStore usage,
+                                JdbcIpnsAndSocial mutable,
+                                PublicKeyHash pkiKey) {
+        LOG.info("Blockstore already partitioned.");
+    }
+
+    @Override
+    public CompletableFuture<Cid> id() {
+        return CompletableFuture.completedFuture(ourId);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> ids() {
+        return CompletableFuture.completedFuture(List.of(ourId));
+    }
+
+    @Override
+    public CompletableFuture<String> linkHost(PublicKeyHash owner) {
+        return Futures.of("localhost:8000");
+    }
+
+    @Override
+    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+        return CompletableFuture.completedFuture(transactions.startTransaction(owner));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        transactions.closeTransaction(owner, tid);
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookup(PublicKeyHash owner, Cid root, List<ChunkMirrorCap> caps, Optional<Cid> committedRoot) {
+        if (! hasBlock(owner, root))
+            return Futures.errored(new IllegalStateException("Champ root not present locally: " + root));
+        return getChampLookup(owner, root, caps, committedRoot, hasher);
+    }
+
+    @Override
+    public List<Cid> getOpenTransactionBlocks(PublicKeyHash owner) {
+        return transactions.getOpenTransactionBlocks(owner);
+    }
+
+    @Override
+    public void clearOldTransactions(PublicKeyHash owner, long cutoffMillis) {
+        transactions.clearOldTransactions(owner, cutoffMillis);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> put(PublicKeyHash owner,
+                                            PublicKeyHash writer,
+                                            List<byte[]> signedHashes,
+                                            List<byte[]> blocks,
+                                            TransactionId tid) {
+        return put(owner, blocks, false, tid);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putRaw(PublicKeyHash owner,
+                                               PublicKeyHash writer,
+                                               List<byte[]> signatures,
+                                               List<byte[]> blocks,
+                                               TransactionId tid,
+                                               ProgressConsumer<Long> progressConsumer) {
+        return put(owner, blocks, true, tid);
+    }
+
+    private CompletableFuture<List<Cid>> put(PublicKeyHash owner,
+                                             List<byte[]> blocks,
+                                             boolean isRaw,
+                                             TransactionId tid) {
+        Cid.Codec codec = isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor;
+        List<Cid> cids = blocks.stream()
+                .map(b -> new Cid(CID_V1, codec, Multihash.Type.sha2_256, RAMStorage.hash(b)))
+                .toList();
+        // Limit batch size to 1000 for fairness across concurrent requests
+        for (int i=0; i < cids.size(); i += 1000)
+            transactions.addBlocks(new ArrayList<>(cids.subList(i, Math.min(i + 1000, cids.size()))), tid, owner);
+        try {
+            // a single sync for the whole batch
+            store(owner).put(cids, blocks);
+            return Futures.of(cids);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private Optional<byte[]> readBlock(PublicKeyHash owner, Cid hash) {
+        try {
+            Optional<PackStore> store = existingStore(owner);
+            if (store.isEmpty())
+                return Optional.empty();
+            return store.get().get(hash);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(List<Multihash> peerIds, PublicKeyHash owner, Cid hash, String auth, boolean persistBlock) {
+        if (hash.codec == Cid.Codec.Raw)
+            throw new IllegalStateException("Need to call getRaw if cid is not cbor!");
+        return getRaw(Collections.emptyList(), owner, hash, auth, persistBlock).thenApply(opt -> opt.map(CborObject::fromByteArray));
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(PublicKeyHash owner, Cid hash, Optional<BatWithId> bat) {
+        return get(Collections.emptyList(), owner, hash, bat, id().join(), hasher, false);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(List<Multihash> peerIds,
+                                                      PublicKeyHash owner,
+                                                      Cid hash,
+                                                      Optional<BatWithId> bat,
+                                                      Cid ourId,
+                                                      Hasher h,
+                                                      boolean doAuth,
+                                                      boolean persistBlock) {
+        if (hash.isIdentity())
+            return Futures.of(Optional.of(hash.getHash()));
+        Optional<byte[]> block = readBlock(owner, hash);
+        if (block.isEmpty())
+            return Futures.of(Optional.empty());
+        String auth = bat.isEmpty() ? "" :
+                bat.get().bat.generateAuth(hash, ourId, 300, S3Request.currentDatetime(), bat.get().id, h)
+                        .thenApply(BlockAuth::encode).join();
+        if (doAuth && ! authoriser.allowRead(hash, block.get(), id().join(), auth).join())
+            return Futures.errored(new IllegalStateException("Unauthorised!"));
+        return Futures.of(block);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(PublicKeyHash owner, Cid hash, Optional<BatWithId> bat) {
+        return getRaw(Collections.emptyList(), owner, hash, bat, ourId, hasher, true, false);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(List<Multihash> peerIds, PublicKeyHash owner, Cid hash, String auth, boolean persistBlock) {
+        return getRaw(peerIds, owner, hash, auth, true, persistBlock);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(List<Multihash> peerIds, PublicKeyHash owner, Cid hash, String auth, boolean doAuth, boolean persistBlock) {
+        if (hash.isIdentity())
+            return Futures.of(Optional.of(hash.getHash()));
+        Optional<byte[]> block = readBlock(owner, hash);
+        if (block.isEmpty())
+            return Futures.of(Optional.empty());
+        if (doAuth && ! authoriser.allowRead(hash, block.get(), id().join(), auth).join())
+            return Futures.errored(new IllegalStateException("Unauthorised!"));
+        return Futures.of(block);
+    }
+
+    @Override
+    public boolean hasBlock(PublicKeyHash owner, Cid hash) {
+        return existingStore(owner)
+                .map(s -> s.has(hash))
+                .orElse(false);
+    }
+
+    @Override
+    public CompletableFuture<BlockMetadata> getBlockMetadata(PublicKeyHash owner, Cid block) {
+        return getRaw(Arrays.asList(id().join()), owner, block, Optional.empty(), ourId, hasher, true)
+                .thenApply(rawOpt -> BlockMetadataStore.extractMetadata(block, rawOpt.get()));
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> getLinks(PublicKeyHash owner, Cid root, List<Multihash> peerids) {
+        if (root.codec == Cid.Codec.Raw)
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        return getRaw(peerids, owner, root, Optional.empty(), ourId, hasher, false, false)
+                .thenApply(opt -> opt.map(CborObject::fromByteArray))
+                .thenApply(opt -> opt
+                        .map(cbor -> cbor.links().stream().map(c -> (Cid) c).collect(Collectors.toList()))
+                        .orElse(Collections.emptyList())
+                );
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(PublicKeyHash owner, Multihash h) {
+        return Futures.of(existingStore(owner).flatMap(s -> s.getSize((Cid) h)));
+    }
+
+    @Override
+    public CompletableFuture<IpnsEntry> getIpnsEntry(Multihash signer) {
+        throw new IllegalStateException("Unimplemented!");
+    }
+
+    private List<String> ownerDirs() {
+        try (Stream<Path> dirs = Files.list(root)) {
+            return dirs.filter(Files::isDirectory)
+                    .map(p -> p.getFileName().toString())
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private List<Pair<PublicKeyHash, Cid>> listBlocks(String dirName) {
+        PublicKeyHash owner = dirName.equals(LEGACY_DIR) ? null : PublicKeyHash.fromString(dirName);
+        List<Pair<PublicKeyHash, Cid>> res = new ArrayList<>();
+        try {
+            store(dirName).forEachCid(c -> res.add(new Pair<>(owner, c)));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        return res;
+    }
+
+    @Override
+    public Stream<Pair<PublicKeyHash, Cid>> getAllBlockHashes(boolean useBlockstore) {
+        return ownerDirs().stream()
+                .flatMap(d -> listBlocks(d).stream());
+    }
+
+    @Override
+    public Stream<Pair<PublicKeyHash, Cid>> getAllBlockHashes(PublicKeyHash owner, boolean useBlockstore) {
+        if (! root.resolve(dirName(owner)).toFile().exists())
+            return Stream.empty();
+        return listBlocks(dirName(owner)).stream();
+    }
+
+    @Override
+    public void getAllBlockHashVersions(PublicKeyHash owner, Consumer<List<BlockVersion>> res) {
+        res.accept(getAllBlockHashes(owner, false)
+                .map(p -> new BlockVersion(p.right, null, true))
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public void delete(PublicKeyHash owner, Cid h) {
+        bulkDelete(owner, List.of(new BlockVersion(h, null, true)));
+    }
+
+    @Override
+    public void bulkDelete(PublicKeyHash owner, List<BlockVersion> blockVersions) {
+        // one sync, and at most one compaction per pack, for the whole batch
+        Optional<PackStore> store = existingStore(owner);
+        if (store.isEmpty())
+            return;
+        try {
+            store.get().delete(blockVersions.stream()
+                    .map(v -> v.cid)
+                    .collect(Collectors.toList()));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<EncryptedCapability> getSecretLink(SecretLink link) {
+        throw new IllegalStateException("Shouldn't get here.");
+    }
+
+    @Override
+    public CompletableFuture<LinkCounts> getLinkCounts(String owner, LocalDateTime after, BatWithId mirrorBat) {
+        throw new IllegalStateException("Shouldn't get here.");
+    }
+
+    @Override
+    public Optional<BlockCache> getBlockCache() {
+        return Optional.empty();
+    }
+
+    @Override
+    public String toString() {
+        return "PackContentAddressedStorage " + root;
+    }
+}
@@ -0,0 +1,534 @@
+package peergos.server.storage;
+
+import peergos.server.util.Logging;
+import peergos.shared.io.ipfs.Cid;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** The blocks of one owner, packed into append only pack files.
+ *
+ *  Each record in a pack is [cid length][cid][data length][data]. Blocks are appended to the active pack, whose
+ *  entries are held in memory. When it is full the pack is sealed by writing an index of its live entries, sorted by
+ *  key, behind a 256 entry fanout table and the number of live bytes. From then on the pack and its index are only
+ *  read, through memory maps.
+ *
+ *  Deletions are appended to a per pack log of record offsets. Once most of a sealed pack is dead its live records are
+ *  copied to the active pack and the pack is deleted.
+ */
+class PackStore {
+    private static final Logger LOG = Logging.LOG();
+    private static final String PACK_SUFFIX = ".pack", INDEX_SUFFIX = ".idx", DELETED_SUFFIX = ".del";
+    private static final int KEY_SIZE = 32;
+    /** [key][offset][data length][cid length] */
+    private static final int ENTRY_SIZE = KEY_SIZE + 16;
+    private static final int HEADER_SIZE = 256 * 4 + 8;
+
+    private final Path dir;
+    private final long packSize;
+    private final ConcurrentSkipListMap<Integer, SealedPack> sealed = new ConcurrentSkipListMap<>();
+    private volatile ActivePack active;
+
+    PackStore(Path dir, long packSize) throws IOException {
+        if (packSize >= Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Packs must be smaller than 2 GiB to be memory mapped");
+        this.dir = dir;
+        this.packSize = packSize;
+        Files.createDirectories(dir);
+        List<Integer> ids;
+        try (Stream<Path> files = Files.list(dir)) {
+            ids = files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.endsWith(PACK_SUFFIX))
+                    .map(n -> Integer.parseInt(n.substring(0, n.length() - PACK_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            int id = ids.get(i);
+            boolean last = i == ids.size() - 1;
+            if (! last && Files.exists(path(id, INDEX_SUFFIX)))
+                sealed.put(id, SealedPack.open(id, path(id, PACK_SUFFIX), path(id, INDEX_SUFFIX), path(id, DELETED_SUFFIX)));
+            else if (last)
+                active = ActivePack.recover(id, path(id, PACK_SUFFIX), path(id, DELETED_SUFFIX));
+            else {
+                // a crash while sealing, the pack is complete but the index is not
+                ActivePack recovered = ActivePack.recover(id, path(id, PACK_SUFFIX), path(id, DELETED_SUFFIX));
+                seal(recovered);
+                recovered.close();
+                sealed.put(id, openSealed(id));
+            }
+        }
+        if (active == null)
+            active = ActivePack.create(0, path(0, PACK_SUFFIX), path(0, DELETED_SUFFIX));
+    }
+
+    private Path path(int id, String suffix) {
+        return dir.resolve(String.format("%08d", id) + suffix);
+    }
+
+    static byte[] key(Cid cid) {
+        byte[] hash = cid.getHash();
+        if (hash.length == KEY_SIZE)
+            return hash;
+        return RAMStorage.hash(cid.toBytes());
+    }
+
+    public Optional<byte[]> get(Cid cid) throws IOException {
+        byte[] cidBytes = cid.toBytes();
+        byte[] key = key(cid);
+        while (true) {
+            ActivePack current = active;
+            Optional<byte[]> fromActive = get(current, cid, cidBytes);
+            if (fromActive.isPresent())
+                return fromActive;
+            for (SealedPack pack : sealed.descendingMap().values()) {
+                Optional<byte[]> res = pack.get(key, cidBytes);
+                if (res.isPresent())
+                    return res;
+            }
+            // a compaction may have moved the block into the active pack while we were looking
+            fromActive = get(current, cid, cidBytes);
+            if (fromActive.isPresent() || current == active)
+                return fromActive;
+            // the active pack was sealed while we were looking, so look again
+        }
+    }
+
+    private static Optional<byte[]> get(ActivePack pack, Cid cid, byte[] cidBytes) throws IOException {
+        try {
+            return pack.get(cid, cidBytes);
+        } catch (ClosedChannelException e) {
+            // it was sealed since we looked, and is already in the sealed packs
+            return Optional.empty();
+        }
+    }
+
+    public Optional<Integer> getSize(Cid cid) {
+        byte[] cidBytes = cid.toBytes();
+        Optional<Integer> fromActive = active.getSize(cid);
+        if (fromActive.isPresent())
+            return fromActive;
+        byte[] key = key(cid);
+        for (SealedPack pack : sealed.descendingMap().values()) {
+            int entry = pack.find(key, cidBytes);
+            if (entry >= 0)
+                return Optional.of(pack.dataLength(entry));
+        }
+        // a compaction may have moved the block into the active pack while we were looking
+        return active.getSize(cid);
+    }
+
+    public boolean has(Cid cid) {
+        if (active.has(cid))
+            return true;
+        byte[] key = key(cid);
+        byte[] cidBytes = cid.toBytes();
+        for (SealedPack pack : sealed.descendingMap().values())
+            if (pack.find(key, cidBytes) >= 0)
+                return true;
+        // a compaction may have moved the block into the active pack while we were looking
+        return active.has(cid);
+    }
+
+    /** Append blocks which aren't already present, then sync them to disk in one go. */
+    public synchronized void put(List<Cid> cids, List<byte[]> blocks) throws IOException {
+        boolean written = false;
+        for (int i=0; i < cids.size(); i++) {
+            Cid cid = cids.get(i);
+            if (has(cid))
+                continue;
+            append(cid, blocks.get(i));
+            written = true;
+        }
+        if (written)
+            active.channel.force(false);
+    }
+
+    private void append(Cid cid, byte[] data) throws IOException {
+        active.append(cid, data);
+        if (active.size >= packSize) {
+            active.channel.force(false);
+            ActivePack full = active;
+            seal(full);
+            int next = full.id + 1;
+            ActivePack created = ActivePack.create(next, path(next, PACK_SUFFIX), path(next, DELETED_SUFFIX));
+            sealed.put(full.id, openSealed(full.id));
+            active = created;
+            full.close();
+        }
+    }
+
+    /** Write the sorted index of the live entries of a pack, after which the pack is immutable. */
+    private void seal(ActivePack pack) throws IOException {
+        List<Map.Entry<Cid, long[]>> entries = new ArrayList<>(pack.entries.entrySet());
+        List<byte[]> keys = entries.stream().map(e -> key(e.getKey())).collect(Collectors.toList());
+        Integer[] order = IntStream.range(0, entries.size()).boxed().toArray(Integer[]::new);
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(keys.get(a), keys.get(b)));
+
+        ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE + entries.size() * ENTRY_SIZE);
+        int[] fanout = new int[256];
+        for (byte[] key : keys)
+            fanout[key[0] & 0xff]++;
+        for (int i = 0, total = 0; i < 256; i++) {
+            total += fanout[i];
+            index.putInt(total);
+        }
+        index.putLong(entries.stream()
+                .mapToLong(e -> 8 + e.getValue()[1] + e.getValue()[2])
+                .sum());
+        for (int i : order) {
+            long[] location = entries.get(i).getValue();
+            index.put(keys.get(i))
+                    .putLong(location[0])
+                    .putInt((int) location[1])
+                    .putInt((int) location[2]);
+        }
+        Path indexFile = path(pack.id, INDEX_SUFFIX);
+        Path tmp = dir.resolve(indexFile.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            index.flip();
+            while (index.hasRemaining())
+                out.write(index);
+            out.force(false);
+        }
+        Files.move(tmp, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Open a pack whose index has been written. This must only be called once a later pack exists, because until then
+     *  a restart recovers the pack from its records and deletion log, ignoring the index.
+     */
+    private SealedPack openSealed(int id) throws IOException {
+        // the index only has live entries
+        Files.deleteIfExists(path(id, DELETED_SUFFIX));
+        return SealedPack.open(id, path(id, PACK_SUFFIX), path(id, INDEX_SUFFIX), path(id, DELETED_SUFFIX));
+    }
+
+    /** Mark blocks as deleted, then compact any sealed packs that are now mostly dead. */
+    public synchronized void delete(List<Cid> cids) throws IOException {
+        Set<SealedPack> changed = new LinkedHashSet<>();
+        for (Cid cid : cids) {
+            active.delete(cid);
+            byte[] key = key(cid);
+            byte[] cidBytes = cid.toBytes();
+            for (SealedPack pack : sealed.values()) {
+                if (pack.delete(key, cidBytes))
+                    changed.add(pack);
+            }
+        }
+        active.deleted.force(false);
+        for (SealedPack pack : changed) {
+            pack.deleted.force(false);
+            if (pack.deadBytes() * 2 > pack.size)
+                compact(pack);
+        }
+    }
+
+    private void compact(SealedPack pack) throws IOException {
+        long t0 = System.currentTimeMillis();
+        int[] moved = new int[1];
+        pack.forEachLive((cid, data) -> {
+            append(cid, data);
+            moved[0]++;
+        });
+        active.channel.force(false);
+        sealed.remove(pack.id);
+        pack.close();
+        Files.deleteIfExists(path(pack.id, INDEX_SUFFIX));
+        Files.deleteIfExists(path(pack.id, DELETED_SUFFIX));
+        Files.deleteIfExists(path(pack.id, PACK_SUFFIX));
+        LOG.info("Compacted pack " + pack.id + " in " + dir + ", kept " + moved[0] + " blocks in "
+                + (System.currentTimeMillis() - t0) + "ms");
+    }
+
+    public void forEachCid(Consumer<Cid> consumer) throws IOException {
+        for (Cid cid : active.entries.keySet())
+            consumer.accept(cid);
+        for (SealedPack pack : sealed.values())
+            pack.forEachLiveCid(consumer);
+    }
+
+    public int packCount() {
+        return sealed.size() + 1;
+    }
+
+    private interface RecordConsumer {
+        void accept(Cid cid, byte[] data) throws IOException;
+    }
+
+    private static final class ActivePack {
+        final int id;
+        final FileChannel channel;
+        final FileChannel deleted;
+        /** cid -> [offset, data length, cid length] */
+        final Map<Cid, long[]> entries = new ConcurrentHashMap<>();
+        volatile long size;
+
+        private ActivePack(int id, FileChannel channel, FileChannel deleted, long size) {
+            this.id = id;
+            this.channel = channel;
+            this.deleted = deleted;
+            this.size = size;
+        }
+
+        static ActivePack create(int id, Path file, Path deletedFile) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            FileChannel deleted = FileChannel.open(deletedFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            return new ActivePack(id, channel, deleted, channel.size());
+        }
+
+        /** Scan every record, truncating a partial record at the end from a crash part way through a write. */
+        static ActivePack recover(int id, Path file, Path deletedFile) throws IOException {
+            Set<Long> deletedOffsets = readDeleted(deletedFile);
+            ActivePack pack = create(id, file, deletedFile);
+            long fileSize = pack.channel.size();
+            long pos = 0;
+            try (DataInputStream din = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+                while (pos + 8 <= fileSize) {
+                    int cidLength = din.readInt();
+                    if (cidLength <= 0 || cidLength > 1024 || pos + 8 + cidLength > fileSize)
+                        break;
+                    byte[] cid = new byte[cidLength];
+                    din.readFully(cid);
+                    int dataLength = din.readInt();
+                    long recordSize = 8L + cidLength + dataLength;
+                    if (dataLength < 0 || pos + recordSize > fileSize)
+                        break;
+                    din.skipNBytes(dataLength);
+                    if (! deletedOffsets.contains(pos))
+                        pack.entries.put(Cid.cast(cid), new long[]{pos, dataLength, cidLength});
+                    pos += recordSize;
+                }
+            }
+            if (pos < fileSize) {
+                LOG.warning("Truncating pack " + file + " from " + fileSize + " to " + pos);
+                pack.channel.truncate(pos);
+            }
+            pack.size = pos;
+            return pack;
+        }
+
+        void append(Cid cid, byte[] data) throws IOException {
+            byte[] cidBytes = cid.toBytes();
+            ByteBuffer record = ByteBuffer.allocate(8 + cidBytes.length + data.length);
+            record.putInt(cidBytes.length).put(cidBytes).putInt(data.length).put(data);
+            record.flip();
+            long offset = size;
+            long pos = offset;
+            while (record.hasRemaining())
+                pos += channel.write(record, pos);
+            size = pos;
+            entries.put(cid, new long[]{offset, data.length, cidBytes.length});
+        }
+
+        boolean has(Cid cid) {
+            return entries.containsKey(cid);
+        }
+
+        Optional<Integer> getSize(Cid cid) {
+            long[] location = entries.get(cid);
+            return location == null ? Optional.empty() : Optional.of((int) location[1]);
+        }
+
+        Optional<byte[]> get(Cid cid, byte[] cidBytes) throws IOException {
+            long[] location = entries.get(cid);
+            if (location == null)
+                return Optional.empty();
+            ByteBuffer data = ByteBuffer.allocate((int) location[1]);
+            long pos = location[0] + 8 + cidBytes.length;
+            while (data.hasRemaining()) {
+                int read = channel.read(data, pos);
+                if (read < 0)
+                    throw new EOFException("Truncated pack " + id);
+                pos += read;
+            }
+            return Optional.of(data.array());
+        }
+
+        void delete(Cid cid) throws IOException {
+            long[] location = entries.remove(cid);
+            if (location != null)
+                deleted.write(ByteBuffer.allocate(8).putLong(0, location[0]));
+        }
+
+        void close() throws IOException {
+            channel.close();
+            deleted.close();
+        }
+    }
+
+    private static final class SealedPack {
+        final int id;
+        final long size;
+        final FileChannel channel;
+        final MappedByteBuffer data, index;
+        final int[] fanout = new int[256];
+        final int entryCount;
+        final FileChannel deleted;
+        final Set<Long> deletedOffsets;
+        long deadBytes;
+
+        private SealedPack(int id, FileChannel channel, MappedByteBuffer data, MappedByteBuffer index,
+                           FileChannel deleted, Set<Long> deletedOffsets) {
+            this.id = id;
+            this.channel = channel;
+            this.size = data.capacity();
+            this.data = data;
+            this.index = index;
+            for (int i=0; i < 256; i++)
+                fanout[i] = index.getInt(i * 4);
+            this.entryCount = fanout[255];
+            this.deleted = deleted;
+            this.deletedOffsets = deletedOffsets;
+        }
+
+        static SealedPack open(int id, Path file, Path indexFile, Path deletedFile) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            MappedByteBuffer index;
+            try (FileChannel indexChannel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+                index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+            }
+            Set<Long> deletedOffsets = ConcurrentHashMap.newKeySet();
+            deletedOffsets.addAll(readDeleted(deletedFile));
+            FileChannel deleted = FileChannel.open(deletedFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            SealedPack pack = new SealedPack(id, channel, data, index, deleted, deletedOffsets);
+            long liveAtSeal = index.getLong(256 * 4);
+            pack.deadBytes = pack.size - liveAtSeal;
+            for (long offset : deletedOffsets)
+                pack.deadBytes += 8L + data.getInt((int) offset) + data.getInt((int) offset + 4 + data.getInt((int) offset));
+            return pack;
+        }
+
+        private int entryBase(int entry) {
+            return HEADER_SIZE + entry * ENTRY_SIZE;
+        }
+
+        private long offset(int entry) {
+            return index.getLong(entryBase(entry) + KEY_SIZE);
+        }
+
+        int dataLength(int entry) {
+            return index.getInt(entryBase(entry) + KEY_SIZE + 8);
+        }
+
+        private int cidLength(int entry) {
+            return index.getInt(entryBase(entry) + KEY_SIZE + 12);
+        }
+
+        private long recordSize(int entry) {
+            return 8L + cidLength(entry) + dataLength(entry);
+        }
+
+        long deadBytes() {
+            return deadBytes;
+        }
+
+        private int compareKey(int entry, byte[] key) {
+            int base = entryBase(entry);
+            for (int i=0; i < KEY_SIZE; i++) {
+                int cmp = Integer.compare(index.get(base + i) & 0xff, key[i] & 0xff);
+                if (cmp != 0)
+                    return cmp;
+            }
+            return 0;
+        }
+
+        /** @return the index entry of a live record of this cid, or -1 */
+        int find(byte[] key, byte[] cidBytes) {
+            int first = key[0] & 0xff;
+            int lo = first == 0 ? 0 : fanout[first - 1];
+            int hi = fanout[first];
+            // find the first entry with this key
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compareKey(mid, key) < 0)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            // different cids can share a hash, e.g. the same bytes as raw and cbor
+            for (int entry = lo; entry < entryCount && compareKey(entry, key) == 0; entry++) {
+                long offset = offset(entry);
+                if (deletedOffsets.contains(offset) || cidLength(entry) != cidBytes.length)
+                    continue;
+                if (cidMatches(offset, cidBytes))
+                    return entry;
+            }
+            return -1;
+        }
+
+        private boolean cidMatches(long offset, byte[] cidBytes) {
+            int base = (int) offset + 4;
+            for (int i=0; i < cidBytes.length; i++)
+                if (data.get(base + i) != cidBytes[i])
+                    return false;
+            return true;
+        }
+
+        Optional<byte[]> get(byte[] key, byte[] cidBytes) {
+            int entry = find(key, cidBytes);
+            if (entry < 0)
+                return Optional.empty();
+            byte[] block = new byte[dataLength(entry)];
+            data.get((int) offset(entry) + 8 + cidBytes.length, block);
+            return Optional.of(block);
+        }
+
+        /** @return true if a live record of this cid was deleted */
+        boolean delete(byte[] key, byte[] cidBytes) throws IOException {
+            int entry = find(key, cidBytes);
+            if (entry < 0)
+                return false;
+            long offset = offset(entry);
+            deleted.write(ByteBuffer.allocate(8).putLong(0, offset));
+            deletedOffsets.add(offset);
+            deadBytes += recordSize(entry);
+            return true;
+        }
+
+        private Cid readCid(int entry) {
+            byte[] cid = new byte[cidLength(entry)];
+            data.get((int) offset(entry) + 4, cid);
+            return Cid.cast(cid);
+        }
+
+        void forEachLive(RecordConsumer consumer) throws IOException {
+            for (int i=0; i < entryCount; i++) {
+                long offset = offset(i);
+                if (deletedOffsets.contains(offset))
+                    continue;
+                byte[] block = new byte[dataLength(i)];
+                data.get((int) offset + 8 + cidLength(i), block);
+                consumer.accept(readCid(i), block);
+            }
+        }
+
+        void forEachLiveCid(Consumer<Cid> consumer) {
+            for (int i=0; i < entryCount; i++)
+                if (! deletedOffsets.contains(offset(i)))
+                    consumer.accept(readCid(i));
+        }
+
+        void close() throws IOException {
+            channel.close();
+            deleted.close();
+        }
+    }
+
+    private static Set<Long> readDeleted(Path deletedFile) throws IOException {
+        Set<Long> offsets = new HashSet<>();
+        if (! Files.exists(deletedFile))
+            return offsets;
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(deletedFile));
+        while (buf.remaining() >= 8)
+            offsets.add(buf.getLong());
+        return offsets;
+    }
+}
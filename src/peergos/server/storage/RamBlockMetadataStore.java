@@ -4,12 +4,14 @@ import peergos.shared.crypto.hash.PublicKeyHash;
 import peergos.shared.io.ipfs.Cid;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.stream.*;
 
 public class RamBlockMetadataStore implements BlockMetadataStore {
 
     private final Map<Cid, BlockMetadata> store;
+    private final Map<Cid, Long> subtreeSizes = new ConcurrentHashMap<>();
 
     public RamBlockMetadataStore() {
         this.store = new HashMap<>(50_000);
@@ -62,6 +64,20 @@ public class RamBlockMetadataStore implements BlockMetadataStore {
     @Override
     public void remove(Cid block) {
         store.remove(block);
+        subtreeSizes.remove(block);
+    }
+
+    @Override
+    public Map<Cid, Long> getSubtreeSizes(List<Cid> roots) {
+        return roots.stream()
+                .filter(subtreeSizes::containsKey)
+                .distinct()
+                .collect(Collectors.toMap(h -> h, subtreeSizes::get));
+    }
+
+    @Override
+    public void setSubtreeSize(Cid root, long size) {
+        subtreeSizes.put(root, size);
     }
 
     @Override
@@ -0,0 +1,130 @@
+package peergos.server.storage;
+
+import peergos.server.util.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.Cid;
+import peergos.shared.io.ipfs.Multihash;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** Calculates the total size of all the blocks in a merkle tree, a frontier at a time.
+ *
+ *  Each step takes up to PARALLELISM * BATCH_SIZE pending blocks, looks up their metadata in batches of BATCH_SIZE
+ *  with one BlockMetadataStore.getAll query each, running the batches concurrently, and then queues their children.
+ *  Blocks without local metadata fall back to getSize and getLinks on the storage. Like the depth first walk, a block
+ *  linked from several places is counted each time.
+ *
+ *  The metadata store also records the total size under the roots of large complete walks. These are used in place of
+ *  walking any subtree we reach that has been measured before, so re-measuring a moved or deleted subtree only visits
+ *  the blocks written since.
+ */
+public class RecursiveSizeWalker {
+    private static final Logger LOG = Logging.LOG();
+
+    public static final int BATCH_SIZE = 500;
+    public static final int PARALLELISM = 8;
+    private static final int MIN_BLOCKS_TO_REPORT = 10_000;
+    // smaller subtrees are cheaper to walk again than to record
+    private static final int MIN_BLOCKS_TO_RECORD = 32;
+
+    private static class BatchResult {
+        public final long size;
+        public final List<Cid> children;
+        public final boolean complete;
+
+        public BatchResult(long size, List<Cid> children, boolean complete) {
+            this.size = size;
+            this.children = children;
+            this.complete = complete;
+        }
+    }
+
+    public static long getRecursiveBlockSize(DeletableContentAddressedStorage storage,
+                                             PublicKeyHash owner,
+                                             Cid root,
+                                             List<Multihash> peerIds) {
+        if (root.isIdentity())
+            return 0;
+        Optional<BlockMetadataStore> metadb = storage.getBlockMetadataStore();
+        long t0 = System.currentTimeMillis();
+        long total = 0, blocks = 0;
+        boolean complete = true;
+        // taking frontiers from the top of a stack keeps the pending set as small as a depth first walk's
+        Deque<Cid> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (! pending.isEmpty()) {
+            List<List<Cid>> batches = new ArrayList<>();
+            while (! pending.isEmpty() && batches.size() < PARALLELISM) {
+                List<Cid> batch = new ArrayList<>(Math.min(BATCH_SIZE, pending.size()));
+                while (! pending.isEmpty() && batch.size() < BATCH_SIZE)
+                    batch.add(pending.pop());
+                batches.add(batch);
+            }
+            List<BatchResult> results = batches.size() == 1 ?
+                    List.of(sizeBatch(storage, metadb, owner, batches.get(0), peerIds)) :
+                    Futures.combineAllInOrder(batches.stream()
+                            .map(batch -> Futures.runAsync(() -> Futures.of(sizeBatch(storage, metadb, owner, batch, peerIds)),
+                                    DeletableContentAddressedStorage.usagePool))
+                            .collect(Collectors.toList())).join();
+            for (int i=0; i < results.size(); i++) {
+                BatchResult res = results.get(i);
+                total += res.size;
+                complete &= res.complete;
+                blocks += batches.get(i).size();
+                res.children.forEach(pending::push);
+            }
+        }
+        long duration = System.currentTimeMillis() - t0;
+        if (blocks >= MIN_BLOCKS_TO_REPORT)
+            LOG.info("Sized " + blocks + " blocks (" + total + " bytes) under " + root + " in " + duration + "ms, "
+                    + (blocks * 1000 / Math.max(1, duration)) + " blocks/s");
+        if (complete && blocks >= MIN_BLOCKS_TO_RECORD && metadb.isPresent())
+            metadb.get().setSubtreeSize(root, total);
+        return total;
+    }
+
+    private static BatchResult sizeBatch(DeletableContentAddressedStorage storage,
+                                         Optional<BlockMetadataStore> metadb,
+                                         PublicKeyHash owner,
+                                         List<Cid> batch,
+                                         List<Multihash> peerIds) {
+        List<Cid> distinct = batch.stream().distinct().collect(Collectors.toList());
+        Map<Cid, Long> measured = metadb.map(m -> m.getSubtreeSizes(distinct.stream()
+                        .filter(c -> ! c.isRaw())
+                        .collect(Collectors.toList())))
+                .orElse(Collections.emptyMap());
+        Map<Cid, BlockMetadata> local = metadb.map(m -> m.getAll(distinct.stream()
+                        .filter(c -> ! measured.containsKey(c))
+                        .collect(Collectors.toList())))
+                .orElse(Collections.emptyMap());
+        long size = 0;
+        boolean complete = true;
+        List<Cid> children = new ArrayList<>();
+        for (Cid block : batch) {
+            Long subtree = measured.get(block);
+            if (subtree != null) {
+                size += subtree;
+                continue;
+            }
+            BlockMetadata meta = local.get(block);
+            List<Cid> links;
+            if (meta != null) {
+                size += meta.size;
+                links = meta.links;
+            } else {
+                Optional<Integer> blockSize = storage.getSize(owner, block).join();
+                complete &= blockSize.isPresent();
+                size += blockSize.orElse(0);
+                links = storage.getLinks(owner, block, peerIds).join();
+            }
+            for (Cid link : links)
+                if (! link.isIdentity())
+                    children.add(link);
+        }
+        return new BatchResult(size, children, complete);
+    }
+}
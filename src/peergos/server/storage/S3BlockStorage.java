@@ -166,7 +166,8 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
     private final JdbcBatCave bats;
     private CoreNode pki;
     private static final int MIRROR_PARALLELISM = 30;
-    private final Semaphore mirrorSemaphore = new Semaphore(MIRROR_PARALLELISM);
+    private static final String MIRROR_FRONTIERS_DIR = "mirror-frontiers";
+    private final ConcurrentHashMap<Multihash, Semaphore> peerMirrorLimits = new ConcurrentHashMap<>();
     private final Semaphore mirrorTreeSemaphore = new Semaphore(MIRROR_PARALLELISM);
 
     public S3BlockStorage(S3Config config,
@@ -1031,12 +1032,13 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         skippedCount.addAndGet(present.size());
 
         List<Cid> missing = hashes.stream().filter(h -> !present.containsKey(h)).toList();
+        Semaphore peerLimit = peerMirrorLimits.computeIfAbsent(peers.get(0), p -> new Semaphore(MIRROR_PARALLELISM));
         ConcurrentHashMap<Cid, BlockMetadata> fetched = new ConcurrentHashMap<>();
         AtomicReference<Throwable> firstError = new AtomicReference<>();
 
         List<Thread> threads = missing.stream().map(c -> Thread.ofVirtual().start(() -> {
             try {
-                mirrorSemaphore.acquire();
+                peerLimit.acquire();
                 try {
                     long count = retrievalCount.incrementAndGet();
                     if (count % 100 == 0 || count == 1)
@@ -1051,7 +1053,7 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
                             () -> Futures.of(checkAndAddBlock(owner, c, b))).join();
                     fetched.put(c, meta);
                 } finally {
-                    mirrorSemaphore.release();
+                    peerLimit.release();
                 }
             } catch (Throwable t) {
                 LOG.log(Level.SEVERE, "Couldn't retrieve " + c + " (" + hashToKey(owner, c) + ")", t);
@@ -1114,9 +1116,24 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         AtomicLong skippedBlockCount = new AtomicLong(0);
         AtomicLong blockCount = new AtomicLong(0);
         AtomicLong totalSize = new AtomicLong(0);
-        bulkMirror(owner, writer, peerIds, existingLinks, newLinks, mirrorBat, ourNodeId,
-                (p, o, h, m) -> bulkGetBlocks(p, username, o, h, m, skippedBlockCount, blockCount, totalSize),
-                (w, bs, size) -> usage.addPendingUsage(username, writer, size));
+        P2pBlockGet retriever = (p, o, h, m) -> bulkGetBlocks(p, username, o, h, m, skippedBlockCount, blockCount, totalSize);
+        NewBlocksProcessor newBlocks = (w, bs, size) -> usage.addPendingUsage(username, writer, size);
+        if (existingLinks.isEmpty()) {
+            // save our progress through a new tree, so an interrupted mirror fetches the unfinished subtrees first and then
+            // only rechecks, rather than refetches, the blocks it already has
+            Path frontiers = peergosDir.resolve(MIRROR_FRONTIERS_DIR);
+            String prefix = writer + "-";
+            try (Stream<Path> stale = Files.exists(frontiers) ? Files.list(frontiers) : Stream.empty()) {
+                stale.filter(f -> f.getFileName().toString().startsWith(prefix) &&
+                                ! f.getFileName().toString().equals(prefix + newRoot))
+                        .forEach(f -> f.toFile().delete());
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+            mirrorTree(owner, writer, peerIds, newLinks, mirrorBat, retriever, newBlocks,
+                    Optional.of(frontiers.resolve(prefix + newRoot)));
+        } else
+            bulkMirror(owner, writer, peerIds, existingLinks, newLinks, mirrorBat, ourNodeId, retriever, newBlocks);
         if (blockCount.get() > 0) {
             LOG.info("Mirrored " + String.format("%,d", blockCount.get()) + " blocks, taking " +
                     String.format("%,d", totalSize.get()) + " bytes");
@@ -1147,95 +1164,41 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
                 .filter(c -> !c.isIdentity())
                 .collect(Collectors.toList());
 
+        if (removed.isEmpty()) {
+            mirrorTree(owner, writer, peerIds, added, mirrorBat, retriever, newBlockProcessor, Optional.empty());
+            return;
+        }
+
         List<BlockMetadata> addedLinks = retriever.bulkGet(peerIds, owner, added, mirrorBat);
         newBlockProcessor.process(writer, added, addedLinks.stream().mapToInt(p -> p.size).sum());
 
         List<Thread> childThreads = new ArrayList<>();
         AtomicReference<Throwable> firstError = new AtomicReference<>();
 
-        if (removed.isEmpty()) {
-            List<Cid> allCbor = addedLinks.stream()
-                    .map(p -> p.links)
-                    .flatMap(Collection::stream)
-                    .filter(c -> !c.isIdentity() && !c.isRaw())
-                    .collect(Collectors.toList());
-            for (int i = 0; i < allCbor.size();) {
-                int end = Math.min(allCbor.size(), i + 100);
-                List<Cid> batch = allCbor.subList(i, end);
-                if (mirrorTreeSemaphore.tryAcquire()) {
-                    childThreads.add(Thread.ofVirtual().start(() -> {
-                        try {
-                            bulkMirror(owner, writer, peerIds, Collections.emptyList(),
-                                    batch, mirrorBat, ourNodeId, retriever, newBlockProcessor);
-                        } catch (Throwable t) {
-                            firstError.compareAndSet(null, t);
-                        } finally {
-                            mirrorTreeSemaphore.release();
-                        }
-                    }));
-                } else {
-                    try {
-                        bulkMirror(owner, writer, peerIds, Collections.emptyList(),
-                                batch, mirrorBat, ourNodeId, retriever, newBlockProcessor);
-                    } catch (Throwable t) {
-                        firstError.compareAndSet(null, t);
-                    }
-                }
-                i = end;
-            }
-            List<Cid> allRaw = addedLinks.stream()
-                    .map(p -> p.links)
-                    .flatMap(Collection::stream)
-                    .filter(c -> !c.isIdentity() && c.isRaw())
-                    .collect(Collectors.toList());
-            for (int i = 0; i < allRaw.size(); i++) {
-                List<Cid> single = allRaw.subList(i, i + 1);
-                if (mirrorTreeSemaphore.tryAcquire()) {
-                    childThreads.add(Thread.ofVirtual().start(() -> {
-                        try {
-                            bulkMirror(owner, writer, peerIds, Collections.emptyList(),
-                                    single, mirrorBat, ourNodeId, retriever, newBlockProcessor);
-                        } catch (Throwable t) {
-                            firstError.compareAndSet(null, t);
-                        } finally {
-                            mirrorTreeSemaphore.release();
-                        }
-                    }));
-                } else {
-                    try {
-                        bulkMirror(owner, writer, peerIds, Collections.emptyList(),
-                                single, mirrorBat, ourNodeId, retriever, newBlockProcessor);
-                    } catch (Throwable t) {
-                        firstError.compareAndSet(null, t);
-                    }
-                }
-            }
-        } else {
-            for (int i = 0; i < added.size(); i++) {
-                List<Cid> newLinks = addedLinks.get(i).links;
-                List<Cid> existingLinks = i >= removed.size() ?
-                        Collections.emptyList() :
-                        getLinks(owner, removed.get(i), peerIds, mirrorBat).join().stream()
-                                .filter(c -> !c.isIdentity())
-                                .collect(Collectors.toList());
-                if (mirrorTreeSemaphore.tryAcquire()) {
-                    childThreads.add(Thread.ofVirtual().start(() -> {
-                        try {
-                            bulkMirror(owner, writer, peerIds, existingLinks, newLinks,
-                                    mirrorBat, ourNodeId, retriever, newBlockProcessor);
-                        } catch (Throwable t) {
-                            firstError.compareAndSet(null, t);
-                        } finally {
-                            mirrorTreeSemaphore.release();
-                        }
-                    }));
-                } else {
+        for (int i = 0; i < added.size(); i++) {
+            List<Cid> newLinks = addedLinks.get(i).links;
+            List<Cid> existingLinks = i >= removed.size() ?
+                    Collections.emptyList() :
+                    getLinks(owner, removed.get(i), peerIds, mirrorBat).join().stream()
+                            .filter(c -> !c.isIdentity())
+                            .collect(Collectors.toList());
+            if (mirrorTreeSemaphore.tryAcquire()) {
+                childThreads.add(Thread.ofVirtual().start(() -> {
                     try {
                         bulkMirror(owner, writer, peerIds, existingLinks, newLinks,
                                 mirrorBat, ourNodeId, retriever, newBlockProcessor);
                     } catch (Throwable t) {
                         firstError.compareAndSet(null, t);
+                    } finally {
+                        mirrorTreeSemaphore.release();
                     }
+                }));
+            } else {
+                try {
+                    bulkMirror(owner, writer, peerIds, existingLinks, newLinks,
+                            mirrorBat, ourNodeId, retriever, newBlockProcessor);
+                } catch (Throwable t) {
+                    firstError.compareAndSet(null, t);
                 }
             }
         }
@@ -1248,6 +1211,21 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
                     + (updated.size() > 1 ? " (+ " + (updated.size() - 1) + " siblings)" : ""), firstError.get());
     }
 
+    private void mirrorTree(PublicKeyHash owner,
+                            PublicKeyHash writer,
+                            List<Multihash> peerIds,
+                            List<Cid> roots,
+                            Optional<BatWithId> mirrorBat,
+                            P2pBlockGet retriever,
+                            NewBlocksProcessor newBlockProcessor,
+                            Optional<Path> frontier) {
+        new TreeMirror(MIRROR_PARALLELISM, frontier).mirror(roots, batch -> {
+            List<BlockMetadata> fetched = retriever.bulkGet(peerIds, owner, batch, mirrorBat);
+            newBlockProcessor.process(writer, batch, fetched.stream().mapToInt(m -> m.size).sum());
+            return fetched;
+        });
+    }
+
     @Override
     public CompletableFuture<List<byte[]>> getChampLookup(PublicKeyHash owner, Cid root, List<ChunkMirrorCap> caps, Optional<Cid> committedRoot) {
         if (noReads)
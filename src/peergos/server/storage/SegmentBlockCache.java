@@ -0,0 +1,523 @@
+package peergos.server.storage;
+
+import peergos.server.util.Logging;
+import peergos.shared.io.ipfs.Cid;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A local block cache which appends blocks to large segment files, rather than storing each block in its own file.
+ *
+ *  Each record in a segment is [cid length][cid][data length][data]. An off heap hash table maps a 64 bit fingerprint
+ *  of each cid to the segment, offset and length of its record; the full cid is checked on every read. When a segment
+ *  is full its index entries are written next to it, so a restart only has to scan the last segment.
+ *
+ *  Eviction is a CLOCK over blocks, with the log as the hand: reads set a referenced bit in the block's index slot,
+ *  and the oldest segment is reclaimed by copying its referenced blocks, with the bit cleared, to the active segment
+ *  and deleting the rest. Hot blocks therefore survive while cold ones are dropped a whole segment at a time.
+ */
+public class SegmentBlockCache implements BlockCache {
+    private static final Logger LOG = Logging.LOG();
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final Path root;
+    private final long segmentSize;
+    private volatile long maxSizeBytes;
+    private final OffHeapIndex index = new OffHeapIndex(1 << 16);
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final AtomicLong totalSize = new AtomicLong(0);
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private Segment active;
+    private ByteArrayOutputStream activeEntries = new ByteArrayOutputStream();
+
+    public SegmentBlockCache(Path root, long maxSizeBytes) {
+        // keep segments small relative to the cache so reclaiming one doesn't drop too much at once
+        this(root, maxSizeBytes, Math.min(DEFAULT_SEGMENT_SIZE, Math.max(MIN_SEGMENT_SIZE, maxSizeBytes / 16)));
+    }
+
+    public SegmentBlockCache(Path root, long maxSizeBytes, long segmentSize) {
+        if (segmentSize >= Integer.MAX_VALUE / 2)
+            throw new IllegalArgumentException("Segments must be smaller than 1 GiB");
+        this.root = root;
+        this.segmentSize = segmentSize;
+        try {
+            Files.createDirectories(root);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create directory " + root, e);
+        }
+        this.maxSizeBytes = FileBlockCache.getOrSetMaxSize(root, maxSizeBytes);
+        long t0 = System.currentTimeMillis();
+        List<Integer> ids = listSegments();
+        try {
+            for (int i = 0; i < ids.size(); i++) {
+                int id = ids.get(i);
+                Segment segment = Segment.open(id, segmentPath(id));
+                segments.put(id, segment);
+                boolean last = i == ids.size() - 1;
+                Path indexFile = indexPath(id);
+                if (! last && Files.exists(indexFile))
+                    loadIndex(segment, indexFile);
+                else {
+                    // we will keep appending to the last segment, so any index for it will be out of date
+                    if (last)
+                        Files.deleteIfExists(indexFile);
+                    scan(segment, last);
+                }
+                totalSize.addAndGet(segment.size);
+            }
+            if (ids.isEmpty())
+                roll();
+            else
+                active = segments.lastEntry().getValue();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        long t1 = System.currentTimeMillis();
+        LOG.info("Loaded segment block cache with " + index.size() + " blocks in " + segments.size() + " segments, total size "
+                + totalSize.get() / 1024 / 1024 + " MiB in " + (t1 - t0) + "ms");
+        ForkJoinPool.commonPool().submit(this::evictInBackground);
+    }
+
+    private List<Integer> listSegments() {
+        try (Stream<Path> files = Files.list(root)) {
+            return files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.endsWith(SEGMENT_SUFFIX))
+                    .map(n -> Integer.parseInt(n.substring(0, n.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Path segmentPath(int id) {
+        return root.resolve(id + SEGMENT_SUFFIX);
+    }
+
+    private Path indexPath(int id) {
+        return root.resolve(id + INDEX_SUFFIX);
+    }
+
+    private void loadIndex(Segment segment, Path indexFile) throws IOException {
+        ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+        while (entries.remaining() >= 16) {
+            long fingerprint = entries.getLong();
+            int offset = entries.getInt();
+            int length = entries.getInt();
+            index.put(fingerprint, segment.id, offset, length);
+        }
+    }
+
+    /** Read every record header in a segment. A partial record at the end of the active segment, from a crash part
+     *  way through a write, is truncated.
+     */
+    private void scan(Segment segment, boolean isActive) throws IOException {
+        long fileSize = segment.channel.size();
+        long pos = 0;
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.file), 64 * 1024))) {
+            while (pos + 8 <= fileSize) {
+                int cidLength = din.readInt();
+                if (cidLength <= 0 || cidLength > 1024 || pos + 8 + cidLength > fileSize)
+                    break;
+                byte[] cid = new byte[cidLength];
+                din.readFully(cid);
+                int dataLength = din.readInt();
+                long recordSize = 8L + cidLength + dataLength;
+                if (dataLength < 0 || pos + recordSize > fileSize)
+                    break;
+                din.skipNBytes(dataLength);
+                long fingerprint = fingerprint(cid);
+                index.put(fingerprint, segment.id, (int) pos, dataLength);
+                if (isActive)
+                    writeEntry(activeEntries, fingerprint, (int) pos, dataLength);
+                pos += recordSize;
+            }
+        }
+        if (pos < fileSize) {
+            LOG.warning("Truncating segment " + segment.file + " from " + fileSize + " to " + pos);
+            segment.channel.truncate(pos);
+        }
+        segment.size = pos;
+    }
+
+    private static void writeEntry(ByteArrayOutputStream out, long fingerprint, int offset, int length) {
+        ByteBuffer entry = ByteBuffer.allocate(16);
+        entry.putLong(fingerprint).putInt(offset).putInt(length);
+        out.write(entry.array(), 0, 16);
+    }
+
+    /** Seal the active segment, if any, and start a new one. */
+    private synchronized void roll() throws IOException {
+        if (active != null) {
+            active.channel.force(false);
+            Path indexFile = indexPath(active.id);
+            Path tmp = root.resolve(active.id + INDEX_SUFFIX + ".tmp");
+            Files.write(tmp, activeEntries.toByteArray());
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        Segment next = Segment.open(id, segmentPath(id));
+        segments.put(id, next);
+        active = next;
+        activeEntries = new ByteArrayOutputStream();
+    }
+
+    @Override
+    public long getMaxSize() {
+        return maxSizeBytes;
+    }
+
+    @Override
+    public void setMaxSize(long maxSizeBytes) {
+        this.maxSizeBytes = maxSizeBytes;
+        FileBlockCache.writeMaxSize(root, maxSizeBytes);
+        ForkJoinPool.commonPool().submit(this::evictInBackground);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> get(Cid hash) {
+        if (hash.isIdentity())
+            return Futures.of(Optional.of(hash.getHash()));
+        byte[] cid = hash.toBytes();
+        Optional<Location> loc = index.get(fingerprint(cid));
+        if (loc.isEmpty())
+            return Futures.of(Optional.empty());
+        Segment segment = segments.get(loc.get().segment);
+        if (segment == null)
+            return Futures.of(Optional.empty());
+        ByteBuffer record;
+        try {
+            record = readRecord(segment, loc.get().offset, 8 + cid.length + loc.get().length);
+        } catch (IOException e) {
+            // the segment was evicted underneath us
+            return Futures.of(Optional.empty());
+        }
+        if (record == null || record.getInt() != cid.length)
+            return Futures.of(Optional.empty());
+        byte[] storedCid = new byte[cid.length];
+        record.get(storedCid);
+        if (! Arrays.equals(cid, storedCid) || record.getInt() != loc.get().length)
+            return Futures.of(Optional.empty()); // fingerprint collision
+        byte[] data = new byte[loc.get().length];
+        record.get(data);
+        index.touch(fingerprint(cid));
+        return Futures.of(Optional.of(data));
+    }
+
+    @Override
+    public boolean hasBlock(Cid hash) {
+        return index.get(fingerprint(hash.toBytes())).isPresent();
+    }
+
+    @Override
+    public CompletableFuture<Boolean> put(Cid hash, byte[] data) {
+        if (hash.isIdentity())
+            return Futures.of(true);
+        byte[] cid = hash.toBytes();
+        long fingerprint = fingerprint(cid);
+        try {
+            synchronized (this) {
+                if (index.get(fingerprint).isPresent())
+                    return Futures.of(true);
+                ByteBuffer record = ByteBuffer.allocate(8 + cid.length + data.length);
+                record.putInt(cid.length).put(cid).putInt(data.length).put(data);
+                record.flip();
+                append(fingerprint, record, data.length);
+            }
+        } catch (IOException e) {
+            String msg = e.getMessage();
+            if (msg != null && msg.toLowerCase(Locale.ROOT).contains("space")) {
+                LOG.info("Clearing block cache after running out of space...");
+                clear();
+                return Futures.of(false);
+            }
+            throw new RuntimeException(msg, e);
+        }
+        if (totalSize.get() > maxSizeBytes && ! evictionLock.isLocked())
+            ForkJoinPool.commonPool().submit(this::evictInBackground);
+        return Futures.of(true);
+    }
+
+    /** Append a complete record to the active segment, rolling to a new segment if it is full. */
+    private synchronized void append(long fingerprint, ByteBuffer record, int dataLength) throws IOException {
+        long offset = active.size;
+        long pos = offset;
+        while (record.hasRemaining())
+            pos += active.channel.write(record, pos);
+        active.size = pos;
+        index.put(fingerprint, active.id, (int) offset, dataLength);
+        writeEntry(activeEntries, fingerprint, (int) offset, dataLength);
+        totalSize.addAndGet(pos - offset);
+        if (active.size >= segmentSize)
+            roll();
+    }
+
+    /** @return the flipped record, or null if the segment ends before it */
+    private static ByteBuffer readRecord(Segment segment, long offset, int recordSize) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        long pos = offset;
+        while (record.hasRemaining()) {
+            int read = segment.channel.read(record, pos);
+            if (read < 0)
+                return null;
+            pos += read;
+        }
+        record.flip();
+        return record;
+    }
+
+    public long getTotalSize() {
+        return totalSize.get();
+    }
+
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    private void evictInBackground() {
+        if (! evictionLock.tryLock())
+            return; // already in progress
+        try {
+            evict();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /** Reclaim the oldest segments, keeping any blocks read since they were written, until we are within the size limit. */
+    public void ensureWithinSizeLimit() {
+        evictionLock.lock();
+        try {
+            evict();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void evict() {
+        try {
+            while (totalSize.get() > maxSizeBytes) {
+                Segment victim;
+                List<long[]> referenced;
+                synchronized (this) {
+                    if (segments.size() < 2)
+                        return; // never evict the active segment
+                    victim = segments.firstEntry().getValue();
+                    referenced = index.removeSegment(victim.id);
+                    // give referenced blocks a second chance at the head of the log
+                    for (long[] entry : referenced) {
+                        int dataLength = (int) entry[2];
+                        ByteBuffer header = readRecord(victim, entry[1], 4);
+                        if (header == null)
+                            continue;
+                        ByteBuffer record = readRecord(victim, entry[1], 8 + header.getInt() + dataLength);
+                        if (record != null)
+                            append(entry[0], record, dataLength);
+                    }
+                    segments.remove(victim.id);
+                }
+                victim.delete(indexPath(victim.id));
+                totalSize.addAndGet(-victim.size);
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Error evicting from segment block cache", e);
+        }
+    }
+
+    @Override
+    public synchronized CompletableFuture<Boolean> clear() {
+        try {
+            for (Segment segment : segments.values()) {
+                index.removeSegment(segment.id);
+                segment.delete(indexPath(segment.id));
+                totalSize.addAndGet(-segment.size);
+            }
+            segments.clear();
+            active = null;
+            roll();
+            return Futures.of(true);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** 64 bit FNV-1a */
+    private static long fingerprint(byte[] cid) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : cid) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static final class Segment {
+        private final int id;
+        private final Path file;
+        private final FileChannel channel;
+        private volatile long size;
+
+        private Segment(int id, Path file, FileChannel channel, long size) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        static Segment open(int id, Path file) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(id, file, channel, channel.size());
+        }
+
+        void delete(Path indexFile) throws IOException {
+            channel.close();
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(indexFile);
+        }
+    }
+
+    private static final class Location {
+        final int segment, offset, length;
+
+        Location(int segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /** An open addressing hash table in a direct buffer, 20 bytes per slot: [fingerprint][segment + 1][offset][length].
+     *  A segment of 0 is an empty slot and -1 is a removed one. The top bit of the length is the CLOCK referenced bit.
+     */
+    private static final class OffHeapIndex {
+        private static final int SLOT_SIZE = 20;
+        private static final int EMPTY = 0, REMOVED = -1;
+        private static final int REFERENCED = 0x80000000;
+        private ByteBuffer slots;
+        private int capacity, size, removed;
+
+        OffHeapIndex(int capacity) {
+            this.capacity = capacity;
+            this.slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        }
+
+        private static int mix(long fingerprint) {
+            long h = fingerprint ^ (fingerprint >>> 31);
+            return (int) (h ^ (h >>> 17));
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized Optional<Location> get(long fingerprint) {
+            int slot = find(fingerprint);
+            if (slot < 0)
+                return Optional.empty();
+            int base = slot * SLOT_SIZE;
+            return Optional.of(new Location(slots.getInt(base + 8) - 1, slots.getInt(base + 12),
+                    slots.getInt(base + 16) & ~REFERENCED));
+        }
+
+        synchronized void touch(long fingerprint) {
+            int slot = find(fingerprint);
+            if (slot < 0)
+                return;
+            int base = slot * SLOT_SIZE;
+            slots.putInt(base + 16, slots.getInt(base + 16) | REFERENCED);
+        }
+
+        private int find(long fingerprint) {
+            int mask = capacity - 1;
+            for (int i = mix(fingerprint) & mask, probes = 0; probes < capacity; i = (i + 1) & mask, probes++) {
+                int base = i * SLOT_SIZE;
+                int segment = slots.getInt(base + 8);
+                if (segment == EMPTY)
+                    return -1;
+                if (segment != REMOVED && slots.getLong(base) == fingerprint)
+                    return i;
+            }
+            return -1;
+        }
+
+        synchronized void put(long fingerprint, int segment, int offset, int length) {
+            if ((size + removed + 1) * 10L > capacity * 7L)
+                resize(size * 10L > capacity * 3L ? capacity * 2 : capacity);
+            int slot = find(fingerprint);
+            if (slot < 0) {
+                int mask = capacity - 1;
+                slot = mix(fingerprint) & mask;
+                while (true) {
+                    int existing = slots.getInt(slot * SLOT_SIZE + 8);
+                    if (existing == EMPTY)
+                        break;
+                    if (existing == REMOVED) {
+                        removed--;
+                        break;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                size++;
+            }
+            write(slots, slot, fingerprint, segment + 1, offset, length);
+        }
+
+        private static void write(ByteBuffer slots, int slot, long fingerprint, int segmentPlusOne, int offset, int length) {
+            int base = slot * SLOT_SIZE;
+            slots.putLong(base, fingerprint);
+            slots.putInt(base + 8, segmentPlusOne);
+            slots.putInt(base + 12, offset);
+            slots.putInt(base + 16, length);
+        }
+
+        /** @return the [fingerprint, offset, length] of every removed entry that was referenced */
+        synchronized List<long[]> removeSegment(int segment) {
+            List<long[]> referenced = new ArrayList<>();
+            for (int i = 0; i < capacity; i++) {
+                int base = i * SLOT_SIZE;
+                if (slots.getInt(base + 8) == segment + 1) {
+                    int length = slots.getInt(base + 16);
+                    if ((length & REFERENCED) != 0)
+                        referenced.add(new long[]{slots.getLong(base), slots.getInt(base + 12), length & ~REFERENCED});
+                    slots.putInt(base + 8, REMOVED);
+                    size--;
+                    removed++;
+                }
+            }
+            return referenced;
+        }
+
+        private void resize(int newCapacity) {
+            ByteBuffer old = slots;
+            int oldCapacity = capacity;
+            slots = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+            capacity = newCapacity;
+            removed = 0;
+            int mask = newCapacity - 1;
+            for (int i = 0; i < oldCapacity; i++) {
+                int base = i * SLOT_SIZE;
+                int segment = old.getInt(base + 8);
+                if (segment == EMPTY || segment == REMOVED)
+                    continue;
+                long fingerprint = old.getLong(base);
+                int slot = mix(fingerprint) & mask;
+                while (slots.getInt(slot * SLOT_SIZE + 8) != EMPTY)
+                    slot = (slot + 1) & mask;
+                write(slots, slot, fingerprint, segment, old.getInt(base + 12), old.getInt(base + 16));
+            }
+        }
+    }
+}
@@ -28,6 +28,7 @@ public class SqliteBlockReachability {
             "child integer references reachability(idx) not null" +
             ");" +
             "CREATE UNIQUE INDEX IF NOT EXISTS links_index ON links (parent, child);" +
+            "CREATE INDEX IF NOT EXISTS links_child_index ON links (child);" +
             "CREATE TABLE IF NOT EXISTS emptylinks (" +
             "parent integer references reachability(idx) not null primary key" +
             ");";
@@ -53,6 +54,12 @@ public class SqliteBlockReachability {
     private static final String DELETE_EMPTY_LINKS = "DELETE FROM emptylinks WHERE parent=?";
     private static final String DELETE_BLOCK = "DELETE FROM reachability WHERE hash=? AND version=?";
     private static final String EMPTY_LINKS = "SELECT COUNT(*) FROM emptylinks WHERE parent=?";
+    private static final String IS_REACHABLE = "SELECT reachable FROM reachability WHERE hash=? AND latest=true";
+    private static final String REACHABLE_PARENTS = "SELECT p.hash FROM links l " +
+            "INNER JOIN reachability p ON l.parent = p.idx " +
+            "INNER JOIN reachability c ON l.child = c.idx " +
+            "WHERE c.hash = ? AND p.reachable = true";
+    private static final String VERSIONS = "SELECT hash, version FROM reachability WHERE hash=?";
 
     private final Supplier<Connection> conn;
     private final SqlSupplier cmds;
@@ -347,6 +354,82 @@ public class SqliteBlockReachability {
         }
     }
 
+    /** Add blocks which weren't in the blockstore listing, e.g. they were written after it, so their links can be
+     *  recorded. Blocks which are already present are ignored.
+     */
+    public synchronized void addUnlisted(List<Cid> blocks) {
+        List<BlockVersion> absent = blocks.stream()
+                .distinct()
+                .filter(b -> ! hasBlock(b))
+                .map(b -> new BlockVersion(b, null, true))
+                .toList();
+        addBlocks(absent);
+    }
+
+    public synchronized boolean hasBlock(Cid block) {
+        try {
+            getBlockIndex(block);
+            return true;
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+
+    /** Record the links of a block, first adding it and its children if they weren't listed */
+    public synchronized void setLinksOfUnlisted(Cid block, List<Cid> links) {
+        addUnlisted(Stream.concat(Stream.of(block), links.stream()).toList());
+        setLinks(block, links);
+    }
+
+    /**
+     * @return true if the latest version of this block was marked reachable
+     */
+    public synchronized boolean isReachable(Cid block) {
+        try (Connection conn = getConnection();
+             PreparedStatement query = conn.prepareStatement(IS_REACHABLE)) {
+            query.setBytes(1, block.toBytes());
+            ResultSet res = query.executeQuery();
+            return res.next() && res.getBoolean(1);
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    /**
+     * @return true if any recorded parent of this block, other than those excluded, is marked reachable
+     */
+    public synchronized boolean hasReachableParent(Cid block, Set<Cid> excluded) {
+        try (Connection conn = getConnection();
+             PreparedStatement query = conn.prepareStatement(REACHABLE_PARENTS)) {
+            query.setBytes(1, block.toBytes());
+            ResultSet res = query.executeQuery();
+            while (res.next()) {
+                if (! excluded.contains(Cid.cast(res.getBytes(1))))
+                    return true;
+            }
+            return false;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    public synchronized List<BlockVersion> getVersions(Cid block) {
+        try (Connection conn = getConnection();
+             PreparedStatement query = conn.prepareStatement(VERSIONS)) {
+            query.setBytes(1, block.toBytes());
+            ResultSet res = query.executeQuery();
+            List<BlockVersion> versions = new ArrayList<>();
+            while (res.next())
+                versions.add(new BlockVersion(Cid.cast(res.getBytes(1)), res.getString(2), false));
+            return versions;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
     public synchronized Optional<List<Cid>> getLinks(Cid block) {
         long index;
         try {
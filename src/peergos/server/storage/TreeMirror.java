@@ -0,0 +1,178 @@
+package peergos.server.storage;
+
+import peergos.server.util.*;
+import peergos.shared.io.ipfs.Cid;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** Copies every block in a set of merkle trees using a fixed number of workers.
+ *
+ *  Workers take batches of up to BATCH_SIZE blocks from a shared stack of pending blocks, fetch them (the fetcher is
+ *  expected to skip blocks that are already present) and push their children. If a frontier file is given, the pending
+ *  and in progress blocks are saved to it periodically and on failure, and a later mirror of the same roots finishes
+ *  those first. Blocks fetched before a restart are not in any transaction, so they may since have been garbage
+ *  collected; the later mirror therefore still walks from the roots, only skipping the subtrees it has itself just
+ *  walked from the saved frontier.
+ */
+public class TreeMirror {
+    private static final Logger LOG = Logging.LOG();
+
+    public static final int BATCH_SIZE = 100;
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 30_000;
+
+    private final int parallelism;
+    private final Optional<Path> frontierFile;
+    private final Deque<Cid> pending = new ArrayDeque<>();
+    private final Set<List<Cid>> inProgress = Collections.newSetFromMap(new IdentityHashMap<>());
+    private Throwable firstError;
+    private long lastCheckpoint = System.currentTimeMillis();
+    private long batchesDone = 0;
+
+    public TreeMirror(int parallelism, Optional<Path> frontierFile) {
+        this.parallelism = parallelism;
+        this.frontierFile = frontierFile;
+    }
+
+    /**
+     *
+     * @param roots The blocks to mirror along with everything they link to
+     * @param fetch Retrieves a batch of blocks, storing any that are missing locally, and returns their metadata
+     */
+    public void mirror(List<Cid> roots, Function<List<Cid>, List<BlockMetadata>> fetch) {
+        Optional<List<Cid>> saved = frontierFile.flatMap(TreeMirror::loadFrontier);
+        if (saved.isPresent()) {
+            walk(saved.get(), Collections.emptySet(), fetch);
+            walk(roots, new HashSet<>(saved.get()), fetch);
+        } else
+            walk(roots, Collections.emptySet(), fetch);
+        frontierFile.ifPresent(f -> {
+            try {
+                Files.deleteIfExists(f);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Couldn't remove mirror frontier " + f, e);
+            }
+        });
+    }
+
+    /**
+     *
+     * @param start The blocks to walk from
+     * @param complete Blocks whose subtrees have already been walked in this mirror, and so are skipped
+     */
+    private void walk(List<Cid> start, Set<Cid> complete, Function<List<Cid>, List<BlockMetadata>> fetch) {
+        synchronized (this) {
+            start.stream()
+                    .filter(c -> !c.isIdentity() && ! complete.contains(c))
+                    .forEach(pending::push);
+        }
+        List<Thread> workers = IntStream.range(0, parallelism)
+                .mapToObj(i -> Thread.ofVirtual().start(() -> work(complete, fetch)))
+                .collect(Collectors.toList());
+        for (Thread t : workers) {
+            try { t.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+        if (firstError != null) {
+            saveFrontier();
+            throw new RuntimeException("Mirror failed", firstError);
+        }
+    }
+
+    private void work(Set<Cid> complete, Function<List<Cid>, List<BlockMetadata>> fetch) {
+        while (true) {
+            List<Cid> batch = new ArrayList<>(BATCH_SIZE);
+            synchronized (this) {
+                while (pending.isEmpty() && ! inProgress.isEmpty() && firstError == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (firstError != null || pending.isEmpty()) {
+                    notifyAll();
+                    return;
+                }
+                while (! pending.isEmpty() && batch.size() < BATCH_SIZE)
+                    batch.add(pending.pop());
+                inProgress.add(batch);
+            }
+            try {
+                List<BlockMetadata> fetched = fetch.apply(batch);
+                boolean checkpoint;
+                synchronized (this) {
+                    for (BlockMetadata meta : fetched)
+                        for (Cid link : meta.links)
+                            if (! link.isIdentity() && ! complete.contains(link))
+                                pending.push(link);
+                    inProgress.remove(batch);
+                    batchesDone++;
+                    long now = System.currentTimeMillis();
+                    checkpoint = frontierFile.isPresent() && now - lastCheckpoint > CHECKPOINT_INTERVAL_MILLIS;
+                    if (checkpoint)
+                        lastCheckpoint = now;
+                    notifyAll();
+                }
+                if (checkpoint)
+                    saveFrontier();
+            } catch (Throwable t) {
+                // leave the batch in progress so it is included in the saved frontier
+                synchronized (this) {
+                    if (firstError == null)
+                        firstError = t;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    public synchronized long batchesDone() {
+        return batchesDone;
+    }
+
+    private void saveFrontier() {
+        if (frontierFile.isEmpty())
+            return;
+        List<Cid> frontier;
+        synchronized (this) {
+            frontier = new ArrayList<>(pending);
+            inProgress.forEach(frontier::addAll);
+        }
+        Path file = frontierFile.get();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            Files.write(tmp, frontier.stream()
+                    .map(Cid::toString)
+                    .collect(Collectors.toList()), StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Couldn't save mirror frontier " + file, e);
+        }
+    }
+
+    private static Optional<List<Cid>> loadFrontier(Path file) {
+        if (! Files.exists(file))
+            return Optional.empty();
+        try {
+            List<Cid> frontier = Files.readAllLines(file, StandardCharsets.UTF_8).stream()
+                    .filter(line -> ! line.isEmpty())
+                    .map(Cid::decode)
+                    .collect(Collectors.toList());
+            LOG.info("Resuming mirror with " + frontier.size() + " blocks left to walk, before checking the rest of the tree");
+            // the saved frontier is in stack order, top first
+            Collections.reverse(frontier);
+            return Optional.of(frontier);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Ignoring unreadable mirror frontier " + file, e);
+            return Optional.empty();
+        }
+    }
+}
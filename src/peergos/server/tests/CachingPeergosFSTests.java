@@ -0,0 +1,255 @@
+package peergos.server.tests;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.fuse.*;
+import peergos.server.util.Args;
+import peergos.shared.*;
+import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
+import ru.serce.jnrfuse.ErrorCodes;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Exercises the chunk cache and write back of CachingPeergosFS directly, without mounting anything. */
+public class CachingPeergosFSTests {
+
+    private static NetworkAccess network;
+    private static Crypto crypto;
+    private static Args args;
+    private static Random random = new Random(666);
+
+    @BeforeClass
+    public static void init() throws Exception {
+        crypto = Main.initCrypto();
+        args = UserTests.buildArgs().with("useIPFS", "false");
+        Main.PKI_INIT.main(args);
+        network = Builder.buildLocalJavaNetworkAccess(args.getInt("port")).get();
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        Path peergosDir = args.fromPeergosDir("", "");
+        UserTests.deleteFiles(peergosDir.toFile());
+    }
+
+    private String generateUsername() {
+        return "fuse-test" + Math.abs(random.nextInt() % 1_000_000);
+    }
+
+    private static Pointer buffer(int size) {
+        return Memory.allocate(jnr.ffi.Runtime.getSystemRuntime(), size);
+    }
+
+    @Test
+    public void randomReadsMatchUncached() throws Exception {
+        String username = generateUsername();
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, "testpassword", network, crypto);
+        byte[] data = new byte[3 * Chunk.MAX_SIZE + 12345];
+        random.nextBytes(data);
+        context.getUserRoot().join().uploadOrReplaceFile("random.bin", AsyncReader.build(data), data.length,
+                context.network, crypto, () -> false, x -> {}).join();
+        String path = "/" + username + "/random.bin";
+
+        // room for two chunks, so reads across the file evict each other
+        CachingPeergosFS cached = new CachingPeergosFS(context, 2 * Chunk.MAX_SIZE, 60_000);
+        PeergosFS uncached = new PeergosFS(context);
+        for (int i=0; i < 50; i++) {
+            int offset = random.nextInt(data.length);
+            int size = 1 + random.nextInt(256 * 1024);
+            Pointer p = buffer(size);
+            int read = cached.read(path, p, size, offset, null);
+            Assert.assertEquals(Math.min(size, data.length - offset), read);
+            byte[] result = new byte[read];
+            p.get(0, result, 0, read);
+            Assert.assertArrayEquals(Arrays.copyOfRange(data, offset, offset + read), result);
+
+            Pointer q = buffer(size);
+            Assert.assertEquals(read, uncached.read(path, q, size, offset, null));
+            byte[] direct = new byte[read];
+            q.get(0, direct, 0, read);
+            Assert.assertArrayEquals(direct, result);
+        }
+        cached.close();
+    }
+
+    @Test
+    public void smallWritesAreCoalesced() throws Exception {
+        String username = generateUsername();
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, "testpassword", network, crypto);
+        String path = "/" + username + "/written.bin";
+        CachingPeergosFS fs = new CachingPeergosFS(context, 16 * Chunk.MAX_SIZE, 60_000);
+        Assert.assertEquals(0, fs.create(path, 0, null));
+
+        // sequential 4 KiB writes across a chunk boundary
+        byte[] expected = new byte[Chunk.MAX_SIZE + 100 * 1024];
+        random.nextBytes(expected);
+        int blockSize = 4096;
+        for (int offset = 0; offset < expected.length; offset += blockSize) {
+            int size = Math.min(blockSize, expected.length - offset);
+            Pointer p = buffer(size);
+            p.put(0, expected, offset, size);
+            Assert.assertEquals(size, fs.write(path, p, size, offset, null));
+        }
+        // nothing is uploaded until we flush
+        Assert.assertEquals(0, context.getByPath(path).join().get().getSize());
+
+        // overwrite a few ranges in place, which are visible to reads before they are written back
+        for (int i=0; i < 10; i++) {
+            int offset = random.nextInt(expected.length - blockSize);
+            byte[] update = new byte[blockSize];
+            random.nextBytes(update);
+            System.arraycopy(update, 0, expected, offset, blockSize);
+            Pointer p = buffer(blockSize);
+            p.put(0, update, 0, blockSize);
+            fs.write(path, p, blockSize, offset, null);
+        }
+        Pointer all = buffer(expected.length);
+        Assert.assertEquals(expected.length, fs.read(path, all, expected.length, 0, null));
+        byte[] beforeSync = new byte[expected.length];
+        all.get(0, beforeSync, 0, expected.length);
+        Assert.assertArrayEquals(expected, beforeSync);
+
+        Assert.assertEquals(0, fs.flush(path, null));
+        FileWrapper file = context.getByPath(path).join().get();
+        Assert.assertEquals(expected.length, file.getSize());
+        byte[] stored = Serialize.readFully(file.getInputStream(context.network, crypto, x -> {}).join(), expected.length).join();
+        Assert.assertArrayEquals(expected, stored);
+        fs.close();
+    }
+
+    @Test
+    public void flushWaitsForBackgroundWriteBack() throws Exception {
+        String username = generateUsername();
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, "testpassword", network, crypto);
+        String path = "/" + username + "/synced.bin";
+        // write back in the background every 5ms, so it is often part way through an upload when we flush
+        CachingPeergosFS fs = new CachingPeergosFS(context, 16 * Chunk.MAX_SIZE, 5);
+        Assert.assertEquals(0, fs.create(path, 0, null));
+
+        byte[] expected = new byte[256 * 1024];
+        Pointer p = buffer(expected.length);
+        for (int i=0; i < 10; i++) {
+            random.nextBytes(expected);
+            p.put(0, expected, 0, expected.length);
+            Assert.assertEquals(expected.length, fs.write(path, p, expected.length, 0, null));
+            Thread.sleep(random.nextInt(10));
+            Assert.assertEquals(0, fs.flush(path, null));
+            // once a flush returns, everything written before it is stored, and not overwritten by an older version
+            FileWrapper file = context.getByPath(path).join().get();
+            Assert.assertEquals(expected.length, file.getSize());
+            byte[] stored = Serialize.readFully(file.getInputStream(context.network, crypto, x -> {}).join(), expected.length).join();
+            Assert.assertArrayEquals(expected, stored);
+        }
+
+        // concurrent flushes of the same file
+        random.nextBytes(expected);
+        p.put(0, expected, 0, expected.length);
+        Assert.assertEquals(expected.length, fs.write(path, p, expected.length, 0, null));
+        ExecutorService flushers = Executors.newFixedThreadPool(4);
+        List<Future<Integer>> flushes = new ArrayList<>();
+        for (int i=0; i < 4; i++)
+            flushes.add(flushers.submit(() -> fs.fsync(path, 0, null)));
+        for (Future<Integer> flush : flushes)
+            Assert.assertEquals(0, (int) flush.get());
+        flushers.shutdown();
+        FileWrapper file = context.getByPath(path).join().get();
+        byte[] stored = Serialize.readFully(file.getInputStream(context.network, crypto, x -> {}).join(), expected.length).join();
+        Assert.assertArrayEquals(expected, stored);
+        fs.close();
+    }
+
+    @Test
+    public void evictionDuringFailedWriteBackKeepsChanges() throws Exception {
+        String username = generateUsername();
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, "testpassword", network, crypto);
+        byte[] other = new byte[Chunk.MAX_SIZE];
+        random.nextBytes(other);
+        context.getUserRoot().join().uploadOrReplaceFile("other.bin", AsyncReader.build(other), other.length,
+                context.network, crypto, () -> false, x -> {}).join();
+        String otherPath = "/" + username + "/other.bin";
+        String path = "/" + username + "/pinned.bin";
+
+        CountDownLatch uploading = new CountDownLatch(1);
+        CountDownLatch failUpload = new CountDownLatch(1);
+        boolean[] failUploads = {true};
+        // room for one chunk, so reading another file evicts everything else it can
+        CachingPeergosFS fs = new CachingPeergosFS(context, Chunk.MAX_SIZE, 60_000) {
+            @Override
+            public int write(PeergosStat parent, String name, byte[] toWrite, long size, long offset) {
+                if (! failUploads[0])
+                    return super.write(parent, name, toWrite, size, offset);
+                uploading.countDown();
+                try {
+                    failUpload.await();
+                } catch (InterruptedException e) {}
+                return -ErrorCodes.EIO();
+            }
+        };
+        Assert.assertEquals(0, fs.create(path, 0, null));
+        byte[] expected = new byte[100 * 1024];
+        random.nextBytes(expected);
+        Pointer p = buffer(expected.length);
+        p.put(0, expected, 0, expected.length);
+        Assert.assertEquals(expected.length, fs.write(path, p, expected.length, 0, null));
+
+        CompletableFuture<Integer> sync = CompletableFuture.supplyAsync(() -> fs.fsync(path, 0, null));
+        uploading.await();
+        // the chunk being written back is clean, but mustn't be evicted and reloaded from the network
+        Pointer otherBuf = buffer(other.length);
+        Assert.assertEquals(other.length, fs.read(otherPath, otherBuf, other.length, 0, null));
+        Pointer during = buffer(expected.length);
+        Assert.assertEquals(expected.length, fs.read(path, during, expected.length, 0, null));
+        byte[] duringWriteBack = new byte[expected.length];
+        during.get(0, duringWriteBack, 0, expected.length);
+        Assert.assertArrayEquals(expected, duringWriteBack);
+
+        failUpload.countDown();
+        Assert.assertNotEquals(0, (int) sync.join());
+
+        // the failed upload left the chunk dirty, so the next flush stores it
+        failUploads[0] = false;
+        Assert.assertEquals(0, fs.flush(path, null));
+        FileWrapper file = context.getByPath(path).join().get();
+        Assert.assertEquals(expected.length, file.getSize());
+        byte[] stored = Serialize.readFully(file.getInputStream(context.network, crypto, x -> {}).join(), expected.length).join();
+        Assert.assertArrayEquals(expected, stored);
+        fs.close();
+    }
+
+    @Test
+    public void renamedDirectoryKeepsUnwrittenChanges() throws Exception {
+        String username = generateUsername();
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, "testpassword", network, crypto);
+        CachingPeergosFS fs = new CachingPeergosFS(context, 16 * Chunk.MAX_SIZE, 60_000);
+        String dir = "/" + username + "/dir";
+        Assert.assertEquals(0, fs.mkdir(dir, 0));
+        Assert.assertEquals(0, fs.create(dir + "/file.bin", 0, null));
+
+        byte[] expected = new byte[100 * 1024];
+        random.nextBytes(expected);
+        Pointer p = buffer(expected.length);
+        p.put(0, expected, 0, expected.length);
+        Assert.assertEquals(expected.length, fs.write(dir + "/file.bin", p, expected.length, 0, null));
+
+        // the write is still only in the cache when the directory is renamed
+        String renamed = "/" + username + "/renamed";
+        Assert.assertEquals(0, fs.rename(dir, renamed));
+        Assert.assertEquals(0, fs.flush(renamed + "/file.bin", null));
+        FileWrapper file = context.getByPath(renamed + "/file.bin").join().get();
+        Assert.assertEquals(expected.length, file.getSize());
+        byte[] stored = Serialize.readFully(file.getInputStream(context.network, crypto, x -> {}).join(), expected.length).join();
+        Assert.assertArrayEquals(expected, stored);
+
+        // truncating by path writes back and drops the cached chunks first
+        Assert.assertEquals(expected.length, fs.write(renamed + "/file.bin", p, expected.length, expected.length, null));
+        Assert.assertEquals(0, fs.truncate(renamed + "/file.bin", 1000));
+        Assert.assertEquals(1000, context.getByPath(renamed + "/file.bin").join().get().getSize());
+        fs.close();
+    }
+}
@@ -3,6 +3,7 @@ package peergos.server.tests;
 import org.junit.*;
 import peergos.shared.cbor.*;
 import peergos.shared.io.ipfs.Multihash;
+import peergos.shared.storage.BlockWriteGroup;
 import peergos.shared.user.fs.AsyncReader;
 import peergos.shared.util.*;
 
@@ -129,6 +130,48 @@ public class CborObjects {
         Assert.assertEquals(objects, parsed);
     }
 
+    @Test
+    public void blockWriteGroupStreamsItemsInOrder() throws Exception {
+        List<byte[]> blocks = List.of(random(1000), random(200_000), random(10));
+        List<byte[]> signatures = List.of(random(64), random(64), random(64));
+        byte[] raw = new BlockWriteGroup(blocks, signatures).serialize();
+
+        List<String> seen = new ArrayList<>();
+        BlockWriteGroup read = BlockWriteGroup.read(new ByteArrayInputStream(raw), 1024 * 1024,
+                (i, b) -> {
+                    Assert.assertArrayEquals(blocks.get(i), b);
+                    seen.add("b" + i);
+                },
+                (i, sig) -> {
+                    Assert.assertArrayEquals(signatures.get(i), sig);
+                    seen.add("s" + i);
+                });
+        Assert.assertEquals(List.of("b0", "b1", "b2", "s0", "s1", "s2"), seen);
+        Assert.assertArrayEquals(raw, read.serialize());
+
+        try {
+            BlockWriteGroup.read(new ByteArrayInputStream(raw), 100_000, (i, b) -> {}, (i, sig) -> {});
+            Assert.fail("An oversized block should be rejected");
+        } catch (IOException expected) {}
+    }
+
+    @Test
+    public void parseSizedStreamUsesEncodedSizes() {
+        // 5 and 7 in non canonical, longer than necessary, encodings, then a canonical byte string
+        byte[] serialized = ArrayOps.hexToBytes("1805" + "190007" + "43010203");
+
+        List<CborObject> parsed = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        new AsyncReader.ArrayBacked(serialized).parseSizedStream(c -> (CborObject) c, (c, size) -> {
+            parsed.add(c);
+            sizes.add(size);
+        }, serialized.length).join();
+
+        Assert.assertEquals(Arrays.asList(new CborObject.CborLong(5), new CborObject.CborLong(7),
+                new CborObject.CborByteArray(new byte[] {1, 2, 3})), parsed);
+        Assert.assertEquals(Arrays.asList(2, 3, 4), sizes);
+    }
+
     public void compatibleAndIdempotentSerialization(CborObject value) {
         byte[] raw = value.toByteArray();
         CborObject deserialized = CborObject.fromByteArray(raw);
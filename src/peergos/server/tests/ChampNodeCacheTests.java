@@ -0,0 +1,153 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.Cid;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class ChampNodeCacheTests {
+    private static final Crypto crypto = Main.initCrypto();
+
+    private static Set<ByteArrayWrapper> asSet(List<byte[]> blocks) {
+        return blocks.stream()
+                .map(ByteArrayWrapper::new)
+                .collect(Collectors.toSet());
+    }
+
+    @Test
+    public void matchesUncachedLookup() {
+        RAMStorage storage = new RAMStorage(crypto.hasher);
+        SigningPrivateKeyAndPublicHash user = ChampTests.createUser(storage, crypto);
+        PublicKeyHash owner = user.publicKeyHash;
+        Random r = new Random(42);
+
+        TransactionId tid = storage.startTransaction(owner).join();
+        ChampWrapper<CborObject.CborMerkleLink> champ = ChampWrapper.create(owner, user, x -> Futures.of(x.data), tid,
+                storage, crypto.hasher, c -> (CborObject.CborMerkleLink) c).join();
+        List<byte[]> keys = new ArrayList<>();
+        Cid root = null;
+        for (int i=0; i < 500; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            keys.add(key);
+            byte[] value = new CborObject.CborString("value" + i).serialize();
+            Cid valueCid = storage.put(owner, user, value, crypto.hasher, tid).join();
+            root = (Cid) champ.put(owner, user, key, Optional.empty(), new CborObject.CborMerkleLink(valueCid), Optional.empty(), tid).join();
+        }
+        storage.closeTransaction(owner, tid).join();
+
+        ChampNodeCache cache = new ChampNodeCache(10 * 1024 * 1024);
+        List<ChunkMirrorCap> caps = keys.subList(0, 10).stream()
+                .map(k -> new ChunkMirrorCap(k, Optional.empty()))
+                .collect(Collectors.toList());
+        Set<ByteArrayWrapper> expected = asSet(storage.getChampLookup(owner, root, caps, Optional.empty()).join());
+
+        Assert.assertFalse(cache.contains(owner, root));
+        Assert.assertEquals(expected, asSet(cache.getChampLookup(storage, owner, root, caps, crypto.hasher).join()));
+        Assert.assertTrue(cache.contains(owner, root));
+
+        long hitsBefore = cache.hits();
+        Assert.assertEquals(expected, asSet(cache.getChampLookup(storage, owner, root, caps, crypto.hasher).join()));
+        Assert.assertTrue(cache.hits() > hitsBefore);
+
+        // a cached root with an uncached subtree falls through to the storage for the missing nodes
+        List<ChunkMirrorCap> others = keys.subList(10, 20).stream()
+                .map(k -> new ChunkMirrorCap(k, Optional.empty()))
+                .collect(Collectors.toList());
+        Assert.assertEquals(asSet(storage.getChampLookup(owner, root, others, Optional.empty()).join()),
+                asSet(cache.getChampLookup(storage, owner, root, others, crypto.hasher).join()));
+    }
+
+    @Test
+    public void cachedRootIsStillCheckedLocally() {
+        RAMStorage ram = new RAMStorage(crypto.hasher);
+        // like the real block stores, only answer lookups from a root that is present locally
+        ContentAddressedStorage storage = new DelegatingStorage(ram) {
+            @Override
+            public ContentAddressedStorage directToOrigin() {
+                return this;
+            }
+
+            @Override
+            public CompletableFuture<List<byte[]>> getChampLookup(PublicKeyHash owner, Cid root, List<ChunkMirrorCap> caps, Optional<Cid> committedRoot) {
+                if (ram.getAllBlockHashes(owner, false).noneMatch(p -> p.right.equals(root)))
+                    return Futures.errored(new IllegalStateException("Champ root not present locally: " + root));
+                return super.getChampLookup(owner, root, caps, committedRoot);
+            }
+        };
+        SigningPrivateKeyAndPublicHash user = ChampTests.createUser(ram, crypto);
+        PublicKeyHash owner = user.publicKeyHash;
+        SigningPrivateKeyAndPublicHash other = ChampTests.createUser(ram, crypto);
+        Random r = new Random(3);
+
+        TransactionId tid = ram.startTransaction(owner).join();
+        ChampWrapper<CborObject.CborMerkleLink> champ = ChampWrapper.create(owner, user, x -> Futures.of(x.data), tid,
+                ram, crypto.hasher, c -> (CborObject.CborMerkleLink) c).join();
+        byte[] key = new byte[32];
+        r.nextBytes(key);
+        Cid valueCid = ram.put(owner, user, new CborObject.CborString("value").serialize(), crypto.hasher, tid).join();
+        Cid root = (Cid) champ.put(owner, user, key, Optional.empty(), new CborObject.CborMerkleLink(valueCid), Optional.empty(), tid).join();
+        ram.closeTransaction(owner, tid).join();
+
+        ChampNodeCache cache = new ChampNodeCache(10 * 1024 * 1024);
+        List<ChunkMirrorCap> caps = List.of(new ChunkMirrorCap(key, Optional.empty()));
+        cache.getChampLookup(storage, owner, root, caps, crypto.hasher).join();
+        Assert.assertTrue(cache.contains(owner, root));
+
+        // the root is only cached for the owner it was looked up under
+        Assert.assertFalse(cache.contains(other.publicKeyHash, root));
+        try {
+            cache.getChampLookup(storage, other.publicKeyHash, root, caps, crypto.hasher).join();
+            Assert.fail("Lookup of another owner's root should fail");
+        } catch (CompletionException expected) {}
+
+        // once the root has gone, e.g. after a GC, the cached nodes are not served
+        ram.delete(owner, root);
+        try {
+            cache.getChampLookup(storage, owner, root, caps, crypto.hasher).join();
+            Assert.fail("Lookup of a deleted root should fail");
+        } catch (CompletionException expected) {}
+        Assert.assertFalse(cache.contains(owner, root));
+    }
+
+    @Test
+    public void sizeIsBounded() {
+        RAMStorage storage = new RAMStorage(crypto.hasher);
+        SigningPrivateKeyAndPublicHash user = ChampTests.createUser(storage, crypto);
+        PublicKeyHash owner = user.publicKeyHash;
+        Random r = new Random(7);
+
+        TransactionId tid = storage.startTransaction(owner).join();
+        ChampWrapper<CborObject.CborMerkleLink> champ = ChampWrapper.create(owner, user, x -> Futures.of(x.data), tid,
+                storage, crypto.hasher, c -> (CborObject.CborMerkleLink) c).join();
+        List<Cid> roots = new ArrayList<>();
+        List<byte[]> keys = new ArrayList<>();
+        for (int i=0; i < 200; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            keys.add(key);
+            byte[] value = new CborObject.CborString("value" + i).serialize();
+            Cid valueCid = storage.put(owner, user, value, crypto.hasher, tid).join();
+            roots.add((Cid) champ.put(owner, user, key, Optional.empty(), new CborObject.CborMerkleLink(valueCid), Optional.empty(), tid).join());
+        }
+        storage.closeTransaction(owner, tid).join();
+
+        long maxBytes = 16 * 1024;
+        ChampNodeCache cache = new ChampNodeCache(maxBytes);
+        for (int i=0; i < roots.size(); i++)
+            cache.getChampLookup(storage, owner, roots.get(i), List.of(new ChunkMirrorCap(keys.get(i), Optional.empty())), crypto.hasher).join();
+        Assert.assertTrue(cache.size() > 0);
+        Assert.assertTrue(cache.totalBytes() <= maxBytes);
+    }
+}
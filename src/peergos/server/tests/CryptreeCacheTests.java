@@ -0,0 +1,64 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.io.ipfs.Cid;
+import peergos.shared.io.ipfs.Multihash;
+import peergos.shared.util.*;
+
+import java.util.*;
+
+public class CryptreeCacheTests {
+
+    private static Multihash root(int i) {
+        return new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, RAMStorage.hash(("root" + i).getBytes()));
+    }
+
+    private static ByteArrayWrapper mapKey(int i) {
+        return new ByteArrayWrapper(("key" + i).getBytes());
+    }
+
+    @Test
+    public void updateRebindsPriorRoot() {
+        CryptreeCache cache = new CryptreeCache(1_000, 4);
+        Multihash r1 = root(1), r2 = root(2), other = root(3);
+        for (int i=0; i < 10; i++)
+            cache.put(new Pair<>(r1, mapKey(i)), Optional.empty());
+        cache.put(new Pair<>(other, mapKey(100)), Optional.empty());
+
+        cache.update(Optional.of(r1), new Pair<>(r2, mapKey(10)), Optional.empty());
+        for (int i=0; i <= 10; i++)
+            Assert.assertNotNull(cache.get(new Pair<>(r2, mapKey(i))));
+        Assert.assertNull(cache.get(new Pair<>(r2, mapKey(100))));
+        Assert.assertEquals(12, cache.hits() + cache.misses());
+        Assert.assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void sizeIsBounded() {
+        CryptreeCache cache = new CryptreeCache(100, 4);
+        for (int i=0; i < 1_000; i++)
+            cache.put(new Pair<>(root(i), mapKey(i)), Optional.empty());
+        Assert.assertTrue(cache.size() <= 100);
+
+        // rebinding after evictions only copies what is still cached
+        Multihash r1 = root(1), r2 = root(2);
+        for (int i=0; i < 1_000; i++)
+            cache.put(new Pair<>(r1, mapKey(i)), Optional.empty());
+        cache.update(Optional.of(r1), new Pair<>(r2, mapKey(0)), Optional.empty());
+        Assert.assertTrue(cache.size() <= 100);
+        Assert.assertNotNull(cache.get(new Pair<>(r2, mapKey(0))));
+        Assert.assertNull(cache.get(new Pair<>(r2, mapKey(500))));
+    }
+
+    @Test
+    public void singleTreeUsesWholeCache() {
+        CryptreeCache cache = new CryptreeCache(1_000, 16);
+        Multihash r1 = root(1);
+        for (int i=0; i < 500; i++)
+            cache.put(new Pair<>(r1, mapKey(i)), Optional.empty());
+        // far more than the 63 entries a single segment holds
+        Assert.assertTrue(cache.size() > 400);
+    }
+}
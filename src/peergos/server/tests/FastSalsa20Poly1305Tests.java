@@ -0,0 +1,82 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import peergos.server.crypto.*;
+import peergos.server.crypto.symmetric.*;
+import peergos.shared.crypto.*;
+
+import java.util.*;
+import java.util.stream.*;
+
+@RunWith(Parameterized.class)
+public class FastSalsa20Poly1305Tests {
+
+    private static final Random random = new Random(1337);
+    private static final FastSalsa20Poly1305 fast = new FastSalsa20Poly1305();
+
+    public final int messageLength;
+
+    public FastSalsa20Poly1305Tests(int messageLength) {
+        this.messageLength = messageLength;
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> parameters() {
+        // every length around the block boundaries, then a 5 MiB chunk
+        return Stream.concat(IntStream.rangeClosed(0, 200).boxed(), Stream.of(4096, 65537, 5 * 1024 * 1024))
+                .map(e -> new Object[]{e})
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void compatibleWithTweetNacl() {
+        byte[] key = new byte[32];
+        byte[] nonce = new byte[24];
+        random.nextBytes(key);
+        random.nextBytes(nonce);
+        byte[] message = new byte[messageLength];
+        random.nextBytes(message);
+
+        byte[] boxed = fast.secretbox(message, nonce, key);
+        Assert.assertArrayEquals(TweetNaCl.secretbox(message, nonce, key), boxed);
+        Assert.assertArrayEquals(message, fast.secretbox_open(boxed, nonce, key));
+        Assert.assertArrayEquals(message, TweetNaCl.secretbox_open(boxed, nonce, key));
+    }
+
+    @Test
+    public void inPlace() {
+        byte[] key = new byte[32];
+        byte[] nonce = new byte[24];
+        random.nextBytes(key);
+        random.nextBytes(nonce);
+        byte[] message = new byte[messageLength];
+        random.nextBytes(message);
+
+        byte[] buf = new byte[messageLength + FastSalsa20Poly1305.TAG_BYTES];
+        System.arraycopy(message, 0, buf, FastSalsa20Poly1305.TAG_BYTES, messageLength);
+        FastSalsa20Poly1305.secretbox(buf, FastSalsa20Poly1305.TAG_BYTES, messageLength, nonce, key, buf, 0);
+        Assert.assertArrayEquals(fast.secretbox(message, nonce, key), buf);
+
+        Assert.assertTrue(FastSalsa20Poly1305.secretbox_open(buf, 0, buf.length, nonce, key, buf, FastSalsa20Poly1305.TAG_BYTES));
+        Assert.assertArrayEquals(message, Arrays.copyOfRange(buf, FastSalsa20Poly1305.TAG_BYTES, buf.length));
+    }
+
+    @Test
+    public void rejectsModifiedCipherText() {
+        byte[] key = new byte[32];
+        byte[] nonce = new byte[24];
+        random.nextBytes(key);
+        random.nextBytes(nonce);
+        byte[] message = new byte[messageLength];
+        random.nextBytes(message);
+
+        byte[] boxed = fast.secretbox(message, nonce, key);
+        boxed[random.nextInt(boxed.length)] ^= 1;
+        try {
+            fast.secretbox_open(boxed, nonce, key);
+            Assert.fail("Accepted modified cipher text");
+        } catch (InvalidCipherTextException expected) {}
+    }
+}
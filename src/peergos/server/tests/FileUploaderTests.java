@@ -0,0 +1,93 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.shared.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.crypto.symmetric.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class FileUploaderTests {
+    private static final Crypto crypto = Main.initCrypto();
+    private final Random rnd = new Random(42);
+
+    /** Returns at most maxRead bytes from each read, like a file read with a single RandomAccessFile.read */
+    private static AsyncReader shortReads(byte[] data, int maxRead) {
+        return new AsyncReader() {
+            private int index = 0;
+
+            @Override
+            public CompletableFuture<Integer> readIntoArray(byte[] res, int offset, int length) {
+                int read = Math.min(Math.min(length, maxRead), data.length - index);
+                System.arraycopy(data, index, res, offset, read);
+                index += read;
+                return Futures.of(read);
+            }
+
+            @Override
+            public CompletableFuture<AsyncReader> reset() {
+                index = 0;
+                return Futures.of(this);
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+
+    private static FileUploader uploader(AsyncReader reader, long length, PublicKeyHash owner) {
+        LocalDateTime now = LocalDateTime.now();
+        FileProperties props = new FileProperties("file.bin", false, false, "application/octet-stream", length,
+                now, now, false, Optional.empty(), Optional.of(crypto.random.randomBytes(32)), Optional.empty());
+        Location parent = new Location(owner, owner, crypto.random.randomBytes(RelativeCapability.MAP_KEY_LENGTH));
+        return new FileUploader("file.bin", reader, 0, length, SymmetricKey.random(), SymmetricKey.random(), parent,
+                Optional.empty(), SymmetricKey.random(), x -> {}, props, Optional.empty(),
+                crypto.random.randomBytes(RelativeCapability.MAP_KEY_LENGTH), Optional.empty(), () -> false);
+    }
+
+    @Test
+    public void shortReadsFillPooledChunk() {
+        // leave a used buffer in the pool, which the chunk will be read into
+        ByteArrayPool buffers = FileUploader.chunkBuffers();
+        byte[] previous = buffers.take();
+        Arrays.fill(previous, (byte) 0x55);
+        buffers.release(previous);
+
+        byte[] data = new byte[Chunk.MAX_SIZE];
+        rnd.nextBytes(data);
+        SigningKeyPair pair = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash owner = ContentAddressedStorage.hashKey(pair.publicSigningKey);
+        SigningPrivateKeyAndPublicHash writer = new SigningPrivateKeyAndPublicHash(owner, pair.secretSigningKey);
+
+        FileUploader uploader = uploader(shortReads(data, 100_000), data.length, owner);
+        uploader.encryptChunk(0, owner, writer, Optional.empty(), MaybeMultihash.empty(), crypto.random,
+                crypto.hasher, false).join();
+
+        HashTree expected = HashTree.buildParallel(i -> AsyncReader.build(data), 0, data.length, crypto.hasher, 1).join();
+        Assert.assertEquals(expected, uploader.completeHash(crypto.hasher).join().get());
+    }
+
+    @Test
+    public void truncatedFileFailsChunk() {
+        byte[] data = new byte[Chunk.MAX_SIZE];
+        rnd.nextBytes(data);
+        SigningKeyPair pair = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash owner = ContentAddressedStorage.hashKey(pair.publicSigningKey);
+        SigningPrivateKeyAndPublicHash writer = new SigningPrivateKeyAndPublicHash(owner, pair.secretSigningKey);
+
+        // the file is shorter than the length we were given
+        FileUploader uploader = uploader(shortReads(Arrays.copyOf(data, data.length - 1000), 100_000), data.length, owner);
+        try {
+            uploader.encryptChunk(0, owner, writer, Optional.empty(), MaybeMultihash.empty(), crypto.random,
+                    crypto.hasher, false).join();
+            Assert.fail("A truncated chunk should not be encrypted");
+        } catch (CompletionException expected) {}
+    }
+}
@@ -246,6 +246,230 @@ public class GCTests {
         verifyAllReachableBlocksArePresent(pointers, metadb, storage);
     }
 
+    @Test
+    public void bloomGC() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-gc-test");
+        SqliteCommands cmds = new SqliteCommands();
+        RequestCountingBlockMetadataStore metadb = new RequestCountingBlockMetadataStore(new JdbcBlockMetadataStore(getDb(), cmds));
+
+        WriteOnlyStorage storage = new WriteOnlyStorage(metadb);
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(getDb(), cmds);
+        JdbcUsageStore usage = new JdbcUsageStore(getDb(), cmds);
+
+        GarbageCollector gc = new GarbageCollector(storage, pointers, usage, new RamPki(), dir,
+                (x, y, z) -> Futures.of(true), u -> Futures.of(true), true, GarbageCollector.Engine.BLOOM, 0);
+
+        SigningKeyPair signer = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash writer = ContentAddressedStorage.hashKey(signer.publicSigningKey);
+        String username = "user";
+        usage.addUserIfAbsent(username);
+        usage.addWriter(username, writer);
+        usage.updateWriterUsageAtomically(writer, MaybeMultihash.empty(), MaybeMultihash.of(randomCbor(new Random(42))),
+                Collections.emptySet(), Collections.emptySet(), 1024*1024, 0, false);
+        usage.confirmUsage(username, writer, 10*1024*1024, false);
+
+        storage.storage.put(writer, new HashMap<>());
+        Cid root = generateTree(42, 1000, blocks -> blocks
+                        .forEach(b -> storage.storage.get(writer).put(b, true)),
+                (b, kids) -> metadb.put(writer, b, null, new BlockMetadata(10, kids, Collections.emptyList())));
+        Set<Cid> garbage = new HashSet<>();
+        generateTree(43, 1000, blocks -> blocks
+                        .forEach(b -> {
+                            storage.storage.get(writer).put(b, true);
+                            garbage.add(b);
+                        }),
+                (b, kids) -> metadb.put(writer, b, null, new BlockMetadata(10, kids, Collections.emptyList())));
+        byte[] signedCas = signer.signMessage(new PointerUpdate(MaybeMultihash.empty(), MaybeMultihash.of(root), Optional.of(1L)).serialize()).join();
+        pointers.setPointer(writer, Optional.empty(), signedCas).join();
+        usage.updateWriterUsageAtomically(writer, MaybeMultihash.of(randomCbor(new Random(42))), MaybeMultihash.of(root),
+                Collections.emptySet(), Collections.emptySet(), 1024*1024, 0, false);
+
+        int before = storage.storage.get(writer).size();
+        gc.collect(s -> Futures.of(true));
+        verifyAllReachableBlocksArePresent(pointers, metadb, storage);
+        Assert.assertEquals(before - garbage.size(), storage.storage.get(writer).size());
+        Assert.assertTrue(garbage.stream().noneMatch(c -> storage.hasBlock(writer, c)));
+        Assert.assertTrue(garbage.stream().noneMatch(c -> metadb.get(c).isPresent()));
+        Assert.assertFalse(Files.exists(dir.resolve("reachability").resolve("reachability-" + username + ".sqlite")));
+
+        // the sqlite engine agrees there is nothing left to collect
+        Files.delete(dir.resolve("pointer-snapshots").resolve(username + ".cbor"));
+        gc.collect(s -> Futures.of(true), GarbageCollector.Engine.SQLITE);
+        Assert.assertEquals(before - garbage.size(), storage.storage.get(writer).size());
+
+        // Remove root so everything is GC'd
+        usage.updateWriterUsageAtomically(writer, MaybeMultihash.of(root), MaybeMultihash.empty(),
+                Collections.emptySet(), Collections.emptySet(), 1024*1024, 0, false);
+        pointers.setPointer(writer, Optional.of(signedCas), signer.signMessage(new PointerUpdate(MaybeMultihash.of(root), MaybeMultihash.empty(), Optional.of(2L)).serialize()).join()).join();
+        gc.collect(s -> Futures.of(true));
+        Assert.assertTrue(storage.storage.get(writer).isEmpty());
+    }
+
+    @Test
+    public void bloomGCRemarksOnlyChangedPaths() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-gc-test");
+        SqliteCommands cmds = new SqliteCommands();
+        RequestCountingBlockMetadataStore metadb = new RequestCountingBlockMetadataStore(new JdbcBlockMetadataStore(getDb(), cmds));
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(getDb(), cmds);
+        JdbcUsageStore usage = new JdbcUsageStore(getDb(), cmds);
+
+        SigningKeyPair signer = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash writer = ContentAddressedStorage.hashKey(signer.publicSigningKey);
+        // the pointer moves to a new root after the GC has marked, on its first re-check
+        AtomicInteger rootChecks = new AtomicInteger(0);
+        AtomicReference<Runnable> movePointer = new AtomicReference<>();
+        WriteOnlyStorage storage = new WriteOnlyStorage(metadb) {
+            @Override
+            public List<Cid> getOpenTransactionBlocks(PublicKeyHash owner) {
+                if (rootChecks.incrementAndGet() == 2) {
+                    movePointer.get().run();
+                    metadb.resetRequestCount();
+                }
+                return List.of();
+            }
+        };
+        GarbageCollector gc = new GarbageCollector(storage, pointers, usage, new RamPki(), dir,
+                (x, y, z) -> Futures.of(true), u -> Futures.of(true), true, GarbageCollector.Engine.BLOOM, 0);
+
+        String username = "user";
+        usage.addUserIfAbsent(username);
+        usage.addWriter(username, writer);
+        usage.confirmUsage(username, writer, 10*1024*1024, false);
+
+        storage.storage.put(writer, new HashMap<>());
+        BiConsumer<Cid, List<Cid>> addLinks = (b, kids) -> metadb.put(writer, b, null, new BlockMetadata(10, kids, Collections.emptyList()));
+        Cid root = generateTree(42, 1000, blocks -> blocks
+                .forEach(b -> storage.storage.get(writer).put(b, true)), addLinks);
+        Set<Cid> garbage = new HashSet<>();
+        generateTree(43, 1000, blocks -> blocks
+                        .forEach(b -> {
+                            storage.storage.get(writer).put(b, true);
+                            garbage.add(b);
+                        }), addLinks);
+        byte[] signedCas = signer.signMessage(new PointerUpdate(MaybeMultihash.empty(), MaybeMultihash.of(root), Optional.of(1L)).serialize()).join();
+        pointers.setPointer(writer, Optional.empty(), signedCas).join();
+        usage.updateWriterUsageAtomically(writer, MaybeMultihash.empty(), MaybeMultihash.of(root),
+                Collections.emptySet(), Collections.emptySet(), 1024*1024, 0, false);
+
+        // the new root keeps the left half of the tree and replaces the right half with a small new subtree
+        Cid left = metadb.get(root).get().links.get(0);
+        Set<Cid> newBlocks = new HashSet<>();
+        Cid newRight = generateTree(44, 20, blocks -> blocks
+                .forEach(b -> {
+                    storage.storage.get(writer).put(b, true);
+                    newBlocks.add(b);
+                }), addLinks);
+        byte[] raw = new CborObject.CborList(List.of(
+                new CborObject.CborMerkleLink(left),
+                new CborObject.CborMerkleLink(newRight)
+        )).serialize();
+        Cid root2 = new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, Hash.sha256(raw));
+        addLinks.accept(root2, List.of(left, newRight));
+        storage.storage.get(writer).put(root2, true);
+        newBlocks.add(root2);
+        byte[] signedCas2 = signer.signMessage(new PointerUpdate(MaybeMultihash.of(root), MaybeMultihash.of(root2), Optional.of(2L)).serialize()).join();
+        movePointer.set(() -> pointers.setPointer(writer, Optional.of(signedCas), signedCas2).join());
+
+        gc.collect(s -> Futures.of(true));
+        long requestsAfterMove = metadb.getRequestCount();
+        Assert.assertTrue(rootChecks.get() > 2);
+        Assert.assertTrue(newBlocks.stream().allMatch(c -> storage.hasBlock(writer, c)));
+        Assert.assertTrue(garbage.stream().noneMatch(c -> storage.hasBlock(writer, c)));
+        verifyAllReachableBlocksArePresent(pointers, metadb, storage);
+
+        // only the changed path and the new subtree were walked again, not the unchanged left half
+        Set<Cid> underLeft = new HashSet<>();
+        Deque<Cid> toVisit = new ArrayDeque<>(List.of(left));
+        while (! toVisit.isEmpty()) {
+            Cid next = toVisit.poll();
+            if (underLeft.add(next))
+                toVisit.addAll(metadb.get(next).get().links);
+        }
+        Assert.assertTrue(requestsAfterMove < underLeft.size() / 4);
+    }
+
+    @Test
+    public void incrementalGC() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-gc-test");
+        SqliteCommands cmds = new SqliteCommands();
+        RequestCountingBlockMetadataStore metadb = new RequestCountingBlockMetadataStore(new JdbcBlockMetadataStore(getDb(), cmds));
+
+        WriteOnlyStorage storage = new WriteOnlyStorage(metadb);
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(getDb(), cmds);
+        JdbcUsageStore usage = new JdbcUsageStore(getDb(), cmds);
+
+        GarbageCollector gc = new GarbageCollector(storage, pointers, usage, new RamPki(), dir,
+                (x, y, z) -> Futures.of(true), u -> Futures.of(true), true, GarbageCollector.Engine.SQLITE, 10);
+
+        SigningKeyPair signer = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash writer = ContentAddressedStorage.hashKey(signer.publicSigningKey);
+        String username = "user";
+        usage.addUserIfAbsent(username);
+        usage.addWriter(username, writer);
+        usage.updateWriterUsageAtomically(writer, MaybeMultihash.empty(), MaybeMultihash.of(randomCbor(new Random(42))),
+                Collections.emptySet(), Collections.emptySet(), 1024*1024, 0, false);
+        usage.confirmUsage(username, writer, 10*1024*1024, false);
+
+        storage.storage.put(writer, new HashMap<>());
+        BiConsumer<Cid, List<Cid>> addLinks = (b, kids) -> metadb.put(writer, b, null, new BlockMetadata(10, kids, Collections.emptyList()));
+        Cid root = generateTree(42, 1000, blocks -> blocks
+                        .forEach(b -> storage.storage.get(writer).put(b, true)), addLinks);
+        byte[] signedCas = signer.signMessage(new PointerUpdate(MaybeMultihash.empty(), MaybeMultihash.of(root), Optional.of(1L)).serialize()).join();
+        pointers.setPointer(writer, Optional.empty(), signedCas).join();
+        usage.updateWriterUsageAtomically(writer, MaybeMultihash.of(randomCbor(new Random(42))), MaybeMultihash.of(root),
+                Collections.emptySet(), Collections.emptySet(), 1024*1024, 0, false);
+
+        // the first GC is a full one
+        gc.collect(s -> Futures.of(true));
+        Path incrementalRuns = dir.resolve("pointer-snapshots").resolve(username + ".incremental");
+        Assert.assertEquals("0", Files.readString(incrementalRuns));
+        verifyAllReachableBlocksArePresent(pointers, metadb, storage);
+
+        // replace the right half of the tree
+        List<Cid> rootLinks = metadb.get(root).get().links;
+        Cid left = rootLinks.get(0), right = rootLinks.get(1);
+        Cid newRight = generateTree(43, 100, blocks -> blocks
+                        .forEach(b -> storage.storage.get(writer).put(b, true)), addLinks);
+        byte[] raw2 = new CborObject.CborList(List.of(
+                new CborObject.CborMerkleLink(left),
+                new CborObject.CborMerkleLink(newRight)
+        )).serialize();
+        Cid root2 = new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, Hash.sha256(raw2));
+        addLinks.accept(root2, List.of(left, newRight));
+        storage.storage.get(writer).put(root2, true);
+        byte[] signedCas2 = signer.signMessage(new PointerUpdate(MaybeMultihash.of(root), MaybeMultihash.of(root2), Optional.of(2L)).serialize()).join();
+        pointers.setPointer(writer, Optional.of(signedCas), signedCas2).join();
+        usage.updateWriterUsageAtomically(writer, MaybeMultihash.of(root), MaybeMultihash.of(root2),
+                Collections.emptySet(), Collections.emptySet(), 1024*1024, 0, false);
+
+        Set<Cid> garbage = new HashSet<>();
+        collectSubtree(right, metadb, garbage);
+        garbage.add(root);
+        int before = storage.storage.get(writer).size();
+
+        gc.collect(s -> Futures.of(true));
+        Assert.assertEquals("1", Files.readString(incrementalRuns));
+        verifyAllReachableBlocksArePresent(pointers, metadb, storage);
+        Assert.assertTrue(garbage.stream().noneMatch(c -> storage.hasBlock(writer, c)));
+        Assert.assertEquals(before - garbage.size(), storage.storage.get(writer).size());
+
+        // a full GC agrees there is nothing left to collect
+        GarbageCollector fullGc = new GarbageCollector(storage, pointers, usage, new RamPki(), dir,
+                (x, y, z) -> Futures.of(true), u -> Futures.of(true), true);
+        Files.delete(dir.resolve("pointer-snapshots").resolve(username + ".cbor"));
+        fullGc.collect(s -> Futures.of(true));
+        Assert.assertEquals(before - garbage.size(), storage.storage.get(writer).size());
+        Assert.assertFalse(Files.exists(incrementalRuns));
+    }
+
+    private void collectSubtree(Cid block, BlockMetadataStore meta, Set<Cid> res) {
+        res.add(block);
+        if (block.isRaw())
+            return;
+        for (Cid link : meta.get(block).get().links)
+            collectSubtree(link, meta, res);
+    }
+
     public void verifyAllReachableBlocksArePresent(JdbcIpnsAndSocial pointers,
                                                    BlockMetadataStore meta,
                                                    DeletableContentAddressedStorage storage) {
@@ -24,18 +24,39 @@ import java.nio.file.*;
 import java.util.*;
 import java.util.stream.*;
 
+@RunWith(Parameterized.class)
 public class InodeFilesystemTests {
 
     private static final Crypto crypto = Main.initCrypto();
+    private final String blockstoreType;
 
-    public InodeFilesystemTests() {}
+    public InodeFilesystemTests(String blockstoreType) {
+        this.blockstoreType = blockstoreType;
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][] {
+                {"files"},
+                {"packs"}
+        });
+    }
+
+    private DeletableContentAddressedStorage buildStorage() throws IOException {
+        Path dir = Files.createTempDirectory("peergos-tmp");
+        Cid ourId = new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes()));
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        if (blockstoreType.equals("packs"))
+            // small packs so blocks are spread over several sealed packs
+            return new PackContentAddressedStorage(dir, 64 * 1024, ourId, transactions,
+                    (a, b, c, d) -> Futures.of(true), PartitionStatus.DONE, crypto.hasher);
+        return new FileContentAddressedStorage(dir, ourId, transactions,
+                (a, b, c, d) -> Futures.of(true), PartitionStatus.DONE, crypto.hasher);
+    }
 
     @Test
     public void deleteExample() throws IOException {
-        DeletableContentAddressedStorage storage = new FileContentAddressedStorage(Files.createTempDirectory("peergos-tmp"),
-                new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes())),
-                JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands()),
-                (a, b, c, d) -> Futures.of(true), PartitionStatus.DONE, crypto.hasher);
+        DeletableContentAddressedStorage storage = buildStorage();
         RamPki pki = new RamPki();
         storage.setPki(pki);
         SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
@@ -75,10 +96,7 @@ public class InodeFilesystemTests {
 
     @Test
     public void nameClash() throws Exception {
-        DeletableContentAddressedStorage storage = new FileContentAddressedStorage(Files.createTempDirectory("peergos-tmp"),
-                new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes())),
-                JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands()),
-                (a, b, c, d) -> Futures.of(true), PartitionStatus.DONE, crypto.hasher);
+        DeletableContentAddressedStorage storage = buildStorage();
         RamPki pki = new RamPki();
         storage.setPki(pki);
         SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
@@ -113,10 +131,7 @@ public class InodeFilesystemTests {
 
     @Test
     public void insertAndRetrieve() throws Exception {
-        DeletableContentAddressedStorage storage = new FileContentAddressedStorage(Files.createTempDirectory("peergos-tmp"),
-                new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes())),
-                JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands()),
-                (a, b, c, d) -> Futures.of(true), PartitionStatus.DONE, crypto.hasher);
+        DeletableContentAddressedStorage storage = buildStorage();
         RamPki pki = new RamPki();
         storage.setPki(pki);
         SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
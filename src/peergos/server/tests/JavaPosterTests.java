@@ -0,0 +1,59 @@
+package peergos.server.tests;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+import peergos.server.util.*;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class JavaPosterTests {
+
+    @Test
+    public void queuedRequestTimesOutFromEnqueue() throws Exception {
+        CountDownLatch hold = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", ex -> {
+            try {
+                hold.await();
+            } catch (InterruptedException e) {}
+            byte[] body = "done".getBytes();
+            ex.sendResponseHeaders(200, body.length);
+            ex.getResponseBody().write(body);
+            ex.close();
+        });
+        server.start();
+        try {
+            URL target = new URL("http://localhost:" + server.getAddress().getPort() + "/");
+            JavaPoster poster = new JavaPoster(target, true, 1);
+            // occupies the only slot to the host
+            CompletableFuture<byte[]> slow = poster.post("slow", new byte[0], false, -1);
+
+            long start = System.currentTimeMillis();
+            CompletableFuture<byte[]> queued = poster.post("queued", new byte[0], false, 500);
+            CompletableFuture<byte[]> multipart = poster.postMultipart("multipart", List.of(new byte[10]), 500);
+            try {
+                queued.get(5, TimeUnit.SECONDS);
+                Assert.fail("A queued request should time out");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof SocketTimeoutException);
+            }
+            try {
+                multipart.get(5, TimeUnit.SECONDS);
+                Assert.fail("A queued multipart post should time out");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof SocketTimeoutException);
+            }
+            Assert.assertTrue(System.currentTimeMillis() - start < 2_000);
+
+            // the timed out requests give up their place, so the next one is sent once the slot is free
+            hold.countDown();
+            Assert.assertEquals("done", new String(slow.join()));
+            Assert.assertEquals("done", new String(poster.post("after", new byte[0], false, 5_000).join()));
+        } finally {
+            server.stop(0);
+        }
+    }
+}
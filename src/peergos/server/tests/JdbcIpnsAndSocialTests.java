@@ -1,6 +1,8 @@
 package peergos.server.tests;
 
 import org.junit.*;
+import org.junit.runner.*;
+import org.junit.runners.*;
 import peergos.server.*;
 import peergos.server.corenode.*;
 import peergos.server.sql.*;
@@ -12,16 +14,33 @@ import peergos.shared.mutable.*;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
 
+@RunWith(Parameterized.class)
 public class JdbcIpnsAndSocialTests {
 
+    private final boolean cachePointers;
     private JdbcIpnsAndSocial db;
 
+    public JdbcIpnsAndSocialTests(boolean cachePointers) {
+        this.cachePointers = cachePointers;
+    }
+
+    @Parameterized.Parameters(name = "cached: {0}")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][] {
+                {false},
+                {true}
+        });
+    }
+
     @Before
     public void setup() throws Exception {
         SqlSupplier commands = new SqliteCommands();
         Connection conn = new Sqlite.UncloseableConnection(Sqlite.build(":memory:"));
-        db = new JdbcIpnsAndSocial(() -> conn, commands);
+        db = new JdbcIpnsAndSocial(() -> conn, commands, cachePointers);
     }
 
     private static PublicKeyHash key(Crypto crypto) {
@@ -167,4 +186,127 @@ public class JdbcIpnsAndSocialTests {
         boolean result = db.setPointers(List.of(), List.of()).join();
         Assert.assertTrue(result);
     }
+
+    @Test
+    public void legacyPointersAreMigrated() throws Exception {
+        Crypto crypto = Main.initCrypto();
+        PublicKeyHash writer = key(crypto);
+        PublicKeyHash alreadyMigrated = key(crypto);
+        byte[] value = {1, 2, 3};
+        byte[] newer = {4};
+        SqlSupplier commands = new SqliteCommands();
+        Connection conn = new Sqlite.UncloseableConnection(Sqlite.build(":memory:"));
+        commands.createTable(commands.createMutablePointersTableCommand(), conn);
+        commands.createTable(commands.createBinaryMutablePointersTableCommand(), conn);
+        try (PreparedStatement insert = conn.prepareStatement("INSERT INTO metadatablobs (writingkey, hash) VALUES(?, ?)")) {
+            for (PublicKeyHash w : List.of(writer, alreadyMigrated)) {
+                insert.setString(1, Base64.getEncoder().encodeToString(w.serialize()));
+                insert.setString(2, Base64.getEncoder().encodeToString(value));
+                insert.executeUpdate();
+            }
+        }
+        // a stale legacy row mustn't replace the binary one
+        try (PreparedStatement insert = conn.prepareStatement("INSERT INTO mutablepointers (writer, target) VALUES(?, ?)")) {
+            insert.setBytes(1, alreadyMigrated.serialize());
+            insert.setBytes(2, newer);
+            insert.executeUpdate();
+        }
+
+        JdbcIpnsAndSocial migrated = new JdbcIpnsAndSocial(() -> conn, commands, cachePointers);
+
+        Assert.assertArrayEquals(value, migrated.getPointer(writer).join().get());
+        Assert.assertArrayEquals(value, migrated.getAllEntries().get(writer));
+        Assert.assertArrayEquals(newer, migrated.getPointer(alreadyMigrated).join().get());
+        Assert.assertArrayEquals(newer, migrated.getAllEntries().get(alreadyMigrated));
+        try (PreparedStatement count = conn.prepareStatement("SELECT COUNT(*) FROM metadatablobs")) {
+            ResultSet rs = count.executeQuery();
+            rs.next();
+            Assert.assertEquals(0, rs.getInt(1));
+        }
+        Assert.assertFalse(migrated.setPointer(writer, Optional.empty(), newer).join());
+        Assert.assertTrue(migrated.setPointer(writer, Optional.of(value), newer).join());
+        Assert.assertArrayEquals(newer, migrated.getPointer(writer).join().get());
+    }
+
+    @Test
+    public void concurrentUpdatesAllCommit() throws Exception {
+        Crypto crypto = Main.initCrypto();
+        List<PublicKeyHash> writers = IntStream.range(0, 20)
+                .mapToObj(i -> key(crypto))
+                .collect(Collectors.toList());
+        final int updates = 10;
+        ExecutorService pool = Executors.newFixedThreadPool(writers.size());
+        List<Future<Boolean>> results = writers.stream()
+                .map(w -> pool.submit(() -> {
+                    Optional<byte[]> current = Optional.empty();
+                    for (int i=0; i < updates; i++) {
+                        byte[] updated = {(byte) i};
+                        if (! db.setPointer(w, current, updated).join())
+                            return false;
+                        current = Optional.of(updated);
+                    }
+                    return true;
+                })).collect(Collectors.toList());
+        for (Future<Boolean> result : results)
+            Assert.assertTrue(result.get());
+        pool.shutdown();
+
+        Map<PublicKeyHash, byte[]> all = db.getAllEntries();
+        for (PublicKeyHash writer : writers) {
+            Assert.assertArrayEquals(new byte[]{updates - 1}, db.getPointer(writer).join().get());
+            Assert.assertArrayEquals(new byte[]{updates - 1}, all.get(writer));
+        }
+    }
+
+    @Test
+    public void concurrentCasOnlyOneSucceeds() throws Exception {
+        Crypto crypto = Main.initCrypto();
+        PublicKeyHash writer = key(crypto);
+        byte[] initial = {0};
+        Assert.assertTrue(db.setPointer(writer, Optional.empty(), initial).join());
+
+        int threads = 10;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Boolean>> results = IntStream.range(0, threads)
+                .mapToObj(i -> pool.submit(() -> db.setPointer(writer, Optional.of(initial), new byte[]{(byte) (i + 1)}).join()))
+                .collect(Collectors.toList());
+        int succeeded = 0;
+        for (Future<Boolean> result : results)
+            if (result.get())
+                succeeded++;
+        pool.shutdown();
+
+        Assert.assertEquals(1, succeeded);
+        Assert.assertFalse(Arrays.equals(initial, db.getPointer(writer).join().get()));
+    }
+
+    @Test
+    public void removedPointerIsGone() throws Exception {
+        Crypto crypto = Main.initCrypto();
+        PublicKeyHash writer = key(crypto);
+        Assert.assertTrue(db.setPointer(writer, Optional.empty(), new byte[]{1}).join());
+        db.removePointer(writer);
+        Assert.assertFalse(db.getPointer(writer).join().isPresent());
+        Assert.assertTrue(db.setPointer(writer, Optional.empty(), new byte[]{2}).join());
+    }
+
+    @Test
+    public void updatesContinueAfterConnectionFailure() throws Exception {
+        Crypto crypto = Main.initCrypto();
+        PublicKeyHash writer = key(crypto);
+        Connection conn = new Sqlite.UncloseableConnection(Sqlite.build(":memory:"));
+        AtomicBoolean failing = new AtomicBoolean(false);
+        JdbcIpnsAndSocial flaky = new JdbcIpnsAndSocial(() -> {
+            // only fail the committer, so a cached lookup still reaches it
+            if (failing.get() && Thread.currentThread().getName().equals("pointer-commit"))
+                throw new RuntimeException("No connection available");
+            return conn;
+        }, new SqliteCommands(), cachePointers);
+
+        failing.set(true);
+        Assert.assertFalse(flaky.setPointer(writer, Optional.empty(), new byte[]{1}).get(10, TimeUnit.SECONDS));
+        failing.set(false);
+        Assert.assertTrue(flaky.setPointer(writer, Optional.empty(), new byte[]{2}).get(10, TimeUnit.SECONDS));
+        Assert.assertArrayEquals(new byte[]{2}, flaky.getPointer(writer).join().get());
+    }
 }
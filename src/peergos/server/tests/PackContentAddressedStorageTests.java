@@ -0,0 +1,146 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class PackContentAddressedStorageTests {
+    private static final Crypto crypto = Main.initCrypto();
+    private static final Cid ourId = new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes()));
+    private static final int PACK_SIZE = 100_000;
+
+    private static PackContentAddressedStorage build(Path dir) {
+        return new PackContentAddressedStorage(dir, PACK_SIZE, ourId,
+                JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands()),
+                (a, b, c, d) -> Futures.of(true), PartitionStatus.DONE, crypto.hasher);
+    }
+
+    private static PublicKeyHash randomOwner() {
+        return new PublicKeyHash(Cid.buildCidV1(Cid.Codec.DagCbor, Multihash.Type.id, crypto.random.randomBytes(36)));
+    }
+
+    private static Map<Cid, byte[]> putBlocks(PackContentAddressedStorage storage, PublicKeyHash owner, int count, Random rnd) {
+        List<byte[]> blocks = IntStream.range(0, count)
+                .mapToObj(i -> {
+                    byte[] block = new byte[500 + rnd.nextInt(2000)];
+                    rnd.nextBytes(block);
+                    return block;
+                }).collect(Collectors.toList());
+        TransactionId tid = storage.startTransaction(owner).join();
+        List<Cid> cids = storage.putRaw(owner, owner, blocks.stream().map(b -> new byte[0]).collect(Collectors.toList()),
+                blocks, tid, x -> {}).join();
+        storage.closeTransaction(owner, tid).join();
+        Map<Cid, byte[]> res = new LinkedHashMap<>();
+        for (int i=0; i < cids.size(); i++)
+            res.put(cids.get(i), blocks.get(i));
+        return res;
+    }
+
+    private static void checkPresent(PackContentAddressedStorage storage, PublicKeyHash owner, Map<Cid, byte[]> blocks) {
+        for (Map.Entry<Cid, byte[]> e : blocks.entrySet()) {
+            Assert.assertTrue(storage.hasBlock(owner, e.getKey()));
+            Assert.assertArrayEquals(e.getValue(), storage.getRaw(owner, e.getKey(), Optional.empty()).join().get());
+            Assert.assertEquals(e.getValue().length, (int) storage.getSize(owner, e.getKey()).join().get());
+        }
+    }
+
+    private static long packFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(p -> p.toString().endsWith(".pack")).count();
+        }
+    }
+
+    @Test
+    public void survivesRestart() throws IOException {
+        Path dir = Files.createTempDirectory("peergos-packs");
+        PackContentAddressedStorage storage = build(dir);
+        PublicKeyHash owner = randomOwner();
+        Map<Cid, byte[]> blocks = putBlocks(storage, owner, 300, new Random(42));
+        Assert.assertTrue(packFiles(dir) > 1);
+        checkPresent(storage, owner, blocks);
+
+        // simulate a crash part way through writing a block to the active pack
+        Path last;
+        try (Stream<Path> files = Files.walk(dir)) {
+            last = files.filter(p -> p.toString().endsWith(".pack"))
+                    .max(Comparator.comparing(Path::toString))
+                    .get();
+        }
+        Files.write(last, new byte[]{0, 0, 0, 36, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        PackContentAddressedStorage reopened = build(dir);
+        checkPresent(reopened, owner, blocks);
+        Set<Cid> listed = reopened.getAllBlockHashes(owner, false).map(p -> p.right).collect(Collectors.toSet());
+        Assert.assertEquals(blocks.keySet(), listed);
+        Map<Cid, byte[]> more = putBlocks(reopened, owner, 10, new Random(43));
+        checkPresent(reopened, owner, more);
+    }
+
+    @Test
+    public void deletesAreCompacted() throws IOException {
+        Path dir = Files.createTempDirectory("peergos-packs");
+        PackContentAddressedStorage storage = build(dir);
+        PublicKeyHash owner = randomOwner();
+        PublicKeyHash other = randomOwner();
+        Map<Cid, byte[]> blocks = putBlocks(storage, owner, 500, new Random(42));
+        Map<Cid, byte[]> otherBlocks = putBlocks(storage, other, 50, new Random(44));
+        long packsBefore = packFiles(dir);
+
+        // delete most blocks, as the garbage collector would
+        List<Cid> all = new ArrayList<>(blocks.keySet());
+        List<Cid> toDelete = all.stream().filter(c -> all.indexOf(c) % 5 != 0).collect(Collectors.toList());
+        storage.bulkDelete(owner, toDelete.stream().map(c -> new BlockVersion(c, null, true)).collect(Collectors.toList()));
+        Map<Cid, byte[]> kept = new HashMap<>(blocks);
+        toDelete.forEach(kept::remove);
+
+        for (Cid deleted : toDelete)
+            Assert.assertFalse(storage.hasBlock(owner, deleted));
+        checkPresent(storage, owner, kept);
+        checkPresent(storage, other, otherBlocks);
+        Assert.assertTrue(packFiles(dir) < packsBefore);
+
+        // deletions and compaction are durable
+        PackContentAddressedStorage reopened = build(dir);
+        for (Cid deleted : toDelete)
+            Assert.assertFalse(reopened.hasBlock(owner, deleted));
+        checkPresent(reopened, owner, kept);
+        checkPresent(reopened, other, otherBlocks);
+        Set<Cid> listed = reopened.getAllBlockHashes(false)
+                .filter(p -> owner.equals(p.left))
+                .map(p -> p.right)
+                .collect(Collectors.toSet());
+        Assert.assertEquals(kept.keySet(), listed);
+
+        // a deleted block can be written again
+        Map<Cid, byte[]> again = putBlocks(reopened, owner, 5, new Random(42));
+        checkPresent(reopened, owner, again);
+    }
+
+    @Test
+    public void readsDontCreateStores() throws IOException {
+        Path dir = Files.createTempDirectory("peergos-packs");
+        PackContentAddressedStorage storage = build(dir);
+        PublicKeyHash owner = randomOwner();
+        Cid cid = putBlocks(storage, owner, 1, new Random(42)).keySet().iterator().next();
+
+        PublicKeyHash unknown = randomOwner();
+        Assert.assertFalse(storage.hasBlock(unknown, cid));
+        Assert.assertTrue(storage.getRaw(unknown, cid, Optional.empty()).join().isEmpty());
+        Assert.assertTrue(storage.getSize(unknown, cid).join().isEmpty());
+        Assert.assertTrue(storage.getChampLookup(unknown, cid, Collections.emptyList(), Optional.empty()).isCompletedExceptionally());
+        storage.bulkDelete(unknown, List.of(new BlockVersion(cid, null, true)));
+        Assert.assertFalse(Files.exists(dir.resolve(unknown.toString())));
+        checkPresent(storage, owner, Map.of(cid, storage.getRaw(owner, cid, Optional.empty()).join().get()));
+    }
+}
@@ -1583,6 +1583,27 @@ public class PeergosNetworkUtils {
                 postFile.getSize(), SocialPost::fromCbor).join();
         assertTrue(receivedPost.body.equals(post.body));
 
+        // pages read via the feed index match a read of the whole feed
+        SocialFeed latestFeed = freshFeed.update().join();
+        for (int i = 0; i < withPost.size(); i++)
+            Assert.assertEquals(withPost.subList(i, i + 1), latestFeed.getShared(i, i + 1, crypto, fresherA.network).join());
+        Assert.assertEquals(withPost.subList(1, withPost.size()), latestFeed.getShared(1, withPost.size() + 10, crypto, fresherA.network).join());
+
+        // a missing feed index is rebuilt from the feed file the next time items are added
+        Path feedIndexPath = PathUtil.get(a.username, UserContext.FEED_DIR_NAME, "feed-index.bin");
+        FileWrapper feedDir = fresherA.getByPath(feedIndexPath.getParent()).join().get();
+        fresherA.getByPath(feedIndexPath).join().get().remove(feedDir, feedIndexPath, fresherA).join();
+        Assert.assertTrue(fresherA.getByPath(feedIndexPath).join().isEmpty());
+        Path file5 = PathUtil.get(sharer.username, "fifth-file.txt");
+        uploadAndShare(fileData, file5, sharer, a.username);
+        UserContext reindexedA = PeergosNetworkUtils.ensureSignedUp(a.username, password, network, crypto);
+        SocialFeed reindexed = reindexedA.getSocialFeed().join().update().join();
+        Assert.assertTrue(reindexedA.getByPath(feedIndexPath).join().isPresent());
+        List<SharedItem> afterRebuild = reindexed.getShared(0, withPost.size() + 10, crypto, reindexedA.network).join();
+        Assert.assertEquals(withPost, afterRebuild.subList(0, withPost.size()));
+        Assert.assertEquals(file5, PathUtil.get(afterRebuild.get(afterRebuild.size() - 1).path));
+        Assert.assertEquals(afterRebuild.subList(1, 3), reindexed.getShared(1, 3, crypto, reindexedA.network).join());
+
         // 2 comments on post
         SocialPost comment;
         for (int i=0; i < 2; i++) {
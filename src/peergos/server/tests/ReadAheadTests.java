@@ -0,0 +1,55 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.user.fs.*;
+
+import java.util.concurrent.*;
+
+public class ReadAheadTests {
+
+    @Before
+    public void budget() {
+        ReadAhead.configure(ForkJoinPool.commonPool(), 4L * Chunk.MAX_SIZE, ReadAhead.DEFAULT_MAX_WINDOW);
+    }
+
+    @After
+    public void restore() {
+        ReadAhead.configure(ForkJoinPool.commonPool(), ReadAhead.DEFAULT_BUDGET, ReadAhead.DEFAULT_MAX_WINDOW);
+    }
+
+    @Test
+    public void releasedChunksFreeBudget() {
+        ReadAhead.Reservations reader = ReadAhead.reservationsFor(new Object());
+        long before = ReadAhead.reservedBytes();
+        for (int i=0; i < 4; i++)
+            Assert.assertTrue(reader.reserve((long) i * Chunk.MAX_SIZE, Chunk.MAX_SIZE));
+        Assert.assertFalse(reader.reserve(4L * Chunk.MAX_SIZE, Chunk.MAX_SIZE));
+
+        reader.release(0);
+        // releasing twice doesn't free someone else's budget
+        reader.release(0);
+        Assert.assertEquals(before + 3L * Chunk.MAX_SIZE, ReadAhead.reservedBytes());
+        Assert.assertTrue(reader.reserve(4L * Chunk.MAX_SIZE, Chunk.MAX_SIZE));
+
+        reader.releaseAll();
+        Assert.assertEquals(before, ReadAhead.reservedBytes());
+    }
+
+    @Test
+    public void abandonedReaderFreesBudget() throws Exception {
+        long before = ReadAhead.reservedBytes();
+        Object reader = new Object();
+        ReadAhead.Reservations reservations = ReadAhead.reservationsFor(reader);
+        Assert.assertTrue(reservations.reserve(0, Chunk.MAX_SIZE));
+        Assert.assertTrue(reservations.reserve(Chunk.MAX_SIZE, Chunk.MAX_SIZE));
+        reader = null;
+        reservations = null;
+
+        long end = System.currentTimeMillis() + 10_000;
+        while (ReadAhead.reservedBytes() != before && System.currentTimeMillis() < end) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(before, ReadAhead.reservedBytes());
+    }
+}
@@ -0,0 +1,99 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.Cid;
+import peergos.shared.io.ipfs.Multihash;
+import peergos.shared.storage.*;
+
+import java.util.*;
+import java.util.stream.*;
+
+public class RecursiveSizeTests {
+    private static final Crypto crypto = Main.initCrypto();
+    private static final Random r = new Random(42);
+
+    private static Cid buildTree(DeletableContentAddressedStorage storage,
+                                 PublicKeyHash owner,
+                                 TransactionId tid,
+                                 int depth,
+                                 int fanout) {
+        List<Cid> children;
+        if (depth == 1) {
+            List<byte[]> leaves = IntStream.range(0, fanout)
+                    .mapToObj(i -> {
+                        byte[] leaf = new byte[1 + r.nextInt(1024)];
+                        r.nextBytes(leaf);
+                        return leaf;
+                    }).collect(Collectors.toList());
+            children = storage.putRaw(owner, owner, Collections.nCopies(fanout, new byte[0]), leaves, tid, x -> {}).join();
+        } else
+            children = IntStream.range(0, fanout)
+                    .mapToObj(i -> buildTree(storage, owner, tid, depth - 1, fanout))
+                    .collect(Collectors.toList());
+        return putNode(storage, owner, tid, children);
+    }
+
+    private static Cid putNode(DeletableContentAddressedStorage storage,
+                               PublicKeyHash owner,
+                               TransactionId tid,
+                               List<Cid> children) {
+        byte[] node = new CborObject.CborList(children.stream()
+                .map(CborObject.CborMerkleLink::new)
+                .collect(Collectors.toList())).serialize();
+        return storage.put(owner, owner, new byte[0], node, tid).join();
+    }
+
+    @Test
+    public void matchesDepthFirst() {
+        RamBlockMetadataStore metadb = new RamBlockMetadataStore();
+        DeletableContentAddressedStorage storage = new MetadataCachingStorage(new RAMStorage(crypto.hasher), metadb, null, crypto.hasher);
+        PublicKeyHash owner = new PublicKeyHash(new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, new byte[32]));
+        List<Multihash> peerIds = List.of(storage.id().join());
+
+        TransactionId tid = storage.startTransaction(owner).join();
+        Cid tree = buildTree(storage, owner, tid, 3, 20);
+        // a subtree linked from two places is counted twice
+        Cid root = putNode(storage, owner, tid, List.of(tree, tree));
+        storage.closeTransaction(owner, tid).join();
+
+        Assert.assertEquals(storage.getRecursiveBlockSizeDepthFirst(owner, root, peerIds),
+                storage.getRecursiveBlockSizeSync(owner, root, peerIds));
+    }
+
+    @Test
+    public void measuredSubtreesAreReused() {
+        RamBlockMetadataStore metadb = new RamBlockMetadataStore();
+        RAMStorage blocks = new RAMStorage(crypto.hasher);
+        DeletableContentAddressedStorage storage = new MetadataCachingStorage(blocks, metadb, null, crypto.hasher);
+        PublicKeyHash owner = new PublicKeyHash(new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, new byte[32]));
+        List<Multihash> peerIds = List.of(storage.id().join());
+
+        TransactionId tid = storage.startTransaction(owner).join();
+        Cid subtree = buildTree(storage, owner, tid, 2, 20);
+        Cid small = buildTree(storage, owner, tid, 1, 3);
+        storage.closeTransaction(owner, tid).join();
+
+        long subtreeSize = storage.getRecursiveBlockSizeSync(owner, subtree, peerIds);
+        Assert.assertEquals(Map.of(subtree, subtreeSize), metadb.getSubtreeSizes(List.of(subtree)));
+        storage.getRecursiveBlockSizeSync(owner, small, peerIds);
+        Assert.assertTrue("small subtrees aren't recorded", metadb.getSubtreeSizes(List.of(small)).isEmpty());
+
+        // moving the subtree under a new parent doesn't walk the subtree again, so it still works without its children
+        tid = storage.startTransaction(owner).join();
+        Cid moved = putNode(storage, owner, tid, List.of(subtree, small));
+        storage.closeTransaction(owner, tid).join();
+        long expected = subtreeSize + storage.getRecursiveBlockSizeDepthFirst(owner, small, peerIds) +
+                storage.getSize(owner, moved).join().get();
+        for (Cid child : storage.getLinks(owner, subtree, peerIds).join()) {
+            blocks.delete(owner, child);
+            metadb.remove(child);
+        }
+        Assert.assertEquals(expected, storage.getRecursiveBlockSizeSync(owner, moved, peerIds));
+    }
+}
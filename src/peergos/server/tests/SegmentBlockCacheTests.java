@@ -0,0 +1,76 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.io.ipfs.Cid;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class SegmentBlockCacheTests {
+    private static final Crypto crypto = Main.initCrypto();
+
+    private static Map<Cid, byte[]> putBlocks(SegmentBlockCache cache, int count, int size, Random rnd) {
+        Map<Cid, byte[]> blocks = new LinkedHashMap<>();
+        for (int i=0; i < count; i++) {
+            byte[] data = new byte[size];
+            rnd.nextBytes(data);
+            Cid hash = crypto.hasher.hash(data, false).join();
+            cache.put(hash, data).join();
+            blocks.put(hash, data);
+        }
+        return blocks;
+    }
+
+    @Test
+    public void survivesRestart() throws IOException {
+        Path dir = Files.createTempDirectory("peergos-segments");
+        SegmentBlockCache cache = new SegmentBlockCache(dir, 100_000_000, 100_000);
+        Map<Cid, byte[]> blocks = putBlocks(cache, 500, 1000, new Random(42));
+        Assert.assertTrue(cache.segmentCount() > 1);
+
+        // simulate a crash part way through writing a block
+        Path last = Files.list(dir)
+                .filter(p -> p.toString().endsWith(".seg"))
+                .max(Comparator.comparing(p -> Integer.parseInt(p.getFileName().toString().replace(".seg", ""))))
+                .get();
+        Files.write(last, new byte[]{0, 0, 0, 36, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        SegmentBlockCache reopened = new SegmentBlockCache(dir, 100_000_000, 100_000);
+        for (Map.Entry<Cid, byte[]> e : blocks.entrySet()) {
+            Assert.assertTrue(reopened.hasBlock(e.getKey()));
+            Assert.assertArrayEquals(e.getValue(), reopened.get(e.getKey()).join().get());
+        }
+        // appending after the truncated record still works
+        Map<Cid, byte[]> more = putBlocks(reopened, 10, 1000, new Random(43));
+        for (Map.Entry<Cid, byte[]> e : more.entrySet())
+            Assert.assertArrayEquals(e.getValue(), reopened.get(e.getKey()).join().get());
+    }
+
+    @Test
+    public void evictionKeepsHotBlocks() throws IOException {
+        Path dir = Files.createTempDirectory("peergos-segments");
+        int limit = 1_000_000;
+        SegmentBlockCache cache = new SegmentBlockCache(dir, limit, 100_000);
+        Random rnd = new Random(42);
+        Map<Cid, byte[]> hot = putBlocks(cache, 50, 1000, rnd);
+        for (int round=0; round < 5; round++) {
+            putBlocks(cache, 300, 1000, rnd);
+            // keep reading the first blocks we wrote
+            for (Map.Entry<Cid, byte[]> e : hot.entrySet())
+                cache.get(e.getKey()).join();
+            cache.ensureWithinSizeLimit();
+            Assert.assertTrue(cache.getTotalSize() <= limit);
+        }
+        List<Cid> missing = hot.keySet().stream()
+                .filter(c -> ! cache.hasBlock(c))
+                .collect(Collectors.toList());
+        Assert.assertTrue("Hot blocks were evicted: " + missing.size(), missing.isEmpty());
+        long files = Files.list(dir).count();
+        Assert.assertTrue(files < 30);
+    }
+}
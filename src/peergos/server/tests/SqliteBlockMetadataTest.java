@@ -76,6 +76,23 @@ public class SqliteBlockMetadataTest {
         Assert.assertTrue(all.size() == 3);
     }
 
+    @Test
+    public void subtreeSizes() throws Exception {
+        BlockMetadataStore store = buildStore(Files.createTempDirectory("peergos-block-metadata").resolve("metadata.sql"));
+        Cid root = randomCid(), other = randomCid();
+        PublicKeyHash owner = new PublicKeyHash(root);
+        store.put(owner, root, null, new BlockMetadata(1024, randomCids(3), Collections.emptyList()));
+        Assert.assertTrue(store.getSubtreeSizes(List.of(root, other)).isEmpty());
+
+        long size = 5L * 1024 * 1024 * 1024;
+        store.setSubtreeSize(root, size);
+        store.setSubtreeSize(root, size);
+        Assert.assertEquals(Map.of(root, size), store.getSubtreeSizes(List.of(root, other)));
+
+        store.remove(root);
+        Assert.assertTrue(store.getSubtreeSizes(List.of(root)).isEmpty());
+    }
+
     @Test
     public void bulkPutMatchesIndividualPuts() throws Exception {
         Path dir = Files.createTempDirectory("peergos-block-metadata-bulk");
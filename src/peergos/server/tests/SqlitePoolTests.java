@@ -0,0 +1,240 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.util.*;
+
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class SqlitePoolTests {
+
+    private static SqlitePool build() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-sqlite-pool");
+        SqlitePool pool = new SqlitePool(dir.resolve("pool.sql").toString(), 2);
+        try (Connection conn = pool.get();
+             PreparedStatement create = conn.prepareStatement("CREATE TABLE kv (k TEXT PRIMARY KEY, v INTEGER NOT NULL)")) {
+            create.execute();
+        }
+        return pool;
+    }
+
+    private static void put(Connection conn, String key, int value) throws SQLException {
+        try (PreparedStatement insert = conn.prepareStatement("INSERT OR REPLACE INTO kv (k, v) VALUES(?, ?)")) {
+            insert.setString(1, key);
+            insert.setInt(2, value);
+            insert.executeUpdate();
+        }
+    }
+
+    private static Optional<Integer> get(Connection conn, String key) throws SQLException {
+        try (PreparedStatement select = conn.prepareStatement("SELECT v FROM kv WHERE k = ?")) {
+            select.setString(1, key);
+            ResultSet rs = select.executeQuery();
+            return rs.next() ? Optional.of(rs.getInt(1)) : Optional.empty();
+        }
+    }
+
+    @Test
+    public void readsSeeCommittedWrites() throws Exception {
+        SqlitePool pool = build();
+        try (Connection conn = pool.get()) {
+            put(conn, "a", 1);
+            // after a write, queries on the same connection see it
+            Assert.assertEquals(Optional.of(1), get(conn, "a"));
+        }
+        try (Connection conn = pool.get()) {
+            Assert.assertEquals(Optional.of(1), get(conn, "a"));
+            try (PreparedStatement cte = conn.prepareStatement("WITH x AS (SELECT v FROM kv) SELECT count(*) FROM x")) {
+                ResultSet rs = cte.executeQuery();
+                Assert.assertTrue(rs.next());
+                Assert.assertEquals(1, rs.getInt(1));
+            }
+        }
+        // a common table expression followed by a write must go to the writer
+        try (Connection conn = pool.get();
+             PreparedStatement update = conn.prepareStatement("WITH x AS (SELECT 'a' AS k) UPDATE kv SET v = 2 WHERE k IN (SELECT k FROM x)")) {
+            Assert.assertEquals(1, update.executeUpdate());
+        }
+        try (Connection conn = pool.get()) {
+            Assert.assertEquals(Optional.of(2), get(conn, "a"));
+        }
+        pool.close();
+    }
+
+    @Test
+    public void transactionsAreIsolated() throws Exception {
+        SqlitePool pool = build();
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        Future<?> write;
+        Connection tx = pool.get();
+        try {
+            tx.setAutoCommit(false);
+            put(tx, "x", 1);
+            put(tx, "y", 2);
+            Assert.assertEquals(Optional.of(1), get(tx, "x"));
+
+            // other connections read the last committed state
+            Assert.assertEquals(Optional.empty(), other.submit(() -> {
+                try (Connection conn = pool.get()) {
+                    return get(conn, "x");
+                }
+            }).get());
+
+            // and writes from other connections wait for the transaction, rather than landing in it
+            write = other.submit(() -> {
+                try (Connection conn = pool.get()) {
+                    put(conn, "z", 3);
+                }
+                return null;
+            });
+            Thread.sleep(200);
+            Assert.assertFalse(write.isDone());
+            tx.commit();
+            tx.setAutoCommit(true);
+        } finally {
+            tx.close();
+        }
+        write.get(10, TimeUnit.SECONDS);
+        try (Connection conn = pool.get()) {
+            Assert.assertEquals(Optional.of(1), get(conn, "x"));
+            Assert.assertEquals(Optional.of(2), get(conn, "y"));
+            Assert.assertEquals(Optional.of(3), get(conn, "z"));
+        }
+        other.shutdown();
+        pool.close();
+    }
+
+    @Test
+    public void closeRollsBack() throws Exception {
+        SqlitePool pool = build();
+        try (Connection tx = pool.get()) {
+            tx.setAutoCommit(false);
+            put(tx, "x", 1);
+        }
+        try (Connection conn = pool.get()) {
+            Assert.assertEquals(Optional.empty(), get(conn, "x"));
+            Assert.assertTrue(conn.getAutoCommit());
+            put(conn, "x", 2);
+        }
+        try (Connection conn = pool.get()) {
+            Assert.assertEquals(Optional.of(2), get(conn, "x"));
+        }
+        pool.close();
+    }
+
+    @Test
+    public void closeOnAnotherThreadReleasesWriter() throws Exception {
+        SqlitePool pool = build();
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        Connection conn = pool.get();
+        put(conn, "x", 1);
+        other.submit(() -> {
+            conn.close();
+            return null;
+        }).get();
+        // the writer is free for other threads, and for this one
+        other.submit(() -> {
+            try (Connection c = pool.get()) {
+                put(c, "y", 2);
+            }
+            return null;
+        }).get(10, TimeUnit.SECONDS);
+        try (Connection c = pool.get()) {
+            put(c, "z", 3);
+            Assert.assertEquals(Optional.of(2), get(c, "y"));
+        }
+        other.shutdown();
+        pool.close();
+    }
+
+    @Test
+    public void nestedWriteFailsRatherThanJoiningTransaction() throws Exception {
+        SqlitePool pool = build();
+        try (Connection outer = pool.get()) {
+            outer.setAutoCommit(false);
+            put(outer, "x", 1);
+            try (Connection inner = pool.get()) {
+                // a nested connection reads the last committed state
+                Assert.assertEquals(Optional.empty(), get(inner, "x"));
+                try {
+                    put(inner, "y", 2);
+                    Assert.fail("A nested write should not share the outer transaction");
+                } catch (IllegalStateException expected) {}
+            }
+            // closing the nested connection leaves the outer transaction alone
+            put(outer, "z", 3);
+            outer.commit();
+            outer.setAutoCommit(true);
+        }
+        try (Connection conn = pool.get()) {
+            Assert.assertEquals(Optional.of(1), get(conn, "x"));
+            Assert.assertEquals(Optional.empty(), get(conn, "y"));
+            Assert.assertEquals(Optional.of(3), get(conn, "z"));
+        }
+        pool.close();
+    }
+
+    @Test
+    public void outerClosedBeforeNested() throws Exception {
+        SqlitePool pool = build();
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        Connection outer = pool.get();
+        Connection inner = pool.get();
+        put(outer, "x", 1);
+        Assert.assertEquals(Optional.of(1), get(inner, "x"));
+        outer.close();
+        // the writer is released even though the nested connection is still open
+        other.submit(() -> {
+            try (Connection c = pool.get()) {
+                put(c, "y", 2);
+            }
+            return null;
+        }).get(10, TimeUnit.SECONDS);
+        // and the nested connection can now take it
+        put(inner, "z", 3);
+        Assert.assertEquals(Optional.of(2), get(inner, "y"));
+        inner.close();
+        try (Connection conn = pool.get()) {
+            Assert.assertEquals(Optional.of(3), get(conn, "z"));
+        }
+        other.shutdown();
+        pool.close();
+    }
+
+    @Test
+    public void concurrentWriters() throws Exception {
+        SqlitePool pool = build();
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int t=0; t < 8; t++) {
+            int thread = t;
+            tasks.add(threads.submit(() -> {
+                for (int i=0; i < 100; i++) {
+                    try (Connection conn = pool.get()) {
+                        if (i % 2 == 0)
+                            conn.setAutoCommit(false);
+                        put(conn, thread + "-" + i, i);
+                        if (i % 2 == 0)
+                            conn.commit();
+                    }
+                    try (Connection conn = pool.get()) {
+                        Assert.assertEquals(Optional.of(i), get(conn, thread + "-" + i));
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> task : tasks)
+            task.get();
+        threads.shutdown();
+        try (Connection conn = pool.get();
+             PreparedStatement count = conn.prepareStatement("SELECT count(*) FROM kv")) {
+            ResultSet rs = count.executeQuery();
+            Assert.assertTrue(rs.next());
+            Assert.assertEquals(800, rs.getInt(1));
+        }
+        pool.close();
+    }
+}
@@ -0,0 +1,132 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.io.ipfs.Cid;
+import peergos.shared.io.ipfs.Multihash;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+public class TreeMirrorTests {
+
+    private static Cid cid(int i, boolean raw) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) (i >> 24);
+        hash[1] = (byte) (i >> 16);
+        hash[2] = (byte) (i >> 8);
+        hash[3] = (byte) i;
+        return new Cid(1, raw ? Cid.Codec.Raw : Cid.Codec.DagCbor, Multihash.Type.sha2_256, hash);
+    }
+
+    /** Builds a tree with the given fanout and depth, returning its root. */
+    private static Cid buildTree(Map<Cid, List<Cid>> blocks, AtomicInteger counter, int depth, int fanout) {
+        if (depth == 0) {
+            Cid leaf = cid(counter.incrementAndGet(), true);
+            blocks.put(leaf, Collections.emptyList());
+            return leaf;
+        }
+        List<Cid> children = IntStream.range(0, fanout)
+                .mapToObj(i -> buildTree(blocks, counter, depth - 1, fanout))
+                .collect(Collectors.toList());
+        Cid node = cid(counter.incrementAndGet(), false);
+        blocks.put(node, children);
+        return node;
+    }
+
+    private static Function<List<Cid>, List<BlockMetadata>> fetcher(Map<Cid, List<Cid>> blocks,
+                                                                    Set<Cid> local,
+                                                                    AtomicInteger failAfter) {
+        return batch -> {
+            if (failAfter.decrementAndGet() < 0)
+                throw new IllegalStateException("Peer went away");
+            return batch.stream()
+                    .peek(local::add)
+                    .map(c -> new BlockMetadata(1, blocks.get(c), Collections.emptyList()))
+                    .collect(Collectors.toList());
+        };
+    }
+
+    /** Fetches blocks missing from the local store, counting them, and skips those already present. */
+    private static Function<List<Cid>, List<BlockMetadata>> storingFetcher(Map<Cid, List<Cid>> blocks,
+                                                                           Set<Cid> store,
+                                                                           Set<Cid> fetched,
+                                                                           AtomicInteger failAfter) {
+        return batch -> {
+            if (failAfter.decrementAndGet() < 0)
+                throw new IllegalStateException("Peer went away");
+            return batch.stream()
+                    .peek(c -> {
+                        if (store.add(c))
+                            fetched.add(c);
+                    })
+                    .map(c -> new BlockMetadata(1, blocks.get(c), Collections.emptyList()))
+                    .collect(Collectors.toList());
+        };
+    }
+
+    @Test
+    public void mirrorsWholeTree() {
+        Map<Cid, List<Cid>> blocks = new HashMap<>();
+        Cid root = buildTree(blocks, new AtomicInteger(), 4, 8);
+        Set<Cid> local = ConcurrentHashMap.newKeySet();
+
+        new TreeMirror(8, Optional.empty()).mirror(List.of(root), fetcher(blocks, local, new AtomicInteger(Integer.MAX_VALUE)));
+        Assert.assertEquals(blocks.keySet(), local);
+    }
+
+    @Test
+    public void resumesFromFrontier() throws Exception {
+        Map<Cid, List<Cid>> blocks = new HashMap<>();
+        Cid root = buildTree(blocks, new AtomicInteger(), 4, 8);
+        Path frontier = Files.createTempDirectory("peergos-mirror").resolve("frontier");
+        Set<Cid> firstPass = ConcurrentHashMap.newKeySet();
+
+        try {
+            new TreeMirror(4, Optional.of(frontier)).mirror(List.of(root), fetcher(blocks, firstPass, new AtomicInteger(20)));
+            Assert.fail("Mirror should have failed");
+        } catch (RuntimeException expected) {}
+        Assert.assertTrue(Files.exists(frontier));
+        Assert.assertTrue(firstPass.size() < blocks.size());
+
+        Set<Cid> store = ConcurrentHashMap.newKeySet();
+        store.addAll(firstPass);
+        Set<Cid> secondPass = ConcurrentHashMap.newKeySet();
+        new TreeMirror(4, Optional.of(frontier)).mirror(List.of(root), storingFetcher(blocks, store, secondPass, new AtomicInteger(Integer.MAX_VALUE)));
+        Assert.assertFalse(secondPass.contains(root));
+        Assert.assertEquals(blocks.keySet(), store);
+        Assert.assertFalse(Files.exists(frontier));
+    }
+
+    @Test
+    public void resumeRefetchesCollectedBlocks() throws Exception {
+        Map<Cid, List<Cid>> blocks = new HashMap<>();
+        Cid root = buildTree(blocks, new AtomicInteger(), 4, 8);
+        Path frontier = Files.createTempDirectory("peergos-mirror").resolve("frontier");
+        Set<Cid> store = ConcurrentHashMap.newKeySet();
+
+        try {
+            new TreeMirror(4, Optional.of(frontier)).mirror(List.of(root), storingFetcher(blocks, store, new HashSet<>(), new AtomicInteger(20)));
+            Assert.fail("Mirror should have failed");
+        } catch (RuntimeException expected) {}
+        Assert.assertTrue(Files.exists(frontier));
+
+        // blocks fetched before the restart are unreachable from any committed root, so a gc can remove them
+        List<Cid> collected = store.stream()
+                .filter(c -> ! c.equals(root))
+                .limit(10)
+                .collect(Collectors.toList());
+        Assert.assertFalse(collected.isEmpty());
+        collected.forEach(store::remove);
+
+        Set<Cid> secondPass = ConcurrentHashMap.newKeySet();
+        new TreeMirror(4, Optional.of(frontier)).mirror(List.of(root), storingFetcher(blocks, store, secondPass, new AtomicInteger(Integer.MAX_VALUE)));
+        Assert.assertEquals(blocks.keySet(), store);
+        Assert.assertTrue(secondPass.containsAll(collected));
+        Assert.assertFalse(Files.exists(frontier));
+    }
+}
@@ -0,0 +1,33 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.space.*;
+
+import java.nio.file.*;
+
+public class UsageUpdateCheckpointTests {
+
+    @Test
+    public void resumesAfterRestart() throws Exception {
+        Path file = Files.createTempDirectory("peergos-usage").resolve("usage-update.checkpoint");
+        UsageUpdateCheckpoint first = UsageUpdateCheckpoint.load(file);
+        first.markDone("alice");
+        first.markDone("bob");
+        first.markDone("carol");
+        first.markChanged("bob");
+        first.markChanged("dave");
+
+        // simulate a restart part way through
+        UsageUpdateCheckpoint resumed = UsageUpdateCheckpoint.load(file);
+        Assert.assertTrue(resumed.isDone("alice"));
+        Assert.assertFalse(resumed.isDone("bob"));
+        Assert.assertTrue(resumed.isDone("carol"));
+        Assert.assertFalse(resumed.isDone("dave"));
+        Assert.assertEquals(2, resumed.doneCount());
+
+        resumed.markDone("bob");
+        resumed.complete();
+        Assert.assertFalse(Files.exists(file));
+        Assert.assertEquals(0, UsageUpdateCheckpoint.load(file).doneCount());
+    }
+}
@@ -2630,6 +2630,44 @@ public abstract class UserTests {
 
     }
 
+    @Test
+    public void overwriteChangedChunksKeepsHashTree() throws Exception {
+        String username = generateUsername();
+        String password = "test";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().join();
+
+        String filename = "chunks.bin";
+        Path filePath = PathUtil.get(username, filename);
+        byte[] data = randomData(2 * Chunk.MAX_SIZE + 1000);
+        userRoot.uploadOrReplaceFile(filename, new AsyncReader.ArrayBacked(data), data.length, context.network,
+                context.crypto, () -> false, l -> {}).join();
+
+        // change the middle chunk
+        byte[] edited = Arrays.copyOf(data, data.length);
+        edited[Chunk.MAX_SIZE + 10]++;
+        overwriteChangedChunksAndCheck(edited, filePath, context);
+
+        // changing it back must be detected, which needs the hash of the middle chunk to have been updated
+        overwriteChangedChunksAndCheck(data, filePath, context);
+
+        // insert near the start, moving everything after it
+        byte[] inserted = new byte[data.length + 100];
+        System.arraycopy(data, 0, inserted, 0, 1000);
+        System.arraycopy(data, 1000, inserted, 1100, data.length - 1000);
+        overwriteChangedChunksAndCheck(inserted, filePath, context);
+    }
+
+    private void overwriteChangedChunksAndCheck(byte[] data, Path filePath, UserContext context) throws Exception {
+        context.getByPath(filePath).join().get()
+                .overwriteChangedChunks(new AsyncReader.ArrayBacked(data), data.length, context.network, context.crypto, l -> {})
+                .join();
+        FileWrapper updated = context.getByPath(filePath).join().get();
+        checkFileContents(data, updated, context);
+        HashTree expected = HashTree.build(new AsyncReader.ArrayBacked(data), 0, data.length, context.crypto.hasher).join();
+        Assert.assertEquals(expected.branch(0), updated.getFileProperties().treeHash.get());
+    }
+
     @Test
     public void deleteWithOwnSubtreeWriterLeavesNoOrphanedChampEntries() throws Exception {
         String username = generateUsername();
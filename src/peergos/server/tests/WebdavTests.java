@@ -10,6 +10,8 @@ import peergos.server.webdav.WebdavMount;
 import peergos.server.webdav.WebdavServer;
 import peergos.shared.*;
 import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
 
 import java.net.*;
 import java.net.http.HttpClient;
@@ -171,6 +173,63 @@ public class WebdavTests {
         }
     }
 
+    @Test
+    public void webdavSeesChangesMadeElsewhere() throws Exception {
+        String username = generateUsername();
+        String password = "testpassword";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+
+        int webdavPort = TestPorts.getPort();
+        String webdavUser = "webdavcacheuser";
+        String webdavPass = "webdavcachepass";
+        String peergosUrl = "http://localhost:" + args.getInt("port");
+
+        Server webdavServer = WebdavServer.startNonBlocking(webdavPort, webdavUser, webdavPass,
+                username, password, peergosUrl, "basic", MountConfig.disabled());
+        try {
+            String auth = "Basic " + Base64.getEncoder().encodeToString((webdavUser + ":" + webdavPass).getBytes());
+            HttpClient client = HttpClient.newHttpClient();
+            String base = "http://localhost:" + webdavPort;
+            HttpRequest listing = HttpRequest.newBuilder(URI.create(base + "/" + username + "/"))
+                    .method("PROPFIND", HttpRequest.BodyPublishers.noBody())
+                    .header("Authorization", auth)
+                    .header("Depth", "1")
+                    .build();
+            HttpRequest get = HttpRequest.newBuilder(URI.create(base + "/" + username + "/elsewhere.txt"))
+                    .GET()
+                    .header("Authorization", auth)
+                    .build();
+
+            // resolve the home directory and its children so they are cached
+            Assert.assertEquals(207, client.send(listing, HttpResponse.BodyHandlers.ofString()).statusCode());
+
+            byte[] content = "Written by another client".getBytes();
+            context.getUserRoot().join().uploadOrReplaceFile("elsewhere.txt", AsyncReader.build(content), content.length,
+                    context.network, crypto, () -> false, x -> {}).join();
+            long deadline = System.currentTimeMillis() + 10_000;
+            String body = client.send(listing, HttpResponse.BodyHandlers.ofString()).body();
+            while (! body.contains("elsewhere.txt") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(200);
+                body = client.send(listing, HttpResponse.BodyHandlers.ofString()).body();
+            }
+            Assert.assertTrue("Listing should show a file added by another client", body.contains("elsewhere.txt"));
+            Assert.assertArrayEquals(content, client.send(get, HttpResponse.BodyHandlers.ofByteArray()).body());
+
+            byte[] modified = "Modified by another client".getBytes();
+            context.getByPath(PathUtil.get(username, "elsewhere.txt")).join().get()
+                    .overwriteFile(AsyncReader.build(modified), modified.length, context.network, crypto, x -> {}).join();
+            deadline = System.currentTimeMillis() + 10_000;
+            byte[] read = client.send(get, HttpResponse.BodyHandlers.ofByteArray()).body();
+            while (! Arrays.equals(read, modified) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(200);
+                read = client.send(get, HttpResponse.BodyHandlers.ofByteArray()).body();
+            }
+            Assert.assertArrayEquals("GET should return content modified by another client", modified, read);
+        } finally {
+            webdavServer.stop();
+        }
+    }
+
     @Test
     public void webdavMountReadWrite() throws Exception {
         String os = System.getProperty("os.name").toLowerCase();
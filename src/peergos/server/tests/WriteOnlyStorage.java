@@ -57,7 +57,11 @@ public class WriteOnlyStorage implements DeletableContentAddressedStorage {
     @Override
     public void getAllBlockHashVersions(PublicKeyHash owner, Consumer<List<BlockVersion>> res) {
         List<BlockVersion> batch = new ArrayList<>();
-        for (Cid cid : storage.getOrDefault(owner, Collections.emptyMap()).keySet()) {
+        List<Cid> cids;
+        synchronized (this) {
+            cids = new ArrayList<>(storage.getOrDefault(owner, Collections.emptyMap()).keySet());
+        }
+        for (Cid cid : cids) {
             batch.add(new BlockVersion(cid, "hey", true));
             if (batch.size() == 1000) {
                 res.accept(batch);
@@ -83,7 +87,7 @@ public class WriteOnlyStorage implements DeletableContentAddressedStorage {
     }
 
     @Override
-    public void delete(PublicKeyHash owner, Cid block) {
+    public synchronized void delete(PublicKeyHash owner, Cid block) {
         storage.getOrDefault(owner, Collections.emptyMap()).remove(block);
     }
 
@@ -0,0 +1,84 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.Cid;
+import peergos.shared.io.ipfs.Multihash;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.file.*;
+import java.util.*;
+
+/** Compares serving a cbor block by parsing and re-serializing it, which BLOCK_GET used to do, with returning the
+ *  stored bytes directly.
+ */
+public class BlockGetBenchmark {
+    private static final Crypto crypto = Main.initCrypto();
+    private static final Random r = new Random(42);
+
+    @Test
+    public void cborPassThrough() throws IOException {
+        DeletableContentAddressedStorage storage = new FileContentAddressedStorage(Files.createTempDirectory("peergos-tmp" + System.currentTimeMillis()),
+                new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes())),
+                JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands()),
+                (a, b, c, d) -> Futures.of(true), PartitionStatus.DONE, crypto.hasher);
+        SigningKeyPair pair = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash owner = ContentAddressedStorage.hashKey(pair.publicSigningKey);
+
+        // blocks shaped like champ nodes, with a mixture of links and small inline values
+        int nBlocks = 100;
+        List<Cid> blocks = new ArrayList<>();
+        TransactionId tid = storage.startTransaction(owner).join();
+        for (int i=0; i < nBlocks; i++) {
+            Map<String, Cborable> entries = new TreeMap<>();
+            for (int j=0; j < 32; j++) {
+                byte[] leaf = new byte[32];
+                r.nextBytes(leaf);
+                Cid link = new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, RAMStorage.hash(leaf));
+                entries.put("l" + j, new CborObject.CborMerkleLink(link));
+                entries.put("v" + j, new CborObject.CborByteArray(leaf));
+            }
+            byte[] block = CborObject.CborMap.build(entries).serialize();
+            blocks.add(storage.put(owner, null, null, block, tid).join());
+        }
+        storage.closeTransaction(owner, tid).join();
+
+        int iterations = 100;
+        long[] parsed = run(iterations, () -> {
+            for (Cid block : blocks)
+                storage.get(owner, block, Optional.empty()).thenApply(opt -> opt.map(CborObject::toByteArray)).join();
+        });
+        long[] raw = run(iterations, () -> {
+            for (Cid block : blocks)
+                storage.getRaw(owner, block, Optional.empty()).join();
+        });
+        long gets = (long) iterations * nBlocks;
+        System.out.println("Parse and re-serialize: " + parsed[0] + "ms, " + parsed[1] / gets + " bytes allocated per get");
+        System.out.println("Pass through: " + raw[0] + "ms, " + raw[1] / gets + " bytes allocated per get");
+        Assert.assertTrue("Pass through should allocate less", raw[1] < parsed[1]);
+    }
+
+    private static long[] run(int iterations, Runnable task) {
+        // warm up
+        for (int i=0; i < 10; i++)
+            task.run();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long t0 = System.currentTimeMillis();
+        for (int i=0; i < iterations; i++)
+            task.run();
+        long duration = System.currentTimeMillis() - t0;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        return new long[] {duration, allocated};
+    }
+}
@@ -17,7 +17,9 @@ import peergos.shared.crypto.symmetric.SymmetricKey;
 import peergos.shared.messaging.ChatController;
 import peergos.shared.messaging.MessageEnvelope;
 import peergos.shared.messaging.MessageRef;
+import peergos.shared.messaging.MessageStore;
 import peergos.shared.messaging.Messenger;
+import peergos.shared.messaging.SignedMessage;
 import peergos.shared.messaging.messages.ApplicationMessage;
 import peergos.shared.messaging.messages.ReplyTo;
 import peergos.shared.social.FollowRequestWithCipherText;
@@ -31,6 +33,7 @@ import peergos.shared.util.Pair;
 import peergos.shared.util.PathUtil;
 
 import java.net.URL;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -189,6 +192,48 @@ public class ChatBenchmark {
         System.currentTimeMillis();
     }
 
+    @Test
+    public void openLargeChatAtTail() {
+        UserContext a = ensureSignedUp(generateUsername(), "test01", network, crypto);
+        Messenger msgA = new Messenger(a);
+        ChatController controller = msgA.createChat().join();
+        controller = msgA.sendMessage(controller, ApplicationMessage.text("Hello")).join();
+        Path chatPath = Messenger.getChatPath(a.username, controller.chatUuid);
+        List<SignedMessage> initial = getMessageStore(a, chatPath).getMessagesFrom(0).join();
+        SignedMessage msg = initial.get(initial.size() - 1);
+
+        // fill the chat directly through the message store, rather than sending 100k messages
+        int total = 100_000;
+        int batchSize = 1_000;
+        for (long count = initial.size(); count < total;) {
+            int n = (int) Math.min(batchSize, total - count);
+            long msgIndex = count;
+            FileWrapper chatRoot = a.getByPath(chatPath).join().get();
+            MessageStore store = ChatController.getChatMessageStore(chatRoot, a).join();
+            a.network.synchronizer.applyComplexUpdate(a.signer.publicKeyHash, chatRoot.signingPair(),
+                    (v, c) -> store.addMessages(v, c, msgIndex, Collections.nCopies(n, msg))).join();
+            count += n;
+        }
+
+        long worst = 0, best = Long.MAX_VALUE, accum = 0;
+        int limit = 10;
+        for (int i = 0; i < limit; i++) {
+            long t0 = System.currentTimeMillis();
+            List<SignedMessage> tail = getMessageStore(a, chatPath).getMessages(total - 20, total).join();
+            long duration = System.currentTimeMillis() - t0;
+            Assert.assertEquals(20, tail.size());
+            accum += duration;
+            worst = Math.max(worst, duration);
+            best = Math.min(best, duration);
+            System.err.printf("openAtTail(%d) duration: %d mS, best: %d mS, worst: %d mS, av: %d mS\n", total,
+                    duration, best, worst, accum / (i + 1));
+        }
+    }
+
+    private static MessageStore getMessageStore(UserContext user, Path chatPath) {
+        return ChatController.getChatMessageStore(user.getByPath(chatPath).join().get(), user).join();
+    }
+
     private String generateUsername() {
         return "test" + (random.nextInt() % 10000);
     }
@@ -4,8 +4,10 @@ import org.junit.Assert;
 import org.junit.Test;
 import peergos.server.Main;
 import peergos.server.storage.FileBlockCache;
+import peergos.server.storage.SegmentBlockCache;
 import peergos.shared.Crypto;
 import peergos.shared.io.ipfs.Cid;
+import peergos.shared.storage.BlockCache;
 
 import java.io.File;
 import java.io.IOException;
@@ -14,7 +16,9 @@ import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
@@ -75,6 +79,73 @@ public class FileBlockCacheTests {
         }
     }
 
+    // Many small blocks, a skewed read pattern and enough writes to need eviction, for each cache implementation
+    @Test
+    public void segmentsVsFiles() throws IOException {
+        Crypto crypto = Main.initCrypto();
+        long limit = 50_000_000;
+        Path filesDir = Files.createTempDirectory("peergos-test");
+        Path segmentsDir = Files.createTempDirectory("peergos-test");
+        try {
+            long[] files = exercise(new FileBlockCache(filesDir, limit), crypto, limit, "Files");
+            long[] segments = exercise(new SegmentBlockCache(segmentsDir, limit), crypto, limit, "Segments");
+            System.out.println("Files on disk: " + countFiles(filesDir) + " vs " + countFiles(segmentsDir));
+            Assert.assertTrue("Segments should keep more of the hot blocks", segments[1] >= files[1]);
+            Assert.assertTrue(getSize(segmentsDir) <= limit + SegmentBlockCache.DEFAULT_SEGMENT_SIZE);
+
+            long t0 = System.currentTimeMillis();
+            SegmentBlockCache reopened = new SegmentBlockCache(segmentsDir, limit);
+            System.out.println("Segments reopened in " + (System.currentTimeMillis() - t0) + "ms");
+        } finally {
+            for (Path dir : List.of(filesDir, segmentsDir))
+                try (Stream<Path> paths = Files.walk(dir)) {
+                    paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                }
+        }
+    }
+
+    /**
+     * @return the duration in ms, and the number of hot blocks still present at the end
+     */
+    private static long[] exercise(BlockCache cache, Crypto crypto, long limit, String name) {
+        Random rnd = new Random(42);
+        int blockSize = 1_000;
+        int nBlocks = (int) (3 * limit / blockSize);
+        List<Cid> hot = new ArrayList<>();
+        long t0 = System.currentTimeMillis();
+        long evictionMillis = 0;
+        byte[] data = new byte[blockSize];
+        for (int i=0; i < nBlocks; i++) {
+            rnd.nextBytes(data);
+            Cid hash = crypto.hasher.hash(data, false).join();
+            cache.put(hash, data).join();
+            if (hot.size() < 1_000)
+                hot.add(hash);
+            if (i % 100 == 0)
+                for (int j=0; j < 10; j++)
+                    cache.get(hot.get(rnd.nextInt(hot.size()))).join();
+            if (i % 10_000 == 0) {
+                long e0 = System.currentTimeMillis();
+                if (cache instanceof FileBlockCache)
+                    ((FileBlockCache) cache).ensureWithinSizeLimit(limit);
+                else
+                    ((SegmentBlockCache) cache).ensureWithinSizeLimit();
+                evictionMillis += System.currentTimeMillis() - e0;
+            }
+        }
+        long duration = System.currentTimeMillis() - t0;
+        long hotPresent = hot.stream().filter(cache::hasBlock).count();
+        System.out.println(name + ": " + nBlocks + " puts in " + duration + "ms, " + evictionMillis + "ms evicting, "
+                + hotPresent + "/" + hot.size() + " hot blocks kept");
+        return new long[]{duration, hotPresent};
+    }
+
+    private static long countFiles(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            return paths.filter(Files::isRegularFile).count();
+        }
+    }
+
     private static long getSize(Path dir) throws IOException {
         AtomicLong size = new AtomicLong(0);
         Files.walkFileTree(dir, new FileVisitor<Path>() {
@@ -28,6 +28,22 @@ public class GCBenchmark {
 
     @Test
     public void millionObjects() throws IOException {
+        benchmark(GarbageCollector.Engine.SQLITE);
+    }
+
+    @Test
+    public void millionObjectsBloom() throws IOException {
+        benchmark(GarbageCollector.Engine.BLOOM);
+    }
+
+    @Test
+    public void compareEngines() throws IOException {
+        long sqlite = benchmark(GarbageCollector.Engine.SQLITE);
+        long bloom = benchmark(GarbageCollector.Engine.BLOOM);
+        System.out.println("GC with sqlite reachability took " + sqlite + "ms, with bloom filter took " + bloom + "ms");
+    }
+
+    private long benchmark(GarbageCollector.Engine engine) throws IOException {
         DeletableContentAddressedStorage storage = new FileContentAddressedStorage(Files.createTempDirectory("peergos-tmp" + System.currentTimeMillis()),
                 new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes())),
                 JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands()),
@@ -40,6 +56,9 @@ public class GCBenchmark {
         for (int i=0; i < nPointers; i++) {
             SigningKeyPair pair = SigningKeyPair.random(crypto.random, crypto.signer);
             PublicKeyHash owner = ContentAddressedStorage.hashKey(pair.publicSigningKey);
+            String username = "user" + i;
+            usage.addUserIfAbsent(username);
+            usage.addWriter(username, owner);
             TransactionId tid = storage.startTransaction(owner).join();
             Multihash root = generateTree(r, owner, storage, nLeavesPerUser, tid);
             PointerUpdate cas = new PointerUpdate(MaybeMultihash.empty(), MaybeMultihash.of(root), Optional.of(Long.valueOf(i)));
@@ -48,8 +67,12 @@ public class GCBenchmark {
             storage.closeTransaction(owner, tid).join();
         }
 
-        GarbageCollector.collect(storage, pointers, usage, new RamPki(), Paths.get("reachability.sql"), s -> Futures.of(true),
-                new RamBlockMetadataStore(), (cd, rd, c) -> Futures.of(true), u -> Futures.of(true), false);
+        long t0 = System.currentTimeMillis();
+        GarbageCollector.collect(storage, pointers, usage, new RamPki(), Files.createTempDirectory("peergos-gc"), s -> Futures.of(true),
+                new RamBlockMetadataStore(), (cd, rd, c) -> Futures.of(true), u -> Futures.of(true), false, engine, 0);
+        long duration = System.currentTimeMillis() - t0;
+        System.out.println(engine + " GC took " + duration + "ms");
+        return duration;
     }
 
     private static Multihash generateTree(Random r, PublicKeyHash owner, ContentAddressedStorage storage, int nLeaves, TransactionId tid) {
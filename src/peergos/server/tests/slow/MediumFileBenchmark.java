@@ -7,11 +7,15 @@ import peergos.server.*;
 import peergos.server.tests.*;
 import peergos.server.util.*;
 import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.symmetric.*;
 import peergos.shared.storage.auth.*;
 import peergos.shared.user.*;
 import peergos.shared.user.fs.*;
 import peergos.shared.util.*;
 
+import java.lang.management.*;
 import java.net.*;
 import java.nio.file.*;
 import java.util.*;
@@ -97,6 +101,95 @@ public class MediumFileBenchmark {
         }
     }
 
+    // Time to write back an edited 10 chunk file, as WebDAV and sync do, with only the changed chunks versus the whole file
+    @Test
+    public void editedFileOverwrite() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+        String filename = randomString();
+        Path filePath = PathUtil.get(username, filename);
+        byte[] data = new byte[10 * Chunk.MAX_SIZE];
+        random.nextBytes(data);
+        userRoot.uploadOrReplaceFile(filename, AsyncReader.build(data), data.length, context.network,
+                crypto, () -> false, x -> {}).join();
+
+        for (int i=0; i < 5; i++) {
+            // an in place edit in a single chunk
+            byte[] edited = Arrays.copyOf(data, data.length);
+            edited[random.nextInt(data.length)]++;
+            long changedOnly = overwrite(edited, filePath, context, true);
+            long whole = overwrite(data, filePath, context, false);
+            System.err.printf("EDIT(%d) changed chunks: %d mS, whole file: %d mS\n", i, changedOnly, whole);
+        }
+
+        // inserting moves everything after the insertion point, so only the earlier chunks can be skipped
+        int insertAt = 7 * Chunk.MAX_SIZE + 1000;
+        byte[] inserted = new byte[data.length + 100];
+        System.arraycopy(data, 0, inserted, 0, insertAt);
+        System.arraycopy(data, insertAt, inserted, insertAt + 100, data.length - insertAt);
+        long changedOnly = overwrite(inserted, filePath, context, true);
+        long whole = overwrite(data, filePath, context, false);
+        System.err.printf("INSERT changed chunks: %d mS, whole file: %d mS\n", changedOnly, whole);
+    }
+
+    private long overwrite(byte[] data, Path filePath, UserContext context, boolean changedChunksOnly) {
+        FileWrapper file = context.getByPath(filePath).join().get();
+        long t0 = System.currentTimeMillis();
+        if (changedChunksOnly)
+            file.overwriteChangedChunks(AsyncReader.build(data), data.length, network, crypto, x -> {}).join();
+        else
+            file.overwriteFile(AsyncReader.build(data), data.length, network, crypto, x -> {}).join();
+        long duration = System.currentTimeMillis() - t0;
+        byte[] readData = Serialize.readFully(context.getByPath(filePath).join().get()
+                .getInputStream(network, crypto, x -> {}).join(), data.length).join();
+        Assert.assertTrue(Arrays.equals(readData, data));
+        return duration;
+    }
+
+    // Bytes allocated per chunk to read, pad, encrypt, fragment and hash a file, with and without pooled chunk buffers
+    @Test
+    public void chunkEncryptionAllocation() {
+        byte[] data = new byte[10 * Chunk.MAX_SIZE];
+        random.nextBytes(data);
+        SymmetricKey key = SymmetricKey.random();
+
+        long[] fresh = encryptChunks(data, key, false);
+        long[] pooled = encryptChunks(data, key, true);
+        System.out.println("Fresh buffers: " + fresh[0] + "ms, " + fresh[1] / 1024 + " KiB allocated per chunk");
+        System.out.println("Pooled buffers: " + pooled[0] + "ms, " + pooled[1] / 1024 + " KiB allocated per chunk");
+        Assert.assertTrue("Pooled buffers should allocate less", pooled[1] < fresh[1]);
+    }
+
+    private long[] encryptChunks(byte[] data, SymmetricKey key, boolean pooled) {
+        int nChunks = data.length / Chunk.MAX_SIZE;
+        ByteArrayPool buffers = FileUploader.chunkBuffers();
+        Runnable task = () -> {
+            for (int i=0; i < nChunks; i++) {
+                byte[] chunk = pooled ? buffers.take() : new byte[Chunk.MAX_SIZE];
+                System.arraycopy(data, i * Chunk.MAX_SIZE, chunk, 0, Chunk.MAX_SIZE);
+                FragmentedPaddedCipherText.build(key, new CborObject.CborByteArray(chunk), 4096, Fragment.MAX_LENGTH,
+                        Optional.empty(), crypto.random, crypto.hasher, pooled).join();
+                if (pooled)
+                    buffers.release(chunk);
+            }
+        };
+        // warm up
+        for (int i=0; i < 2; i++)
+            task.run();
+        int iterations = 5;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long t0 = System.currentTimeMillis();
+        for (int i=0; i < iterations; i++)
+            task.run();
+        long duration = System.currentTimeMillis() - t0;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        return new long[] {duration, allocated / ((long) iterations * nChunks)};
+    }
+
     private static String randomString() {
         return UUID.randomUUID().toString();
     }
@@ -20,6 +20,7 @@ import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
+import java.util.stream.*;
 
 import static org.junit.Assert.*;
 
@@ -472,6 +473,50 @@ public class P2pProxyStressTests {
         assertTrue("sustained mixed load leaked " + leaked + " file descriptors", leaked < 1000);
     }
 
+    /** The poster the server uses for p2p proxying and mirroring. It used to run every request on one of 100 threads,
+     *  blocked until the whole body had arrived, so a node could never have more than 100 requests in flight. */
+    @Test
+    public void t10_asyncPoster() throws Exception {
+        only("poster");
+        URL gateway = URI.create("http://127.0.0.1:" + client.gatewayPort + "/").toURL();
+        // a poster with the default limit to the same host mustn't stop the configured limit applying
+        new JavaPoster(gateway, false);
+        JavaPoster poster = new JavaPoster(gateway, false, 400);
+        String prefix = "p2p/" + victim.id + "/http/";
+
+        int requests = 300;
+        long t0 = System.currentTimeMillis();
+        List<CompletableFuture<byte[]>> slow = IntStream.range(0, requests)
+                .mapToObj(i -> poster.postUnzip(prefix + "slow?ms=2000&i=" + i, new byte[0], HEALTH_TIMEOUT_MILLIS))
+                .collect(Collectors.toList());
+        for (CompletableFuture<byte[]> r : slow)
+            assertEquals("ok", new String(r.join(), StandardCharsets.UTF_8));
+        long slowMillis = System.currentTimeMillis() - t0;
+        System.out.println("async poster: " + requests + " concurrent 2s requests in " + slowMillis + "ms");
+        assertTrue("300 concurrent 2s requests took " + slowMillis + "ms, as long as 100 at a time would",
+                slowMillis < 6_000);
+
+        // identical concurrent block reads share one request
+        victim.backend.blockGets.set(0);
+        String blockGet = prefix + "api/v0/block/get?arg=" + randomPeerId();
+        List<CompletableFuture<byte[]>> reads = IntStream.range(0, 50)
+                .mapToObj(i -> poster.get(blockGet))
+                .collect(Collectors.toList());
+        byte[] first = reads.get(0).join();
+        for (CompletableFuture<byte[]> r : reads)
+            assertArrayEquals(first, r.join());
+        assertEquals("concurrent identical block gets should be coalesced", 1, victim.backend.blockGets.get());
+
+        for (int i = 0; i < 10; i++) {
+            byte[] big = poster.postUnzip(prefix + "big?len=4000000", new byte[0], HEALTH_TIMEOUT_MILLIS).join();
+            assertEquals(4_000_000, big.length);
+        }
+        // bigger than we presize for
+        byte[] huge = poster.postUnzip(prefix + "big?len=20000000", new byte[0], HEALTH_TIMEOUT_MILLIS).join();
+        assertEquals(20_000_000, huge.length);
+        assertHealthy("after async poster");
+    }
+
     // ---------------------------------------------------------------- nodes
 
     /** One nabu node plus the stand-in local API server it proxies inbound p2p requests to. */
@@ -968,6 +1013,7 @@ public class P2pProxyStressTests {
     /** Stands in for a node's local API server, with endpoints that misbehave on demand. */
     private static class Backend {
         private final HttpServer server;
+        final AtomicInteger blockGets = new AtomicInteger();
 
         Backend(int port) throws IOException {
             server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 500);
@@ -996,6 +1042,15 @@ public class P2pProxyStressTests {
                             ex.getResponseBody().write(body);
                             break;
                         }
+                        case "/api/v0/block/get": {
+                            blockGets.incrementAndGet();
+                            Thread.sleep(1000);
+                            byte[] body = new byte[100_000];
+                            new Random(42).nextBytes(body);
+                            ex.sendResponseHeaders(200, body.length);
+                            ex.getResponseBody().write(body);
+                            break;
+                        }
                         case "/hang": {
                             Thread.sleep(300_000); // never reply within the life of a test
                             break;
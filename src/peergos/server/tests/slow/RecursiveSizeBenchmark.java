@@ -0,0 +1,89 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.Cid;
+import peergos.shared.io.ipfs.Multihash;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+/** Compares the batched recursive size walk, used for the usage of new writers, with looking up one block at a time.
+ */
+public class RecursiveSizeBenchmark {
+    private static final Crypto crypto = Main.initCrypto();
+    private static final Random r = new Random(42);
+
+    @Test
+    public void batchedVsDepthFirst() throws IOException {
+        DeletableContentAddressedStorage files = new FileContentAddressedStorage(Files.createTempDirectory("peergos-tmp" + System.currentTimeMillis()),
+                new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes())),
+                JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands()),
+                (a, b, c, d) -> Futures.of(true), PartitionStatus.DONE, crypto.hasher);
+        // don't record subtree sizes, so every walk visits the whole tree
+        BlockMetadataStore metadb = new JdbcBlockMetadataStore(Main.buildEphemeralSqlite(), new SqliteCommands()) {
+            @Override
+            public void setSubtreeSize(Cid root, long size) {}
+        };
+        DeletableContentAddressedStorage storage = new MetadataCachingStorage(files, metadb, null, crypto.hasher);
+        SigningKeyPair pair = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash owner = ContentAddressedStorage.hashKey(pair.publicSigningKey);
+
+        // a tree of cbor nodes with 32 links each, 3 levels above the raw leaves
+        int fanout = 32;
+        TransactionId tid = storage.startTransaction(owner).join();
+        Cid root = buildTree(storage, owner, tid, 3, fanout);
+        storage.closeTransaction(owner, tid).join();
+        long nBlocks = 1 + fanout + fanout * fanout + fanout * fanout * fanout;
+        List<Multihash> peerIds = List.of(storage.id().join());
+
+        // warm up
+        storage.getRecursiveBlockSizeDepthFirst(owner, root, peerIds);
+        storage.getRecursiveBlockSizeSync(owner, root, peerIds);
+
+        long t0 = System.currentTimeMillis();
+        long depthFirst = storage.getRecursiveBlockSizeDepthFirst(owner, root, peerIds);
+        long t1 = System.currentTimeMillis();
+        long batched = storage.getRecursiveBlockSizeSync(owner, root, peerIds);
+        long t2 = System.currentTimeMillis();
+
+        System.out.println("Depth first: " + (t1 - t0) + "ms, " + nBlocks * 1000 / Math.max(1, t1 - t0) + " blocks/s");
+        System.out.println("Batched: " + (t2 - t1) + "ms, " + nBlocks * 1000 / Math.max(1, t2 - t1) + " blocks/s");
+        Assert.assertEquals(depthFirst, batched);
+        Assert.assertTrue("Batched walk should be faster", t2 - t1 < t1 - t0);
+    }
+
+    private static Cid buildTree(DeletableContentAddressedStorage storage,
+                                 PublicKeyHash owner,
+                                 TransactionId tid,
+                                 int depth,
+                                 int fanout) {
+        List<Cid> children;
+        if (depth == 1) {
+            List<byte[]> leaves = IntStream.range(0, fanout)
+                    .mapToObj(i -> {
+                        byte[] leaf = new byte[64 + r.nextInt(1024)];
+                        r.nextBytes(leaf);
+                        return leaf;
+                    }).collect(Collectors.toList());
+            children = storage.putRaw(owner, owner, Collections.nCopies(fanout, new byte[0]), leaves, tid, x -> {}).join();
+        } else
+            children = IntStream.range(0, fanout)
+                    .mapToObj(i -> buildTree(storage, owner, tid, depth - 1, fanout))
+                    .collect(Collectors.toList());
+        byte[] node = new CborObject.CborList(children.stream()
+                .map(CborObject.CborMerkleLink::new)
+                .collect(Collectors.toList())).serialize();
+        return storage.put(owner, owner, new byte[0], node, tid).join();
+    }
+}
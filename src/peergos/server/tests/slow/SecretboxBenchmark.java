@@ -0,0 +1,54 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.server.crypto.*;
+import peergos.server.crypto.symmetric.*;
+import peergos.shared.crypto.symmetric.*;
+import peergos.shared.user.fs.*;
+
+import java.util.*;
+
+/** Throughput of the secretbox providers on full size file chunks */
+public class SecretboxBenchmark {
+    private static final int WARMUP = 20, ITERATIONS = 50;
+
+    @Test
+    public void chunkThroughput() {
+        Map<String, Salsa20Poly1305> providers = new LinkedHashMap<>();
+        providers.put("TweetNaCl java", new Salsa20Poly1305Java());
+        try {
+            providers.put("TweetNaCl jni", new JniTweetNacl.Symmetric(JniTweetNacl.build()));
+        } catch (Throwable t) {
+            System.out.println("Native library unavailable, skipping jni provider");
+        }
+        providers.put("Fast java", new FastSalsa20Poly1305());
+
+        Random r = new Random(42);
+        byte[] chunk = new byte[Chunk.MAX_SIZE];
+        r.nextBytes(chunk);
+        byte[] key = new byte[32];
+        byte[] nonce = new byte[24];
+        r.nextBytes(key);
+        r.nextBytes(nonce);
+        for (Map.Entry<String, Salsa20Poly1305> e : providers.entrySet()) {
+            Salsa20Poly1305 provider = e.getValue();
+            byte[] cipher = provider.secretbox(chunk, nonce, key);
+            double encrypt = throughput(() -> provider.secretbox(chunk, nonce, key));
+            double decrypt = throughput(() -> provider.secretbox_open(cipher, nonce, key));
+            System.out.printf("%s: encrypt %.1f MiB/s, decrypt %.1f MiB/s%n", e.getKey(), encrypt, decrypt);
+        }
+    }
+
+    /**
+     * @return MiB/s of chunks processed
+     */
+    private static double throughput(Runnable op) {
+        for (int i=0; i < WARMUP; i++)
+            op.run();
+        long t0 = System.nanoTime();
+        for (int i=0; i < ITERATIONS; i++)
+            op.run();
+        long duration = System.nanoTime() - t0;
+        return (double) ITERATIONS * Chunk.MAX_SIZE / 1024 / 1024 / (duration / 1_000_000_000.0);
+    }
+}
@@ -0,0 +1,102 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.server.corenode.*;
+import peergos.server.sql.*;
+import peergos.server.util.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.*;
+
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/** Pointer reads and updates from many threads, against a single shared sqlite connection, which is what every
+ *  store used to get, against a WAL mode pool with concurrent readers, and with the pointers also held in memory.
+ */
+public class SqlitePointerBenchmark {
+    private static final Random r = new Random(42);
+    private static final int WRITERS = 1_000;
+
+    @Test
+    public void pooledVsSingleConnection() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-sqlite");
+        Connection single = Sqlite.build(dir.resolve("single.sql").toString());
+        Connection instance = new Sqlite.UncloseableConnection(single);
+        run("Single connection", () -> instance, false, 8, 2);
+
+        SqlitePool pool = new SqlitePool(dir.resolve("pooled.sql").toString(), 4);
+        run("WAL pool", pool, false, 8, 2);
+        pool.close();
+        single.close();
+
+        SqlitePool cachedPool = new SqlitePool(dir.resolve("cached.sql").toString(), 4);
+        run("WAL pool with pointers in memory", cachedPool, true, 8, 2);
+        cachedPool.close();
+    }
+
+    /** Print the number of reads and writes per second over 10s. */
+    private static void run(String name,
+                              Supplier<Connection> db,
+                              boolean cachePointers,
+                              int readThreads,
+                              int writeThreads) throws Exception {
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(db, new SqliteCommands(), cachePointers);
+        List<PublicKeyHash> writers = new ArrayList<>();
+        Map<PublicKeyHash, byte[]> current = new ConcurrentHashMap<>();
+        for (int i=0; i < WRITERS; i++) {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            PublicKeyHash writer = new PublicKeyHash(new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, hash));
+            byte[] value = randomValue();
+            pointers.setPointer(writer, Optional.empty(), value).join();
+            writers.add(writer);
+            current.put(writer, value);
+        }
+
+        AtomicLong reads = new AtomicLong(), writes = new AtomicLong();
+        AtomicBoolean done = new AtomicBoolean(false);
+        ExecutorService pool = Executors.newFixedThreadPool(readThreads + writeThreads);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int t=0; t < readThreads; t++)
+            tasks.add(pool.submit(() -> {
+                Random rnd = new Random();
+                while (! done.get()) {
+                    pointers.getPointer(writers.get(rnd.nextInt(WRITERS))).join();
+                    reads.incrementAndGet();
+                }
+            }));
+        for (int t=0; t < writeThreads; t++) {
+            // each thread updates its own writers, so every compare and swap should succeed
+            List<PublicKeyHash> ours = writers.subList(t * WRITERS / writeThreads, (t + 1) * WRITERS / writeThreads);
+            tasks.add(pool.submit(() -> {
+                Random rnd = new Random();
+                while (! done.get()) {
+                    PublicKeyHash writer = ours.get(rnd.nextInt(ours.size()));
+                    byte[] updated = randomValue();
+                    if (! pointers.setPointer(writer, Optional.of(current.get(writer)), updated).join())
+                        throw new IllegalStateException("Pointer update failed!");
+                    current.put(writer, updated);
+                    writes.incrementAndGet();
+                }
+            }));
+        }
+        Thread.sleep(10_000);
+        done.set(true);
+        for (Future<?> task : tasks)
+            task.get();
+        pool.shutdown();
+        pointers.close();
+        System.out.println(name + ": " + reads.get() / 10 + " reads/s and " + writes.get() / 10 + " writes/s with "
+                + readThreads + " readers and " + writeThreads + " writers");
+    }
+
+    private static byte[] randomValue() {
+        byte[] value = new byte[200];
+        ThreadLocalRandom.current().nextBytes(value);
+        return value;
+    }
+}
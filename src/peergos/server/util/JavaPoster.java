@@ -2,6 +2,7 @@ package peergos.server.util;
 
 import peergos.server.net.Multipart;
 import peergos.shared.io.ipfs.api.*;
+import peergos.shared.storage.ContentAddressedStorage;
 import peergos.shared.storage.PointerCasException;
 import peergos.shared.storage.RateLimitException;
 import peergos.shared.user.*;
@@ -9,28 +10,79 @@ import peergos.shared.util.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.net.http.*;
 import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
 import java.util.zip.*;
 
+/** An HttpPoster using the asynchronous JDK HttpClient. No thread is held while a request is in flight.
+ *
+ *  The number of concurrent requests to each host is limited, further requests wait in a queue until one completes.
+ *  Identical concurrent reads of immutable content, such as blocks, share a single request.
+ */
 public class JavaPoster implements HttpPoster {
 
-    private static final ExecutorService reqPool = Threads.newPool(100, "JavaPoster");
-    private final Semaphore http2Streams = new Semaphore(50);
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 50;
+    /** The largest response body copied into an array sized from its Content-Length. This covers any block or chunk,
+     *  larger bodies are collected as they arrive so a bad header can't make us allocate its claimed size up front. */
+    private static final int MAX_PRESIZED_BODY = 8 * 1024 * 1024;
+    /** API calls whose result only depends on their arguments */
+    private static final List<String> IMMUTABLE_READS = Stream.of(
+                    ContentAddressedStorage.HTTP.BLOCK_GET,
+                    ContentAddressedStorage.HTTP.BLOCK_STAT,
+                    ContentAddressedStorage.HTTP.CHAMP_GET_BULK)
+            .map(call -> ContentAddressedStorage.HTTP.apiPrefix + call + "?")
+            .collect(Collectors.toList());
+    private static final Map<String, InFlightLimit> hostLimits = new ConcurrentHashMap<>();
+
     private final URL dht;
     private final boolean useGet;
     private final Optional<String> basicAuth;
     private final HttpClient client;
     private final Optional<String> userAgent;
+    private final int maxRequestsPerHost;
+    private final Map<String, List<CompletableFuture<byte[]>>> pendingReads = new ConcurrentHashMap<>();
 
-    public JavaPoster(URL dht, boolean isPublicServer, Optional<String> basicAuth, Optional<String> userAgent, Optional<ProxySelector> proxy) {
+    /**
+     * @param maxRequestsPerHost The most concurrent requests to each host, shared by all posters to it. This replaces
+     *                           any limit already set for the target host, so a configured limit wins over the default
+     *                           of posters built earlier. Other hosts, reached through absolute urls, get this limit
+     *                           if they don't have one yet.
+     */
+    public JavaPoster(URL dht,
+                      boolean isPublicServer,
+                      Optional<String> basicAuth,
+                      Optional<String> userAgent,
+                      Optional<ProxySelector> proxy,
+                      int maxRequestsPerHost) {
+        this(dht, isPublicServer, basicAuth, userAgent, proxy, maxRequestsPerHost, true);
+    }
+
+    private JavaPoster(URL dht,
+                       boolean isPublicServer,
+                       Optional<String> basicAuth,
+                       Optional<String> userAgent,
+                       Optional<ProxySelector> proxy,
+                       int maxRequestsPerHost,
+                       boolean setLimit) {
         this.dht = dht;
         this.useGet = isPublicServer;
         this.basicAuth = basicAuth;
         this.userAgent = userAgent;
+        this.maxRequestsPerHost = maxRequestsPerHost;
+        if (setLimit)
+            hostLimits.compute(hostKey(dht.getProtocol(), dht.getHost(), dht.getPort()), (host, limit) -> {
+                if (limit == null)
+                    return new InFlightLimit(maxRequestsPerHost);
+                limit.setMax(maxRequestsPerHost);
+                return limit;
+            });
         if (proxy.isEmpty())
             client = HttpClient.newBuilder()
                     .connectTimeout(Duration.ofMillis(10_000))
@@ -42,10 +94,32 @@ public class JavaPoster implements HttpPoster {
                     .build();
     }
 
+    /** Uses the existing limit for each host, or the default where there is none yet.
+     */
+    public JavaPoster(URL dht, boolean isPublicServer, Optional<String> basicAuth, Optional<String> userAgent, Optional<ProxySelector> proxy) {
+        this(dht, isPublicServer, basicAuth, userAgent, proxy, DEFAULT_MAX_REQUESTS_PER_HOST, false);
+    }
+
+    public JavaPoster(URL dht, boolean isPublicServer, int maxRequestsPerHost) {
+        this(dht, isPublicServer, Optional.empty(), Optional.empty(), Optional.empty(), maxRequestsPerHost);
+    }
+
     public JavaPoster(URL dht, boolean isPublicServer) {
         this(dht, isPublicServer, Optional.empty(), Optional.empty(), Optional.empty());
     }
 
+    private static String hostKey(String scheme, String host, int port) {
+        if (port < 0)
+            port = "https".equalsIgnoreCase(scheme) ? 443 : 80;
+        return host + ":" + port;
+    }
+
+    /** The limit for the host a request goes to, which isn't our target host for an absolute url */
+    private InFlightLimit limitFor(URI uri) {
+        return hostLimits.computeIfAbsent(hostKey(uri.getScheme(), uri.getHost(), uri.getPort()),
+                host -> new InFlightLimit(maxRequestsPerHost));
+    }
+
     public URL buildURL(String method) throws IOException {
         try {
             return new URL(dht, method);
@@ -73,42 +147,75 @@ public class JavaPoster implements HttpPoster {
     }
 
     private CompletableFuture<byte[]> post(String url, byte[] payload, boolean unzip, Map<String, String> headers, int timeoutMillis) {
+        return send(url, headers, timeoutMillis, unzip, true, b -> {
+            if (payload.length == 0)
+                b.POST(HttpRequest.BodyPublishers.noBody());
+            else
+                b.POST(HttpRequest.BodyPublishers.ofByteArray(payload));
+        });
+    }
+
+    /** Send a request and collect the response body as it arrives, without a thread waiting on it.
+     *
+     * @param unzip Whether to decompress a gzip encoded response
+     * @param rateLimits Whether the statuses a proxy or overloaded server replies with become a RateLimitException
+     */
+    private CompletableFuture<byte[]> send(String url,
+                                           Map<String, String> headers,
+                                           int timeoutMillis,
+                                           boolean unzip,
+                                           boolean rateLimits,
+                                           Consumer<HttpRequest.Builder> method) {
         CompletableFuture<byte[]> res = new CompletableFuture<>();
-        CompletableFuture.runAsync(() -> {
-            HttpResponse<InputStream> response = null;
-            try {
-                URI uri = URI.create(buildURL(url).toString());
-                HttpRequest.Builder requestBuilder = HttpRequest.newBuilder().uri(uri);
-                userAgent.ifPresent(agent -> requestBuilder.setHeader("User-Agent", agent));
-                if (payload.length == 0) {
-                    requestBuilder.POST(HttpRequest.BodyPublishers.noBody());
-                } else {
-                    requestBuilder.POST(HttpRequest.BodyPublishers.ofByteArray(payload));
-                }
-                if (timeoutMillis >= 0)
-                    requestBuilder.timeout(Duration.ofMillis(timeoutMillis));
-                for (Map.Entry<String, String> e : headers.entrySet()) {
-                    if (! e.getKey().equals("Host") && ! e.getKey().equals("Content-Length"))
-                        requestBuilder.setHeader(e.getKey(), e.getValue());
-                }
-                if (basicAuth.isPresent())
-                    requestBuilder.setHeader("Authorization", basicAuth.get());
+        HttpRequest request;
+        InFlightLimit inFlight;
+        try {
+            URI uri = URI.create(buildURL(url).toString());
+            HttpRequest.Builder requestBuilder = HttpRequest.newBuilder().uri(uri);
+            userAgent.ifPresent(agent -> requestBuilder.setHeader("User-Agent", agent));
+            method.accept(requestBuilder);
+            for (Map.Entry<String, String> e : headers.entrySet()) {
+                if (! e.getKey().equals("Host") && ! e.getKey().equals("Content-Length"))
+                    requestBuilder.setHeader(e.getKey(), e.getValue());
+            }
+            if (basicAuth.isPresent())
+                requestBuilder.setHeader("Authorization", basicAuth.get());
+            request = requestBuilder.build();
+            inFlight = limitFor(uri);
+        } catch (IOException e) {
+            handleError(url, res, null, e);
+            return res;
+        } catch (Exception e) {
+            res.completeExceptionally(e);
+            return res;
+        }
 
-                HttpRequest request = requestBuilder.build();
-                http2Streams.acquire();
-                try {
-                    response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
-                } finally {
-                    http2Streams.release();
-                }
-                HttpHeaders responseHeaders = response.headers();
-                Optional<String> contentEncodingOpt = responseHeaders.firstValue("content-encoding");
+        // the timeout runs from when the request is queued, it is sent with whatever is left of it
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        inFlight.submit(() -> {
+            HttpRequest timed = timeoutMillis < 0 ? request : HttpRequest.newBuilder(request, (name, value) -> true)
+                    .timeout(Duration.ofMillis(remaining(deadline)))
+                    .build();
+            return client.sendAsync(timed, JavaPoster::collectBody);
+        }, timeoutMillis).whenComplete((response, t) -> {
+            if (t != null) {
+                Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                if (cause instanceof HttpTimeoutException)
+                    res.completeExceptionally(new SocketTimeoutException("Socket timeout on: " + describe(url)));
+                else if (cause instanceof IOException)
+                    handleError(url, res, null, (IOException) cause);
+                else
+                    res.completeExceptionally(cause);
+                return;
+            }
+            try {
+                Optional<String> contentEncodingOpt = response.headers().firstValue("content-encoding");
                 boolean isGzipped = contentEncodingOpt.isPresent() && "gzip".equals(contentEncodingOpt.get());
-                DataInputStream din = new DataInputStream(isGzipped && unzip ? new GZIPInputStream(response.body()) : response.body());
-                byte[] resp = Serialize.readFully(din);
-                din.close();
+                byte[] resp = isGzipped && unzip ?
+                        Serialize.readFully(new GZIPInputStream(new ByteArrayInputStream(response.body()))) :
+                        response.body();
                 int statusCode = response.statusCode();
-                if (statusCode == 429 || statusCode == 502 || statusCode == 503 || statusCode == 504) {
+                if (rateLimits && (statusCode == 429 || statusCode == 502 || statusCode == 503 || statusCode == 504)) {
                     res.completeExceptionally(new RateLimitException());
                 } else if (statusCode != 200) {
                     handleError(url, res, response, new IOException(resp.length == 0 ?
@@ -117,20 +224,220 @@ public class JavaPoster implements HttpPoster {
                 } else {
                     res.complete(resp);
                 }
-            } catch (HttpTimeoutException e) {
-                res.completeExceptionally(new SocketTimeoutException("Socket timeout on: " + describe(url)));
-            } catch (InterruptedException ex) {
-                res.completeExceptionally(new RuntimeException(ex));
             } catch (IOException e) {
                 handleError(url, res, response, e);
             } catch (Exception e) {
                 res.completeExceptionally(e);
             }
-        }, reqPool);
+        });
         return res;
     }
 
-    public static void handleError(String url, CompletableFuture<byte[]> res, HttpResponse<InputStream> response, Exception e) {
+    /** The millis left until a deadline, at least 1 as a request timeout must be positive */
+    private static long remaining(long deadline) {
+        return Math.max(1, deadline - System.currentTimeMillis());
+    }
+
+    /** When the response has a Content-Length of at most MAX_PRESIZED_BODY, its body is copied straight into an array
+     *  of that size as it arrives, rather than into a list of buffers which are joined at the end.
+     */
+    private static HttpResponse.BodySubscriber<byte[]> collectBody(HttpResponse.ResponseInfo info) {
+        OptionalLong length = info.headers().firstValueAsLong("content-length");
+        if (length.isPresent() && length.getAsLong() >= 0 && length.getAsLong() <= MAX_PRESIZED_BODY)
+            return new SizedBodySubscriber((int) length.getAsLong());
+        return HttpResponse.BodySubscribers.ofByteArray();
+    }
+
+    private static final class SizedBodySubscriber implements HttpResponse.BodySubscriber<byte[]> {
+        private final byte[] body;
+        private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        private int written = 0;
+
+        SizedBodySubscriber(int length) {
+            this.body = new byte[length];
+        }
+
+        @Override
+        public CompletionStage<byte[]> getBody() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            for (ByteBuffer buf : buffers) {
+                int size = buf.remaining();
+                if (written + size > body.length) {
+                    subscription.cancel();
+                    result.completeExceptionally(new IOException("Response body longer than its Content-Length"));
+                    return;
+                }
+                buf.get(body, written, size);
+                written += size;
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            result.completeExceptionally(t);
+        }
+
+        @Override
+        public void onComplete() {
+            if (written != body.length)
+                result.completeExceptionally(new IOException("Response body ended after " + written + " of " + body.length + " bytes"));
+            else
+                result.complete(body);
+        }
+    }
+
+    /** Limits the concurrent requests to a host. Requests over the limit are queued rather than blocking a thread.
+     */
+    private static final class InFlightLimit {
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+        private int max;
+        private int running = 0;
+
+        InFlightLimit(int max) {
+            this.max = Math.max(1, max);
+        }
+
+        /** Change the limit, starting any queued requests which now fit. Requests over a lowered limit finish
+         *  normally, and new ones wait until enough of them have.
+         */
+        void setMax(int max) {
+            List<Runnable> toStart = new ArrayList<>();
+            synchronized (this) {
+                this.max = Math.max(1, max);
+                while (running < this.max && ! waiting.isEmpty()) {
+                    running++;
+                    toStart.add(waiting.poll());
+                }
+            }
+            toStart.forEach(ForkJoinPool.commonPool()::execute);
+        }
+
+        /**
+         * @param queueTimeoutMillis How long the task may wait in the queue before failing with an
+         *                           HttpTimeoutException, or negative to wait until it can start
+         */
+        <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task, long queueTimeoutMillis) {
+            CompletableFuture<T> res = new CompletableFuture<>();
+            // whichever of starting and timing out happens first wins
+            AtomicBoolean claimed = new AtomicBoolean(false);
+            Runnable start = () -> {
+                if (! claimed.compareAndSet(false, true)) {
+                    // timed out after it was handed a slot, so pass the slot on
+                    release();
+                    return;
+                }
+                CompletableFuture<T> started;
+                try {
+                    started = task.get();
+                } catch (Throwable t) {
+                    release();
+                    res.completeExceptionally(t);
+                    return;
+                }
+                started.whenComplete((r, t) -> {
+                    release();
+                    if (t != null)
+                        res.completeExceptionally(t);
+                    else
+                        res.complete(r);
+                });
+            };
+            boolean now;
+            synchronized (this) {
+                now = running < max;
+                if (now)
+                    running++;
+                else
+                    waiting.add(start);
+            }
+            if (now)
+                start.run();
+            else if (queueTimeoutMillis >= 0)
+                CompletableFuture.delayedExecutor(queueTimeoutMillis, TimeUnit.MILLISECONDS).execute(() -> {
+                    if (! claimed.compareAndSet(false, true))
+                        return;
+                    synchronized (this) {
+                        waiting.remove(start);
+                    }
+                    res.completeExceptionally(new HttpTimeoutException("Timed out after " + queueTimeoutMillis
+                            + "ms waiting for a connection"));
+                });
+            return res;
+        }
+
+        private void release() {
+            Runnable next = null;
+            synchronized (this) {
+                // after the limit is lowered, slots are given up until we are back under it
+                if (running > max || waiting.isEmpty())
+                    running--;
+                else
+                    next = waiting.poll();
+            }
+            // the finished request's slot passes straight to the next one, which is started on another thread so a
+            // long queue isn't run on the stack of whichever response completed
+            if (next != null)
+                ForkJoinPool.commonPool().execute(next);
+        }
+    }
+
+    /** Concurrent calls with the same key share the first call's request. The first caller gets the result, and
+     *  each later caller gets its own copy of it.
+     */
+    private CompletableFuture<byte[]> coalesce(String key, Supplier<CompletableFuture<byte[]>> request) {
+        CompletableFuture<byte[]> waiter = new CompletableFuture<>();
+        boolean[] first = {false};
+        pendingReads.compute(key, (k, waiters) -> {
+            if (waiters == null) {
+                first[0] = true;
+                return new ArrayList<>();
+            }
+            waiters.add(waiter);
+            return waiters;
+        });
+        if (! first[0])
+            return waiter;
+        CompletableFuture<byte[]> sent;
+        try {
+            sent = request.get();
+        } catch (Throwable t) {
+            sent = Futures.errored(t);
+        }
+        CompletableFuture<byte[]> ours = new CompletableFuture<>();
+        sent.whenComplete((r, t) -> {
+            // no one can join once the key is removed, and the waiters are given their copies before we can modify
+            // the original
+            List<CompletableFuture<byte[]>> waiters = pendingReads.remove(key);
+            for (CompletableFuture<byte[]> w : waiters) {
+                if (t != null)
+                    w.completeExceptionally(t);
+                else
+                    w.complete(Arrays.copyOf(r, r.length));
+            }
+            if (t != null)
+                ours.completeExceptionally(t);
+            else
+                ours.complete(r);
+        });
+        return ours;
+    }
+
+    private static boolean isImmutableRead(String url) {
+        return IMMUTABLE_READS.stream().anyMatch(url::contains);
+    }
+
+    public static void handleError(String url, CompletableFuture<byte[]> res, HttpResponse<?> response, Exception e) {
         if (response != null) {
             HttpHeaders responseHeaders = response.headers();
             Optional<String> trailer = responseHeaders.firstValue("Trailer");
@@ -149,21 +456,43 @@ public class JavaPoster implements HttpPoster {
 
     @Override
     public CompletableFuture<byte[]> postMultipart(String url, List<byte[]> files, int timeoutMillis) {
+        String target;
+        InFlightLimit inFlight;
         try {
-            Map<String, String> headers = new HashMap<>();
-            if (basicAuth.isPresent())
-                headers.put("Authorization", basicAuth.get());
-            userAgent.ifPresent(agent -> headers.put("User-Agent", agent));
-            Multipart mPost = new Multipart(client, buildURL(url).toString(), "UTF-8", headers, timeoutMillis);
-            int i = 0;
-            for (byte[] file : files) {
-                String fieldName = "file" + i++;
-                mPost.addFilePart(fieldName, new NamedStreamable.ByteArrayWrapper(Optional.of(fieldName), file));
-            }
-            return mPost.finish();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            target = buildURL(url).toString();
+            inFlight = limitFor(URI.create(target));
+        } catch (Exception e) {
+            return Futures.errored(e);
         }
+        Map<String, String> headers = new HashMap<>();
+        if (basicAuth.isPresent())
+            headers.put("Authorization", basicAuth.get());
+        userAgent.ifPresent(agent -> headers.put("User-Agent", agent));
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        // the multipart request is sent as soon as it is constructed, so that only happens once it has a slot
+        CompletableFuture<byte[]> res = new CompletableFuture<>();
+        inFlight.submit(() -> {
+            try {
+                Multipart mPost = new Multipart(client, target, "UTF-8", headers,
+                        timeoutMillis > 0 ? (int) remaining(deadline) : timeoutMillis);
+                int i = 0;
+                for (byte[] file : files) {
+                    String fieldName = "file" + i++;
+                    mPost.addFilePart(fieldName, new NamedStreamable.ByteArrayWrapper(Optional.of(fieldName), file));
+                }
+                return mPost.finish();
+            } catch (IOException e) {
+                return Futures.errored(e);
+            }
+        }, timeoutMillis > 0 ? timeoutMillis : -1).whenComplete((r, t) -> {
+            if (t == null)
+                res.complete(r);
+            else if (t instanceof HttpTimeoutException)
+                res.completeExceptionally(new SocketTimeoutException("Socket timeout on: " + target));
+            else
+                res.completeExceptionally(t);
+        });
+        return res;
     }
 
     @Override
@@ -178,56 +507,7 @@ public class JavaPoster implements HttpPoster {
 
     @Override
     public CompletableFuture<byte[]> put(String url, byte[] body, Map<String, String> headers, int timeoutMillis) {
-        CompletableFuture<byte[]> res = new CompletableFuture<>();
-        CompletableFuture.runAsync(() -> {
-            HttpResponse<InputStream> response = null;
-            try {
-                URI uri = URI.create(buildURL(url).toString());
-                HttpRequest.Builder requestBuilder = HttpRequest.newBuilder().uri(uri);
-                userAgent.ifPresent(agent -> requestBuilder.setHeader("User-Agent", agent));
-                requestBuilder.PUT(HttpRequest.BodyPublishers.ofByteArray(body));
-                requestBuilder.timeout(Duration.ofMillis(timeoutMillis));
-                for (Map.Entry<String, String> e : headers.entrySet()) {
-                    if (! e.getKey().equals("Host") && ! e.getKey().equals("Content-Length"))
-                        requestBuilder.setHeader(e.getKey(), e.getValue());
-                }
-                if (basicAuth.isPresent())
-                    requestBuilder.setHeader("Authorization", basicAuth.get());
-
-                HttpRequest request = requestBuilder.build();
-                http2Streams.acquire();
-                try {
-                    response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
-                } finally {
-                    http2Streams.release();
-                }
-                HttpHeaders responseHeaders = response.headers();
-                Optional<String> contentEncodingOpt = responseHeaders.firstValue("content-encoding");
-                boolean isGzipped = contentEncodingOpt.isPresent() && "gzip".equals(contentEncodingOpt.get());
-                DataInputStream din = new DataInputStream(isGzipped ?
-                        new GZIPInputStream(response.body()) :
-                        response.body());
-                byte[] resp = Serialize.readFully(din);
-                din.close();
-                int statusCode = response.statusCode();
-                if (statusCode != 200) {
-                    handleError(url, res, response, new IOException(resp.length == 0 ?
-                            "Unexpected Error. Status code: " + statusCode
-                            : new String(resp)));
-                } else {
-                    res.complete(resp);
-                }
-            } catch (HttpTimeoutException e) {
-                res.completeExceptionally(new SocketTimeoutException("Socket timeout on: " + describe(url)));
-            } catch (InterruptedException ex) {
-                res.completeExceptionally(new RuntimeException(ex));
-            } catch (IOException e) {
-                handleError(url, res, response, e);
-            } catch (Exception e) {
-                res.completeExceptionally(e);
-            }
-        }, reqPool);
-        return res;
+        return send(url, headers, timeoutMillis, true, false, b -> b.PUT(HttpRequest.BodyPublishers.ofByteArray(body)));
     }
 
     @Override
@@ -238,68 +518,22 @@ public class JavaPoster implements HttpPoster {
     @Override
     public CompletableFuture<byte[]> get(String url, Map<String, String> headers) {
         if (useGet) {
+            // some API calls are GETs which modify state, so only reads of objects, like blocks in S3, are shared
+            if (isImmutableRead(url) || url.startsWith("http"))
+                return coalesce("GET " + url + " " + new TreeMap<>(headers), () -> publicGet(url, headers));
             return publicGet(url, headers);
         } else {
             // This changes to a POST with an empty body
             // The reason for this is browsers allow any website to do a get request to localhost
             // but they block POST requests. So this prevents random websites from calling APIs on localhost
+            if (isImmutableRead(url))
+                return coalesce("POST " + url, () -> postUnzip(url, new byte[0]));
             return postUnzip(url, new byte[0]);
         }
     }
 
     private CompletableFuture<byte[]> publicGet(String url, Map<String, String> headers) {
-        CompletableFuture<byte[]> res = new CompletableFuture<>();
-        CompletableFuture.runAsync(() -> {
-            HttpResponse<InputStream> response = null;
-            try {
-                URI uri = URI.create(buildURL(url).toString());
-                HttpRequest.Builder requestBuilder = HttpRequest.newBuilder().uri(uri);
-                userAgent.ifPresent(agent -> requestBuilder.setHeader("User-Agent", agent));
-                requestBuilder.GET();
-                requestBuilder.timeout(Duration.ofMillis(60_000));
-                for (Map.Entry<String, String> e : headers.entrySet()) {
-                    if (! e.getKey().equals("Host") && ! e.getKey().equals("Content-Length"))
-                        requestBuilder.setHeader(e.getKey(), e.getValue());
-                }
-                if (basicAuth.isPresent())
-                    requestBuilder.setHeader("Authorization", basicAuth.get());
-
-                HttpRequest request = requestBuilder.build();
-                http2Streams.acquire();
-                try {
-                    response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
-                } finally {
-                    http2Streams.release();
-                }
-                HttpHeaders responseHeaders = response.headers();
-                Optional<String> contentEncodingOpt = responseHeaders.firstValue("content-encoding");
-                boolean isGzipped = contentEncodingOpt.isPresent() && "gzip".equals(contentEncodingOpt.get());
-                DataInputStream din = new DataInputStream(isGzipped ?
-                        new GZIPInputStream(response.body()) :
-                        response.body());
-                byte[] resp = Serialize.readFully(din);
-                din.close();
-                int statusCode = response.statusCode();
-                if (statusCode == 429 || statusCode == 502 || statusCode == 503 || statusCode == 504) {
-                    res.completeExceptionally(new RateLimitException());
-                } else if (statusCode != 200) {
-                    handleError(url, res, response, new IOException(resp.length == 0 ?
-                            "Unexpected Error. Status code: " + statusCode
-                            : new String(resp)));
-                } else {
-                    res.complete(resp);
-                }
-            } catch (HttpTimeoutException e) {
-                res.completeExceptionally(new SocketTimeoutException("Socket timeout on: " + describe(url)));
-            } catch (InterruptedException ex) {
-                res.completeExceptionally(new RuntimeException(ex));
-            } catch (IOException e) {
-                handleError(url, res, response, e);
-            } catch (Exception e) {
-                res.completeExceptionally(e);
-            }
-        }, reqPool);
-        return res;
+        return send(url, headers, 60_000, true, true, HttpRequest.Builder::GET);
     }
 
     @Override
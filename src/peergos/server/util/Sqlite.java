@@ -19,6 +19,24 @@ public class Sqlite {
         return conn;
     }
 
+    /** Open a connection in WAL mode, so readers don't block the writer or each other, waiting rather than failing
+     *  when another connection holds the write lock.
+     */
+    public static Connection buildWal(String dbPath, boolean readOnly) throws SQLException {
+        SQLiteConfig config = new SQLiteConfig();
+        // the journal mode is stored in the database, so only the writer needs to set it
+        if (! readOnly)
+            config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        config.setBusyTimeout(10_000);
+        config.setReadOnly(readOnly);
+        SQLiteDataSource dc = new SQLiteDataSource(config);
+        dc.setUrl("jdbc:sqlite:" + dbPath);
+
+        Connection conn = dc.getConnection();
+        conn.setAutoCommit(true);
+        return conn;
+    }
+
     public static String getDbPath(Args a, String type) {
         String sqlFile = a.getArg(type);
         return sqlFile.equals(":memory:") ? sqlFile : a.fromPeergosDir(type).toString();
@@ -41,44 +59,49 @@ public class Sqlite {
             target.close();
         }
 
+        /** The connection to run the next call on. */
+        protected Connection target() {
+            return target;
+        }
+
         @Override
         public Statement createStatement() throws SQLException {
-            return target.createStatement();
+            return target().createStatement();
         }
 
         @Override
         public PreparedStatement prepareStatement(String s) throws SQLException {
-            return target.prepareStatement(s);
+            return target().prepareStatement(s);
         }
 
         @Override
         public CallableStatement prepareCall(String s) throws SQLException {
-            return target.prepareCall(s);
+            return target().prepareCall(s);
         }
 
         @Override
         public String nativeSQL(String s) throws SQLException {
-            return target.nativeSQL(s);
+            return target().nativeSQL(s);
         }
 
         @Override
         public void setAutoCommit(boolean b) throws SQLException {
-            target.setAutoCommit(b);
+            target().setAutoCommit(b);
         }
 
         @Override
         public boolean getAutoCommit() throws SQLException {
-            return target.getAutoCommit();
+            return target().getAutoCommit();
         }
 
         @Override
         public void commit() throws SQLException {
-            target.commit();
+            target().commit();
         }
 
         @Override
         public void rollback() throws SQLException {
-            target.rollback();
+            target().rollback();
         }
 
         @Override
@@ -93,27 +116,27 @@ public class Sqlite {
 
         @Override
         public DatabaseMetaData getMetaData() throws SQLException {
-            return target.getMetaData();
+            return target().getMetaData();
         }
 
         @Override
         public void setReadOnly(boolean b) throws SQLException {
-            target.setReadOnly(b);
+            target().setReadOnly(b);
         }
 
         @Override
         public boolean isReadOnly() throws SQLException {
-            return target.isReadOnly();
+            return target().isReadOnly();
         }
 
         @Override
         public void setCatalog(String s) throws SQLException {
-            target.setCatalog(s);
+            target().setCatalog(s);
         }
 
         @Override
         public String getCatalog() throws SQLException {
-            return target.getCatalog();
+            return target().getCatalog();
         }
 
         @Override
@@ -125,192 +148,192 @@ public class Sqlite {
 
         @Override
         public int getTransactionIsolation() throws SQLException {
-            return target.getTransactionIsolation();
+            return target().getTransactionIsolation();
         }
 
         @Override
         public SQLWarning getWarnings() throws SQLException {
-            return target.getWarnings();
+            return target().getWarnings();
         }
 
         @Override
         public void clearWarnings() throws SQLException {
-            target.clearWarnings();
+            target().clearWarnings();
         }
 
         @Override
         public Statement createStatement(int i, int i1) throws SQLException {
-            return target.createStatement(i, i1);
+            return target().createStatement(i, i1);
         }
 
         @Override
         public PreparedStatement prepareStatement(String s, int i, int i1) throws SQLException {
-            return target.prepareStatement(s, i, i1);
+            return target().prepareStatement(s, i, i1);
         }
 
         @Override
         public CallableStatement prepareCall(String s, int i, int i1) throws SQLException {
-            return target.prepareCall(s, i, i1);
+            return target().prepareCall(s, i, i1);
         }
 
         @Override
         public Map<String, Class<?>> getTypeMap() throws SQLException {
-            return target.getTypeMap();
+            return target().getTypeMap();
         }
 
         @Override
         public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
-            target.setTypeMap(map);
+            target().setTypeMap(map);
         }
 
         @Override
         public void setHoldability(int i) throws SQLException {
-            target.setHoldability(i);
+            target().setHoldability(i);
         }
 
         @Override
         public int getHoldability() throws SQLException {
-            return target.getHoldability();
+            return target().getHoldability();
         }
 
         @Override
         public Savepoint setSavepoint() throws SQLException {
-            return target.setSavepoint();
+            return target().setSavepoint();
         }
 
         @Override
         public Savepoint setSavepoint(String s) throws SQLException {
-            return target.setSavepoint(s);
+            return target().setSavepoint(s);
         }
 
         @Override
         public void rollback(Savepoint savepoint) throws SQLException {
-            target.rollback(savepoint);
+            target().rollback(savepoint);
         }
 
         @Override
         public void releaseSavepoint(Savepoint savepoint) throws SQLException {
-            target.releaseSavepoint(savepoint);
+            target().releaseSavepoint(savepoint);
         }
 
         @Override
         public Statement createStatement(int i, int i1, int i2) throws SQLException {
-            return target.createStatement(i, i1, i2);
+            return target().createStatement(i, i1, i2);
         }
 
         @Override
         public PreparedStatement prepareStatement(String s, int i, int i1, int i2) throws SQLException {
-            return target.prepareStatement(s, i, i1, i2);
+            return target().prepareStatement(s, i, i1, i2);
         }
 
         @Override
         public CallableStatement prepareCall(String s, int i, int i1, int i2) throws SQLException {
-            return target.prepareCall(s, i, i1, i2);
+            return target().prepareCall(s, i, i1, i2);
         }
 
         @Override
         public PreparedStatement prepareStatement(String s, int i) throws SQLException {
-            return target.prepareStatement(s, i);
+            return target().prepareStatement(s, i);
         }
 
         @Override
         public PreparedStatement prepareStatement(String s, int[] ints) throws SQLException {
-            return target.prepareStatement(s, ints);
+            return target().prepareStatement(s, ints);
         }
 
         @Override
         public PreparedStatement prepareStatement(String s, String[] strings) throws SQLException {
-            return target.prepareStatement(s, strings);
+            return target().prepareStatement(s, strings);
         }
 
         @Override
         public Clob createClob() throws SQLException {
-            return target.createClob();
+            return target().createClob();
         }
 
         @Override
         public Blob createBlob() throws SQLException {
-            return target.createBlob();
+            return target().createBlob();
         }
 
         @Override
         public NClob createNClob() throws SQLException {
-            return target.createNClob();
+            return target().createNClob();
         }
 
         @Override
         public SQLXML createSQLXML() throws SQLException {
-            return target.createSQLXML();
+            return target().createSQLXML();
         }
 
         @Override
         public boolean isValid(int i) throws SQLException {
-            return target.isValid(i);
+            return target().isValid(i);
         }
 
         @Override
         public void setClientInfo(String s, String s1) throws SQLClientInfoException {
-            target.setClientInfo(s, s1);
+            target().setClientInfo(s, s1);
         }
 
         @Override
         public void setClientInfo(Properties properties) throws SQLClientInfoException {
-            target.setClientInfo(properties);
+            target().setClientInfo(properties);
         }
 
         @Override
         public String getClientInfo(String s) throws SQLException {
-            return target.getClientInfo(s);
+            return target().getClientInfo(s);
         }
 
         @Override
         public Properties getClientInfo() throws SQLException {
-            return target.getClientInfo();
+            return target().getClientInfo();
         }
 
         @Override
         public Array createArrayOf(String s, Object[] objects) throws SQLException {
-            return target.createArrayOf(s, objects);
+            return target().createArrayOf(s, objects);
         }
 
         @Override
         public Struct createStruct(String s, Object[] objects) throws SQLException {
-            return target.createStruct(s, objects);
+            return target().createStruct(s, objects);
         }
 
         @Override
         public void setSchema(String s) throws SQLException {
-            target.setSchema(s);
+            target().setSchema(s);
         }
 
         @Override
         public String getSchema() throws SQLException {
-            return target.getSchema();
+            return target().getSchema();
         }
 
         @Override
         public void abort(Executor executor) throws SQLException {
-            target.abort(executor);
+            target().abort(executor);
         }
 
         @Override
         public void setNetworkTimeout(Executor executor, int i) throws SQLException {
-            target.setNetworkTimeout(executor, i);
+            target().setNetworkTimeout(executor, i);
         }
 
         @Override
         public int getNetworkTimeout() throws SQLException {
-            return target.getNetworkTimeout();
+            return target().getNetworkTimeout();
         }
 
         @Override
         public <T> T unwrap(Class<T> aClass) throws SQLException {
-            return target.unwrap(aClass);
+            return target().unwrap(aClass);
         }
 
         @Override
         public boolean isWrapperFor(Class<?> aClass) throws SQLException {
-            return target.isWrapperFor(aClass);
+            return target().isWrapperFor(aClass);
         }
     }
 }
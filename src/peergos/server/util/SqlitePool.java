@@ -0,0 +1,176 @@
+package peergos.server.util;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.regex.*;
+
+/** Connections to a file backed SQLite database in WAL mode.
+ *
+ *  There is a single writer connection. A connection takes it, exclusively, the first time it does anything other than
+ *  a query, and holds it until it is closed, so a transaction started with setAutoCommit(false) doesn't pick up other
+ *  threads' statements, and connections never contend for the database's write lock. Queries on a connection which
+ *  hasn't taken the writer run on a pool of read only connections, which in WAL mode don't wait for the writer or each
+ *  other. Once a connection has taken the writer its queries stay there, so they see its own writes.
+ *
+ *  Closing a connection returns its reader to the pool, rolls back any uncommitted transaction and releases the writer.
+ *  A connection can be closed on any thread. Connections don't share the writer, so a transaction is only ever committed
+ *  or rolled back by the connection that started it. A connection which needs the writer on the thread that took it for
+ *  another, still open, connection would wait for itself forever, so it fails instead. Nested connections can still
+ *  query, on a reader.
+ */
+public class SqlitePool implements Supplier<Connection> {
+    private static final Logger LOG = Logging.LOG();
+    private static final Pattern WRITE = Pattern.compile("\\b(INSERT|UPDATE|DELETE|REPLACE)\\b");
+
+    private final String dbPath;
+    private final Connection writer;
+    private final Semaphore writerPermit = new Semaphore(1);
+    private volatile Thread writerThread;
+    private final BlockingQueue<Connection> readers;
+    private final List<Connection> allReaders = new ArrayList<>();
+
+    public SqlitePool(String dbPath, int readerCount) throws SQLException {
+        this.dbPath = dbPath;
+        this.writer = Sqlite.buildWal(dbPath, false);
+        this.readers = new ArrayBlockingQueue<>(Math.max(1, readerCount));
+        for (int i=0; i < readerCount; i++) {
+            Connection reader = Sqlite.buildWal(dbPath, true);
+            allReaders.add(reader);
+            readers.add(reader);
+        }
+    }
+
+    @Override
+    public Connection get() {
+        return new PooledConnection();
+    }
+
+    public void close() {
+        try {
+            for (Connection reader : allReaders)
+                reader.close();
+            writer.close();
+        } catch (SQLException e) {
+            LOG.log(Level.WARNING, "Error closing " + dbPath, e);
+        }
+    }
+
+    static boolean isQuery(String sql) {
+        String upper = sql.stripLeading().toUpperCase(Locale.ROOT);
+        if (upper.startsWith("SELECT"))
+            return true;
+        // a common table expression can be followed by a write
+        return upper.startsWith("WITH") && ! WRITE.matcher(upper).find();
+    }
+
+    private final class PooledConnection extends Sqlite.UncloseableConnection {
+        private Connection reader;
+        private boolean usesWriter, inTransaction;
+
+        PooledConnection() {
+            super(writer);
+        }
+
+        /** Everything not routed to a reader goes to the writer, which we take until we are closed. */
+        @Override
+        protected synchronized Connection target() {
+            if (! usesWriter) {
+                if (writerThread == Thread.currentThread())
+                    throw new IllegalStateException("This thread already holds the sqlite writer for another connection on " + dbPath);
+                writerPermit.acquireUninterruptibly();
+                writerThread = Thread.currentThread();
+                usesWriter = true;
+            }
+            return writer;
+        }
+
+        private synchronized Connection route(String sql) {
+            if (! usesWriter && isQuery(sql)) {
+                if (reader == null)
+                    reader = readers.poll();
+                // if every reader is in use, read from the writer
+                if (reader != null)
+                    return reader;
+            }
+            return target();
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql) throws SQLException {
+            return route(sql).prepareStatement(sql);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+            return route(sql).prepareStatement(sql, resultSetType, resultSetConcurrency);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+            return route(sql).prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+            return route(sql).prepareStatement(sql, autoGeneratedKeys);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+            return route(sql).prepareStatement(sql, columnIndexes);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+            return route(sql).prepareStatement(sql, columnNames);
+        }
+
+        @Override
+        public synchronized void setAutoCommit(boolean autoCommit) throws SQLException {
+            if (! autoCommit && ! inTransaction) {
+                target().setAutoCommit(false);
+                inTransaction = true;
+            } else if (autoCommit && inTransaction) {
+                // turning autocommit back on commits the current transaction
+                writer.setAutoCommit(true);
+                inTransaction = false;
+            }
+        }
+
+        @Override
+        public synchronized boolean getAutoCommit() {
+            return ! inTransaction;
+        }
+
+        @Override
+        public synchronized void setTransactionIsolation(int level) throws SQLException {
+            // sqlite transactions are serializable unless changed, so don't take the writer just to set it
+            if (usesWriter)
+                writer.setTransactionIsolation(level);
+        }
+
+        @Override
+        public synchronized void close() throws SQLException {
+            if (reader != null) {
+                readers.offer(reader);
+                reader = null;
+            }
+            if (! usesWriter)
+                return;
+            usesWriter = false;
+            try {
+                if (inTransaction) {
+                    writer.rollback();
+                    writer.setAutoCommit(true);
+                }
+            } finally {
+                inTransaction = false;
+                writerThread = null;
+                writerPermit.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package peergos.server.webdav;
+
+import peergos.server.util.Logging;
+import peergos.shared.MaybeMultihash;
+import peergos.shared.NetworkAccess;
+import peergos.shared.crypto.hash.PublicKeyHash;
+import peergos.shared.user.CommittedWriterData;
+import peergos.shared.user.fs.FileWrapper;
+import peergos.shared.util.Futures;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Resolved paths that outlive a single WebDAV request.
+ *
+ * Every FileWrapper carries the snapshot of writers it was read from, so an entry is valid exactly while each
+ * of those writers still points to the root it was read at. {@link #refresh()} looks up the current pointer
+ * of every writer a cached entry was read from, and lookups only return entries that match, so a change to one
+ * writer only drops the paths that were resolved through it.
+ *
+ * Pointers are looked up again at most every {@link #REFRESH_INTERVAL_MS}, so changes made elsewhere can take
+ * that long to show. After one of our own writes {@link #invalidate()} forgets every root, so nothing is served
+ * from the cache until the next refresh.
+ */
+class PathCache {
+    private static final Logger LOG = Logging.LOG();
+    private static final int MAX_ENTRIES = 100_000;
+    static final long REFRESH_INTERVAL_MS = 5_000;
+
+    private final NetworkAccess network;
+    private final Map<String, FileWrapper> files = new ConcurrentHashMap<>();
+    /** writer -> owner, for every writer in a cached snapshot */
+    private final Map<PublicKeyHash, PublicKeyHash> writers = new ConcurrentHashMap<>();
+    private final Map<PublicKeyHash, MaybeMultihash> currentRoots = new ConcurrentHashMap<>();
+    private long lastRefresh = 0;
+    private boolean stale = true;
+
+    PathCache(NetworkAccess network) {
+        this.network = network;
+    }
+
+    /** @return the file at this path, if it was cached and no writer it was read from has changed since */
+    Optional<FileWrapper> get(Path path) {
+        FileWrapper file = files.get(key(path));
+        if (file == null)
+            return Optional.empty();
+        if (! isCurrent(file)) {
+            files.remove(key(path), file);
+            return Optional.empty();
+        }
+        return Optional.of(file);
+    }
+
+    /** @return the deepest cached, still valid, strict ancestor directory of path, along with its path */
+    Optional<Map.Entry<Path, FileWrapper>> getAncestor(Path path) {
+        for (Path p = path.getParent(); p != null && p.getNameCount() > 0; p = p.getParent()) {
+            Optional<FileWrapper> ancestor = get(p);
+            if (ancestor.isPresent() && ancestor.get().isDirectory())
+                return Optional.of(Map.entry(p, ancestor.get()));
+        }
+        return Optional.empty();
+    }
+
+    void put(Path path, FileWrapper file) {
+        if (file.isRoot())
+            return;
+        // writers we haven't seen before have no known root yet, so the entry will be a miss until the next
+        // refresh confirms what they point to
+        file.version.versions.keySet().forEach(w -> writers.putIfAbsent(w, file.owner()));
+        if (files.size() >= MAX_ENTRIES)
+            files.clear();
+        files.put(key(path), file);
+    }
+
+    /** Refresh if we have written since the last refresh, or it was too long ago. */
+    synchronized void refreshIfStale() {
+        if (stale || System.currentTimeMillis() - lastRefresh >= REFRESH_INTERVAL_MS)
+            refresh();
+    }
+
+    /** Something was written, so none of the roots we know can be trusted until the next refresh. */
+    synchronized void invalidate() {
+        stale = true;
+        currentRoots.clear();
+    }
+
+    /** Fetch the current root of every writer a cached entry was read from, and drop the entries which changed. */
+    synchronized void refresh() {
+        stale = false;
+        lastRefresh = System.currentTimeMillis();
+        try {
+            List<Map.Entry<PublicKeyHash, PublicKeyHash>> toCheck = new ArrayList<>(writers.entrySet());
+            Futures.combineAll(toCheck.stream()
+                    .map(e -> network.mutable.getPointerTarget(e.getValue(), e.getKey(), network.dhtClient)
+                            .thenApply(target -> {
+                                MaybeMultihash previous = currentRoots.put(e.getKey(), target.updated);
+                                if (previous != null && ! previous.equals(target.updated))
+                                    LOG.fine("Writer " + e.getKey() + " changed, dropping cached paths resolved through it");
+                                return true;
+                            }))
+                    .collect(Collectors.toList())).join();
+            files.entrySet().removeIf(e -> ! isCurrent(e.getValue()));
+            // forget writers which no cached entry was read from any more
+            Set<PublicKeyHash> referenced = files.values().stream()
+                    .flatMap(f -> f.version.versions.keySet().stream())
+                    .collect(Collectors.toSet());
+            writers.keySet().retainAll(referenced);
+            currentRoots.keySet().retainAll(referenced);
+        } catch (Exception e) {
+            // without current roots nothing can be trusted
+            LOG.log(Level.WARNING, "Couldn't check writer pointers, clearing path cache", e);
+            currentRoots.clear();
+            files.clear();
+            writers.clear();
+        }
+    }
+
+    private boolean isCurrent(FileWrapper file) {
+        for (Map.Entry<PublicKeyHash, CommittedWriterData> e : file.version.versions.entrySet()) {
+            MaybeMultihash current = currentRoots.get(e.getKey());
+            if (current == null || ! current.equals(e.getValue().hash))
+                return false;
+        }
+        return true;
+    }
+
+    private static String key(Path path) {
+        return path.toString().replace('\\', '/');
+    }
+}
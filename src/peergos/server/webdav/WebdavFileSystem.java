@@ -74,6 +74,7 @@ public class WebdavFileSystem implements IWebdavStore {
 
     private final UserContext context;
     private final Optional<ThumbnailCacheSeeder> thumbnailSeeder;
+    private final PathCache paths;
     private volatile long cachedUsed = 0;
     private volatile long cachedQuota = 1024L * 1024 * 1024;
     private volatile long quotaCacheTime = 0;
@@ -103,6 +104,7 @@ public class WebdavFileSystem implements IWebdavStore {
             LOG.log(Level.WARNING, ex, () -> "Unable to connect to Peergos account");
             throw new IllegalStateException("Unable to connect to Peergos account: ", ex);
         }
+        this.paths = new PathCache(context.network);
         this.thumbnailSeeder = seedThumbnailCache
                 ? ThumbnailCacheSeeder.createForFlatpakMount(config)
                 : Optional.empty();
@@ -202,6 +204,7 @@ public class WebdavFileSystem implements IWebdavStore {
     @Override
     public ITransaction begin(Principal principal ) throws WebdavException {
         LOG.fine("PeergosFileSystem.begin()");
+        paths.refreshIfStale();
         return new Transaction(principal);
     }
 
@@ -224,22 +227,37 @@ public class WebdavFileSystem implements IWebdavStore {
         return context.getByPath(path.toString().replace('\\', '/')).join();
     }
 
-    /** As {@link #getByPath(Path)}, but reuses anything already retrieved in this request. */
+    /** As {@link #getByPath(Path)}, but reuses anything already retrieved in this request, or in an earlier one
+     *  if none of the writers it was read from have changed. Otherwise we resolve from the nearest such ancestor.
+     */
     private Optional<FileWrapper> getByPath(ITransaction transaction, Path path) {
-        if (! (transaction instanceof Transaction))
-            return getByPath(path);
-        Transaction tx = (Transaction) transaction;
-        Optional<FileWrapper> known = tx.recall(path.toString());
-        if (known.isPresent())
-            return known;
-        Optional<FileWrapper> resolved = getByPath(path);
-        resolved.ifPresent(f -> tx.remember(path.toString(), f));
+        Transaction tx = transaction instanceof Transaction ? (Transaction) transaction : null;
+        if (tx != null) {
+            Optional<FileWrapper> known = tx.recall(path.toString());
+            if (known.isPresent())
+                return known;
+        }
+        Optional<FileWrapper> resolved = paths.get(path);
+        if (resolved.isEmpty()) {
+            Optional<Map.Entry<Path, FileWrapper>> ancestor = paths.getAncestor(path);
+            if (ancestor.isPresent()) {
+                String relative = ancestor.get().getKey().relativize(path).toString().replace('\\', '/');
+                resolved = ancestor.get().getValue()
+                        .getDescendentByPath(relative, context.crypto.hasher, context.network).join();
+            } else
+                resolved = getByPath(path);
+            resolved.ifPresent(f -> paths.put(path, f));
+        }
+        if (tx != null)
+            resolved.ifPresent(f -> tx.remember(path.toString(), f));
         return resolved;
     }
 
-    private static void invalidate(ITransaction transaction) {
+    private void invalidate(ITransaction transaction) {
         if (transaction instanceof Transaction)
             ((Transaction) transaction).forgetAll();
+        // the writers we just modified have new roots, which the next request will pick up
+        paths.invalidate();
     }
 
     @Override
@@ -390,7 +408,7 @@ public class WebdavFileSystem implements IWebdavStore {
                                       String uri ) throws WebdavException {
         LOG.fine("PeergosFileSystem.getChildrenNames(" + uri + ")");
         Path path = new File(uri).toPath();
-        Optional<FileWrapper> folder = getByPath(path);
+        Optional<FileWrapper> folder = getByPath(transaction, path);
         if (folder.isEmpty() || !folder.get().isDirectory() || Optional.ofNullable(folder.get().getFileProperties()).map(p -> p.isHidden).orElse(false)) {
             return new String[0];
         }
@@ -407,6 +425,7 @@ public class WebdavFileSystem implements IWebdavStore {
             String childPath = path.resolve(child.getName()).toString();
             if (tx != null)
                 tx.remember(childPath, child);
+            paths.put(path.resolve(child.getName()), child);
             // Under the flatpak drive mount only: drop the file's stored thumbnail into the
             // host thumbnail cache so the file manager shows it without downloading the file.
             thumbnailSeeder.ifPresent(s -> s.seed(childPath, child.getFileProperties()));
@@ -440,7 +459,7 @@ public class WebdavFileSystem implements IWebdavStore {
                                                       String uri ) throws WebdavException {
         LOG.fine("PeergosFileSystem.getResourceContent(" + uri + ")");
         Path path = new File(uri).toPath();
-        Optional<FileWrapper> fw = getByPath(path);
+        Optional<FileWrapper> fw = getByPath(transaction, path);
         if (fw.isEmpty() || fw.get().isDirectory() || fw.get().getFileProperties().isHidden) {
             throw new WebdavException("cannot find file: " + uri);
         }
@@ -5,39 +5,142 @@ import peergos.shared.user.fs.cryptree.*;
 import peergos.shared.util.*;
 
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
+/** An LRU cache of cryptree nodes keyed by champ root and map key.
+ *
+ *  Entries are striped across independently locked segments by their root and map key, so a single large tree uses
+ *  the whole cache, and threads don't contend unless they hit the same segment. Each segment indexes its entries by
+ *  root, so rebinding the entries of a prior root after a write is proportional to the number of segments plus the
+ *  number of entries for that root. A mapping never changes once made, as the root is a hash, so segments don't need
+ *  to be updated atomically together.
+ */
 public class CryptreeCache {
+    private static final int DEFAULT_SIZE = 1_000;
+    private static final int DEFAULT_SEGMENTS = 16;
 
-    private final LRUCache<Pair<Multihash, ByteArrayWrapper>, Optional<CryptreeNode>> cache;
+    private final Segment[] segments;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
 
     public CryptreeCache() {
-        int cacheSize = 1_000;
-        this.cache = new LRUCache<>(cacheSize);
+        this(DEFAULT_SIZE);
     }
 
     public CryptreeCache(int cacheSize) {
-        this.cache = new LRUCache<>(cacheSize);
+        this(cacheSize, DEFAULT_SEGMENTS);
     }
 
-    public synchronized boolean containsKey(Pair<Multihash, ByteArrayWrapper> cacheKey) {
-        return cache.containsKey(cacheKey);
+    public CryptreeCache(int cacheSize, int nSegments) {
+        if (nSegments < 1)
+            throw new IllegalArgumentException("Need at least one segment!");
+        int segmentSize = Math.max(2, (cacheSize + nSegments - 1) / nSegments);
+        this.segments = new Segment[nSegments];
+        for (int i=0; i < nSegments; i++)
+            segments[i] = new Segment(segmentSize);
     }
 
-    public synchronized Optional<CryptreeNode> get(Pair<Multihash, ByteArrayWrapper> cacheKey) {
-        return cache.get(cacheKey);
+    private Segment segment(Multihash root, ByteArrayWrapper mapKey) {
+        int hash = 31 * root.hashCode() + mapKey.hashCode();
+        return segments[(hash & 0x7fffffff) % segments.length];
     }
 
-    public synchronized void put(Pair<Multihash, ByteArrayWrapper> cacheKey, Optional<CryptreeNode> val) {
-        cache.put(cacheKey, val);
+    public boolean containsKey(Pair<Multihash, ByteArrayWrapper> cacheKey) {
+        return segment(cacheKey.left, cacheKey.right).containsKey(cacheKey);
     }
 
-    public synchronized void update(Optional<Multihash> priorRoot, Pair<Multihash, ByteArrayWrapper> cacheKey, Optional<CryptreeNode> val) {
+    /**
+     * @return the cached value or null if there isn't one
+     */
+    public Optional<CryptreeNode> get(Pair<Multihash, ByteArrayWrapper> cacheKey) {
+        Optional<CryptreeNode> res = segment(cacheKey.left, cacheKey.right).get(cacheKey);
+        if (res == null)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+        return res;
+    }
+
+    public void put(Pair<Multihash, ByteArrayWrapper> cacheKey, Optional<CryptreeNode> val) {
+        segment(cacheKey.left, cacheKey.right).put(cacheKey.left, cacheKey.right, val);
+    }
+
+    public void update(Optional<Multihash> priorRoot, Pair<Multihash, ByteArrayWrapper> cacheKey, Optional<CryptreeNode> val) {
         // update other mappings in cache from same root and different map key as they have not changed
-        if (priorRoot.isPresent()) {
-            new HashMap<>(cache).entrySet().stream()
-                    .filter(e -> e.getKey().left.equals(priorRoot.get()))
-                    .forEach(e -> cache.put(new Pair<>(cacheKey.left, e.getKey().right), e.getValue()));
+        if (priorRoot.isPresent() && ! priorRoot.get().equals(cacheKey.left)) {
+            for (Segment source : segments) {
+                Map<ByteArrayWrapper, Optional<CryptreeNode>> unchanged = source.entries(priorRoot.get());
+                for (Map.Entry<ByteArrayWrapper, Optional<CryptreeNode>> e : unchanged.entrySet())
+                    segment(cacheKey.left, e.getKey()).put(cacheKey.left, e.getKey(), e.getValue());
+            }
+        }
+        put(cacheKey, val);
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public int size() {
+        int total = 0;
+        for (Segment segment : segments)
+            total += segment.size();
+        return total;
+    }
+
+    private static class Segment {
+        private final Map<Multihash, Set<ByteArrayWrapper>> byRoot = new HashMap<>();
+        private final LinkedHashMap<Pair<Multihash, ByteArrayWrapper>, Optional<CryptreeNode>> cache;
+
+        Segment(int maxSize) {
+            this.cache = new LinkedHashMap<Pair<Multihash, ByteArrayWrapper>, Optional<CryptreeNode>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Pair<Multihash, ByteArrayWrapper>, Optional<CryptreeNode>> eldest) {
+                    if (size() <= maxSize)
+                        return false;
+                    unindex(eldest.getKey());
+                    return true;
+                }
+            };
+        }
+
+        private void unindex(Pair<Multihash, ByteArrayWrapper> key) {
+            Set<ByteArrayWrapper> mapKeys = byRoot.get(key.left);
+            if (mapKeys == null)
+                return;
+            mapKeys.remove(key.right);
+            if (mapKeys.isEmpty())
+                byRoot.remove(key.left);
+        }
+
+        synchronized boolean containsKey(Pair<Multihash, ByteArrayWrapper> key) {
+            return cache.containsKey(key);
+        }
+
+        synchronized Optional<CryptreeNode> get(Pair<Multihash, ByteArrayWrapper> key) {
+            return cache.get(key);
+        }
+
+        synchronized void put(Multihash root, ByteArrayWrapper mapKey, Optional<CryptreeNode> val) {
+            byRoot.computeIfAbsent(root, r -> new HashSet<>()).add(mapKey);
+            cache.put(new Pair<>(root, mapKey), val);
+        }
+
+        synchronized Map<ByteArrayWrapper, Optional<CryptreeNode>> entries(Multihash root) {
+            Set<ByteArrayWrapper> mapKeys = byRoot.get(root);
+            if (mapKeys == null)
+                return Collections.emptyMap();
+            Map<ByteArrayWrapper, Optional<CryptreeNode>> res = new HashMap<>();
+            for (ByteArrayWrapper mapKey : mapKeys)
+                res.put(mapKey, cache.get(new Pair<>(root, mapKey)));
+            return res;
+        }
+
+        synchronized int size() {
+            return cache.size();
         }
-        cache.put(cacheKey, val);
     }
 }
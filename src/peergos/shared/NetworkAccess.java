@@ -624,24 +624,53 @@ public class NetworkAccess {
                 .thenCompose(faOpt -> {
                     if (! faOpt.isPresent())
                         return Futures.of(Optional.empty());
-                    CryptreeNode fa = faOpt.get();
-                    RetrievedCapability rc = new RetrievedCapability(cap, fa);
-                    try {
-                        FileProperties props = rc.getProperties();
-                        if (!props.isLink)
-                            return Futures.of(Optional.of(new FileWrapper(Optional.empty(),
-                                    rc,
-                                    Optional.empty(),
-                                    cap.wBaseKey.map(wBase -> fa.getSigner(cap.rBaseKey, wBase, entryWriter)), ownerName, v)));
-                        return getFileFromLink(cap.owner, rc, entryWriter, ownerName, this, v)
-                                .thenApply(f -> Optional.of(f));
-                    } catch (InvalidCipherTextException e) {
-                        LOG.info("Couldn't decrypt file from friend: " + ownerName);
-                        return Futures.of(Optional.empty());
-                    }
+                    return getFile(new RetrievedCapability(cap, faOpt.get()), entryWriter, ownerName, v);
                 }));
     }
 
+    /** Retrieve the files for many caps, looking up the metadata of caps with the same writer in bulk.
+     *
+     * @param version must contain the writer of every cap
+     * @return the files in the same order as the caps, or empty where one couldn't be retrieved
+     */
+    public CompletableFuture<List<Optional<FileWrapper>>> getFiles(Snapshot version,
+                                                                   List<AbsoluteCapability> caps,
+                                                                   List<String> ownerNames) {
+        return retrieveAllMetadata(caps.stream().distinct().collect(Collectors.toList()), version)
+                .thenCompose(p -> {
+                    Map<AbsoluteCapability, RetrievedCapability> retrieved = new HashMap<>();
+                    for (RetrievedCapability rc : p.left)
+                        retrieved.put(rc.capability, rc);
+                    return Futures.combineAllInOrder(IntStream.range(0, caps.size())
+                            .mapToObj(i -> retrieved.containsKey(caps.get(i)) ?
+                                    getFile(retrieved.get(caps.get(i)), Optional.empty(), ownerNames.get(i), version)
+                                            .exceptionally(t -> Optional.empty()) :
+                                    Futures.of(Optional.<FileWrapper>empty()))
+                            .collect(Collectors.toList()));
+                });
+    }
+
+    private CompletableFuture<Optional<FileWrapper>> getFile(RetrievedCapability rc,
+                                                             Optional<SigningPrivateKeyAndPublicHash> entryWriter,
+                                                             String ownerName,
+                                                             Snapshot v) {
+        AbsoluteCapability cap = rc.capability;
+        CryptreeNode fa = rc.fileAccess;
+        try {
+            FileProperties props = rc.getProperties();
+            if (!props.isLink)
+                return Futures.of(Optional.of(new FileWrapper(Optional.empty(),
+                        rc,
+                        Optional.empty(),
+                        cap.wBaseKey.map(wBase -> fa.getSigner(cap.rBaseKey, wBase, entryWriter)), ownerName, v)));
+            return getFileFromLink(cap.owner, rc, entryWriter, ownerName, this, v)
+                    .thenApply(f -> Optional.of(f));
+        } catch (InvalidCipherTextException e) {
+            LOG.info("Couldn't decrypt file from friend: " + ownerName);
+            return Futures.of(Optional.empty());
+        }
+    }
+
     public static CompletableFuture<FileWrapper> getFileFromLink(PublicKeyHash owner,
                                                                  RetrievedCapability link,
                                                                  Optional<SigningPrivateKeyAndPublicHash> entryWriter,
@@ -695,8 +724,9 @@ public class NetworkAccess {
             return Futures.of(Optional.empty());
         Multihash root = base.props.get().tree.get();
         Pair<Multihash, ByteArrayWrapper> cacheKey = new Pair<>(root, new ByteArrayWrapper(cap.getMapKey()));
-        if (cache.containsKey(cacheKey))
-            return Futures.of(cache.get(cacheKey));
+        Optional<CryptreeNode> cached = cache.get(cacheKey);
+        if (cached != null)
+            return Futures.of(cached);
         return cap.bat.map(b -> b.calculateId(hasher).thenApply(id -> Optional.of(new BatWithId(b, id.id)))).orElse(Futures.of(Optional.empty()))
                 .thenCompose(bat -> {
                     return Futures.asyncExceptionally(
@@ -144,6 +144,23 @@ public class CborEncoder {
         writeSimpleType(TYPE_BYTE_STRING, BREAK);
     }
 
+    /**
+     * Writes the header of a definite-length byte string.
+     * <p>
+     * After calling this method, one is expected to write exactly the given number of bytes directly. No length checks are performed.
+     * </p>
+     *
+     * @param length the number of bytes in the string, should &gt;= 0.
+     * @throws IllegalArgumentException in case the given length was negative;
+     * @throws IOException in case of I/O problems writing the CBOR-encoded value to the underlying output stream.
+     */
+    public void writeByteStringStart(int length) throws IOException {
+        if (length < 0) {
+            throw new IllegalArgumentException("Invalid byte string length!");
+        }
+        writeType(TYPE_BYTE_STRING, length);
+    }
+
     /**
      * Writes a double-precision float value in canonical CBOR format.
      *
@@ -10,6 +10,7 @@ import peergos.shared.storage.auth.*;
 import peergos.shared.user.fs.*;
 import peergos.shared.util.*;
 
+import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
@@ -20,6 +21,10 @@ import java.util.stream.*;
  *
  */
 public class FragmentedPaddedCipherText implements Cborable {
+    private static final int MAX_CBOR_OVERHEAD = 6;
+    // The padded plain text of a full chunk: a 5 byte cbor header and the data, padded to 4 KiB blocks
+    private static final ByteArrayPool paddedChunks =
+            new ByteArrayPool(paddedLength(Chunk.MAX_SIZE + 5, MAX_CBOR_OVERHEAD, 4096), 4);
 
     private final byte[] nonce;
     private final Optional<byte[]> header; // Present on all but legacy or inlined chunks, contains secretbox auth and cbor padding
@@ -105,10 +110,46 @@ public class FragmentedPaddedCipherText implements Cborable {
     }
 
     protected static byte[] pad(byte[] input, int excluded, int blockSize) {
-        int nBlocks = (input.length - excluded + blockSize - 1) / blockSize;
-        return Arrays.copyOfRange(input, 0, nBlocks * blockSize + excluded);
+        return Arrays.copyOfRange(input, 0, paddedLength(input.length, excluded, blockSize));
     }
 
+    private static int paddedLength(int length, int excluded, int blockSize) {
+        int nBlocks = (length - excluded + blockSize - 1) / blockSize;
+        return nBlocks * blockSize + excluded;
+    }
+
+    private static int serializationOverhead(int plainTextLength, int paddingBlockSize) {
+        return plainTextLength <= paddingBlockSize ? 0 : MAX_CBOR_OVERHEAD;
+    }
+
+    private static byte[] serializeAndPad(Cborable secret, int paddingBlockSize, boolean pooledBuffers) {
+        if (! (secret instanceof CborObject.CborByteArray)) {
+            byte[] plainText = secret.serialize();
+            return pad(plainText, serializationOverhead(plainText.length, paddingBlockSize), paddingBlockSize);
+        }
+        // write file data straight into the padded buffer, rather than serializing it and then padding a copy
+        byte[] data = ((CborObject.CborByteArray) secret).value;
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try {
+            new CborEncoder(bout).writeByteStringStart(data.length);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        byte[] cborHeader = bout.toByteArray();
+        int plainTextLength = cborHeader.length + data.length;
+        int paddedLength = paddedLength(plainTextLength, serializationOverhead(plainTextLength, paddingBlockSize), paddingBlockSize);
+        byte[] padded = pooledBuffers && paddedLength == paddedChunks.bufferSize() ?
+                paddedChunks.take() :
+                new byte[paddedLength];
+        System.arraycopy(cborHeader, 0, padded, 0, cborHeader.length);
+        System.arraycopy(data, 0, padded, cborHeader.length, data.length);
+        Arrays.fill(padded, plainTextLength, paddedLength, (byte) 0);
+        return padded;
+    }
+
+    /**
+     * @param pooledBuffers whether the padded plain text of a full chunk can be taken from, and returned to, a shared pool
+     */
     public static <T extends Cborable>
     CompletableFuture<Pair<FragmentedPaddedCipherText, List<FragmentWithHash>>> build(SymmetricKey from,
                                                                                       T secret,
@@ -117,19 +158,18 @@ public class FragmentedPaddedCipherText implements Cborable {
                                                                                       Optional<BatId> mirrorBat,
                                                                                       SafeRandom random,
                                                                                       Hasher hasher,
-                                                                                      boolean allowArrayCache) {
+                                                                                      boolean pooledBuffers) {
         if (paddingBlockSize < 1)
             throw new IllegalStateException("Invalid padding block size: " + paddingBlockSize);
         byte[] nonce = from.createNonce();
-        byte[] plainText = secret.serialize();
         // input chunk size: 0,    5,    4090, 4096, 4097
         // padded to:        4096, 4096, 4096, 4096, 8192
-        int maxCborOverhead = 6;
-        int serializationOverhead = plainText.length <= paddingBlockSize ? 0 : maxCborOverhead;
-        byte[] padded = pad(plainText, serializationOverhead, paddingBlockSize);
+        byte[] padded = serializeAndPad(secret, paddingBlockSize, pooledBuffers);
         byte[] cipherText = from.encrypt(padded, nonce);
+        if (pooledBuffers)
+            paddedChunks.release(padded);
 
-        if (padded.length <= 4096 + maxCborOverhead) {
+        if (padded.length <= 4096 + MAX_CBOR_OVERHEAD) {
             // inline small amounts of data (small files or directories)
             FragmentedPaddedCipherText chunk = new FragmentedPaddedCipherText(nonce, Optional.empty(),
                     Collections.emptyList(), Collections.emptyList(), Optional.of(cipherText));
@@ -138,14 +178,14 @@ public class FragmentedPaddedCipherText implements Cborable {
 
         int headerSize = cipherText.length % paddingBlockSize;
         Optional<byte[]> header = Optional.of(Arrays.copyOfRange(cipherText, 0, headerSize));
-        byte[][] split = split(cipherText, headerSize, maxFragmentSize, allowArrayCache);
-        int nBlocks = split.length;
+        int nBlocks = fragmentCount(cipherText.length - headerSize, maxFragmentSize);
         List<Bat> blockBats = IntStream.range(0, nBlocks)
                 .mapToObj(i -> Bat.random(random))
                 .collect(Collectors.toList());
 
         return Futures.combineAllInOrder(IntStream.range(0, nBlocks)
-                .mapToObj(i -> ArrayOps.concat(Bat.createRawBlockPrefix(blockBats.get(i), mirrorBat), split[i]))
+                .mapToObj(i -> fragment(Bat.createRawBlockPrefix(blockBats.get(i), mirrorBat), cipherText,
+                        headerSize + i * maxFragmentSize, maxFragmentSize))
                 .map(d -> hasher.hash(d, true).thenApply(h -> new FragmentWithHash(new Fragment(d), Optional.of(h))))
                 .collect(Collectors.toList()))
                 .thenCompose(frags -> {
@@ -177,40 +217,19 @@ public class FragmentedPaddedCipherText implements Cborable {
                 .thenApply(fargs -> new CipherText(nonce, recombine(header, fargs)).decrypt(from, fromCbor));
     }
 
-    private static byte[][] generateCache() {
-        return new byte[Chunk.MAX_SIZE/Fragment.MAX_LENGTH][Fragment.MAX_LENGTH];
+    private static int fragmentCount(int length, int maxFragmentSize) {
+        if (length == 0)
+            return 1;
+        return (length + maxFragmentSize - 1) / maxFragmentSize;
     }
 
-    private static ThreadLocal<byte[][]> arrayCache = ThreadLocal.withInitial(FragmentedPaddedCipherText::generateCache);
-
-    private static byte[][] split(byte[] input, int inputStartIndex, int maxFragmentSize, boolean allowCache) {
-        //calculate padding length to align to 256 bytes
-        int padding = 0;
-        int mod = (input.length - inputStartIndex) % 256;
-        if (mod != 0 || (input.length - inputStartIndex) == 0)
-            padding = 256 - mod;
-        //align to 256 bytes
-        int len = input.length - inputStartIndex + padding;
-
-        //calculate the number  of fragments
-        int nFragments =  len / maxFragmentSize;
-        if (len % maxFragmentSize > 0)
-            nFragments++;
-
-        byte[][] split = new  byte[nFragments][];
-
-        byte[][] cache = arrayCache.get();
-        int cacheIndex = 0;
-        for (int i= 0; i< nFragments; ++i) {
-            int start = inputStartIndex + maxFragmentSize * i;
-            int end = Math.min(input.length, start + maxFragmentSize);
-            int length = end - start;
-            boolean useCache = allowCache && length == Fragment.MAX_LENGTH;
-            byte[] b = useCache ? cache[cacheIndex++] : new byte[length];
-            System.arraycopy(input, start, b, 0, length);
-            split[i] = b;
-        }
-        return split;
+    // build a fragment directly from its prefix and a slice of the cipher text, without an intermediate copy
+    private static byte[] fragment(byte[] prefix, byte[] cipherText, int start, int maxFragmentSize) {
+        int length = Math.max(0, Math.min(cipherText.length - start, maxFragmentSize));
+        byte[] res = new byte[prefix.length + length];
+        System.arraycopy(prefix, 0, res, 0, prefix.length);
+        System.arraycopy(cipherText, start, res, prefix.length, length);
+        return res;
     }
 
     private static byte[] recombine(Optional<byte[]> header, List<FragmentWithHash> encoded) {
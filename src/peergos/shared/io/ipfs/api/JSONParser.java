@@ -398,6 +398,15 @@ public class JSONParser
         return buf.toString();
     }
 
+    /** Serialize a list of objects as a stream of concatenated JSON values, the inverse of parseStream */
+    public static String toStream(List<?> objs)
+    {
+        StringBuffer buf = new StringBuffer();
+        for (Object obj : objs)
+            toString(obj, buf);
+        return buf.toString();
+    }
+
     public static String stripWhitespace(String src)
     {
         boolean inQuote = false, isEscaped = false;
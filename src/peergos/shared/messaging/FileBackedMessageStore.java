@@ -11,7 +11,13 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
 
+/** Messages are stored as consecutive cbor in the messages file. The index file is a sparse lookup from message index
+ *  to the byte offset of that message, as pairs of longs in increasing order. There is an entry every INDEX_INTERVAL
+ *  messages and for the first message starting after each chunk boundary.
+ */
 public class FileBackedMessageStore implements MessageStore {
+    private static final int INDEX_INTERVAL = 64;
+    private static final int INDEX_ENTRY_SIZE = 16;
 
     private final FileWrapper messages;
     private final FileWrapper indexFile;
@@ -20,6 +26,7 @@ public class FileBackedMessageStore implements MessageStore {
     private final UserContext context;
     private final Path sharedDir;
     private final Supplier<CompletableFuture<Pair<FileWrapper, FileWrapper>>> filesUpdater;
+    private CompletableFuture<long[][]> index;
 
     public FileBackedMessageStore(FileWrapper messages,
                                   FileWrapper indexFile,
@@ -35,61 +42,85 @@ public class FileBackedMessageStore implements MessageStore {
         this.filesUpdater = filesUpdater;
     }
 
-    private CompletableFuture<Pair<Long, Integer>> getChunkByteOffset(long index) {
-        if (messages.getSize() < 5*1024*1024)
-            return Futures.of(new Pair<>(0L, (int) index));
-        return indexFile.getInputStream(indexFile.version.get(indexFile.writer()), network, crypto, x -> {})
-                        .thenCompose(reader -> findOffset(reader, new byte[1024],
-                                0L, 0L, index, indexFile.getSize()));
+    /**
+     *
+     * @return the message indices and corresponding byte offsets in the index file
+     */
+    private synchronized CompletableFuture<long[][]> getIndex() {
+        if (index == null) {
+            int entries = (int) (indexFile.getSize() / INDEX_ENTRY_SIZE);
+            index = entries == 0 ?
+                    Futures.of(new long[][] {new long[0], new long[0]}) :
+                    indexFile.getInputStream(indexFile.version.get(indexFile.writer()), network, crypto, x -> {})
+                            .thenCompose(reader -> Serialize.readFully(reader, (long) entries * INDEX_ENTRY_SIZE))
+                            .thenApply(raw -> {
+                                long[] msgIndices = new long[entries];
+                                long[] byteOffsets = new long[entries];
+                                DataInputStream din = new DataInputStream(new ByteArrayInputStream(raw));
+                                try {
+                                    for (int i = 0; i < entries; i++) {
+                                        msgIndices[i] = din.readLong();
+                                        byteOffsets[i] = din.readLong();
+                                    }
+                                } catch (IOException e) {} // can't happen
+                                return new long[][] {msgIndices, byteOffsets};
+                            });
+        }
+        return index;
     }
 
-    private CompletableFuture<Pair<Long, Integer>> findOffset(AsyncReader r,
-                                                              byte[] buf,
-                                                              long previousIndex,
-                                                              long previousByteOffset,
-                                                              long index,
-                                                              long remainingBytes) {
-        if (remainingBytes == 0)
-            return Futures.of(new Pair<>(previousByteOffset, (int)(index - previousIndex)));
-        int toRead = remainingBytes > buf.length ? buf.length : (int) remainingBytes;
-        DataInputStream din = new DataInputStream(new ByteArrayInputStream(buf));
-        return r.readIntoArray(buf, 0, toRead)
-                .thenCompose(read -> {
-                    long prevIndex = previousIndex;
-                    long prevBytes = previousByteOffset;
-                    for (int i=0; i < read / 16; i++) {
-                        try {
-                            long msgIndex = din.readLong();
-                            long byteOffset = din.readLong();
-                            if (msgIndex > index)
-                                return Futures.of(new Pair<>(prevBytes, (int)(index - prevIndex)));
-                            prevIndex = msgIndex;
-                            prevBytes = byteOffset;
-                        } catch (IOException e) {}
-                    }
-                    return findOffset(r, buf, prevIndex, prevBytes, index, remainingBytes - read);
-                });
+    /**
+     *
+     * @param fromIndex the first message to read
+     * @param toIndex the index after the last message to read
+     * @return the byte offset of an indexed message at or before fromIndex, the number of messages from there to
+     * fromIndex, and a byte offset at or after the end of the last message
+     */
+    private CompletableFuture<Triple<Long, Integer, Long>> getByteRange(long fromIndex, long toIndex) {
+        return getIndex().thenApply(index -> {
+            long[] msgIndices = index[0], byteOffsets = index[1];
+            int start = lastEntryBefore(msgIndices, fromIndex + 1);
+            int end = lastEntryBefore(msgIndices, toIndex) + 1;
+            long startOffset = start < 0 ? 0 : byteOffsets[start];
+            long startIndex = start < 0 ? 0 : msgIndices[start];
+            long endOffset = end < msgIndices.length ? byteOffsets[end] : messages.getSize();
+            return new Triple<>(startOffset, (int) (fromIndex - startIndex), endOffset);
+        });
+    }
+
+    /**
+     *
+     * @return the position of the last entry with a message index below msgIndex, or -1 if there isn't one
+     */
+    private static int lastEntryBefore(long[] msgIndices, long msgIndex) {
+        int low = 0, high = msgIndices.length - 1, res = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (msgIndices[mid] < msgIndex) {
+                res = mid;
+                low = mid + 1;
+            } else
+                high = mid - 1;
+        }
+        return res;
     }
 
     @Override
     public CompletableFuture<List<SignedMessage>> getMessagesFrom(long index) {
-        List<SignedMessage> res = new ArrayList<>();
-        return messages.getInputStream(messages.version.get(messages.writer()), network, crypto, x -> {})
-                        .thenCompose(reader -> getChunkByteOffset(index)
-                                .thenCompose(p -> reader.seek(p.left)
-                                        .thenCompose(seeked -> seeked.parseLimitedStream(SignedMessage::fromCbor,
-                                        res::add, p.right, Integer.MAX_VALUE, messages.getSize() - p.left))))
-                        .thenApply(x -> res);
+        return getMessages(index, Long.MAX_VALUE);
     }
 
     @Override
     public CompletableFuture<List<SignedMessage>> getMessages(long fromIndex, long toIndex) {
+        if (toIndex <= fromIndex)
+            return Futures.of(Collections.emptyList());
         List<SignedMessage> res = new ArrayList<>();
+        int maxMessages = (int) Math.min(Integer.MAX_VALUE, toIndex - fromIndex);
         return messages.getInputStream(messages.version.get(messages.writer()), network, crypto, x -> {})
-                        .thenCompose(reader -> getChunkByteOffset(fromIndex)
-                                .thenCompose(p -> reader.seek(p.left)
+                        .thenCompose(reader -> getByteRange(fromIndex, toIndex)
+                                .thenCompose(r -> reader.seek(r.left)
                                         .thenCompose(seeked -> seeked.parseLimitedStream(SignedMessage::fromCbor,
-                                                res::add, p.right, (int) (toIndex - fromIndex), messages.getSize() - p.left))))
+                                                res::add, r.middle, maxMessages, r.right - r.left))))
                         .thenApply(x -> res);
     }
 
@@ -109,28 +140,27 @@ public class FileBackedMessageStore implements MessageStore {
                 .thenCompose(p -> p.left.overwriteSection(p.right, committer, AsyncReader.build(raw), p.left.getSize(),
                         p.left.getSize() + raw.length, Optional.empty(), network, crypto, x -> {}).thenCompose(s2 -> {
                     long size = p.left.getSize();
-                    boolean newChunk = (raw.length + size)/Chunk.MAX_SIZE > size/Chunk.MAX_SIZE;
-                    if (! newChunk)
-                        return Futures.of(s2);
                     ByteArrayOutputStream bout = new ByteArrayOutputStream();
                     DataOutputStream dout = new DataOutputStream(bout);
-                    // find message that crossed chunk boundary
-                    int count=0;
-                    int totalSize = 0;
-                    while (count < sizes.size()) {
-                        totalSize += sizes.get(count);
-                        count++;
-                        if ((totalSize + size)/Chunk.MAX_SIZE > size/Chunk.MAX_SIZE)
-                            break;
+                    // index the message after each one that crossed a chunk boundary, and every INDEX_INTERVAL messages
+                    long offset = size;
+                    for (int i = 0; i < sizes.size(); i++) {
+                        long next = offset + sizes.get(i);
+                        long nextIndex = msgIndex + i + 1;
+                        if (next / Chunk.MAX_SIZE > offset / Chunk.MAX_SIZE || nextIndex % INDEX_INTERVAL == 0) {
+                            try {
+                                dout.writeLong(nextIndex);
+                                dout.writeLong(next);
+                            } catch (IOException e) {} // can't happen
+                        }
+                        offset = next;
                     }
-                    try {
-                        dout.writeLong(msgIndex + count);
-                        dout.writeLong(size + totalSize);
-                    } catch (IOException e) {} // can't happen
-                    byte[] twoLongs = bout.toByteArray();
+                    byte[] entries = bout.toByteArray();
+                    if (entries.length == 0)
+                        return Futures.of(s2);
                     return indexFile.overwriteSection(s2, committer,
-                                    AsyncReader.build(twoLongs), indexFile.getSize(),
-                            indexFile.getSize() + twoLongs.length, Optional.empty(), network, crypto, x -> {});
+                                    AsyncReader.build(entries), indexFile.getSize(),
+                            indexFile.getSize() + entries.length, Optional.empty(), network, crypto, x -> {});
 
                 }));
     }
@@ -21,14 +21,15 @@ import java.util.stream.*;
  *
  *  Data is stored in /username/.feed/
  *                                    feed-state.cbor    - Your serialized FeedState
- *                                    feed-index.cbor    - An lookup from index in feed to byte offset in feed.cbor
+ *                                    feed-index.bin     - The byte offset in feed.cbor of each item, 8 bytes each
  *                                    feed.cbor          - An append only list of serialized SharedItems
  *
  *  The FeedState stores how many bytes of the incoming cap file has been processed from each friend
  */
 public class SocialFeed {
     private static final String FEED_FILE = "feed.cbor";
-    private static final String FEED_INDEX = "feed-index.cbor";
+    private static final String FEED_INDEX = "feed-index.bin";
+    private static final int INDEX_ENTRY_SIZE = 8;
     private static final String FEED_STATE = "feed-state.cbor";
 
     private FileWrapper dataDir, stateFile;
@@ -144,31 +145,77 @@ public class SocialFeed {
 
     /**
      *
-     * @param index
-     * @return the byte offset and corresponding index of a prior object boundary, which ideally should be in the same chunk
+     * @param from the index of the first item
+     * @param to the index after the last item
+     * @return the byte range in the feed file of the given items, if the feed index covers them
      */
-    private CompletableFuture<Pair<Long, Integer>> getPriorByteOffset(int index) {
+    private CompletableFuture<Optional<Pair<Long, Long>>> getByteRange(int from, int to, Crypto crypto, NetworkAccess network) {
         return dataDir.getChild(FEED_INDEX, crypto.hasher, network)
                 .thenCompose(fopt -> {
-                    //TODO
-//                    if (fopt.isEmpty())
-//                        throw new IllegalStateException("Social feed state file not present!");
-                    return Futures.of(new Pair<>(0L, 0));
+                    if (fopt.isEmpty())
+                        return Futures.of(Optional.empty());
+                    long indexed = fopt.get().getSize() / INDEX_ENTRY_SIZE;
+                    // the end of the range is the start of the next item, or the end of the feed
+                    boolean endIndexed = indexed > to;
+                    if (indexed < to || (! endIndexed && to < feedSizeRecords))
+                        return Futures.of(Optional.empty());
+                    int entriesToRead = endIndexed ? to - from + 1 : to - from;
+                    return fopt.get().getInputStream(network, crypto, x -> {})
+                            .thenCompose(stream -> stream.seek((long) from * INDEX_ENTRY_SIZE))
+                            .thenCompose(stream -> Serialize.readFully(stream, (long) entriesToRead * INDEX_ENTRY_SIZE))
+                            .thenApply(raw -> Optional.of(new Pair<>(readOffset(raw, 0),
+                                    endIndexed ? readOffset(raw, to - from) : feedSizeBytes)));
                 });
     }
 
+    private static long readOffset(byte[] index, int entry) {
+        long res = 0;
+        for (int i = 0; i < INDEX_ENTRY_SIZE; i++)
+            res = (res << 8) | (index[entry * INDEX_ENTRY_SIZE + i] & 0xFF);
+        return res;
+    }
+
+    private static byte[] writeOffsets(List<Long> offsets) {
+        byte[] res = new byte[offsets.size() * INDEX_ENTRY_SIZE];
+        for (int i = 0; i < offsets.size(); i++) {
+            long offset = offsets.get(i);
+            for (int b = 0; b < INDEX_ENTRY_SIZE; b++)
+                res[i * INDEX_ENTRY_SIZE + b] = (byte) (offset >> (8 * (INDEX_ENTRY_SIZE - 1 - b)));
+        }
+        return res;
+    }
+
     @JsMethod
     public CompletableFuture<List<SharedItem>> getShared(int from, int to, Crypto crypto, NetworkAccess network) {
-        return getPriorByteOffset(from)
-                .thenCompose(start -> dataDir.getChild(FEED_FILE, crypto.hasher, network)
+        int end = Math.min(feedSizeRecords, to);
+        if (from >= end)
+            return Futures.of(Collections.emptyList());
+        return getByteRange(from, end, crypto, network)
+                .thenCompose(range -> dataDir.getChild(FEED_FILE, crypto.hasher, network)
                         .thenCompose(fopt -> fopt.map(f -> f.getInputStream(network, crypto, x -> {})
-                                .thenCompose(stream -> stream.seek(start.left))
-                                .thenCompose(stream -> {
-                                    List<SharedItem> res = new ArrayList<>();
-                                    return stream.parseLimitedStream(SharedItem::fromCbor, res::add,
-                                            from - start.right, Math.min(feedSizeRecords, to) - from, feedSizeBytes)
-                                            .thenApply(x -> res);
-                                })).orElse(Futures.of(Collections.emptyList()))));
+                                .thenCompose(stream -> range.isPresent() ?
+                                        readItems(stream, range.get().left, range.get().right) :
+                                        scanItems(stream, from, end))).orElse(Futures.of(Collections.emptyList()))));
+    }
+
+    /** Read the items in a byte range of the feed file in a single read */
+    private static CompletableFuture<List<SharedItem>> readItems(AsyncReader feed, long start, long end) {
+        return feed.seek(start)
+                .thenCompose(stream -> Serialize.readFully(stream, end - start))
+                .thenApply(raw -> {
+                    List<SharedItem> res = new ArrayList<>();
+                    ByteArrayInputStream in = new ByteArrayInputStream(raw);
+                    while (in.available() > 0)
+                        res.add(SharedItem.fromCbor(CborObject.read(in, raw.length)));
+                    return res;
+                });
+    }
+
+    /** Parse the feed file from the beginning, for feeds written before the feed index */
+    private CompletableFuture<List<SharedItem>> scanItems(AsyncReader feed, int from, int end) {
+        List<SharedItem> res = new ArrayList<>();
+        return feed.parseLimitedStream(SharedItem::fromCbor, res::add, from, end - from, feedSizeBytes)
+                .thenApply(x -> res);
     }
 
     @JsMethod
@@ -345,21 +392,24 @@ public class SocialFeed {
             return setVersion(v).thenApply(x -> new Pair<>(v, this));
         return mergeInComments(newItems, v, c).thenCompose(v2 -> {
             ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            List<Integer> itemSizes = new ArrayList<>();
             for (SharedItem item : newItems) {
                 try {
-                    bout.write(item.serialize());
+                    byte[] raw = item.serialize();
+                    itemSizes.add(raw.length);
+                    bout.write(raw);
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
             }
             byte[] data = bout.toByteArray();
-            return Futures.asyncExceptionally(() -> appendToFeedAndCommitState(data, newItems.size(), v2.left, c),
-                    t -> ensureFeedUptodate().thenCompose(x -> appendToFeedAndCommitState(data, newItems.size(), v2.left, c)))
+            return Futures.asyncExceptionally(() -> appendToFeedAndCommitState(data, itemSizes, v2.left, c),
+                    t -> ensureFeedUptodate().thenCompose(x -> appendToFeedAndCommitState(data, itemSizes, v2.left, c)))
                     .thenApply(s -> new Pair<>(s, this));
         });
     }
 
-    private synchronized CompletableFuture<Snapshot> appendToFeedAndCommitState(byte[] data, int records, Snapshot s, Committer c) {
+    private synchronized CompletableFuture<Snapshot> appendToFeedAndCommitState(byte[] data, List<Integer> itemSizes, Snapshot s, Committer c) {
         PublicKeyHash owner = context.signer.publicKeyHash;
         // use a buffered network to make this atomic across multiple files
         return dataDir.getUpdated(s, network).thenCompose(updated ->
@@ -373,14 +423,58 @@ public class SocialFeed {
                     if (feedOpt.get().getSize() != feedSizeBytes)
                         throw new IllegalStateException("Feed size incorrect!");
                     return feedOpt.get().append(data, network, crypto, c, x -> {});
-                })).thenCompose(s2 -> {
-            feedSizeRecords += records;
+                })).thenCompose(s2 -> appendToIndex(itemSizes, s2, c))
+                .thenCompose(s2 -> {
+            feedSizeRecords += itemSizes.size();
             feedSizeBytes += data.length;
             byte[] raw = new FeedState(lastSeenIndex, feedSizeRecords, feedSizeBytes, currentCapBytesProcessed).serialize();
             return stateFile.overwriteFile(AsyncReader.build(raw), raw.length, network, crypto, x -> {}, s2, c);
         }).thenCompose(this::setVersion);
     }
 
+    /** Add the offsets of newly appended items to the feed index, or rebuild it if it doesn't cover the existing items.
+     */
+    private CompletableFuture<Snapshot> appendToIndex(List<Integer> itemSizes, Snapshot s, Committer c) {
+        return dataDir.getUpdated(s, network).thenCompose(updated ->
+                updated.getChild(FEED_INDEX, crypto.hasher, network).thenCompose(indexOpt -> {
+                    long indexed = indexOpt.map(f -> f.getSize() / INDEX_ENTRY_SIZE).orElse(0L);
+                    if (indexed == feedSizeRecords) {
+                        List<Long> offsets = new ArrayList<>();
+                        long offset = feedSizeBytes;
+                        for (int size : itemSizes) {
+                            offsets.add(offset);
+                            offset += size;
+                        }
+                        byte[] entries = writeOffsets(offsets);
+                        if (indexOpt.isPresent())
+                            return indexOpt.get().append(entries, network, crypto, c, x -> {});
+                        return writeIndex(updated, entries, c);
+                    }
+                    // a feed from before the index, so index everything in it
+                    return updated.getChild(FEED_FILE, crypto.hasher, network)
+                            .thenCompose(feedOpt -> feedOpt.get().getInputStream(network, crypto, x -> {})
+                                    .thenCompose(stream -> {
+                                        List<Long> offsets = new ArrayList<>();
+                                        long[] offset = new long[1];
+                                        return stream.parseSizedStream(cbor -> cbor, (cbor, size) -> {
+                                            offsets.add(offset[0]);
+                                            offset[0] += size;
+                                        }, feedOpt.get().getSize()).thenApply(x -> writeOffsets(offsets));
+                                    }))
+                            .thenCompose(entries -> indexOpt.isPresent() ?
+                                    indexOpt.get().overwriteFile(AsyncReader.build(entries), entries.length, network, crypto, x -> {}, s, c) :
+                                    writeIndex(updated, entries, c));
+                }));
+    }
+
+    private CompletableFuture<Snapshot> writeIndex(FileWrapper dir, byte[] entries, Committer c) {
+        return dir.uploadFileSection(dir.version, c, FEED_INDEX, AsyncReader.build(entries),
+                false, 0, entries.length, Optional.empty(), false, false,
+                false, network, crypto, () -> false, x -> {},
+                crypto.random.randomBytes(RelativeCapability.MAP_KEY_LENGTH),
+                Optional.empty(),  Optional.of(Bat.random(crypto.random)), dir.mirrorBatId());
+    }
+
     private CompletableFuture<Snapshot> setVersion(Snapshot s) {
         return dataDir.getUpdated(s, network).thenApply(u -> {
             this.dataDir = u;
@@ -1,11 +1,16 @@
 package peergos.shared.storage;
 
+import peergos.shared.cbor.CborDecoder;
 import peergos.shared.cbor.CborObject;
 import peergos.shared.cbor.Cborable;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 public class BlockWriteGroup implements Cborable {
@@ -36,4 +41,37 @@ public class BlockWriteGroup implements Cborable {
         List<byte[]> signatures = m.getList("s", c -> ((CborObject.CborByteArray)c).value);
         return new BlockWriteGroup(blocks, signatures);
     }
+
+    /** Decode a group from a stream, handing each block and signature to a consumer, with its index, as soon as it
+     *  has been read. Blocks precede signatures in the canonical encoding.
+     *
+     * @param maxItemBytes the largest block or signature accepted
+     */
+    public static BlockWriteGroup read(InputStream in,
+                                       int maxItemBytes,
+                                       BiConsumer<Integer, byte[]> onBlock,
+                                       BiConsumer<Integer, byte[]> onSignature) throws IOException {
+        CborDecoder decoder = new CborDecoder(in);
+        long entries = decoder.readMapLength();
+        if (entries != 2)
+            throw new IllegalStateException("Invalid cbor for BlockWriteGroup!");
+        List<byte[]> blocks = new ArrayList<>(), signatures = new ArrayList<>();
+        for (int i=0; i < entries; i++) {
+            String key = decoder.readTextString(1);
+            boolean isBlocks = key.equals("b");
+            if (! isBlocks && ! key.equals("s"))
+                throw new IllegalStateException("Invalid cbor for BlockWriteGroup!");
+            List<byte[]> items = isBlocks ? blocks : signatures;
+            BiConsumer<Integer, byte[]> consumer = isBlocks ? onBlock : onSignature;
+            long count = decoder.readArrayLength();
+            if (count < 0)
+                throw new IllegalStateException("Indefinite length lists are not supported in a BlockWriteGroup!");
+            for (long j=0; j < count; j++) {
+                byte[] item = decoder.readByteString(maxItemBytes);
+                consumer.accept(items.size(), item);
+                items.add(item);
+            }
+        }
+        return new BlockWriteGroup(blocks, signatures);
+    }
 }
@@ -2621,18 +2621,53 @@ public class UserContext {
 
     @JsMethod
     public CompletableFuture<List<Pair<SharedItem, FileWrapper>>> getFiles(List<SharedItem> pointers) {
-        return Futures.combineAllInOrder(pointers.stream()
-                .map(s -> Futures.asyncExceptionally(() -> network.getFile(s.cap, s.owner)
-                                .thenCompose(fopt -> fopt.map(f -> Futures.of(Optional.of(f)))
-                                        .orElseGet(() -> getByPath(s.path))),
-                        t -> getByPath(s.path))
-                        .thenApply(opt -> opt.map(f -> new Pair<>(s, f))))
-                .collect(Collectors.toList()))
+        // get the current version of each writer once, then the metadata for each writer's caps in bulk
+        List<Pair<PublicKeyHash, PublicKeyHash>> writers = pointers.stream()
+                .map(s -> new Pair<>(s.cap.owner, s.cap.writer))
+                .distinct()
+                .collect(Collectors.toList());
+        return Futures.combineAllInOrder(writers.stream()
+                        .map(w -> network.synchronizer.readOnlyValue(w.left, w.right)
+                                .thenApply(Optional::of)
+                                .exceptionally(t -> Optional.empty()))
+                        .collect(Collectors.toList()))
+                .thenCompose(versions -> {
+                    Snapshot version = versions.stream()
+                            .flatMap(Optional::stream)
+                            .reduce(new Snapshot(new HashMap<>(), true), Snapshot::mergeAndOverwriteWith);
+                    List<SharedItem> inVersion = pointers.stream()
+                            .filter(s -> version.contains(s.cap.writer))
+                            .collect(Collectors.toList());
+                    return Futures.asyncExceptionally(() -> network.getFiles(version,
+                                    inVersion.stream().map(s -> s.cap).collect(Collectors.toList()),
+                                    inVersion.stream().map(s -> s.owner).collect(Collectors.toList())),
+                            t -> Futures.of(Collections.nCopies(inVersion.size(), Optional.empty())))
+                            .thenApply(files -> {
+                                Map<SharedItem, FileWrapper> found = new IdentityHashMap<>();
+                                for (int i = 0; i < inVersion.size(); i++) {
+                                    if (files.get(i).isPresent())
+                                        found.put(inVersion.get(i), files.get(i).get());
+                                }
+                                return found;
+                            });
+                }).thenCompose(found -> Futures.combineAllInOrder(pointers.stream()
+                        .map(s -> (found.containsKey(s) ?
+                                Futures.of(Optional.of(found.get(s))) :
+                                getFile(s))
+                                .thenApply(opt -> opt.map(f -> new Pair<>(s, f))))
+                        .collect(Collectors.toList())))
                 .thenApply(res -> res.stream()
                         .flatMap(Optional::stream)
                         .collect(Collectors.toList()));
     }
 
+    private CompletableFuture<Optional<FileWrapper>> getFile(SharedItem s) {
+        return Futures.asyncExceptionally(() -> network.getFile(s.cap, s.owner)
+                        .thenCompose(fopt -> fopt.map(f -> Futures.of(Optional.of(f)))
+                                .orElseGet(() -> getByPath(s.path))),
+                t -> getByPath(s.path));
+    }
+
     public CompletableFuture<List<Pair<SharedItem, FileWrapper>>> getFiles(List<SharedItem> pointers, Snapshot v) {
         return Futures.combineAllInOrder(pointers.stream()
                 .map(s -> Futures.asyncExceptionally(() -> network.getFile(v, s.cap, Optional.empty(), s.owner)
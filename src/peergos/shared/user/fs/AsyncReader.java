@@ -44,6 +44,13 @@ public interface AsyncReader extends AutoCloseable {
 
     @JsIgnore
     default <T> CompletableFuture<Long> parseStream(Function<Cborable, T> fromCbor, Consumer<T> accumulator, long maxBytesToRead) {
+        return parseSizedStream(fromCbor, (t, size) -> accumulator.accept(t), maxBytesToRead);
+    }
+
+    /** Like parseStream, but also gives the accumulator the number of bytes each object took up in this stream
+     */
+    @JsIgnore
+    default <T> CompletableFuture<Long> parseSizedStream(Function<Cborable, T> fromCbor, BiConsumer<T, Integer> accumulator, long maxBytesToRead) {
         return parseStreamRecurse(new byte[0], fromCbor, accumulator, maxBytesToRead);
     }
 
@@ -51,13 +58,13 @@ public interface AsyncReader extends AutoCloseable {
      *
      * @param prefix any bytes from a partial object read that will form the prefix of this read
      * @param fromCbor The cbor converter
-     * @param accumulator The results consumer
+     * @param accumulator The results consumer, which is also given the number of bytes each object was read from
      * @param maxBytesToRead There must be at least this many bytes left in this stream or an EOF will result
      * @param <T>
      * @return
      */
     @JsIgnore
-    default <T> CompletableFuture<Long> parseStreamRecurse(byte[] prefix, Function<Cborable, T> fromCbor, Consumer<T> accumulator, long maxBytesToRead) {
+    default <T> CompletableFuture<Long> parseStreamRecurse(byte[] prefix, Function<Cborable, T> fromCbor, BiConsumer<T, Integer> accumulator, long maxBytesToRead) {
         if (maxBytesToRead == 0)
             return CompletableFuture.completedFuture(0L);
         int toRead = (int) Math.min(Chunk.MAX_SIZE - prefix.length, maxBytesToRead);
@@ -69,8 +76,10 @@ public interface AsyncReader extends AutoCloseable {
                     for (int localOffset = 0; localOffset < prefix.length + bytesRead;) {
                         try {
                             CborObject readObject = CborObject.read(in, prefix.length + bytesRead);
-                            accumulator.accept(fromCbor.apply(readObject));
-                            localOffset += readObject.toByteArray().length;
+                            // use the bytes actually consumed, as a non canonical encoding re-serializes to a different length
+                            int end = buf.length - in.available();
+                            accumulator.accept(fromCbor.apply(readObject), end - localOffset);
+                            localOffset = end;
                         } catch (RuntimeException e) {
                             int fromThisChunk = localOffset;
                             return parseStreamRecurse(Arrays.copyOfRange(buf, localOffset, prefix.length + bytesRead), fromCbor, accumulator,
@@ -78,7 +87,7 @@ public interface AsyncReader extends AutoCloseable {
                                     .thenApply(rest -> rest + fromThisChunk);
                         }
                     }
-                    return parseStream(fromCbor, accumulator, maxBytesToRead - bytesRead)
+                    return parseSizedStream(fromCbor, accumulator, maxBytesToRead - bytesRead)
                             .thenApply(rest -> rest + bytesRead);
                 });
     }
@@ -130,7 +139,7 @@ public interface AsyncReader extends AutoCloseable {
                                 objectsToRead--;
                                 accumulator.accept(fromCbor.apply(readObject));
                             }
-                            localOffset += readObject.toByteArray().length;
+                            localOffset = buf.length - in.available();
                             if (objectsToRead == 0)
                                 return Futures.of((long)localOffset);
                         } catch (RuntimeException e) {
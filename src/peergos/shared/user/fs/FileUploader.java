@@ -23,6 +23,12 @@ public class FileUploader implements AutoCloseable {
     public static void disableLog() {
         LOG.setLevel(Level.OFF);
     }
+    // Only used in the JVM, so the browser never retains chunk sized buffers
+    private static final ByteArrayPool chunkBuffers = new ByteArrayPool(Chunk.MAX_SIZE, 4);
+
+    public static ByteArrayPool chunkBuffers() {
+        return chunkBuffers;
+    }
 
     private final String name;
     private final long offset, length;
@@ -159,7 +165,8 @@ public class FileUploader implements AutoCloseable {
                                 // else every already encrypted chunk still uploads first
                                 if (isCancelled.get())
                                     throw new IllegalStateException("Upload cancelled!");
-                                return queue.poll().thenCompose(chunk -> uploadChunk(s, c, chunk, writer, network, monitor));
+                                return queue.poll().thenCompose(chunk -> uploadChunk(s, c, chunk, writer, network, monitor)
+                                        .whenComplete((r, e) -> chunk.releaseBuffer()));
                             },
                             (a, b) -> b)
                     .thenApply(x -> {
@@ -176,11 +183,24 @@ public class FileUploader implements AutoCloseable {
         public final LocatedChunk chunk;
         public final CryptreeNode metadata;
         public final List<FragmentWithHash> fragments;
+        private final boolean pooledData;
 
-        public ChunkUpload(LocatedChunk chunk, CryptreeNode metadata, List<FragmentWithHash> fragments) {
+        public ChunkUpload(LocatedChunk chunk, CryptreeNode metadata, List<FragmentWithHash> fragments, boolean pooledData) {
             this.chunk = chunk;
             this.metadata = metadata;
             this.fragments = fragments;
+            this.pooledData = pooledData;
+        }
+
+        public ChunkUpload(LocatedChunk chunk, CryptreeNode metadata, List<FragmentWithHash> fragments) {
+            this(chunk, metadata, fragments, false);
+        }
+
+        /** Return the chunk's data buffer to the pool, once nothing will read it again.
+         */
+        public void releaseBuffer() {
+            if (pooledData)
+                chunkBuffers.release(chunk.chunk.data());
         }
     }
 
@@ -201,8 +221,10 @@ public class FileUploader implements AutoCloseable {
         long fileLength = length;
         boolean isLastChunk = fileLength < position + Chunk.MAX_SIZE;
         int length =  isLastChunk ? (int)(fileLength -  position) : Chunk.MAX_SIZE;
-        byte[] data = new byte[length];
-        return reader.readIntoArray(data, 0, data.length).thenCompose(b ->
+        // in the JVM full chunks are read into pooled buffers, which are returned once the chunk is uploaded
+        boolean pooled = ! isJS && length == chunkBuffers.bufferSize();
+        byte[] data = pooled ? chunkBuffers.take() : new byte[length];
+        return readFully(reader, data, 0, length).thenCompose(b ->
                 (hashBuilder == null
                         ? Futures.of(true)
                         : hashBuilder.setChunk((int) chunkIndex, data, hasher))
@@ -224,13 +246,25 @@ public class FileUploader implements AutoCloseable {
                                                     chunk.chunk.key(), chunkIndex % 1024 == 0 ?
                                                             props.withHash(hash.map(t -> t.branch(chunkIndex))) :
                                                             props, chunk.chunk.data(), parentLocation, parentBat, parentparentKey, nextChunk,
-                                                    chunk.bat, mirrorBat, random, hasher, isJS)
-                                            .thenApply(p -> new ChunkUpload(chunk, p.left, p.right));
+                                                    chunk.bat, mirrorBat, random, hasher, ! isJS)
+                                            .thenApply(p -> new ChunkUpload(chunk, p.left, p.right, pooled));
                                 });
                     });
         }));
     }
 
+    /** A single read can return fewer bytes than asked for, and a pooled buffer still holds an earlier chunk, so keep
+     *  reading until the chunk is full.
+     */
+    private static CompletableFuture<Boolean> readFully(AsyncReader reader, byte[] buf, int offset, int remaining) {
+        if (remaining == 0)
+            return Futures.of(true);
+        return reader.readIntoArray(buf, offset, remaining)
+                .thenCompose(read -> read <= 0 ?
+                        Futures.errored(new IllegalStateException("File data ended " + remaining + " bytes early!")) :
+                        readFully(reader, buf, offset + read, remaining - read));
+    }
+
     public CompletableFuture<Optional<HashTree>> completeHash(Hasher hasher) {
         if (hashBuilder == null) return Futures.of(Optional.empty());
         return hashBuilder.complete(hasher).thenApply(Optional::of);
@@ -283,7 +317,7 @@ public class FileUploader implements AutoCloseable {
         RelativeCapability nextChunk = RelativeCapability.buildSubsequentChunk(nextChunkLocation.getMapKey(), nextChunkBat, baseKey);
         return CryptreeNode.createFile(chunk.existingHash, chunk.location.writer, baseKey,
                 chunk.chunk.key(), props, chunk.chunk.data(), parentLocation, parentBat, parentparentKey, nextChunk,
-                chunk.bat, mirrorBat, random, hasher, network.isJavascript())
+                chunk.bat, mirrorBat, random, hasher, ! network.isJavascript())
                 .thenCompose(file -> uploadChunk(current, committer, new ChunkUpload(chunk, file.left.withWriterLink(baseKey, writerLink), file.right),
                         writer, network, progress));
     }
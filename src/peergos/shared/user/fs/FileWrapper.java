@@ -33,6 +33,8 @@ public class FileWrapper {
 	private static final Logger LOG = Logger.getGlobal();
 
     private final static int THUMBNAIL_SIZE = 400;
+    // bounds the memory used to buffer consecutive changed chunks in overwriteChangedChunks
+    private static final int MAX_CHANGED_CHUNKS_PER_WRITE = 8;
     private static final NativeJSThumbnail thumbnail = new NativeJSThumbnail();
 
     private final RetrievedCapability pointer;
@@ -1018,6 +1020,10 @@ public class FileWrapper {
                 .thenCompose(v -> getUpdated(v, network));
     }
 
+    /** Overwrite this file with new data, only rewriting the chunks whose hash differs from the stored hash tree.
+     *  Chunks are at fixed offsets and encrypted whole, so data that has moved (e.g. after an insertion) is rewritten.
+     *  Consecutive changed chunks are written together, and the hash tree is updated from the hashes computed here.
+     */
     public CompletableFuture<FileWrapper> overwriteChangedChunks(AsyncReader newData,
                                                                   long newSize,
                                                                   NetworkAccess network,
@@ -1032,6 +1038,10 @@ public class FileWrapper {
         }
 
         ChunkHashList existingChunkHashes = existingBranch.get().level1.get();
+        HashTreeBuilder newHashes = new HashTreeBuilder(newSize);
+        List<byte[]> changedRun = new ArrayList<>();
+        long[] changedRunStart = new long[1];
+        boolean[] changed = new boolean[] {newSize != existingSize};
 
         return network.synchronizer.applyComplexUpdate(owner(), signingPair(),
                 (s, committer) -> clean(s, committer, network, crypto)
@@ -1046,31 +1056,65 @@ public class FileWrapper {
                                             return readFully(newData, chunkBuf, 0, chunkLen)
                                                     .thenCompose(ignored -> crypto.hasher.sha256(chunkBuf))
                                                     .thenCompose(chunkHash -> {
-                                                        if (chunkIndex < existingChunkHashes.nChunks()) {
-                                                            byte[] existing = Arrays.copyOfRange(
-                                                                    existingChunkHashes.chunkHashes,
-                                                                    chunkIndex * 32, (chunkIndex + 1) * 32);
-                                                            if (Arrays.equals(existing, chunkHash))
-                                                                return Futures.of(state);
-                                                        }
-                                                        return state.left.getUpdated(state.right, network)
-                                                                .thenCompose(updated -> updated.overwriteSection(
-                                                                        state.right, committer,
-                                                                        new AsyncReader.ArrayBacked(chunkBuf),
-                                                                        chunkStart, chunkStart + chunkLen,
-                                                                        Optional.empty(), network, crypto, monitor))
-                                                                .thenApply(newSnap -> new Pair<>(state.left, newSnap));
+                                                        newHashes.setChunkHash(chunkIndex, chunkHash);
+                                                        boolean unchanged = chunkIndex < existingChunkHashes.nChunks() &&
+                                                                Arrays.equals(chunkHash, Arrays.copyOfRange(
+                                                                        existingChunkHashes.chunkHashes,
+                                                                        chunkIndex * 32, (chunkIndex + 1) * 32));
+                                                        if (unchanged)
+                                                            return writeChunks(state, committer, changedRunStart[0], changedRun, network, crypto, monitor);
+                                                        changed[0] = true;
+                                                        if (changedRun.isEmpty())
+                                                            changedRunStart[0] = chunkStart;
+                                                        changedRun.add(chunkBuf);
+                                                        if (changedRun.size() < MAX_CHANGED_CHUNKS_PER_WRITE)
+                                                            return Futures.of(state);
+                                                        return writeChunks(state, committer, changedRunStart[0], changedRun, network, crypto, monitor);
                                                     });
                                         },
                                         (a, b) -> b)
+                                        .thenCompose(state -> writeChunks(state, committer, changedRunStart[0], changedRun, network, crypto, monitor))
                                         .thenCompose(finalState -> newSize >= existingSize
                                                 ? Futures.of(finalState.right)
                                                 : finalState.left.getUpdated(finalState.right, network)
                                                         .thenCompose(f -> f.truncate(finalState.right, committer,
-                                                                newSize, network, crypto)))))
+                                                                newSize, network, crypto)))
+                                        .thenCompose(v -> ! changed[0] ?
+                                                Futures.of(v) :
+                                                // partial overwrites drop or leave a stale hash tree, so set it from the hashes we have
+                                                newHashes.complete(crypto.hasher)
+                                                        .thenCompose(tree -> network.getFile(v, writableFilePointer(), entryWriter, ownername)
+                                                                .thenCompose(updated -> updated.get().getHashUpdates(tree, network, crypto.hasher))
+                                                                .thenCompose(updates -> bulkSetSameNameProperties(v, committer, owner(), updates, network))))))
                 .thenCompose(v -> getUpdated(v, network));
     }
 
+    /** Write a run of consecutive chunks in a single section overwrite, and empty the run */
+    private static CompletableFuture<Pair<FileWrapper, Snapshot>> writeChunks(Pair<FileWrapper, Snapshot> state,
+                                                                              Committer committer,
+                                                                              long start,
+                                                                              List<byte[]> chunks,
+                                                                              NetworkAccess network,
+                                                                              Crypto crypto,
+                                                                              ProgressConsumer<Long> monitor) {
+        if (chunks.isEmpty())
+            return Futures.of(state);
+        byte[] data = new byte[chunks.stream().mapToInt(c -> c.length).sum()];
+        int offset = 0;
+        for (byte[] chunk : chunks) {
+            System.arraycopy(chunk, 0, data, offset, chunk.length);
+            offset += chunk.length;
+        }
+        chunks.clear();
+        return state.left.getUpdated(state.right, network)
+                .thenCompose(updated -> updated.overwriteSection(
+                        state.right, committer,
+                        new AsyncReader.ArrayBacked(data),
+                        start, start + data.length,
+                        Optional.empty(), network, crypto, monitor))
+                .thenApply(newSnap -> new Pair<>(state.left, newSnap));
+    }
+
     private static CompletableFuture<Void> readFully(AsyncReader reader, byte[] buf, int offset, int remaining) {
         if (remaining == 0)
             return Futures.of(null);
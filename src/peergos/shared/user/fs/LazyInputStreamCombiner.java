@@ -35,7 +35,10 @@ public class LazyInputStreamCombiner implements AsyncReader {
 
     private final Map<Long, Pair<byte[], AbsoluteCapability>> bufferedChunks = new ConcurrentHashMap<>(); // and next chunk pointer
     private final Map<Long, CompletableFuture<Pair<byte[], AbsoluteCapability>>> inProgress = new ConcurrentHashMap<>();
+    private final ReadAhead.Reservations readAheadReservations = ReadAhead.reservationsFor(this);
     private final int nBufferedChunks;
+    // number of chunks to prefetch, doubles on sequential reads and resets on seeks
+    private volatile int window = 1;
     private long globalIndex; // index of beginning of current chunk in file
     private byte[] currentChunk;
     private AbsoluteCapability currentNextChunkPointer;
@@ -81,7 +84,11 @@ public class LazyInputStreamCombiner implements AsyncReader {
     }
 
     private void prefetch(int nChunks) {
-        ForkJoinPool.commonPool().execute(() -> syncPrefetch(nChunks));
+        ReadAhead.executor().execute(() -> syncPrefetch(nChunks));
+    }
+
+    private int maxWindow() {
+        return Math.max(nBufferedChunks, ReadAhead.maxWindow());
     }
 
     private void syncPrefetch(int nChunks) {
@@ -124,9 +131,15 @@ public class LazyInputStreamCombiner implements AsyncReader {
             long chunkOffset = lastBufferedChunk + (i * Chunk.MAX_SIZE);
             if (inProgress.containsKey(chunkOffset) || bufferedChunks.containsKey(chunkOffset))
                 continue;
+            if (! readAheadReservations.reserve(chunkOffset, size)) // over the global read-ahead budget
+                return;
 
 //            LOG.info("Submitting chunk download " + (chunkOffset / Chunk.MAX_SIZE));
-            ForkJoinPool.commonPool().execute(() -> getChunk(nextChunkCap.withMapKey(mapKey.left, mapKey.right), chunkOffset, size));
+            ReadAhead.executor().execute(() -> getChunk(nextChunkCap.withMapKey(mapKey.left, mapKey.right), chunkOffset, size)
+                    .exceptionally(t -> {
+                        readAheadReservations.release(chunkOffset);
+                        return null;
+                    }));
         }
     }
 
@@ -229,6 +242,7 @@ public class LazyInputStreamCombiner implements AsyncReader {
                                     .thenCompose(access -> getChunk(access, targetPointer.getMapKey(), targetPointer.bat, truncateTo))
                                     .thenCompose(p -> {
                                         updateState(0, startOfTargetChunk, p.left, p.right);
+                                        seeked();
                                         return skip(finalInternalIndex);});
                         });
             }
@@ -236,6 +250,7 @@ public class LazyInputStreamCombiner implements AsyncReader {
                     .thenCompose(access -> getChunk(access, nextChunkPointer().getMapKey(), nextChunkPointer().bat, truncateTo))
                     .thenCompose(p -> {
                         updateState(0, startOfTargetChunk, p.left, p.right);
+                        seeked();
                         return skip(finalInternalIndex);
                     });
     }
@@ -260,7 +275,30 @@ public class LazyInputStreamCombiner implements AsyncReader {
         return currentChunk.length - index;
     }
 
-    public void close() {}
+    public void close() {
+        readAheadReservations.releaseAll();
+    }
+
+    private void removeBufferedChunk(long chunkOffset) {
+        bufferedChunks.remove(chunkOffset);
+        readAheadReservations.release(chunkOffset);
+    }
+
+    /** A prefetched chunk stops counting against the read-ahead budget once we are reading it, and there is nothing
+     *  left to read ahead from the last chunk.
+     */
+    private void consumed(long chunkOffset) {
+        if (chunkOffset + Chunk.MAX_SIZE >= totalLength)
+            readAheadReservations.releaseAll();
+        else
+            readAheadReservations.release(chunkOffset);
+    }
+
+    /** Random access makes read-ahead a waste, so shrink the window back to a single chunk */
+    private void seeked() {
+        window = 1;
+        ensureBufferWithinLimit();
+    }
 
     private void resetBuffer() {
         bufferedChunks.put(0L, new Pair<>(originalChunk, originalNextPointer));
@@ -272,6 +310,7 @@ public class LazyInputStreamCombiner implements AsyncReader {
         this.currentChunk = originalChunk;
         this.currentNextChunkPointer = originalNextPointer;
         this.index = 0;
+        seeked();
         return CompletableFuture.completedFuture(this);
     }
 
@@ -291,7 +330,7 @@ public class LazyInputStreamCombiner implements AsyncReader {
         }
         long globalOffset = globalIndex + index;
 
-        prefetch(Math.min(5, nBufferedChunks));
+        prefetch(window);
 
         if (available >= length) // we are done
             return CompletableFuture.completedFuture(length);
@@ -304,28 +343,41 @@ public class LazyInputStreamCombiner implements AsyncReader {
                 Chunk.MAX_SIZE :
                 (int) (totalLength - globalOffset);
         long nextChunk = globalIndex + Chunk.MAX_SIZE;
+        if (streamSecret.isPresent()) {
+            if (bufferedChunks.containsKey(nextChunk))
+                ReadAhead.recordHit();
+            else
+                ReadAhead.recordMiss();
+        }
         return getChunk(nextChunkPointer(), nextChunk, nextChunkSize).thenCompose(current -> {
             index = 0;
             globalIndex = nextChunk;
             currentChunk = current.left;
             currentNextChunkPointer = current.right;
+            consumed(nextChunk);
+            // sequential access, so read further ahead
+            window = Math.min(maxWindow(), window * 2);
             ensureBufferWithinLimit();
             return this.readIntoArray(res, offset + toRead, length - toRead).thenApply(bytesRead -> bytesRead + toRead);
         });
     }
 
     private void ensureBufferWithinLimit() {
-        if (bufferedChunks.size() > nBufferedChunks) {
+        // the current chunk plus the read-ahead window
+        int limit = Math.max(nBufferedChunks, window + 1);
+        while (bufferedChunks.size() > limit) {
             List<Long> sorted = bufferedChunks.keySet().stream()
                     .sorted()
                     .collect(Collectors.toList());
             long first = sorted.get(0);
             if (first < globalIndex)
-                bufferedChunks.remove(first);
+                removeBufferedChunk(first);
             else {
                 long last = sorted.get(sorted.size() - 1);
                 if (last > globalIndex)
-                    bufferedChunks.remove(last);
+                    removeBufferedChunk(last);
+                else
+                    return;
             }
         }
     }
@@ -339,5 +391,6 @@ public class LazyInputStreamCombiner implements AsyncReader {
         this.currentChunk = chunk;
         this.currentNextChunkPointer = nextChunkPointer;
         bufferedChunks.put(globalIndex, new Pair<>(chunk, nextChunkPointer));
+        consumed(globalIndex);
     }
 }
@@ -0,0 +1,123 @@
+package peergos.shared.user.fs;
+
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Read-ahead state shared by all open file readers: the executor prefetches run on, a global memory budget for
+ *  prefetched chunks, and prefetch hit statistics.
+ *
+ *  A reader's share of the budget is held in its {@link Reservations}. A chunk's reservation is released once the
+ *  reader moves onto the chunk, when the chunk is dropped from the reader's buffer, when its download fails, and
+ *  for all the reader's chunks when it reaches the end of the file, is closed, or is garbage collected.
+ */
+public class ReadAhead {
+    public static final int DEFAULT_MAX_WINDOW = 4;
+    public static final long DEFAULT_BUDGET = 32L * Chunk.MAX_SIZE;
+
+    private static volatile ExecutorService executor = ForkJoinPool.commonPool();
+    private static volatile long budget = DEFAULT_BUDGET;
+    private static volatile int maxWindow = DEFAULT_MAX_WINDOW;
+
+    private static final Cleaner abandonedReaders = Cleaner.create();
+    private static long reservedBytes = 0;
+    private static final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /** The chunks a single reader has reserved budget for, by chunk offset. This must not refer to the reader, so
+     *  that it can release them after the reader is garbage collected.
+     */
+    public static class Reservations {
+        private final Map<Long, Integer> chunks = new ConcurrentHashMap<>();
+
+        /**
+         * @return false if the budget is exhausted
+         */
+        public boolean reserve(long chunkOffset, int bytes) {
+            if (! ReadAhead.reserve(bytes))
+                return false;
+            Integer previous = chunks.put(chunkOffset, bytes);
+            if (previous != null)
+                ReadAhead.release(previous);
+            return true;
+        }
+
+        public void release(long chunkOffset) {
+            Integer bytes = chunks.remove(chunkOffset);
+            if (bytes != null)
+                ReadAhead.release(bytes);
+        }
+
+        public void releaseAll() {
+            for (Long chunkOffset : new ArrayList<>(chunks.keySet()))
+                release(chunkOffset);
+        }
+    }
+
+    /**
+     * @return the reservations for a new reader, which are released when it is garbage collected
+     */
+    public static Reservations reservationsFor(Object reader) {
+        Reservations res = new Reservations();
+        abandonedReaders.register(reader, res::releaseAll);
+        return res;
+    }
+
+    /**
+     * @param prefetcher the executor to run prefetches on
+     * @param budgetBytes the maximum total size of prefetched chunks across all readers
+     * @param maxWindowChunks the maximum number of chunks a reader will prefetch ahead of its position
+     */
+    public static void configure(ExecutorService prefetcher, long budgetBytes, int maxWindowChunks) {
+        executor = prefetcher;
+        budget = budgetBytes;
+        maxWindow = maxWindowChunks;
+    }
+
+    public static ExecutorService executor() {
+        return executor;
+    }
+
+    public static int maxWindow() {
+        return maxWindow;
+    }
+
+    private static synchronized boolean reserve(int bytes) {
+        if (reservedBytes + bytes > budget)
+            return false;
+        reservedBytes += bytes;
+        return true;
+    }
+
+    private static synchronized void release(int bytes) {
+        reservedBytes -= bytes;
+    }
+
+    public static synchronized long reservedBytes() {
+        return reservedBytes;
+    }
+
+    public static void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    public static void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    public static long hits() {
+        return hits.get();
+    }
+
+    public static long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the fraction of sequential chunk reads which were already prefetched
+     */
+    public static double hitRate() {
+        long h = hits.get(), total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+}
@@ -1241,9 +1241,9 @@ public class CryptreeNode implements Cborable {
             Optional<BatId> mirrorBat,
             SafeRandom random,
             Hasher hasher,
-            boolean allowArrayCache) {
+            boolean pooledBuffers) {
         return FragmentedPaddedCipherText.build(dataKey, new CborObject.CborByteArray(chunkData),
-                        MIN_FRAGMENT_SIZE, Fragment.MAX_LENGTH, mirrorBat, random, hasher, allowArrayCache)
+                        MIN_FRAGMENT_SIZE, Fragment.MAX_LENGTH, mirrorBat, random, hasher, pooledBuffers)
                 .thenApply(linksAndData -> {
                     RelativeCapability toParent = new RelativeCapability(
                             parentLocation.writer.equals(ourWriter) ? Optional.empty() : Optional.of(parentLocation.writer),
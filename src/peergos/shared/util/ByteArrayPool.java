@@ -0,0 +1,49 @@
+package peergos.shared.util;
+
+import java.util.*;
+
+/** A bounded pool of equally sized byte arrays, to avoid repeatedly allocating large short-lived buffers.
+ *
+ *  Arrays are handed out with undefined contents, and must not be used after they have been released.
+ */
+public class ByteArrayPool {
+    private final int bufferSize, maxRetained;
+    private final Deque<byte[]> free = new ArrayDeque<>();
+    private long allocated = 0, reused = 0;
+
+    public ByteArrayPool(int bufferSize, int maxRetained) {
+        this.bufferSize = bufferSize;
+        this.maxRetained = maxRetained;
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public synchronized byte[] take() {
+        byte[] res = free.poll();
+        if (res != null) {
+            reused++;
+            return res;
+        }
+        allocated++;
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Return an array to the pool. Arrays of a different size, or which are already in the pool, are ignored.
+     */
+    public synchronized void release(byte[] buffer) {
+        if (buffer.length != bufferSize || free.size() >= maxRetained || free.contains(buffer))
+            return;
+        free.push(buffer);
+    }
+
+    public synchronized long allocated() {
+        return allocated;
+    }
+
+    public synchronized long reused() {
+        return reused;
+    }
+}